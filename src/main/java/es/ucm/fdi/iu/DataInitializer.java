@@ -1,5 +1,6 @@
 package es.ucm.fdi.iu;
 
+import es.ucm.fdi.iu.model.HostNameOverride;
 import es.ucm.fdi.iu.model.User;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
@@ -84,5 +85,14 @@ public class DataInitializer implements CommandLineRunner {
                 log.error("Error retrieving existing admin user", e);
             }
         }
+
+        // Static host names (formerly hard-coded in PrinterDiscoveryService); only seeded on an empty table
+        Long overrideCount = entityManager.createQuery(
+            "SELECT COUNT(h) FROM HostNameOverride h", Long.class)
+            .getSingleResult();
+        if (overrideCount == 0) {
+            entityManager.persist(new HostNameOverride("10.1.1.45", "EPSONSECRETOR", "Impresora sin DNS reverso"));
+            log.info("Default host name overrides created");
+        }
     }
 }
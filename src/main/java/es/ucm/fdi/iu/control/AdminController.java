@@ -7,6 +7,8 @@ import es.ucm.fdi.iu.model.Department;
 import es.ucm.fdi.iu.model.Computer;
 import es.ucm.fdi.iu.model.NetworkRange;
 import es.ucm.fdi.iu.model.Job;
+import es.ucm.fdi.iu.service.ApiTokenCache;
+import es.ucm.fdi.iu.service.IppRoutingService;
 import es.ucm.fdi.iu.service.PrinterDiscoveryService;
 import es.ucm.fdi.iu.service.PrinterAutoConfigService;
 import es.ucm.fdi.iu.service.PrintQueueService;
@@ -78,9 +80,18 @@ public class AdminController {
         @Autowired
     private es.ucm.fdi.iu.service.MultiPortIppServerService multiPortIppServerService;
     
+    @Autowired
+    private ApiTokenCache apiTokenCache;
+    
+    @Autowired
+    private es.ucm.fdi.iu.service.SearchIndexService searchIndexService;
+    
     @Autowired
     private es.ucm.fdi.iu.service.NetworkIdentificationService networkIdService;
 
+    @Autowired
+    private IppRoutingService routingService;
+
                                                                     // ========== DASHBOARD PRINCIPAL ==========
     
     @GetMapping({"/", ""})
@@ -224,17 +235,15 @@ public class AdminController {
                     "SELECT COUNT(p) FROM Printer p", Long.class)
                     .getSingleResult();
             
-            // Cargar todas las impresoras con paginación
-            Pageable pageable = PageRequest.of(page, size);
-            List<Printer> allPrintersList = entityManager.createQuery(
-                    "SELECT p FROM Printer p ORDER BY p.alias", Printer.class)
+            // Solo la página pedida: LIMIT/OFFSET en la base de datos sobre el
+            // índice (alias, id); el id desempata para que el orden sea estable
+            Pageable pageable = PageRequest.of(Math.max(page, 0), Math.max(size, 1));
+            List<Printer> printersPage = entityManager.createQuery(
+                    "SELECT p FROM Printer p ORDER BY p.alias, p.id", Printer.class)
+                    .setFirstResult((int) pageable.getOffset())
+                    .setMaxResults(pageable.getPageSize())
                     .getResultList();
-            
-            // Protección contra listas vacías o páginas fuera de rango
-            int start = Math.min((int) pageable.getOffset(), allPrintersList.size());
-            int end = Math.min((start + pageable.getPageSize()), allPrintersList.size());
-            List<Printer> printersPage = start < allPrintersList.size() ? allPrintersList.subList(start, end) : java.util.Collections.emptyList();
-            Page<Printer> allPrinters = new PageImpl<>(printersPage, pageable, allPrintersList.size());
+            Page<Printer> allPrinters = new PageImpl<>(printersPage, pageable, totalPrintersCount);
             
             // Rangos de red
             List<NetworkRange> networkRanges = new java.util.ArrayList<>();
@@ -249,17 +258,12 @@ public class AdminController {
             // Datos para el sidebar
             List<Department> departments = entityManager.createNamedQuery(
                     "Department.all", Department.class)
-                    .getResultList();
-            
-            List<Computer> unassignedComputers = entityManager.createQuery(
-                    "SELECT c FROM Computer c WHERE c.department IS NULL", Computer.class)
                     .getResultList();
             
                                                 model.addAttribute("allPrinters", allPrinters);
             model.addAttribute("totalPrintersCount", totalPrintersCount);
             model.addAttribute("networkRanges", networkRanges);
             model.addAttribute("departments", departments);  // PARA EL SIDEBAR
-            model.addAttribute("unassignedComputers", unassignedComputers);  // PARA EL SIDEBAR
             model.addAttribute("currentUri", request.getRequestURI());
             
             log.info("Printers section loaded with {} printers", totalPrintersCount);
@@ -352,6 +356,7 @@ public class AdminController {
             @RequestParam String fileName,
             @RequestParam String owner,
             @RequestParam(required = false) MultipartFile file,
+            @RequestParam(required = false) Job.Priority priority,
             HttpSession session,
             RedirectAttributes ra) {
         try {
@@ -371,7 +376,7 @@ public class AdminController {
             }
             
             // Usar el servicio de colas para agregar el trabajo
-            Job job = printQueueService.addJob(printer, fileName, owner, user, fileData);
+            Job job = printQueueService.addJob(printer, fileName, owner, user, fileData, priority, null);
             
             ra.addFlashAttribute("success", "Trabajo agregado a la cola de " + printer.getAlias() + 
                 " (ID: " + job.getId() + ")");
@@ -433,18 +438,9 @@ public class AdminController {
     @Transactional
     public String moveJobToTop(@RequestParam Long jobId, RedirectAttributes ra) {
         try {
-            Job job = entityManager.find(Job.class, jobId);
-            if (job != null && job.getPrinter() != null) {
-                Printer printer = job.getPrinter();
-                List<Job> queue = printer.getQueue();
-                
-                if (queue.remove(job)) {
-                    queue.add(0, job);
-                    entityManager.flush();
-                    ra.addFlashAttribute("success", "Trabajo movido al inicio de la cola");
-                } else {
-                    ra.addFlashAttribute("error", "No se pudo mover el trabajo");
-                }
+            // Secuencia persistida: el planificador de la cola la respeta
+            if (printQueueService.moveJobToTop(jobId)) {
+                ra.addFlashAttribute("success", "Trabajo movido al inicio de la cola");
             } else {
                 ra.addFlashAttribute("error", "Trabajo o impresora no encontrado");
             }
@@ -466,7 +462,7 @@ public class AdminController {
         try {
             User currentUser = (User) session.getAttribute("u");
             
-            Pageable pageable = PageRequest.of(page, size);
+            Pageable pageable = PageRequest.of(Math.max(page, 0), Math.max(size, 1));
             
             // Contar totales (para estadísticas)
             long totalComputersCount = entityManager.createQuery(
@@ -477,57 +473,38 @@ public class AdminController {
                     "SELECT COUNT(c) FROM Computer c WHERE c.department IS NULL", Long.class)
                     .getSingleResult();
             
-            long assignedComputersCount = entityManager.createQuery(
-                    "SELECT COUNT(c) FROM Computer c WHERE c.department IS NOT NULL", Long.class)
-                    .getSingleResult();
+            long assignedComputersCount = totalComputersCount - unassignedComputersCount;
             
-            // Cargar todas las computadoras
-            List<Computer> allComputersList = entityManager.createQuery(
-                    "SELECT c FROM Computer c ORDER BY c.name", Computer.class)
+            // Computadoras sin asignar: solo la página pedida
+            List<Computer> unassignedPage = entityManager.createQuery(
+                    "SELECT c FROM Computer c WHERE c.department IS NULL ORDER BY c.name, c.id", Computer.class)
+                    .setFirstResult((int) pageable.getOffset())
+                    .setMaxResults(pageable.getPageSize())
                     .getResultList();
+            Page<Computer> unassignedComputers = new PageImpl<>(unassignedPage, pageable, unassignedComputersCount);
             
-                        // Computadoras sin asignar con paginación
-            List<Computer> unassignedComputersList = entityManager.createQuery(
-                    "SELECT c FROM Computer c WHERE c.department IS NULL ORDER BY c.name", Computer.class)
+            // Computadoras por departamento: solo la página pedida
+            List<Computer> assignedPage = entityManager.createQuery(
+                    "SELECT c FROM Computer c JOIN FETCH c.department d ORDER BY d.name, c.name, c.id", Computer.class)
+                    .setFirstResult((int) pageable.getOffset())
+                    .setMaxResults(pageable.getPageSize())
                     .getResultList();
-            
-            int startUnassigned = Math.min((int) pageable.getOffset(), unassignedComputersList.size());
-            int endUnassigned = Math.min((startUnassigned + pageable.getPageSize()), unassignedComputersList.size());
-            List<Computer> unassignedPage = startUnassigned < unassignedComputersList.size() ? unassignedComputersList.subList(startUnassigned, endUnassigned) : java.util.Collections.emptyList();
-            Page<Computer> unassignedComputers = new PageImpl<>(unassignedPage, pageable, unassignedComputersList.size());
-            
-            // Computadoras por departamento con paginación
-            List<Computer> assignedComputersList = entityManager.createQuery(
-                    "SELECT c FROM Computer c WHERE c.department IS NOT NULL ORDER BY c.department.name, c.name", Computer.class)
-                    .getResultList();
-            
-            int startAssigned = Math.min((int) pageable.getOffset(), assignedComputersList.size());
-            int endAssigned = Math.min((startAssigned + pageable.getPageSize()), assignedComputersList.size());
-            List<Computer> assignedPage = startAssigned < assignedComputersList.size() ? assignedComputersList.subList(startAssigned, endAssigned) : java.util.Collections.emptyList();
-            Page<Computer> assignedComputers = new PageImpl<>(assignedPage, pageable, assignedComputersList.size());
-            
-            List<Computer> allComputers = allComputersList;
+            Page<Computer> assignedComputers = new PageImpl<>(assignedPage, pageable, assignedComputersCount);
             
             // Cargar departamentos para asignación Y para el sidebar
             List<Department> departments = entityManager.createNamedQuery(
                     "Department.all", Department.class)
                     .getResultList();
             
-            // Cargar todas las impresoras PARA EL SIDEBAR
-            List<Printer> allPrinters = entityManager.createQuery(
-                    "SELECT p FROM Printer p", Printer.class)
-                    .getResultList();
-            
-                        model.addAttribute("allComputers", allComputers);
+                        model.addAttribute("totalComputersCount", totalComputersCount);
             model.addAttribute("unassignedComputers", unassignedComputers);
             model.addAttribute("assignedComputers", assignedComputers);
             model.addAttribute("unassignedComputersCount", unassignedComputersCount);
             model.addAttribute("assignedComputersCount", assignedComputersCount);
             model.addAttribute("departments", departments);
-            model.addAttribute("allPrinters", allPrinters);  // PARA EL SIDEBAR
             model.addAttribute("currentUri", request.getRequestURI());
             
-            log.info("Computers section loaded with {} computers", allComputers.size());
+            log.info("Computers section loaded with {} computers", totalComputersCount);
             return "admin-computers";
         } catch (Exception e) {
             log.error("Error loading computers", e);
@@ -1006,6 +983,7 @@ public class AdminController {
                     log.info("🔐 Contraseña actualizada para usuario: {}", username);
                 }
                 user.setRoles(role);
+                apiTokenCache.invalidateUser(user.getId());
                 
                 String roleName = role.equals("ADMIN") ? "Administrador" : "Técnico";
                 ra.addFlashAttribute("success", "Usuario actualizado: " + username + " (" + roleName + ")");
@@ -1032,6 +1010,7 @@ public class AdminController {
                     ra.addFlashAttribute("error", "No se puede eliminar el administrador principal");
                 } else {
                     String username = user.getUsername();
+                    apiTokenCache.invalidateUser(user.getId());
                     entityManager.remove(user);
                     ra.addFlashAttribute("success", "Usuario eliminado: " + username);
                     log.info("✅ Usuario eliminado: {}", username);
@@ -1057,6 +1036,7 @@ public class AdminController {
                     ra.addFlashAttribute("error", "No se puede desactivar el administrador principal");
                 } else {
                     user.setEnabled(!user.isEnabled());
+                    apiTokenCache.invalidateUser(user.getId());
                     String status = user.isEnabled() ? "activado" : "desactivado";
                     ra.addFlashAttribute("success", "Usuario " + status + ": " + user.getUsername());
                     log.info("✅ Usuario {}: {}", status, user.getUsername());
@@ -1152,19 +1132,30 @@ public class AdminController {
     @GetMapping("/search-printer")
     @ResponseBody
     @Transactional
-    public Map<String, Object> searchPrinter(@RequestParam String query) {
+    public Map<String, Object> searchPrinter(@RequestParam String query,
+                                             @RequestParam(defaultValue = "50") int limit) {
         Map<String, Object> response = new HashMap<>();
         try {
             // Buscar impresoras que coincidan con el nombre (case-insensitive)
+            // LOWER(columna) LIKE coincide con los índices de trigramas de
+            // PostgreSQL (SearchIndexService); el patrón ya va en minúsculas
+            String pattern = es.ucm.fdi.iu.service.SearchIndexService.containsPattern(query);
+            String where = "WHERE LOWER(p.alias) LIKE :query ESCAPE '\\' " +
+                "OR LOWER(p.model) LIKE :query ESCAPE '\\' " +
+                "OR LOWER(p.ip) LIKE :query ESCAPE '\\'";
+            long found = entityManager.createQuery(
+                "SELECT COUNT(p) FROM Printer p " + where, Long.class)
+                .setParameter("query", pattern)
+                .getSingleResult();
             List<Printer> printers = entityManager.createQuery(
-                "SELECT p FROM Printer p WHERE LOWER(p.alias) LIKE LOWER(:query) " +
-                "OR LOWER(p.model) LIKE LOWER(:query) " +
-                "OR LOWER(p.ip) LIKE LOWER(:query)", Printer.class)
-                .setParameter("query", "%" + query + "%")
+                "SELECT p FROM Printer p " + where + " ORDER BY p.alias, p.id", Printer.class)
+                .setParameter("query", pattern)
+                .setMaxResults(Math.max(1, Math.min(limit, 500)))
                 .getResultList();
             
             response.put("success", true);
-            response.put("found", printers.size());
+            response.put("found", found);
+            response.put("indexed", searchIndexService.isTrigramAvailable());
             response.put("printers", printers.stream().map(p -> {
                 Map<String, Object> info = new HashMap<>();
                 info.put("id", p.getId());
@@ -1176,7 +1167,7 @@ public class AdminController {
                 return info;
             }).collect(java.util.stream.Collectors.toList()));
             
-            log.info("🔍 Búsqueda de impresoras con '{}': {} resultados", query, printers.size());
+            log.info("🔍 Búsqueda de impresoras con '{}': {} resultados", query, found);
         } catch (Exception e) {
             log.error("❌ Error buscando impresoras", e);
             response.put("success", false);
@@ -1414,17 +1405,12 @@ public class AdminController {
             printer.setInk(100);
             printer.setPaper(100);
             
-            // Asignar puerto IPP único
-            Integer maxPort = entityManager.createQuery(
-                "SELECT MAX(p.ippPort) FROM Printer p", Integer.class)
-                .getSingleResult();
-            int nextPort = (maxPort != null) ? maxPort + 1 : 8631;
-            printer.setIppPort(nextPort);
-            
-            log.info("🔌 Puerto IPP {} asignado", nextPort);
-            
+            // El puerto IPP lo asigna IppPortAllocator al persistir (solo en modo ports)
             entityManager.persist(printer);
             entityManager.flush();
+            int nextPort = routingService.portOf(printer);
+            
+            log.info("🔌 Puerto IPP {} asignado", nextPort);
             
             log.info("✅ Impresora guardada en base de datos (ID: {})", printer.getId());
             log.info("📡 URI de acceso: ipp://[SERVIDOR]:{}/ printers/{}", nextPort, alias.replace(" ", "_"));
@@ -1490,16 +1476,10 @@ public class AdminController {
             printer.setInk(100);
             printer.setPaper(100);
             
-            // Asignar puerto IPP único y dedicado
-            Integer maxPort = entityManager.createQuery(
-                "SELECT MAX(p.ippPort) FROM Printer p", Integer.class)
-                .getSingleResult();
-            int nextPort = (maxPort != null) ? maxPort + 1 : 8631;
-            printer.setIppPort(nextPort);
-            log.info("Puerto IPP {} asignado a impresora {}", nextPort, alias);
-            
-                        entityManager.persist(printer);
+            // El puerto IPP lo asigna IppPortAllocator al persistir (solo en modo ports)
+            entityManager.persist(printer);
             entityManager.flush(); // Asegurar que se persiste antes de configurar
+            log.info("Puerto IPP {} asignado a impresora {}", printer.getIppPort(), alias);
             
             log.info("========================================");
             log.info("NUEVA IMPRESORA AGREGADA");
@@ -1875,6 +1855,31 @@ public class AdminController {
         return "redirect:/admin";
     }
 
+    @PostMapping("/grouppool")
+    @Transactional
+    public String setGroupPool(
+            @RequestParam Long id,
+            @RequestParam boolean enabled,
+            RedirectAttributes ra) {
+        try {
+            PGroup group = entityManager.find(PGroup.class, id);
+            if (group != null) {
+                if (enabled && group.getIppPort() == null) {
+                    // El monitor del servidor IPP abre el puerto en unos segundos
+                    group.setIppPort(multiPortIppServerService.nextIppPort());
+                    ra.addFlashAttribute("success", "Grupo publicado como pool en el puerto " + group.getIppPort());
+                } else if (!enabled && group.getIppPort() != null) {
+                    group.setIppPort(null);
+                    ra.addFlashAttribute("success", "El grupo ya no funciona como pool");
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error updating group pool", e);
+            ra.addFlashAttribute("error", "Error: " + e.getMessage());
+        }
+        return "redirect:/admin";
+    }
+
     @PostMapping("/addprintertogroup")
     @Transactional
     public String addPrinterToGroup(
@@ -5,6 +5,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import es.ucm.fdi.iu.model.*;
+import es.ucm.fdi.iu.service.ApiTokenCache;
+import es.ucm.fdi.iu.service.IppRoutingService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -51,6 +53,12 @@ public class ApiController {
     @Autowired
     private PasswordEncoder passwordEncoder;
 
+    @Autowired
+    private ApiTokenCache tokenCache;
+
+    @Autowired
+    private IppRoutingService routingService;
+
     @ExceptionHandler(ApiException.class)
     public ResponseEntity handleException(ApiException e) {
         // log exception
@@ -81,13 +89,33 @@ public class ApiController {
         }
     }
 
+    /**
+     * Resolves a token key. Known keys are answered from the token cache, and only
+     * the user is loaded (by primary key); unknown keys fall back to the database.
+     * The returned token is not managed when it comes from the cache.
+     */
     private Token resolveTokenOrBail(String tokenKey) {
+        ApiTokenCache.Entry cached = tokenCache.get(tokenKey);
+        if (cached != null) {
+            User user = entityManager.find(User.class, cached.userId());
+            if (user != null) {
+                Token token = new Token();
+                token.setId(cached.tokenId());
+                token.setKey(tokenKey);
+                token.setUser(user);
+                return token;
+            }
+            tokenCache.invalidate(tokenKey);
+        }
+
         List<Token> results = entityManager.createQuery(
                 "from Token where key = :key", Token.class)
                 .setParameter("key", tokenKey)
                 .getResultList();
         if ( ! results.isEmpty()) {
-            return results.get(0);
+            Token token = results.get(0);
+            tokenCache.put(tokenKey, token.getId(), token.getUser().getId());
+            return token;
         } else {
             throw new ApiException("Invalid token", null);
         }
@@ -179,8 +207,12 @@ public class ApiController {
     public void logout(
             @PathVariable String token) {
         log.info(token + "/logout");
-        Token t = resolveTokenOrBail(token);
-        entityManager.remove(t);
+        resolveTokenOrBail(token);
+        entityManager.createQuery("delete from Token where key = :key")
+                .setParameter("key", token)
+                .executeUpdate();
+        // also dropped again once the delete commits
+        tokenCache.invalidate(token);
     }
 
 
@@ -279,6 +311,7 @@ public class ApiController {
                 d->!d.isEmpty(), "cannot be empty",
                 d->o.setPassword(passwordEncoder.encode(d)));
         entityManager.flush();
+        tokenCache.invalidateUser(o.getId());
         return generateUserList();
     }
 
@@ -303,6 +336,7 @@ public class ApiController {
             throw new ApiException("No such user: " + data.get("id"), null);
         }
 
+        tokenCache.invalidateUser(o.getId());
         entityManager.remove(o);
         entityManager.flush();
         return generateUserList();
@@ -383,17 +417,11 @@ public class ApiController {
             }
         }
 
-                // Asignar puerto IPP único y dedicado
-        Integer maxPort = entityManager.createQuery(
-            "SELECT MAX(p.ippPort) FROM Printer p", Integer.class)
-            .getSingleResult();
-        int nextPort = (maxPort != null) ? maxPort + 1 : 8631;
-        p.setIppPort(nextPort);
-        log.info("Puerto IPP {} asignado a impresora {}", nextPort, p.getAlias());
-        
+        // El puerto IPP lo asigna IppPortAllocator al persistir (PrinterChangeListener)
         entityManager.persist(p);
         entityManager.flush();
-        return u.toTransfer(t.getKey());
+        log.info("Puerto IPP {} asignado a impresora {}", p.getIppPort(), p.getAlias());
+        return generateUserTransfer(u, t.getKey());
     }
 
     @PostMapping("/{token}/setprinter")
@@ -491,7 +519,7 @@ public class ApiController {
         }
 
         entityManager.flush();
-        return u.toTransfer(t.getKey());
+        return generateUserTransfer(u, t.getKey());
     }
 
     @PostMapping("/{token}/rmprinter")
@@ -516,7 +544,7 @@ public class ApiController {
         }
         entityManager.remove(p);
         entityManager.flush();
-        return u.toTransfer(t.getKey());
+        return generateUserTransfer(u, t.getKey());
     }
 
     @PostMapping("/{token}/addgroup")
@@ -551,7 +579,7 @@ public class ApiController {
 
         entityManager.persist(g);
         entityManager.flush();
-        return u.toTransfer(t.getKey());
+        return generateUserTransfer(u, t.getKey());
     }
 
     @PostMapping("/{token}/setgroup")
@@ -590,7 +618,7 @@ public class ApiController {
         }
 
         entityManager.flush();
-        return u.toTransfer(t.getKey());
+        return generateUserTransfer(u, t.getKey());
     }
 
     @PostMapping("/{token}/rmgroup")
@@ -615,7 +643,7 @@ public class ApiController {
         }
         entityManager.remove(g);
         entityManager.flush();
-        return u.toTransfer(t.getKey());
+        return generateUserTransfer(u, t.getKey());
     }
 
     @PostMapping("/{token}/addjob")
@@ -648,7 +676,7 @@ public class ApiController {
                 j::setOwner);
         entityManager.persist(j);
         entityManager.flush();
-        return u.toTransfer(t.getKey());
+        return generateUserTransfer(u, t.getKey());
     }
 
     @PostMapping("/{token}/setjob")
@@ -688,7 +716,7 @@ public class ApiController {
                 d->!d.isEmpty(), "cannot be empty",
                 j::setOwner);
         entityManager.flush();
-        return u.toTransfer(t.getKey());
+        return generateUserTransfer(u, t.getKey());
     }
 
     @PostMapping("/{token}/rmjob")
@@ -710,7 +738,7 @@ public class ApiController {
 
         entityManager.remove(j);
         entityManager.flush();
-        return u.toTransfer(t.getKey());
+        return generateUserTransfer(u, t.getKey());
     }
 
     @PostMapping("/{token}/list")
@@ -718,7 +746,7 @@ public class ApiController {
         log.info(token + "/list");
         Token t = resolveTokenOrBail(token);
         User u = t.getUser();
-        return u.toTransfer(t.getKey());
+        return generateUserTransfer(u, t.getKey());
     }
 
     @PostMapping("/{token}/ulist")
@@ -733,11 +761,76 @@ public class ApiController {
         return generateUserList();
     }
 
-        private List<User.AdminTransfer> generateUserList() {
+    /**
+     * Same as calling toTransfer() on every user, but counting tokens, jobs,
+     * printers and groups in a single query instead of loading each collection
+     */
+    private List<User.AdminTransfer> generateUserList() {
         List<User.AdminTransfer> result = new ArrayList<>();
-        for (User o : entityManager.createQuery(
-                "SELECT u FROM User u", User.class).getResultList()) {
-            result.add(o.toTransfer());
+        for (Object[] row : entityManager.createQuery(
+                "SELECT u.id, u.username, u.enabled, " +
+                "(SELECT COUNT(t) FROM Token t WHERE t.user = u), " +
+                "(SELECT COUNT(j) FROM Job j WHERE j.instance = u), " +
+                "(SELECT COUNT(p) FROM Printer p WHERE p.instance = u), " +
+                "(SELECT COUNT(g) FROM PGroup g WHERE g.instance = u) " +
+                "FROM User u", Object[].class).getResultList()) {
+            result.add(new User.AdminTransfer((Long) row[0], (String) row[1], (Boolean) row[2],
+                    ((Long) row[3]).intValue(), ((Long) row[4]).intValue(),
+                    ((Long) row[5]).intValue(), ((Long) row[6]).intValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Same as u.toTransfer(token), in a fixed number of queries regardless of
+     * how many jobs, printers and groups the user has (instead of one lazy load
+     * per printer and group)
+     */
+    private User.Transfer generateUserTransfer(User u, String token) {
+        List<Job.Transfer> jobs = new ArrayList<>();
+        for (Object[] row : entityManager.createQuery(
+                "SELECT j.id, COALESCE(p.id, 0), j.owner, j.fileName FROM Job j LEFT JOIN j.printer p " +
+                "WHERE j.instance = :u ORDER BY j.id", Object[].class)
+                .setParameter("u", u).getResultList()) {
+            jobs.add(new Job.Transfer((Long) row[0], ((Number) row[1]).longValue(),
+                    (String) row[2], (String) row[3]));
+        }
+
+        Map<Long, List<Long>> printerGroups = groupIds(
+                "SELECT p.id, g.id FROM Printer p JOIN p.groups g WHERE p.instance = :u", u);
+        Map<Long, List<Long>> printerQueues = groupIds(
+                "SELECT p.id, j.id FROM Printer p JOIN p.queue j WHERE p.instance = :u " +
+                "ORDER BY j.sequence", u);
+        List<Printer.Transfer> printers = new ArrayList<>();
+        for (Printer p : entityManager.createQuery(
+                "SELECT p FROM Printer p WHERE p.instance = :u ORDER BY p.id", Printer.class)
+                .setParameter("u", u).getResultList()) {
+            printers.add(p.toTransfer(
+                    printerGroups.getOrDefault(p.getId(), new ArrayList<>()),
+                    printerQueues.getOrDefault(p.getId(), new ArrayList<>())));
+        }
+
+        Map<Long, List<Long>> groupPrinters = groupIds(
+                "SELECT g.id, p.id FROM PGroup g JOIN g.printers p WHERE g.instance = :u", u);
+        List<PGroup.Transfer> groups = new ArrayList<>();
+        for (Object[] row : entityManager.createQuery(
+                "SELECT g.id, g.name FROM PGroup g WHERE g.instance = :u ORDER BY g.id", Object[].class)
+                .setParameter("u", u).getResultList()) {
+            groups.add(new PGroup.Transfer((Long) row[0], (String) row[1],
+                    groupPrinters.getOrDefault((Long) row[0], new ArrayList<>())));
+        }
+
+        return new User.Transfer(token, jobs, printers, groups);
+    }
+
+    /**
+     * Runs a (owner id, member id) query and groups member ids by owner
+     */
+    private Map<Long, List<Long>> groupIds(String query, User u) {
+        Map<Long, List<Long>> result = new HashMap<>();
+        for (Object[] row : entityManager.createQuery(query, Object[].class)
+                .setParameter("u", u).getResultList()) {
+            result.computeIfAbsent((Long) row[0], k -> new ArrayList<>()).add((Long) row[1]);
         }
         return result;
     }
@@ -812,12 +905,15 @@ public class ApiController {
             // - Servidor detecta si es USB compartida y reenvía a cliente USB en puerto 631
             // - Si es impresora de red, la envía directamente a la impresora
             
-            // Asignar puerto IPP único y dedicado para TODAS las impresoras
-            Integer maxPort = entityManager.createQuery(
-                "SELECT MAX(p.ippPort) FROM Printer p", Integer.class)
-                .getSingleResult();
-            int nextPort = (maxPort != null) ? maxPort + 1 : 8631;
-            printer.setIppPort(nextPort);
+            printer.setDeviceUri("ipp://" + ip + ":" + port + "/printers/" + alias.replace(" ", "_"));
+            printer.setInstance(user);
+            printer.setInk(100);
+            printer.setPaper(100);
+            
+            // El puerto IPP lo asigna IppPortAllocator al persistir (solo en modo ports)
+            entityManager.persist(printer);
+            entityManager.flush();
+            int nextPort = routingService.portOf(printer);
             
             boolean isSharedUSB = location != null && location.contains("Compartida-USB");
             if (isSharedUSB) {
@@ -828,14 +924,6 @@ public class ApiController {
                     alias, nextPort);
             }
             
-            printer.setDeviceUri("ipp://" + ip + ":" + port + "/printers/" + alias.replace(" ", "_"));
-            printer.setInstance(user);
-            printer.setInk(100);
-            printer.setPaper(100);
-            
-            entityManager.persist(printer);
-            entityManager.flush();
-            
                         response.put("success", true);
             response.put("message", "Impresora registrada exitosamente");
             response.put("printerId", printer.getId());
@@ -1113,8 +1201,8 @@ public class ApiController {
             boolean isSharedUSB = location.contains("Compartida-USB");
             printerData.put("isSharedUSB", String.valueOf(isSharedUSB));
             
-            // Puerto IPP dedicado de esta impresora en el SERVIDOR
-            int ippPort = p.getIppPort() != null ? p.getIppPort() : 8631;
+            // Puerto IPP de esta impresora en el SERVIDOR (dedicado o el único enrutado)
+            int ippPort = routingService.portOf(p);
             printerData.put("ippPort", String.valueOf(ippPort));
             
             // IP física de la impresora (para información)
@@ -1184,8 +1272,8 @@ public class ApiController {
             boolean isSharedUSB = location.contains("Compartida-USB");
             printerData.put("isSharedUSB", String.valueOf(isSharedUSB));
             
-            // Puerto IPP dedicado de esta impresora en el SERVIDOR
-            int ippPort = p.getIppPort() != null ? p.getIppPort() : 8631;
+            // Puerto IPP de esta impresora en el SERVIDOR (dedicado o el único enrutado)
+            int ippPort = routingService.portOf(p);
             printerData.put("ippPort", String.valueOf(ippPort));
             
             // IP física de la impresora (para información)
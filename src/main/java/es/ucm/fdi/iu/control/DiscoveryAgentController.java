@@ -0,0 +1,72 @@
+package es.ucm.fdi.iu.control;
+
+import es.ucm.fdi.iu.service.DiscoveryAgentRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * API de ingesta de los agentes de descubrimiento (app.mode=discovery-agent)
+ *
+ * Los agentes se identifican con el secreto compartido en la cabecera
+ * X-Agent-Token (printer.discovery.agents.token).
+ *
+ * Only loads in server mode (NOT in usb-client)
+ */
+@RestController
+@RequestMapping("api/discovery-agents")
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class DiscoveryAgentController {
+
+    private static final Logger log = LogManager.getLogger(DiscoveryAgentController.class);
+
+    public static final String TOKEN_HEADER = "X-Agent-Token";
+
+    @Autowired
+    private DiscoveryAgentRegistry registry;
+
+    /**
+     * Alta o renovación de un agente: recibe sus redes locales y devuelve
+     * los rangos que le tocan
+     */
+    @PostMapping("/checkin")
+    public ResponseEntity<Map<String, Object>> checkIn(@RequestHeader(value = TOKEN_HEADER, required = false) String token,
+                                                       @RequestBody Map<String, Object> data,
+                                                       HttpServletRequest request) {
+        if (!registry.authenticate(token)) {
+            log.warn("Agente de descubrimiento rechazado desde {}", request.getRemoteAddr());
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        String agentId = String.valueOf(data.getOrDefault("agentId", request.getRemoteAddr()));
+        List<String> networks = data.get("networks") instanceof List<?> list
+            ? list.stream().map(String::valueOf).toList() : List.of();
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("ranges", registry.checkIn(agentId, networks, request.getRemoteAddr()));
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Lote de hosts encontrados por un agente
+     */
+    @PostMapping("/results")
+    public ResponseEntity<Void> results(@RequestHeader(value = TOKEN_HEADER, required = false) String token,
+                                        @RequestBody DiscoveryAgentRegistry.AgentReport report,
+                                        HttpServletRequest request) {
+        if (!registry.authenticate(token) || report.agentId() == null) {
+            log.warn("Resultados de descubrimiento rechazados desde {}", request.getRemoteAddr());
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        registry.ingest(report);
+        return ResponseEntity.noContent().build();
+    }
+}
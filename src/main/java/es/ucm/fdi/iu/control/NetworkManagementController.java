@@ -4,6 +4,7 @@ import es.ucm.fdi.iu.model.NetworkRange;
 import es.ucm.fdi.iu.model.User;
 import es.ucm.fdi.iu.service.NetworkDiagnosticService;
 import es.ucm.fdi.iu.service.PrinterDiscoveryService;
+import es.ucm.fdi.iu.util.Ipv4RangeSet;
 import jakarta.persistence.EntityManager;
 import jakarta.servlet.http.HttpSession;
 import jakarta.transaction.Transactional;
@@ -17,6 +18,7 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -400,6 +402,26 @@ public class NetworkManagementController {
         if (valid) {
             result.setMessage("Formato válido");
             result.setEstimatedHosts(calculateHosts(cidr));
+            
+            // Solapes con los rangos activos: esas direcciones ya se escanean
+            Ipv4RangeSet hosts = Ipv4RangeSet.hosts(cidr);
+            Ipv4RangeSet covered = Ipv4RangeSet.EMPTY;
+            List<String> overlapping = new ArrayList<>();
+            for (NetworkRange range : entityManager.createNamedQuery("NetworkRange.active", NetworkRange.class)
+                    .getResultList()) {
+                if (NetworkRange.isValidCIDR(range.getCidrRange())) {
+                    Ipv4RangeSet other = Ipv4RangeSet.hosts(range.getCidrRange());
+                    if (!other.intersect(hosts).isEmpty()) {
+                        overlapping.add(range.getName() + " (" + range.getCidrRange() + ")");
+                        covered = covered.union(other);
+                    }
+                }
+            }
+            result.setOverlappingRanges(overlapping);
+            result.setNewHosts((int) hosts.subtract(covered).size());
+            if (!overlapping.isEmpty()) {
+                result.setMessage("Formato válido. Se solapa con: " + String.join(", ", overlapping));
+            }
         } else {
             result.setMessage("Formato inválido. Use: 192.168.1.0/24");
         }
@@ -412,41 +434,19 @@ public class NetworkManagementController {
      */
     private boolean isInRange(String ip, String cidr) {
         try {
-            String[] cidrParts = cidr.split("/");
-            String networkAddress = cidrParts[0];
-            int prefix = Integer.parseInt(cidrParts[1]);
-            
-            long ipValue = ipToLong(ip);
-            long networkValue = ipToLong(networkAddress);
-            long mask = (-1L << (32 - prefix)) & 0xFFFFFFFFL;
-            
-            return (ipValue & mask) == (networkValue & mask);
-            
-        } catch (Exception e) {
+            return Ipv4RangeSet.block(cidr).contains(ip);
+        } catch (IllegalArgumentException e) {
             return false;
         }
     }
 
-    /**
-     * Convierte IP string a long
-     */
-    private long ipToLong(String ip) {
-        String[] octets = ip.split("\\.");
-        return (Long.parseLong(octets[0]) << 24) +
-               (Long.parseLong(octets[1]) << 16) +
-               (Long.parseLong(octets[2]) << 8) +
-               Long.parseLong(octets[3]);
-    }
-
     /**
      * Calcula número de hosts en un CIDR
      */
     private int calculateHosts(String cidr) {
         try {
-            String[] parts = cidr.split("/");
-            int prefix = Integer.parseInt(parts[1]);
-            return (int) Math.pow(2, 32 - prefix) - 2;
-        } catch (Exception e) {
+            return (int) Ipv4RangeSet.hosts(cidr).size();
+        } catch (IllegalArgumentException e) {
             return 0;
         }
     }
@@ -458,6 +458,8 @@ public class NetworkManagementController {
         private boolean valid;
         private String message;
         private int estimatedHosts;
+        private int newHosts;
+        private List<String> overlappingRanges = new ArrayList<>();
 
         public boolean isValid() { return valid; }
         public void setValid(boolean valid) { this.valid = valid; }
@@ -467,5 +469,11 @@ public class NetworkManagementController {
         
         public int getEstimatedHosts() { return estimatedHosts; }
         public void setEstimatedHosts(int estimatedHosts) { this.estimatedHosts = estimatedHosts; }
+        
+        public int getNewHosts() { return newHosts; }
+        public void setNewHosts(int newHosts) { this.newHosts = newHosts; }
+        
+        public List<String> getOverlappingRanges() { return overlappingRanges; }
+        public void setOverlappingRanges(List<String> overlappingRanges) { this.overlappingRanges = overlappingRanges; }
     }
 }
@@ -16,6 +16,10 @@ import java.util.stream.Collectors;
  * Solo las computadoras registradas pueden conectarse y usar las impresoras asignadas.
  */
 @Entity
+@Table(indexes = {
+    @Index(name = "idx_computer_name", columnList = "name, id"),
+    @Index(name = "idx_computer_department_name", columnList = "department_id, name, id")
+})
 @Data
 @NoArgsConstructor
 @NamedQueries({
@@ -62,6 +62,12 @@ public class Department implements Transferable<Department.Transfer> {
      */
     private String color;
 
+    /**
+     * Peso en el reparto equitativo de las colas (null = 1)
+     * Un departamento con peso 2 recibe el doble de turno que uno con peso 1
+     */
+    private Integer shareWeight;
+
     /**
      * Computadoras que pertenecen a este departamento
      */
@@ -0,0 +1,45 @@
+package es.ucm.fdi.iu.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import jakarta.persistence.*;
+
+/**
+ * Nombre fijo para una IP, con prioridad sobre el DNS reverso
+ * (impresoras sin registro PTR o con uno que no interesa mostrar)
+ */
+@Entity
+@Data
+@NoArgsConstructor
+@NamedQueries({
+    @NamedQuery(name="HostNameOverride.all",
+            query="SELECT h FROM HostNameOverride h ORDER BY h.ip")
+})
+public class HostNameOverride {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
+    @SequenceGenerator(name = "gen", sequenceName = "gen")
+    private long id;
+
+    /**
+     * IPv4 del equipo (ej: "10.1.1.45")
+     */
+    @Column(unique = true, nullable = false)
+    private String ip;
+
+    /**
+     * Nombre con el que se da de alta al descubrirlo (ej: "EPSONSECRETOR")
+     */
+    @Column(nullable = false)
+    private String name;
+
+    private String description;
+
+    public HostNameOverride(String ip, String name, String description) {
+        this.ip = ip;
+        this.name = name;
+        this.description = description;
+    }
+}
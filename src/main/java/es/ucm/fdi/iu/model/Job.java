@@ -28,6 +28,62 @@ public class Job implements Transferable<Job.Transfer> {
     private String owner;
     private String fileName;
 
+    /**
+     * Clase de prioridad del trabajo
+     */
+    public enum Priority {
+        LOW,
+        NORMAL,
+        HIGH,
+        URGENT;
+
+        /**
+         * Traduce el atributo IPP job-priority (1-100, 50 por defecto)
+         */
+        public static Priority fromIpp(int jobPriority) {
+            if (jobPriority <= 25) return LOW;
+            if (jobPriority <= 50) return NORMAL;
+            if (jobPriority <= 75) return HIGH;
+            return URGENT;
+        }
+    }
+
+    // null en trabajos anteriores a las prioridades: se tratan como NORMAL
+    @Enumerated(EnumType.STRING)
+    private Priority priority;
+
+    // Orden persistido dentro de la cola; negativo = fijado al inicio por un administrador
+    private Long sequence;
+
+    // Tamaño del documento en spool (bytes), coste para el reparto equitativo
+    private Long size;
+
+    // Grupo de reparto: departamento del equipo que imprime, o el propio usuario
+    private String shareGroup;
+
+    // Tramos de páginas ya entregados (envío por tramos de documentos grandes)
+    private Integer confirmedChunks;
+
+    // Pool (PGroup con puerto propio) por el que llegó el trabajo; null = impresora directa
+    private Long pool;
+
+    // Veces que el trabajo se ha movido a otro miembro del pool tras un fallo
+    private Integer failovers;
+
+    // Concesión de envío en clúster (JobLeaseService): nodo, fin (ms) y ficha,
+    // que crece con cada toma; null = libre o un solo servidor
+    private String leaseOwner;
+    private Long leaseExpiresAt;
+    private Long leaseToken;
+
+    public Priority effectivePriority() {
+        return priority != null ? priority : Priority.NORMAL;
+    }
+
+    public long effectiveSequence() {
+        return sequence != null ? sequence : id;
+    }
+
         @Getter
     @AllArgsConstructor
     @NoArgsConstructor
@@ -32,6 +32,13 @@ public class PGroup implements Transferable<PGroup.Transfer> {
     @ManyToMany
     private List<Printer> printers = new ArrayList<>();
 
+    /**
+     * Puerto IPP del grupo como impresora virtual (pool); null = grupo normal.
+     * Los trabajos recibidos en este puerto van al miembro con menos carga.
+     */
+    @Column(unique = true)
+    private Integer ippPort;
+
         @Getter
     @AllArgsConstructor
     @NoArgsConstructor
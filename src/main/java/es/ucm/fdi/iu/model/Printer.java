@@ -20,6 +20,11 @@ import java.util.stream.Collectors;
  * (the last two mean that it is blocked, and thus neither printing or paused)
  */
 @Entity
+@EntityListeners(es.ucm.fdi.iu.service.PrinterChangeListener.class)
+@Table(indexes = {
+    @Index(name = "idx_printer_alias", columnList = "alias, id"),
+    @Index(name = "idx_printer_ip", columnList = "ip")
+})
 @Data
 @NoArgsConstructor
 public class Printer implements Transferable<Printer.Transfer> {
@@ -54,6 +59,7 @@ public class Printer implements Transferable<Printer.Transfer> {
     
     // Puerto IPP dedicado del servidor (8631, 8632, 8633, etc.)
     // Este es el puerto donde los clientes se conectan a ESTE servidor
+    @Column(unique = true)
     private Integer ippPort;
     
     // Protocolo de comunicación: RAW, IPP, LPD, SMB
@@ -76,6 +82,7 @@ public class Printer implements Transferable<Printer.Transfer> {
     private String sambaShareName;
 
             @OneToMany(mappedBy = "printer", orphanRemoval = true)
+    @OrderBy("sequence ASC")
     private List<Job> queue = new ArrayList<>();
     
     @ManyToMany(mappedBy = "printers")
@@ -83,6 +90,10 @@ public class Printer implements Transferable<Printer.Transfer> {
     
     private int ink;
     private int paper;
+    
+    // Perfil de capacidades (formatos, PDL, dúplex, color...) resuelto en segundo plano
+    @Embedded
+    private PrinterCapabilities capabilities;
 
     public enum Status {
         PRINTING,
@@ -92,9 +103,16 @@ public class Printer implements Transferable<Printer.Transfer> {
     }
 
     public Status currentStatus() {
+        return currentStatus(queue.isEmpty());
+    }
+
+    /**
+     * Estado sin recorrer la cola (cuando ya se sabe si está vacía)
+     */
+    public Status currentStatus(boolean queueEmpty) {
         if (paper == 0) return Status.NO_PAPER;
         if (ink == 0) return Status.NO_INK;
-        if (queue.isEmpty()) return Status.PAUSED;
+        if (queueEmpty) return Status.PAUSED;
         return Status.PRINTING;
     }
 
@@ -127,8 +145,16 @@ public class Printer implements Transferable<Printer.Transfer> {
                 .collect(Collectors.toList());
         List<Long> qs = queue.stream().map(Job::getId)
                 .collect(Collectors.toList());
-                return new Transfer(
+        return toTransfer(gs, qs);
+    }
+
+    /**
+     * Transfer con los ids de grupos y cola ya consultados
+     * (no inicializa las colecciones perezosas)
+     */
+    public Transfer toTransfer(List<Long> groupIds, List<Long> queueIds) {
+        return new Transfer(
                 id, alias, model, location, ip, macAddress, deviceUri, driver, port, ippPort, protocol,
-                sharedViaSamba, addedToCups, sambaShareName, gs, qs, currentStatus());
+                sharedViaSamba, addedToCups, sambaShareName, groupIds, queueIds, currentStatus(queueIds.isEmpty()));
     }
 }
@@ -0,0 +1,100 @@
+package es.ucm.fdi.iu.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Capacidades de una impresora, resueltas una sola vez (IPP, SNMP o modelo)
+ * y guardadas junto a la impresora.
+ *
+ * El conversor y el dispatcher eligen el pipeline a partir de estos campos,
+ * sin volver a interpretar el modelo ni consultar la impresora en cada trabajo.
+ */
+@Embeddable
+@Data
+@NoArgsConstructor
+public class PrinterCapabilities {
+
+    /**
+     * Lenguaje de impresión preferido de la impresora
+     */
+    public enum Pdl {
+        PCL,
+        POSTSCRIPT,
+        PDF,
+        PWG,
+        ESCP
+    }
+
+    /**
+     * Origen del perfil
+     */
+    public enum Source {
+        IPP,
+        SNMP,
+        MODEL
+    }
+
+    @Enumerated(EnumType.STRING)
+    private Pdl pdl;
+
+    // Objetos en lugar de primitivos: columnas nulas en impresoras aún sin perfil
+    private Boolean supportsPdf;
+    private Boolean supportsPostScript;
+    private Boolean supportsPwgRaster;
+
+    // Formatos MIME anunciados por la impresora (solo informativo)
+    @Column(length = 1024)
+    private String documentFormats;
+
+    private Boolean duplex;
+    private Boolean color;
+
+    // Tamaño máximo de trabajo en bytes (null = sin límite conocido)
+    private Long maxJobSize;
+
+    @Enumerated(EnumType.STRING)
+    private Source profileSource;
+
+    // Momento de la última resolución (ms desde epoch)
+    private Long profiledAt;
+
+    /**
+     * Perfil provisional deducido del nombre del modelo, sin acceso a red
+     */
+    public static PrinterCapabilities fromModel(String model) {
+        PrinterCapabilities capabilities = new PrinterCapabilities();
+        String upper = model != null ? model.toUpperCase() : "";
+        if (upper.contains("EPSON")) {
+            capabilities.setPdl(Pdl.ESCP);
+        } else if (upper.contains("IPP EVERYWHERE") || upper.contains("AIRPRINT")) {
+            capabilities.setPdl(Pdl.PWG);
+            capabilities.setSupportsPwgRaster(true);
+        } else {
+            capabilities.setPdl(Pdl.PCL);
+        }
+        capabilities.setProfileSource(Source.MODEL);
+        return capabilities;
+    }
+
+    public boolean acceptsPdf() {
+        return Boolean.TRUE.equals(supportsPdf);
+    }
+
+    public boolean acceptsPostScript() {
+        return Boolean.TRUE.equals(supportsPostScript);
+    }
+
+    public boolean acceptsPwgRaster() {
+        return Boolean.TRUE.equals(supportsPwgRaster);
+    }
+
+    /**
+     * Identifica el pipeline que produce este perfil (para cachés de conversión)
+     */
+    public String pipelineKey() {
+        return pdl + (acceptsPdf() ? "+pdf" : "") + (acceptsPostScript() ? "+ps" : "")
+            + (acceptsPwgRaster() ? "+pwg" : "");
+    }
+}
@@ -13,6 +13,7 @@ import jakarta.persistence.*;
 @Entity
 @Data
 @NoArgsConstructor
+@Table(indexes = @Index(name = "idx_token_key", columnList = "key", unique = true))
 public class Token {
 
     @Id
@@ -20,6 +21,7 @@ public class Token {
     @SequenceGenerator(name = "gen", sequenceName = "gen")
 	private long id;
 
+    @Column(unique = true, nullable = false)
     private String key;
 
     @ManyToOne
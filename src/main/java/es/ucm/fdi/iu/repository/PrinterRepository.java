@@ -44,4 +44,22 @@ public interface PrinterRepository extends JpaRepository<Printer, Long> {
      */
     @Query("SELECT MAX(p.ippPort) FROM Printer p WHERE p.ippPort IS NOT NULL")
     Integer findMaxIppPort();
+    
+    /**
+     * Obtiene el puerto IPP máximo asignado a un pool (grupo con puerto propio)
+     */
+    @Query("SELECT MAX(g.ippPort) FROM PGroup g WHERE g.ippPort IS NOT NULL")
+    Integer findMaxPoolIppPort();
+    
+    /**
+     * Puertos IPP asignados a impresoras
+     */
+    @Query("SELECT p.ippPort FROM Printer p WHERE p.ippPort IS NOT NULL")
+    List<Integer> findAllIppPorts();
+    
+    /**
+     * Puertos IPP asignados a pools
+     */
+    @Query("SELECT g.ippPort FROM PGroup g WHERE g.ippPort IS NOT NULL")
+    List<Integer> findAllPoolIppPorts();
 }
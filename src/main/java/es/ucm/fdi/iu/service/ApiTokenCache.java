@@ -0,0 +1,102 @@
+package es.ucm.fdi.iu.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Caché de tokens de la API REST
+ *
+ * Guarda para cada clave de token el id del token y el de su usuario, de
+ * modo que autenticar una petición es una búsqueda en un mapa en lugar de
+ * una consulta JPQL. El usuario se sigue cargando por clave primaria en cada
+ * petición, así que sus datos nunca salen de la caché desactualizados.
+ *
+ * - Tamaño acotado (LRU) y caducidad por entrada
+ * - Se invalida en logout y cuando se modifica o elimina el usuario; dentro
+ *   de una transacción, otra vez tras el commit, para que una petición
+ *   concurrente no vuelva a cachear el token con los datos anteriores
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class ApiTokenCache {
+
+    /**
+     * Token resuelto
+     */
+    public record Entry(long tokenId, long userId, long expiresAt) {
+    }
+
+    @Value("${api.token-cache.ttl:300000}")
+    private long ttl;
+
+    @Value("${api.token-cache.max-entries:10000}")
+    private int maxEntries;
+
+    // Orden de acceso: la primera entrada es la menos usada recientemente
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    /**
+     * @return la entrada vigente para la clave, o null si no está o caducó
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt() <= System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void put(String key, long tokenId, long userId) {
+        entries.put(key, new Entry(tokenId, userId, System.currentTimeMillis() + ttl));
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public void invalidate(String key) {
+        remove(key);
+        afterCompletion(() -> remove(key));
+    }
+
+    /**
+     * Olvida todos los tokens de un usuario (modificado, desactivado o eliminado)
+     */
+    public void invalidateUser(long userId) {
+        removeUser(userId);
+        afterCompletion(() -> removeUser(userId));
+    }
+
+    private synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    private synchronized void removeUser(long userId) {
+        int before = entries.size();
+        entries.values().removeIf(entry -> entry.userId() == userId);
+        if (entries.size() != before) {
+            log.debug("🔑 {} tokens del usuario {} invalidados", before - entries.size(), userId);
+        }
+    }
+
+    private void afterCompletion(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    action.run();
+                }
+            });
+        }
+    }
+}
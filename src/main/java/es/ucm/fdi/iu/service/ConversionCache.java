@@ -0,0 +1,239 @@
+package es.ucm.fdi.iu.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Caché en disco de documentos ya convertidos
+ *
+ * Clave: (hash SHA-256 del contenido, formato destino, perfil de impresora)
+ *
+ * - Los formularios y apuntes que se reimprimen a lo largo del día no se
+ *   vuelven a convertir: el resultado se copia al spool con transferTo
+ *   (copia en el kernel, sin pasar por memoria de la JVM)
+ * - Expulsión LRU por tamaño total en bytes
+ * - Las entradas sobreviven a reinicios (se reindexan al arrancar, en el
+ *   orden de su último uso: cada acierto actualiza la fecha del archivo)
+ */
+@Service
+@Slf4j
+public class ConversionCache {
+
+    @Value("${printer.conversion.cache.enabled:true}")
+    private boolean enabled;
+
+    // Tamaño máximo total de la caché (bytes)
+    @Value("${printer.conversion.cache.max-bytes:536870912}")
+    private long maxBytes;
+
+    private Path cacheDir;
+
+    // Orden de acceso: la primera entrada es la menos usada recientemente
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        try {
+            cacheDir = Paths.get(System.getProperty("java.io.tmpdir"), "print-cache");
+            Files.createDirectories(cacheDir);
+            loadExisting();
+            log.info("🗃️ Caché de conversión: {} entradas, {} KB (máx {} MB)",
+                entries.size(), totalBytes / 1024, maxBytes / (1024 * 1024));
+        } catch (IOException e) {
+            log.warn("⚠️ No se pudo preparar la caché de conversión: {} - desactivada", e.getMessage());
+            enabled = false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Construye la clave de caché
+     */
+    public static String key(String contentHash, String format, String profile) {
+        return contentHash + "-" + format + "-" + sha256(profile).substring(0, 12);
+    }
+
+    /**
+     * Copia el resultado cacheado a target
+     * @return false si no está en caché
+     */
+    public boolean copyTo(String key, Path target) throws IOException {
+        Long size;
+        synchronized (this) {
+            size = entries.get(key);
+        }
+        if (size == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        Path cached = cacheDir.resolve(key);
+        try (FileChannel from = FileChannel.open(cached, StandardOpenOption.READ);
+             FileChannel to = FileChannel.open(target, StandardOpenOption.WRITE,
+                 StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long length = from.size();
+            while (position < length) {
+                position += from.transferTo(position, length - position, to);
+            }
+        } catch (NoSuchFileException e) {
+            // Borrado desde fuera: se olvida la entrada
+            remove(key);
+            misses.incrementAndGet();
+            return false;
+        }
+
+        // La fecha de modificación guarda el orden LRU entre reinicios (loadExisting)
+        try {
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.debug("No se pudo actualizar la fecha de {}: {}", key, e.getMessage());
+        }
+
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(size);
+        return true;
+    }
+
+    /**
+     * Guarda un resultado convertido y expulsa entradas antiguas si se supera el máximo
+     */
+    public void store(String key, Path converted) {
+        try {
+            long size = Files.size(converted);
+            if (size > maxBytes) {
+                return;
+            }
+            Path temp = Files.createTempFile(cacheDir, "store-", ".tmp");
+            Files.copy(converted, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, cacheDir.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+            List<String> evicted = new ArrayList<>();
+            synchronized (this) {
+                Long previous = entries.put(key, size);
+                totalBytes += size - (previous != null ? previous : 0);
+                Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+                while (totalBytes > maxBytes && it.hasNext()) {
+                    Map.Entry<String, Long> oldest = it.next();
+                    if (oldest.getKey().equals(key)) {
+                        continue;
+                    }
+                    totalBytes -= oldest.getValue();
+                    evicted.add(oldest.getKey());
+                    it.remove();
+                }
+            }
+            for (String old : evicted) {
+                Files.deleteIfExists(cacheDir.resolve(old));
+            }
+            if (!evicted.isEmpty()) {
+                log.debug("🗃️ Caché de conversión: {} entradas expulsadas", evicted.size());
+            }
+        } catch (IOException e) {
+            log.warn("⚠️ No se pudo guardar en caché de conversión: {}", e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        synchronized (this) {
+            stats.put("entries", entries.size());
+            stats.put("bytes", totalBytes);
+        }
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hitCount);
+        stats.put("misses", misses.get());
+        stats.put("hitRate", lookups > 0 ? (double) hitCount / lookups : 0.0);
+        stats.put("bytesSaved", bytesSaved.get());
+        return stats;
+    }
+
+    /**
+     * Representación hexadecimal de un hash
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Hash SHA-256 (hexadecimal) del contenido de un archivo
+     */
+    public static String hashOf(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    private static String sha256(String value) {
+        return toHex(newDigest().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private synchronized void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+    }
+
+    /**
+     * Reindexa las entradas existentes, de la más antigua a la más reciente
+     */
+    private void loadExisting() throws IOException {
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            files.filter(Files::isRegularFile)
+                .sorted(Comparator.comparingLong(p -> p.toFile().lastModified()))
+                .forEach(p -> {
+                    String name = p.getFileName().toString();
+                    if (name.endsWith(".tmp")) {
+                        p.toFile().delete();
+                        return;
+                    }
+                    long size = p.toFile().length();
+                    entries.put(name, size);
+                    totalBytes += size;
+                });
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.NetworkRange;
+import es.ucm.fdi.iu.util.Ipv4RangeSet;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Agentes de descubrimiento (app.mode=discovery-agent) y lo que informan
+ *
+ * Cada agente escanea su propio segmento, sin SNMP ni sondeos de puertos
+ * atravesando routers y cortafuegos. Al conectarse declara sus redes
+ * locales y recibe los NetworkRange activos contenidos en ellas; si varios
+ * agentes cubren el mismo rango, se reparte entre ellos de forma estable.
+ *
+ * Los resultados (IP, MAC, puertos abiertos, identidad SNMP) se guardan en
+ * la caché de hosts. PrinterDiscoveryService toma de ella los rangos que
+ * cubre un agente vivo y solo escanea el resto desde el servidor.
+ *
+ * Sin printer.discovery.agents.token los agentes no se aceptan.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class DiscoveryAgentRegistry {
+
+    /**
+     * Host informado por un agente
+     *
+     * @param ports     puertos de impresión abiertos (9100, 631, 515)
+     * @param sysName   sysName SNMP, o null
+     * @param sysDescr  sysDescr SNMP, o null
+     */
+    public record AgentHost(String ip, String mac, List<Integer> ports, String sysName, String sysDescr) {
+    }
+
+    /**
+     * Resultados de un agente
+     *
+     * @param range    rango asignado al que pertenecen los hosts
+     * @param complete true en el último lote del rango (actualiza lastScan)
+     */
+    public record AgentReport(String agentId, String range, List<AgentHost> hosts, boolean complete) {
+    }
+
+    private record Agent(String id, List<String> networks, String address, long lastSeen) {
+    }
+
+    private record CachedHost(AgentHost host, String agentId, long seenAt) {
+    }
+
+    // Cada cuánto se olvidan los hosts caducados de la caché (ms)
+    private static final long PRUNE_INTERVAL = 60000;
+
+    @Value("${printer.discovery.agents.token:}")
+    private String token;
+
+    // Un agente sin noticias durante este tiempo deja de cubrir sus rangos (ms)
+    @Value("${printer.discovery.agents.ttl:900000}")
+    private long agentTtl;
+
+    // Máximo de hosts en caché; llena, solo se actualizan los ya conocidos
+    @Value("${printer.discovery.agents.max-hosts:65536}")
+    private int maxHosts;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Map<String, Agent> agents = new ConcurrentHashMap<>();
+    private final Map<String, CachedHost> hosts = new ConcurrentHashMap<>();
+    private volatile long lastPrune = System.currentTimeMillis();
+
+    public DiscoveryAgentRegistry(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    public boolean isEnabled() {
+        return token != null && !token.isBlank();
+    }
+
+    /**
+     * Comprueba el secreto compartido de un agente (comparación en tiempo constante)
+     */
+    public boolean authenticate(String presented) {
+        return isEnabled() && presented != null
+            && MessageDigest.isEqual(token.trim().getBytes(StandardCharsets.UTF_8),
+                presented.trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Alta o renovación de un agente
+     *
+     * @param networks redes locales del agente en notación CIDR
+     * @return rangos que debe escanear
+     */
+    public List<String> checkIn(String agentId, List<String> networks, String address) {
+        List<String> valid = networks == null ? List.of()
+            : networks.stream().filter(NetworkRange::isValidCIDR).toList();
+        Agent previous = agents.put(agentId, new Agent(agentId, valid, address, System.currentTimeMillis()));
+        if (previous == null) {
+            log.info("🛰️ Agente de descubrimiento {} ({}) conectado: {}", agentId, address, valid);
+        }
+        List<String> assigned = assignments().getOrDefault(agentId, List.of());
+        log.debug("Agente {}: {} rangos asignados", agentId, assigned.size());
+        return assigned;
+    }
+
+    /**
+     * Incorpora a la caché los hosts de un lote
+     *
+     * Los hosts no informados en ttl ms se olvidan; con la caché llena
+     * (max-hosts) los nuevos se descartan y los ya conocidos se actualizan.
+     */
+    public void ingest(AgentReport report) {
+        long now = System.currentTimeMillis();
+        Agent agent = agents.get(report.agentId());
+        if (agent != null) {
+            agents.put(agent.id(), new Agent(agent.id(), agent.networks(), agent.address(), now));
+        }
+        boolean pruned = false;
+        if (now - lastPrune >= PRUNE_INTERVAL) {
+            prune(now);
+            pruned = true;
+        }
+        int count = 0;
+        int dropped = 0;
+        if (report.hosts() != null) {
+            for (AgentHost host : report.hosts()) {
+                if (!Ipv4RangeSet.isAddress(host.ip())) {
+                    continue;
+                }
+                if (hosts.size() >= maxHosts && !hosts.containsKey(host.ip())) {
+                    // Una sola limpieza por lote antes de empezar a descartar
+                    if (!pruned) {
+                        prune(now);
+                        pruned = true;
+                    }
+                    if (hosts.size() >= maxHosts) {
+                        dropped++;
+                        continue;
+                    }
+                }
+                hosts.put(host.ip(), new CachedHost(host, report.agentId(), now));
+                count++;
+            }
+        }
+        if (dropped > 0) {
+            log.warn("🛰️ Caché de hosts de agentes llena ({}): {} hosts de {} descartados",
+                maxHosts, dropped, report.agentId());
+        }
+        log.debug("🛰️ Agente {}: {} hosts en {}", report.agentId(), count, report.range());
+        if (report.complete() && report.range() != null) {
+            rangeScanned(report.range());
+        }
+    }
+
+    /**
+     * Rangos cubiertos por algún agente vivo (no los escanea el servidor)
+     */
+    public Set<String> coveredRanges() {
+        Set<String> covered = new HashSet<>();
+        assignments().values().forEach(covered::addAll);
+        return covered;
+    }
+
+    /**
+     * Hosts de la caché dentro de un rango, informados hace menos de ttl ms
+     */
+    public List<AgentHost> hostsIn(String cidr) {
+        Ipv4RangeSet block = blockOf(cidr);
+        if (block == null) {
+            return List.of();
+        }
+        long limit = System.currentTimeMillis() - agentTtl;
+        List<AgentHost> result = new ArrayList<>();
+        for (CachedHost cached : hosts.values()) {
+            if (cached.seenAt() >= limit && block.contains(cached.host().ip())) {
+                result.add(cached.host());
+            }
+        }
+        return result;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        long limit = System.currentTimeMillis() - agentTtl;
+        stats.put("enabled", isEnabled());
+        stats.put("agents", agents.size());
+        stats.put("liveAgents", agents.values().stream().filter(a -> a.lastSeen() >= limit).count());
+        stats.put("cachedHosts", hosts.size());
+        stats.put("maxHosts", maxHosts);
+        stats.put("coveredRanges", coveredRanges().size());
+        return stats;
+    }
+
+    /**
+     * Reparto de los NetworkRange activos entre los agentes vivos que los
+     * contienen; el mismo rango va siempre al mismo agente mientras el
+     * conjunto de candidatos no cambie
+     */
+    private Map<String, List<String>> assignments() {
+        long limit = System.currentTimeMillis() - agentTtl;
+        agents.values().removeIf(agent -> agent.lastSeen() < limit);
+        if (agents.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, List<String>> assigned = new HashMap<>();
+        for (String range : activeRanges()) {
+            Ipv4RangeSet block = blockOf(range);
+            if (block == null) {
+                continue;
+            }
+            List<String> candidates = new ArrayList<>();
+            for (Agent agent : agents.values()) {
+                if (agent.networks().stream().map(DiscoveryAgentRegistry::blockOf)
+                        .anyMatch(net -> net != null && net.containsAll(block))) {
+                    candidates.add(agent.id());
+                }
+            }
+            if (!candidates.isEmpty()) {
+                Collections.sort(candidates);
+                String agentId = candidates.get(Math.floorMod(range.hashCode(), candidates.size()));
+                assigned.computeIfAbsent(agentId, id -> new ArrayList<>()).add(range);
+            }
+        }
+        return assigned;
+    }
+
+    /**
+     * Olvida los hosts que ningún agente ha vuelto a informar en ttl ms
+     */
+    private void prune(long now) {
+        lastPrune = now;
+        long limit = now - agentTtl;
+        hosts.values().removeIf(cached -> cached.seenAt() < limit);
+    }
+
+    private List<String> activeRanges() {
+        try {
+            return entityManager.createNamedQuery("NetworkRange.active", NetworkRange.class)
+                .getResultList().stream()
+                .map(NetworkRange::getCidrRange)
+                .toList();
+        } catch (Exception e) {
+            log.debug("Error leyendo rangos de red: {}", e.getMessage());
+            return List.of();
+        }
+    }
+
+    private void rangeScanned(String cidr) {
+        int found = hostsIn(cidr).size();
+        try {
+            transactionTemplate.executeWithoutResult(status -> entityManager.createQuery(
+                    "UPDATE NetworkRange n SET n.lastScan = :now, n.lastFoundPrinters = :found " +
+                    "WHERE n.cidrRange = :cidr")
+                .setParameter("now", LocalDateTime.now())
+                .setParameter("found", found)
+                .setParameter("cidr", cidr)
+                .executeUpdate());
+        } catch (Exception e) {
+            log.debug("Error actualizando el rango {}: {}", cidr, e.getMessage());
+        }
+    }
+
+    /**
+     * Bloque completo de un CIDR, o null si no es válido
+     */
+    private static Ipv4RangeSet blockOf(String cidr) {
+        try {
+            return Ipv4RangeSet.block(cidr);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package es.ucm.fdi.iu.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import es.ucm.fdi.iu.util.Ipv4RangeSet;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Agente de descubrimiento para una VLAN (app.mode=discovery-agent)
+ *
+ * Se ejecuta en un equipo del propio segmento. Cada interval ms:
+ * - Se anuncia al servidor central con sus redes locales y recibe los
+ *   rangos que le tocan (/api/discovery-agents/checkin)
+ * - Los escanea con timeouts de red local: puertos 9100/631/515 y, si
+ *   ninguno responde, una consulta SNMP sin reintentos
+ * - Envía por lotes IP, MAC (tabla ARP local), puertos e identidad SNMP
+ *   (/api/discovery-agents/results)
+ *
+ * No usa base de datos ni servidor web.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "discovery-agent")
+public class DiscoveryAgentService {
+
+    private static final int[] PRINTER_PORTS = {9100, 631, 515};
+    private static final String OID_SYS_DESCR = "1.3.6.1.2.1.1.1.0";
+    private static final String OID_SYS_NAME = "1.3.6.1.2.1.1.5.0";
+    private static final Pattern MAC_PATTERN = Pattern.compile("([0-9A-Fa-f]{2}[:-]){5}([0-9A-Fa-f]{2})");
+    private static final Pattern IP_PATTERN = Pattern.compile("\\b(\\d{1,3}(\\.\\d{1,3}){3})\\b");
+
+    @Value("${app.server.ip:10.1.16.31}")
+    private String centralServerIp;
+
+    @Value("${app.server.port:8080}")
+    private int centralServerPort;
+
+    // Vacío = nombre del equipo
+    @Value("${discovery.agent.id:}")
+    private String agentId;
+
+    @Value("${discovery.agent.token:}")
+    private String token;
+
+    // Redes que se declaran al servidor (vacío = las de las interfaces locales)
+    @Value("${discovery.agent.networks:}")
+    private String configuredNetworks;
+
+    @Value("${discovery.agent.interval:300000}")
+    private long interval;
+
+    @Value("${discovery.agent.port-timeout:300}")
+    private int portTimeout;
+
+    @Value("${discovery.agent.snmp-timeout:500}")
+    private int snmpTimeout;
+
+    @Value("${discovery.agent.snmp-community:public}")
+    private String snmpCommunity;
+
+    @Value("${discovery.agent.threads:64}")
+    private int threads;
+
+    @Value("${discovery.agent.batch-size:256}")
+    private int batchSize;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService scanners;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        if (agentId == null || agentId.isBlank()) {
+            try {
+                agentId = InetAddress.getLocalHost().getHostName();
+            } catch (Exception e) {
+                agentId = "agente";
+            }
+        }
+        log.info("════════════════════════════════════════════════════════════");
+        log.info("🛰️  MODO: Agente de descubrimiento");
+        log.info("════════════════════════════════════════════════════════════");
+        log.info("📍 Agente: {}", agentId);
+        log.info("📍 Redes locales: {}", localNetworks());
+        log.info("📍 Servidor Central: {}:{}", centralServerIp, centralServerPort);
+        if (token == null || token.isBlank()) {
+            log.warn("⚠️ discovery.agent.token vacío: el servidor rechazará los resultados");
+        }
+
+        running = true;
+        scanners = Executors.newFixedThreadPool(Math.max(1, threads));
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DiscoveryAgent");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::cycle, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        log.info("🛑 Deteniendo agente de descubrimiento...");
+        running = false;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (scanners != null) {
+            scanners.shutdownNow();
+        }
+    }
+
+    /**
+     * Un ciclo: anunciarse, escanear lo asignado e informar
+     */
+    private void cycle() {
+        try {
+            List<String> ranges = checkIn();
+            if (ranges.isEmpty()) {
+                log.info("🛰️ Sin rangos asignados (¿NetworkRange activo para estas redes?)");
+                return;
+            }
+            for (String range : ranges) {
+                if (!running) {
+                    break;
+                }
+                long start = System.currentTimeMillis();
+                List<Map<String, Object>> hosts = scanRange(range);
+                report(range, hosts);
+                log.info("✅ {}: {} hosts en {} ms", range, hosts.size(), System.currentTimeMillis() - start);
+            }
+        } catch (Exception e) {
+            log.error("Error en el ciclo del agente de descubrimiento: {}", e.getMessage());
+        }
+    }
+
+    private List<String> checkIn() throws IOException {
+        Map<String, Object> body = new HashMap<>();
+        body.put("agentId", agentId);
+        body.put("networks", localNetworks());
+        JsonNode response = post("/api/discovery-agents/checkin", body);
+        List<String> ranges = new ArrayList<>();
+        if (response != null && response.has("ranges")) {
+            response.get("ranges").forEach(node -> ranges.add(node.asText()));
+        }
+        return ranges;
+    }
+
+    /**
+     * Escanea un rango en paralelo y completa las MAC con la tabla ARP
+     */
+    private List<Map<String, Object>> scanRange(String cidr) throws InterruptedException {
+        Ipv4RangeSet hosts = hostsOf(cidr);
+        List<Map<String, Object>> found = new CopyOnWriteArrayList<>();
+        Snmp snmp = openSnmp();
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>((int) hosts.size());
+            hosts.forEach(address -> {
+                String ip = Ipv4RangeSet.format(address);
+                tasks.add(() -> {
+                    Map<String, Object> host = probe(ip, snmp);
+                    if (host != null) {
+                        found.add(host);
+                    }
+                    return null;
+                });
+            });
+            scanners.invokeAll(tasks);
+        } finally {
+            closeQuietly(snmp);
+        }
+
+        // Tras el sondeo, los hosts que respondieron están en la caché ARP
+        Map<String, String> arp = readArpTable();
+        for (Map<String, Object> host : found) {
+            host.put("mac", arp.get((String) host.get("ip")));
+        }
+        return new ArrayList<>(found);
+    }
+
+    /**
+     * Puertos de impresión abiertos e identidad SNMP de una IP, o null si no responde
+     */
+    private Map<String, Object> probe(String ip, Snmp snmp) {
+        List<Integer> open = new ArrayList<>();
+        for (int port : PRINTER_PORTS) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(ip, port), portTimeout);
+                open.add(port);
+            } catch (IOException e) {
+                // Cerrado o filtrado
+            }
+        }
+        String[] identity = snmp != null ? snmpIdentity(snmp, ip) : null;
+        if (open.isEmpty() && identity == null) {
+            return null;
+        }
+        Map<String, Object> host = new HashMap<>();
+        host.put("ip", ip);
+        host.put("ports", open);
+        host.put("sysDescr", identity != null ? identity[0] : null);
+        host.put("sysName", identity != null ? identity[1] : null);
+        return host;
+    }
+
+    /**
+     * sysDescr y sysName, o null si no responde (sin reintentos: red local)
+     */
+    private String[] snmpIdentity(Snmp snmp, String ip) {
+        try {
+            CommunityTarget target = new CommunityTarget();
+            target.setCommunity(new OctetString(snmpCommunity));
+            target.setAddress(new UdpAddress(ip + "/161"));
+            target.setRetries(0);
+            target.setTimeout(snmpTimeout);
+            target.setVersion(SnmpConstants.version2c);
+
+            PDU pdu = new PDU();
+            pdu.add(new VariableBinding(new OID(OID_SYS_DESCR)));
+            pdu.add(new VariableBinding(new OID(OID_SYS_NAME)));
+            pdu.setType(PDU.GET);
+
+            ResponseEvent response = snmp.send(pdu, target);
+            if (response == null || response.getResponse() == null) {
+                return null;
+            }
+            PDU result = response.getResponse();
+            String descr = result.get(0).getVariable().toString();
+            String name = result.size() > 1 ? result.get(1).getVariable().toString() : null;
+            if (name != null && name.toLowerCase().contains("nosuch")) {
+                name = null;
+            }
+            return new String[]{descr, name};
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Envía los resultados en lotes; el último marca el rango como completo
+     */
+    private void report(String range, List<Map<String, Object>> hosts) throws IOException {
+        int size = Math.max(1, batchSize);
+        int from = 0;
+        do {
+            int to = Math.min(hosts.size(), from + size);
+            Map<String, Object> body = new HashMap<>();
+            body.put("agentId", agentId);
+            body.put("range", range);
+            body.put("hosts", hosts.subList(from, to));
+            body.put("complete", to >= hosts.size());
+            post("/api/discovery-agents/results", body);
+            from = to;
+        } while (from < hosts.size());
+    }
+
+    private JsonNode post(String path, Object body) throws IOException {
+        URL url = new URL(String.format("http://%s:%d%s", centralServerIp, centralServerPort, path));
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setRequestProperty("X-Agent-Token", token);
+            conn.setDoOutput(true);
+            conn.setConnectTimeout(10000);
+            conn.setReadTimeout(30000);
+            try (OutputStream os = conn.getOutputStream()) {
+                mapper.writeValue(os, body);
+            }
+            int code = conn.getResponseCode();
+            if (code == 403) {
+                throw new IOException("token de agente rechazado por el servidor");
+            }
+            if (code >= 300) {
+                throw new IOException("HTTP " + code + " en " + path);
+            }
+            return code == 204 ? null : mapper.readTree(conn.getInputStream());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Redes a declarar: las configuradas o las IPv4 de las interfaces activas
+     */
+    private List<String> localNetworks() {
+        List<String> networks = new ArrayList<>();
+        if (configuredNetworks != null && !configuredNetworks.isBlank()) {
+            for (String network : configuredNetworks.split(",")) {
+                networks.add(network.trim());
+            }
+            return networks;
+        }
+        try {
+            for (NetworkInterface nic : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!nic.isUp() || nic.isLoopback() || nic.isVirtual()) {
+                    continue;
+                }
+                for (InterfaceAddress address : nic.getInterfaceAddresses()) {
+                    if (address.getAddress() instanceof Inet4Address ipv4 && address.getNetworkPrefixLength() > 0) {
+                        networks.add(networkOf(ipv4.getAddress(), address.getNetworkPrefixLength()));
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            log.warn("⚠️ No se pudieron leer las interfaces de red: {}", e.getMessage());
+        }
+        return networks;
+    }
+
+    private static String networkOf(byte[] address, int prefix) {
+        int ip = ((address[0] & 0xFF) << 24) | ((address[1] & 0xFF) << 16) | ((address[2] & 0xFF) << 8) | (address[3] & 0xFF);
+        int mask = prefix == 0 ? 0 : 0xFFFFFFFF << (32 - prefix);
+        return Ipv4RangeSet.format(ip & mask) + "/" + prefix;
+    }
+
+    /**
+     * Direcciones de host de un CIDR (sin red ni difusión)
+     */
+    private static Ipv4RangeSet hostsOf(String cidr) {
+        try {
+            return Ipv4RangeSet.hosts(cidr);
+        } catch (IllegalArgumentException e) {
+            log.error("Rango no válido {}: {}", cidr, e.getMessage());
+            return Ipv4RangeSet.EMPTY;
+        }
+    }
+
+    /**
+     * Tabla ARP del equipo: IP → MAC (AA:BB:CC:DD:EE:FF)
+     */
+    private Map<String, String> readArpTable() {
+        Map<String, String> table = new HashMap<>();
+        String command = System.getProperty("os.name").toLowerCase().contains("win") ? "arp -a" : "arp -n";
+        try {
+            Process process = Runtime.getRuntime().exec(command);
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Matcher ip = IP_PATTERN.matcher(line);
+                    Matcher mac = MAC_PATTERN.matcher(line);
+                    if (ip.find() && mac.find()) {
+                        table.put(ip.group(1), mac.group().toUpperCase().replace("-", ":"));
+                    }
+                }
+            }
+            process.waitFor(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.debug("No se pudo leer la tabla ARP: {}", e.getMessage());
+        }
+        return table;
+    }
+
+    private Snmp openSnmp() {
+        try {
+            Snmp snmp = new Snmp(new DefaultUdpTransportMapping());
+            snmp.listen();
+            return snmp;
+        } catch (IOException e) {
+            log.warn("⚠️ SNMP no disponible: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Snmp snmp) {
+        if (snmp != null) {
+            try {
+                snmp.close();
+            } catch (IOException e) {
+                // Ignorar
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package es.ucm.fdi.iu.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Supresión de envíos duplicados en la ingesta IPP
+ *
+ * Un cliente que agota su timeout (o recibe una respuesta ambigua) vuelve a
+ * enviar el mismo documento. Cada trabajo registrado se anota con el hash de
+ * su contenido, el usuario y el destino (impresora o pool); si en los
+ * siguientes window ms llega otro igual, se contesta con el job-id original
+ * en lugar de encolarlo otra vez.
+ *
+ * El hash se calcula mientras se recibe el documento (sin la cabecera IPP,
+ * cuyo request-id cambia entre reintentos).
+ *
+ * La comprobación y la anotación son un solo paso (reserve): el primer envío
+ * reserva la clave antes de encolarse y los iguales que lleguen mientras
+ * tanto esperan a su job-id en lugar de encolarse también.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class DuplicateSubmissionFilter {
+
+    // jobId se completa al encolarse el original (null si falló)
+    private record Submission(CompletableFuture<Long> jobId, long submittedAt) {
+    }
+
+    // Espera máxima de un duplicado a que el original en curso tenga job-id (ms)
+    private static final long PENDING_WAIT = 10000;
+
+    // 0 desactiva la supresión
+    @Value("${printer.ipp.dedup.window:60000}")
+    private long window;
+
+    @Value("${printer.ipp.dedup.max-entries:10000}")
+    private int maxEntries;
+
+    // Orden de llegada: la primera entrada es la más antigua
+    private final LinkedHashMap<String, Submission> recent = new LinkedHashMap<>();
+
+    private final AtomicLong suppressed = new AtomicLong();
+
+    public boolean isEnabled() {
+        return window > 0;
+    }
+
+    /**
+     * Clave de un envío: destino, usuario y hash del documento
+     *
+     * @param target "printer:<id>" o "pool:<id>" (en un pool el reintento
+     *               puede caer en otro miembro)
+     */
+    public static String key(String target, String owner, byte[] digest) {
+        return target + "|" + (owner != null ? owner.toLowerCase() : "") + "|" + ConversionCache.toHex(digest);
+    }
+
+    /**
+     * Comprueba y reserva la clave en un solo paso
+     *
+     * Si el original aún se está encolando, espera (como mucho PENDING_WAIT ms)
+     * a su job-id; si el original falla, la clave se reserva para este envío.
+     *
+     * @return job-id del envío original si es un duplicado dentro de la ventana,
+     *         o null si la clave queda reservada (el llamador debe terminar con
+     *         record o release)
+     */
+    public Long reserve(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        long deadline = System.currentTimeMillis() + PENDING_WAIT;
+        while (true) {
+            CompletableFuture<Long> original;
+            synchronized (this) {
+                expire();
+                Submission submission = recent.get(key);
+                if (submission == null) {
+                    put(key, new Submission(new CompletableFuture<>(), System.currentTimeMillis()));
+                    return null;
+                }
+                original = submission.jobId();
+            }
+            try {
+                Long jobId = original.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (jobId != null) {
+                    suppressed.incrementAndGet();
+                    return jobId;
+                }
+                // El original falló y liberó la clave: reintentar la reserva
+            } catch (TimeoutException e) {
+                log.warn("⏱️ Envío original sin job-id tras {} ms: se encola también este", PENDING_WAIT);
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Anota el job-id de un envío reservado con reserve
+     */
+    public void record(String key, long jobId) {
+        if (!isEnabled()) {
+            return;
+        }
+        CompletableFuture<Long> pending;
+        synchronized (this) {
+            Submission submission = recent.remove(key);
+            pending = submission != null && !submission.jobId().isDone()
+                ? submission.jobId() : new CompletableFuture<>();
+            put(key, new Submission(pending, System.currentTimeMillis()));
+        }
+        pending.complete(jobId);
+    }
+
+    /**
+     * Libera la reserva de un envío que no llegó a encolarse
+     */
+    public void release(String key) {
+        if (!isEnabled()) {
+            return;
+        }
+        CompletableFuture<Long> pending = null;
+        synchronized (this) {
+            Submission submission = recent.get(key);
+            if (submission != null && !submission.jobId().isDone()) {
+                recent.remove(key);
+                pending = submission.jobId();
+            }
+        }
+        if (pending != null) {
+            pending.complete(null);
+        }
+    }
+
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("window", window);
+        stats.put("tracked", recent.size());
+        stats.put("suppressed", suppressed.get());
+        return stats;
+    }
+
+    private void put(String key, Submission submission) {
+        recent.put(key, submission);
+        Iterator<Submission> it = recent.values().iterator();
+        while (recent.size() > maxEntries && it.hasNext()) {
+            Submission oldest = it.next();
+            // Las reservas en curso no se expulsan: hay duplicados esperándolas
+            if (oldest.jobId().isDone()) {
+                it.remove();
+            }
+        }
+    }
+
+    private void expire() {
+        long limit = System.currentTimeMillis() - window;
+        Iterator<Submission> it = recent.values().iterator();
+        while (it.hasNext()) {
+            Submission oldest = it.next();
+            if (oldest.submittedAt() >= limit) {
+                break;
+            }
+            if (oldest.jobId().isDone()) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Job;
+import es.ucm.fdi.iu.model.Printer;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Planificador de las colas de impresión
+ *
+ * Orden de envío de los trabajos pendientes de una impresora:
+ * 1. Trabajos fijados al inicio por un administrador (secuencia negativa)
+ * 2. Por clase de prioridad (URGENT > HIGH > NORMAL > LOW)
+ * 3. Dentro de cada clase, cola justa ponderada (WFQ) entre grupos de reparto
+ *    (departamento del equipo o usuario): gana el trabajo con menor tiempo
+ *    virtual de finalización = inicio del grupo + tamaño / peso
+ *
+ * Así un documento de 500 páginas no retiene la página suelta de otro
+ * departamento, y quien envía muchos trabajos no acapara la impresora.
+ * El estado (tiempo virtual por impresora y grupo) vive en memoria: tras un
+ * reinicio todos los grupos parten igualados.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class FairShareScheduler {
+
+    @Value("${printer.queue.fair-share.enabled:true}")
+    private boolean enabled;
+
+    // Coste mínimo por trabajo (bytes): evita que los trabajos vacíos salgan gratis
+    @Value("${printer.queue.fair-share.min-cost:4096}")
+    private long minCost;
+
+    // Cada cuánto se releen los pesos de los departamentos (ms)
+    @Value("${printer.queue.fair-share.weights-refresh:60000}")
+    private long weightsRefresh;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final Map<Long, VirtualClock> clocks = new ConcurrentHashMap<>();
+
+    private volatile Map<String, Integer> departmentWeights = Collections.emptyMap();
+    private volatile long weightsLoadedAt;
+
+    /**
+     * Tiempo virtual de una impresora y tiempos de finalización de sus grupos
+     */
+    private static class VirtualClock {
+        double now;
+        final Map<String, Double> finishTags = new HashMap<>();
+    }
+
+    /**
+     * Grupo de reparto para un trabajo nuevo: el departamento del equipo
+     * cuyo nombre o hostname coincide con el usuario, o el propio usuario
+     */
+    public String resolveShareGroup(String owner) {
+        if (owner == null || owner.isBlank()) {
+            return "user:desconocido";
+        }
+        try {
+            List<String> departments = entityManager.createQuery(
+                    "SELECT c.department.name FROM Computer c " +
+                    "WHERE c.department IS NOT NULL " +
+                    "AND (LOWER(c.hostname) = :owner OR LOWER(c.name) = :owner)", String.class)
+                .setParameter("owner", owner.toLowerCase())
+                .setMaxResults(1)
+                .getResultList();
+            if (!departments.isEmpty()) {
+                return "dept:" + departments.get(0);
+            }
+        } catch (Exception e) {
+            log.debug("No se pudo resolver el departamento de {}: {}", owner, e.getMessage());
+        }
+        return "user:" + owner.toLowerCase();
+    }
+
+    /**
+     * Ordena los trabajos pendientes de una impresora en el orden de envío
+     * No modifica el estado: se confirma con charge() al enviar cada trabajo
+     */
+    public List<Job> order(Printer printer, List<Job> pending) {
+        List<Job> pinned = new ArrayList<>();
+        Map<Job.Priority, List<Job>> byPriority = new EnumMap<>(Job.Priority.class);
+        for (Job job : pending) {
+            if (job.effectiveSequence() < 0) {
+                pinned.add(job);
+            } else {
+                byPriority.computeIfAbsent(job.effectivePriority(), p -> new ArrayList<>()).add(job);
+            }
+        }
+
+        List<Job> ordered = new ArrayList<>(pending.size());
+        pinned.sort(Comparator.comparingLong(Job::effectiveSequence));
+        ordered.addAll(pinned);
+
+        Job.Priority[] classes = Job.Priority.values();
+        for (int i = classes.length - 1; i >= 0; i--) {
+            List<Job> jobs = byPriority.get(classes[i]);
+            if (jobs == null) {
+                continue;
+            }
+            jobs.sort(Comparator.comparingLong(Job::effectiveSequence));
+            if (enabled) {
+                ordered.addAll(weightedFairOrder(printer, jobs));
+            } else {
+                ordered.addAll(jobs);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Registra el envío de un trabajo: avanza el tiempo virtual de la
+     * impresora y el tiempo de finalización de su grupo
+     */
+    public void charge(Printer printer, Job job) {
+        if (!enabled) {
+            return;
+        }
+        VirtualClock clock = clocks.computeIfAbsent(printer.getId(), id -> new VirtualClock());
+        String group = groupOf(job);
+        synchronized (clock) {
+            double start = Math.max(clock.finishTags.getOrDefault(group, 0.0), clock.now);
+            clock.finishTags.put(group, start + cost(job) / weightOf(group));
+            clock.now = start;
+            // Los grupos que ya quedaron por detrás no aportan nada: se olvidan
+            clock.finishTags.values().removeIf(finish -> finish <= clock.now);
+        }
+    }
+
+    /**
+     * Olvida el estado de una impresora (al quedar su cola vacía o eliminarse)
+     */
+    public void reset(long printerId) {
+        clocks.remove(printerId);
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("printers", clocks.size());
+        stats.put("departmentWeights", departmentWeights);
+        return stats;
+    }
+
+    /**
+     * Simula WFQ sobre una copia de los tiempos de finalización: en cada paso
+     * sale el primer trabajo del grupo cuyo trabajo acabaría antes
+     */
+    private List<Job> weightedFairOrder(Printer printer, List<Job> jobs) {
+        Map<String, Deque<Job>> flows = new LinkedHashMap<>();
+        for (Job job : jobs) {
+            flows.computeIfAbsent(groupOf(job), g -> new ArrayDeque<>()).add(job);
+        }
+        if (flows.size() == 1) {
+            return jobs;
+        }
+
+        Map<String, Double> finishTags;
+        double now;
+        VirtualClock clock = clocks.get(printer.getId());
+        if (clock != null) {
+            synchronized (clock) {
+                finishTags = new HashMap<>(clock.finishTags);
+                now = clock.now;
+            }
+        } else {
+            finishTags = new HashMap<>();
+            now = 0;
+        }
+
+        List<Job> ordered = new ArrayList<>(jobs.size());
+        while (!flows.isEmpty()) {
+            String best = null;
+            double bestFinish = Double.MAX_VALUE;
+            double bestStart = 0;
+            for (Map.Entry<String, Deque<Job>> flow : flows.entrySet()) {
+                String group = flow.getKey();
+                double start = Math.max(finishTags.getOrDefault(group, 0.0), now);
+                double finish = start + cost(flow.getValue().peekFirst()) / weightOf(group);
+                if (finish < bestFinish) {
+                    best = group;
+                    bestFinish = finish;
+                    bestStart = start;
+                }
+            }
+            Deque<Job> flow = flows.get(best);
+            ordered.add(flow.pollFirst());
+            finishTags.put(best, bestFinish);
+            now = bestStart;
+            if (flow.isEmpty()) {
+                flows.remove(best);
+            }
+        }
+        return ordered;
+    }
+
+    private String groupOf(Job job) {
+        if (job.getShareGroup() != null) {
+            return job.getShareGroup();
+        }
+        return "user:" + (job.getOwner() != null ? job.getOwner().toLowerCase() : "desconocido");
+    }
+
+    private double cost(Job job) {
+        long size = job.getSize() != null ? job.getSize() : 0;
+        return Math.max(size, minCost);
+    }
+
+    private int weightOf(String group) {
+        if (!group.startsWith("dept:")) {
+            return 1;
+        }
+        Integer weight = loadWeights().get(group.substring(5));
+        return weight != null && weight > 0 ? weight : 1;
+    }
+
+    private Map<String, Integer> loadWeights() {
+        long now = System.currentTimeMillis();
+        if (now - weightsLoadedAt < weightsRefresh) {
+            return departmentWeights;
+        }
+        try {
+            Map<String, Integer> weights = new HashMap<>();
+            entityManager.createQuery(
+                    "SELECT d.name, d.shareWeight FROM Department d WHERE d.shareWeight IS NOT NULL",
+                    Object[].class)
+                .getResultList()
+                .forEach(row -> weights.put((String) row[0], (Integer) row[1]));
+            departmentWeights = weights;
+        } catch (Exception e) {
+            log.debug("No se pudieron leer los pesos de departamentos: {}", e.getMessage());
+        }
+        weightsLoadedAt = now;
+        return departmentWeights;
+    }
+}
@@ -0,0 +1,243 @@
+package es.ucm.fdi.iu.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Control de admisión de trabajos IPP
+ *
+ * Tres medidas con umbral alto y bajo (histéresis):
+ * - Bytes en el spool
+ * - Trabajos pendientes por impresora
+ * - Conexiones de ingesta en curso
+ *
+ * Al superar el umbral alto se rechazan trabajos nuevos hasta bajar del
+ * umbral bajo. El cliente recibe un estado IPP que le indica que reintente:
+ * - server-error-busy (0x0507): saturación pasajera (conexiones)
+ * - server-error-service-unavailable (0x0502): spool o cola llenos
+ *
+ * El spool y las colas se miden en segundo plano cada refresh-interval ms;
+ * las conexiones se cuentan al momento.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class IngestAdmissionService {
+
+    /**
+     * Resultado de la admisión
+     */
+    public enum Decision {
+        ACCEPT(0x0000),
+        BUSY(0x0507),
+        UNAVAILABLE(0x0502);
+
+        private final int ippStatus;
+
+        Decision(int ippStatus) {
+            this.ippStatus = ippStatus;
+        }
+
+        public int getIppStatus() {
+            return ippStatus;
+        }
+    }
+
+    @Value("${printer.admission.enabled:true}")
+    private boolean enabled;
+
+    @Value("${printer.admission.spool-bytes.high:2147483648}")
+    private long spoolHigh;
+
+    @Value("${printer.admission.spool-bytes.low:1610612736}")
+    private long spoolLow;
+
+    @Value("${printer.admission.pending-jobs.high:500}")
+    private long pendingHigh;
+
+    @Value("${printer.admission.pending-jobs.low:400}")
+    private long pendingLow;
+
+    @Value("${printer.admission.connections.high:64}")
+    private int connectionsHigh;
+
+    @Value("${printer.admission.connections.low:48}")
+    private int connectionsLow;
+
+    @Value("${printer.admission.refresh-interval:2000}")
+    private long refreshInterval;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final PrinterAttributeCache attributeCache;
+
+    @Value("${printer.spool.dir:}")
+    private String spoolDirSetting;
+
+    private Path spoolDir;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong spoolBytes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile boolean spoolSaturated;
+    private volatile boolean connectionsSaturated;
+    private volatile Set<Long> saturatedPrinters = Collections.emptySet();
+
+    private ScheduledExecutorService scheduler;
+
+    public IngestAdmissionService(PrinterAttributeCache attributeCache) {
+        this.attributeCache = attributeCache;
+    }
+
+    @PostConstruct
+    public void init() {
+        spoolDir = PrintQueueService.resolveSpoolDir(spoolDirSetting);
+        if (!enabled) {
+            log.info("🚦 Control de admisión desactivado");
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "IngestAdmission");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshInterval, TimeUnit.MILLISECONDS);
+        log.info("🚦 Control de admisión: spool {}-{} MB, {}-{} trabajos por impresora, {}-{} conexiones",
+            spoolLow / (1024 * 1024), spoolHigh / (1024 * 1024), pendingLow, pendingHigh,
+            connectionsLow, connectionsHigh);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Decide si se acepta una conexión de ingesta para la impresora
+     * Si la respuesta es ACCEPT hay que llamar a release() al terminar
+     */
+    public Decision admit(long printerId) {
+        int current = connections.incrementAndGet();
+        if (!enabled) {
+            return Decision.ACCEPT;
+        }
+
+        Decision decision = Decision.ACCEPT;
+        if (spoolSaturated || saturatedPrinters.contains(printerId)) {
+            decision = Decision.UNAVAILABLE;
+        } else if (connectionsAbove(current)) {
+            decision = Decision.BUSY;
+        }
+
+        if (decision != Decision.ACCEPT) {
+            connections.decrementAndGet();
+            rejected.incrementAndGet();
+        }
+        return decision;
+    }
+
+    /**
+     * Fin de una conexión aceptada
+     */
+    public void release() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Respuesta IPP con el estado del rechazo, el request-id del cliente y el
+     * grupo de operación (attributes-charset y attributes-natural-language)
+     */
+    public static byte[] ippResponse(Decision decision, int requestId) {
+        return IppEncoder.status(decision.getIppStatus(), requestId);
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("connections", connections.get());
+        stats.put("spoolBytes", spoolBytes.get());
+        stats.put("spoolSaturated", spoolSaturated);
+        stats.put("connectionsSaturated", connectionsSaturated);
+        stats.put("saturatedPrinters", saturatedPrinters);
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+
+    private synchronized boolean connectionsAbove(int current) {
+        if (connectionsSaturated) {
+            if (current <= connectionsLow) {
+                connectionsSaturated = false;
+            }
+        } else if (current > connectionsHigh) {
+            connectionsSaturated = true;
+            log.warn("🚦 Ingesta saturada: {} conexiones en curso", current);
+        }
+        return connectionsSaturated;
+    }
+
+    /**
+     * Mide spool y colas y actualiza los estados con histéresis
+     */
+    private void refresh() {
+        try {
+            long bytes = measureSpool();
+            spoolBytes.set(bytes);
+            if (spoolSaturated && bytes <= spoolLow) {
+                spoolSaturated = false;
+                log.info("🚦 Spool por debajo del umbral bajo ({} MB): se admiten trabajos", bytes / (1024 * 1024));
+            } else if (!spoolSaturated && bytes >= spoolHigh) {
+                spoolSaturated = true;
+                log.warn("🚦 Spool lleno ({} MB): se rechazan trabajos nuevos", bytes / (1024 * 1024));
+            }
+
+            Set<Long> previous = saturatedPrinters;
+            Set<Long> saturated = new HashSet<>();
+            entityManager.createQuery(
+                    "SELECT j.printer.id, COUNT(j) FROM Job j GROUP BY j.printer.id", Object[].class)
+                .getResultList()
+                .forEach(row -> {
+                    Long printerId = (Long) row[0];
+                    long pending = (Long) row[1];
+                    if (pending >= pendingHigh || (previous.contains(printerId) && pending > pendingLow)) {
+                        saturated.add(printerId);
+                    }
+                });
+            saturatedPrinters = saturated;
+            if (!saturated.equals(previous)) {
+                log.info("🚦 Impresoras con cola llena: {}", saturated);
+                // printer-is-accepting-jobs de sus atributos IPP
+                attributeCache.setNotAccepting(saturated);
+            }
+        } catch (Exception e) {
+            log.debug("Error midiendo carga de ingesta: {}", e.getMessage());
+        }
+    }
+
+    private long measureSpool() throws IOException {
+        if (!Files.isDirectory(spoolDir)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.list(spoolDir)) {
+            return files.mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+}
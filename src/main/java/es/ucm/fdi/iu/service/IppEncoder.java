@@ -0,0 +1,116 @@
+package es.ucm.fdi.iu.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Codificación de respuestas IPP (RFC 8010)
+ *
+ *   [versión 2] [status-code 2] [request-id 4]
+ *   ( [delimitador de grupo] ( [value-tag] [long. nombre 2] [nombre] [long. valor 2] [valor] )* )*
+ *   [end-of-attributes-tag 0x03]
+ *
+ * Contraparte de IppMessage para las respuestas que genera el servidor.
+ */
+public final class IppEncoder {
+
+    // Delimitadores de grupo
+    public static final int TAG_OPERATION = 0x01;
+    public static final int TAG_JOB = 0x02;
+    public static final int TAG_END = 0x03;
+    public static final int TAG_PRINTER = 0x04;
+
+    // Etiquetas de valor
+    public static final int TAG_INTEGER = 0x21;
+    public static final int TAG_BOOLEAN = 0x22;
+    public static final int TAG_ENUM = 0x23;
+    public static final int TAG_TEXT = 0x41;
+    public static final int TAG_NAME = 0x42;
+    public static final int TAG_KEYWORD = 0x44;
+    public static final int TAG_URI = 0x45;
+    public static final int TAG_CHARSET = 0x47;
+    public static final int TAG_LANGUAGE = 0x48;
+    public static final int TAG_MIME = 0x49;
+
+    // Códigos de estado
+    public static final int STATUS_OK = 0x0000;
+    public static final int STATUS_FORBIDDEN = 0x0401;
+    public static final int STATUS_NOT_FOUND = 0x0406;
+    public static final int STATUS_NOT_POSSIBLE = 0x040C;
+    public static final int STATUS_INTERNAL_ERROR = 0x0500;
+    public static final int STATUS_OPERATION_NOT_SUPPORTED = 0x0501;
+
+    private IppEncoder() {
+    }
+
+    /**
+     * Cabecera IPP/1.1 y grupo de atributos de operación (charset e idioma)
+     */
+    public static void writeHeader(ByteArrayOutputStream out, int status, int requestId) {
+        out.write(0x01);
+        out.write(0x01);
+        out.write(status >> 8);
+        out.write(status);
+        out.write(requestId >> 24);
+        out.write(requestId >> 16);
+        out.write(requestId >> 8);
+        out.write(requestId);
+        out.write(TAG_OPERATION);
+        writeString(out, TAG_CHARSET, "attributes-charset", "utf-8");
+        writeString(out, TAG_LANGUAGE, "attributes-natural-language", "en-us");
+    }
+
+    /**
+     * Respuesta sin más atributos que los de operación
+     */
+    public static byte[] status(int status, int requestId) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeHeader(out, status, requestId);
+        out.write(TAG_END);
+        return out.toByteArray();
+    }
+
+    public static void writeString(ByteArrayOutputStream out, int tag, String name, String value) {
+        writeValue(out, tag, name, (value != null ? value : "").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Atributo con varios valores: los adicionales van con nombre vacío
+     */
+    public static void writeStrings(ByteArrayOutputStream out, int tag, String name, List<String> values) {
+        for (int i = 0; i < values.size(); i++) {
+            writeString(out, tag, i == 0 ? name : "", values.get(i));
+        }
+    }
+
+    /**
+     * integer o enum, según tag
+     */
+    public static void writeInt(ByteArrayOutputStream out, int tag, String name, int value) {
+        writeValue(out, tag, name, new byte[]{
+            (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value
+        });
+    }
+
+    public static void writeInts(ByteArrayOutputStream out, int tag, String name, int[] values) {
+        for (int i = 0; i < values.length; i++) {
+            writeInt(out, tag, i == 0 ? name : "", values[i]);
+        }
+    }
+
+    public static void writeBoolean(ByteArrayOutputStream out, String name, boolean value) {
+        writeValue(out, TAG_BOOLEAN, name, new byte[]{(byte) (value ? 1 : 0)});
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, int tag, String name, byte[] value) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        out.write(tag);
+        out.write(nameBytes.length >> 8);
+        out.write(nameBytes.length);
+        out.writeBytes(nameBytes);
+        out.write(value.length >> 8);
+        out.write(value.length);
+        out.writeBytes(value);
+    }
+}
@@ -0,0 +1,214 @@
+package es.ucm.fdi.iu.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Operaciones IPP sobre trabajos: Get-Jobs, Get-Job-Attributes y Cancel-Job
+ *
+ * Se responden desde JobIndex, sin consultar la base de datos. Cancel-Job
+ * pasa por PrintQueueService, que además corta el envío si ya ha empezado.
+ *
+ * Los atributos de la petición llegan como función nombre → primer valor,
+ * para servir tanto a IppMessage como al analizador de IppServerService.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class IppJobService {
+
+    public static final int OP_CANCEL_JOB = 0x0008;
+    public static final int OP_GET_JOB_ATTRIBUTES = 0x0009;
+    public static final int OP_GET_JOBS = 0x000A;
+
+    // Referencia de time-at-creation / time-at-completed (segundos desde el arranque)
+    private static final long START_TIME = System.currentTimeMillis();
+
+    private final JobIndex jobIndex;
+    private final PrintQueueService printQueueService;
+
+    public IppJobService(JobIndex jobIndex, PrintQueueService printQueueService) {
+        this.jobIndex = jobIndex;
+        this.printQueueService = printQueueService;
+    }
+
+    public static boolean handles(int operationId) {
+        return operationId == OP_CANCEL_JOB || operationId == OP_GET_JOB_ATTRIBUTES || operationId == OP_GET_JOBS;
+    }
+
+    /**
+     * Responde una operación sobre trabajos dirigida a una impresora
+     *
+     * @param printerId  impresora destinataria (null si no se pudo resolver)
+     * @param printerUri URI de la impresora, base de los job-uri
+     * @param attribute  primer valor de un atributo de la petición, o null
+     */
+    public byte[] handle(int operationId, int requestId, Long printerId, String printerUri,
+                         Function<String, String> attribute) {
+        return handle(operationId, requestId, printerId, null, printerUri, attribute);
+    }
+
+    /**
+     * Responde una operación sobre trabajos
+     *
+     * Get-Job-Attributes y Cancel-Job solo ven los trabajos de la impresora
+     * destinataria o, si la petición llegó al puerto de un pool, los que se
+     * enviaron a ese pool; los demás se responden como inexistentes.
+     *
+     * @param poolId pool si la petición llegó a su puerto (null si no)
+     */
+    public byte[] handle(int operationId, int requestId, Long printerId, Long poolId, String printerUri,
+                         Function<String, String> attribute) {
+        return switch (operationId) {
+            case OP_GET_JOBS -> getJobs(requestId, printerId, printerUri, attribute);
+            case OP_GET_JOB_ATTRIBUTES -> getJobAttributes(requestId, printerId, poolId, printerUri, attribute);
+            case OP_CANCEL_JOB -> cancelJob(requestId, printerId, poolId, attribute);
+            default -> IppEncoder.status(IppEncoder.STATUS_NOT_POSSIBLE, requestId);
+        };
+    }
+
+    /**
+     * Respuesta de Print-Job con el job-id asignado por la cola
+     */
+    public byte[] printJobResponse(long jobId, int requestId, String printerUri) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        IppEncoder.writeHeader(out, IppEncoder.STATUS_OK, requestId);
+        out.write(IppEncoder.TAG_JOB);
+        // Un reenvío duplicado recibe el estado actual del trabajo original
+        JobIndex.IndexedJob indexed = jobIndex.get(jobId);
+        JobIndex.State state = indexed != null ? indexed.getState() : JobIndex.State.PENDING;
+        IppEncoder.writeInt(out, IppEncoder.TAG_INTEGER, "job-id", (int) jobId);
+        IppEncoder.writeString(out, IppEncoder.TAG_URI, "job-uri", jobUri(printerUri, jobId));
+        IppEncoder.writeInt(out, IppEncoder.TAG_ENUM, "job-state", state.getIppValue());
+        IppEncoder.writeString(out, IppEncoder.TAG_KEYWORD, "job-state-reasons", state.getReason());
+        out.write(IppEncoder.TAG_END);
+        return out.toByteArray();
+    }
+
+    private byte[] getJobs(int requestId, Long printerId, String printerUri, Function<String, String> attribute) {
+        if (printerId == null) {
+            return IppEncoder.status(IppEncoder.STATUS_NOT_FOUND, requestId);
+        }
+        boolean completed = "completed".equals(attribute.apply("which-jobs"));
+        String owner = "true".equals(attribute.apply("my-jobs")) ? attribute.apply("requesting-user-name") : null;
+        int limit = parseInt(attribute.apply("limit"), 0);
+
+        List<JobIndex.IndexedJob> jobs = jobIndex.jobsOf(printerId, completed, owner, limit);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128 + jobs.size() * 256);
+        IppEncoder.writeHeader(out, IppEncoder.STATUS_OK, requestId);
+        for (JobIndex.IndexedJob job : jobs) {
+            writeJob(out, job, printerUri);
+        }
+        out.write(IppEncoder.TAG_END);
+        log.debug("📋 Get-Jobs impresora {}: {} trabajos ({})", printerId, jobs.size(),
+            completed ? "completed" : "not-completed");
+        return out.toByteArray();
+    }
+
+    private byte[] getJobAttributes(int requestId, Long printerId, Long poolId, String printerUri,
+                                    Function<String, String> attribute) {
+        JobIndex.IndexedJob job = findJob(attribute, printerId, poolId);
+        if (job == null) {
+            return IppEncoder.status(IppEncoder.STATUS_NOT_FOUND, requestId);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(384);
+        IppEncoder.writeHeader(out, IppEncoder.STATUS_OK, requestId);
+        writeJob(out, job, printerUri);
+        out.write(IppEncoder.TAG_END);
+        return out.toByteArray();
+    }
+
+    /**
+     * Un trabajo con propietario solo lo cancela una petición que trae su
+     * requesting-user-name; un trabajo terminado ya no se puede cancelar
+     */
+    private byte[] cancelJob(int requestId, Long printerId, Long poolId, Function<String, String> attribute) {
+        JobIndex.IndexedJob job = findJob(attribute, printerId, poolId);
+        if (job == null) {
+            return IppEncoder.status(IppEncoder.STATUS_NOT_FOUND, requestId);
+        }
+        String requester = attribute.apply("requesting-user-name");
+        if (!job.getOwner().isEmpty() && (requester == null || !requester.equalsIgnoreCase(job.getOwner()))) {
+            log.warn("⛔ Cancel-Job {} rechazado: {} no es el propietario ({})",
+                job.getId(), requester != null && !requester.isEmpty() ? requester : "anónimo", job.getOwner());
+            return IppEncoder.status(IppEncoder.STATUS_FORBIDDEN, requestId);
+        }
+        if (job.getState().isFinished()) {
+            return IppEncoder.status(IppEncoder.STATUS_NOT_POSSIBLE, requestId);
+        }
+        if (!printQueueService.cancelJob(job.getId())) {
+            return IppEncoder.status(IppEncoder.STATUS_NOT_POSSIBLE, requestId);
+        }
+        log.info("🛑 Trabajo {} cancelado por IPP ({})", job.getId(), requester != null ? requester : "anónimo");
+        return IppEncoder.status(IppEncoder.STATUS_OK, requestId);
+    }
+
+    /**
+     * Trabajo indicado por job-id o por el último segmento de job-uri, si
+     * pertenece al pool o a la impresora destinataria
+     */
+    private JobIndex.IndexedJob findJob(Function<String, String> attribute, Long printerId, Long poolId) {
+        int jobId = parseInt(attribute.apply("job-id"), -1);
+        if (jobId < 0) {
+            String jobUri = attribute.apply("job-uri");
+            if (jobUri != null) {
+                jobId = parseInt(jobUri.substring(jobUri.lastIndexOf('/') + 1), -1);
+            }
+        }
+        JobIndex.IndexedJob job = jobId >= 0 ? jobIndex.get(jobId) : null;
+        if (job == null) {
+            return null;
+        }
+        boolean addressed = poolId != null
+            ? poolId.equals(job.getPool())
+            : printerId != null && job.getPrinterId() == printerId;
+        if (!addressed) {
+            log.debug("Trabajo {} pedido a {} {}, pero es de la impresora {}", job.getId(),
+                poolId != null ? "pool" : "impresora", poolId != null ? poolId : printerId, job.getPrinterId());
+            return null;
+        }
+        return job;
+    }
+
+    private void writeJob(ByteArrayOutputStream out, JobIndex.IndexedJob job, String printerUri) {
+        JobIndex.State state = job.getState();
+        out.write(IppEncoder.TAG_JOB);
+        IppEncoder.writeInt(out, IppEncoder.TAG_INTEGER, "job-id", (int) job.getId());
+        IppEncoder.writeString(out, IppEncoder.TAG_URI, "job-uri", jobUri(printerUri, job.getId()));
+        IppEncoder.writeString(out, IppEncoder.TAG_URI, "job-printer-uri", printerUri);
+        IppEncoder.writeString(out, IppEncoder.TAG_NAME, "job-name", job.getName());
+        IppEncoder.writeString(out, IppEncoder.TAG_NAME, "job-originating-user-name", job.getOwner());
+        IppEncoder.writeInt(out, IppEncoder.TAG_ENUM, "job-state", state.getIppValue());
+        IppEncoder.writeString(out, IppEncoder.TAG_KEYWORD, "job-state-reasons", state.getReason());
+        IppEncoder.writeInt(out, IppEncoder.TAG_INTEGER, "job-k-octets", (int) ((job.getSize() + 1023) / 1024));
+        IppEncoder.writeInt(out, IppEncoder.TAG_INTEGER, "time-at-creation", uptimeSeconds(job.getCreatedAt()));
+        if (state.isFinished()) {
+            IppEncoder.writeInt(out, IppEncoder.TAG_INTEGER, "time-at-completed", uptimeSeconds(job.getFinishedAt()));
+        }
+    }
+
+    private static String jobUri(String printerUri, long jobId) {
+        String base = printerUri != null ? printerUri : "";
+        return (base.endsWith("/") ? base : base + "/") + jobId;
+    }
+
+    private static int uptimeSeconds(long time) {
+        return (int) Math.max(0, (time - START_TIME) / 1000);
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package es.ucm.fdi.iu.service;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Petición IPP analizada en una sola pasada (RFC 8010)
+ *
+ *   [versión 2] [operation-id 2] [request-id 4]
+ *   ( [delimitador de grupo] ( [value-tag] [long. nombre 2] [nombre] [long. valor 2] [valor] )* )*
+ *   [end-of-attributes-tag 0x03] [datos del documento...]
+ *
+ * Se recorren los grupos de atributos hasta end-of-attributes y el documento
+ * queda justo después: sobre un byte[] se expone como vista (sin copiar) y
+ * sobre un InputStream el flujo queda posicionado al inicio del documento.
+ *
+ * Los atributos multivalor (valores adicionales con nombre vacío) se
+ * conservan completos en getAttributeValues(); getAttribute() da el primero.
+ *
+ * También sirve para respuestas: el campo operation-id es entonces el status-code.
+ */
+public final class IppMessage {
+
+    private static final int HEADER_LENGTH = 8;
+    private static final int END_OF_ATTRIBUTES_TAG = 0x03;
+
+    private final int versionMajor;
+    private final int versionMinor;
+    private final int operationId;
+    private final int requestId;
+    private final Map<String, List<String>> attributes;
+    private final boolean complete;
+    private final int documentOffset;
+
+    // Solo en el análisis sobre byte[]: datos originales para la vista del documento
+    private final byte[] source;
+    private final int sourceLength;
+
+    private IppMessage(int versionMajor, int versionMinor, int operationId, int requestId,
+                       Map<String, List<String>> attributes, boolean complete, int documentOffset,
+                       byte[] source, int sourceLength) {
+        this.versionMajor = versionMajor;
+        this.versionMinor = versionMinor;
+        this.operationId = operationId;
+        this.requestId = requestId;
+        this.attributes = attributes;
+        this.complete = complete;
+        this.documentOffset = documentOffset;
+        this.source = source;
+        this.sourceLength = sourceLength;
+    }
+
+    /**
+     * Analiza los primeros length bytes de una petición
+     *
+     * Si los datos se cortan antes de end-of-attributes se devuelven los
+     * atributos leídos hasta ese punto con isComplete() == false.
+     *
+     * @return el mensaje, o null si los datos no tienen forma de petición IPP
+     */
+    public static IppMessage parse(byte[] data, int length) {
+        if (data == null || length < HEADER_LENGTH) {
+            return null;
+        }
+        try {
+            return read(new ByteArrayInputStream(data, 0, length), length, data, length);
+        } catch (IOException e) {
+            // ByteArrayInputStream no lanza IOException
+            return null;
+        }
+    }
+
+    /**
+     * Analiza la cabecera y los atributos de una petición leyendo del flujo
+     *
+     * Con isComplete() == true el flujo queda posicionado en el primer byte
+     * del documento. Si no, se han consumido bytes y el llamador debe
+     * restaurar la posición (mark/reset) si quiere usarlos.
+     *
+     * @param maxHeaderBytes máximo de bytes de cabecera y atributos a leer
+     *                       (nunca se consumen más, así que sirve como límite de mark)
+     * @return el mensaje, o null si los datos no tienen forma de petición IPP
+     */
+    public static IppMessage parse(InputStream in, int maxHeaderBytes) throws IOException {
+        return read(in, maxHeaderBytes, null, 0);
+    }
+
+    private static IppMessage read(InputStream in, int maxHeaderBytes,
+                                   byte[] source, int sourceLength) throws IOException {
+        byte[] header = in.readNBytes(HEADER_LENGTH);
+        if (header.length < HEADER_LENGTH) {
+            return null;
+        }
+        int versionMajor = header[0] & 0xFF;
+        int versionMinor = header[1] & 0xFF;
+        if (versionMajor < 1 || versionMajor > 2 || versionMinor > 9) {
+            return null;
+        }
+        int operationId = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+        int requestId = ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16)
+            | ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        List<String> lastValues = null;
+        int offset = HEADER_LENGTH;
+        boolean complete = false;
+
+        while (offset < maxHeaderBytes) {
+            int tag = in.read();
+            if (tag == -1) {
+                break;
+            }
+            offset++;
+
+            if (tag == END_OF_ATTRIBUTES_TAG) {
+                complete = true;
+                break;
+            }
+            // Delimitadores de grupo (operation, job, printer...): no llevan nombre/valor
+            if (tag < 0x10) {
+                continue;
+            }
+
+            if (offset + 4 > maxHeaderBytes) {
+                break;
+            }
+            int nameLength = readShort(in);
+            if (nameLength < 0 || offset + 4 + nameLength > maxHeaderBytes) {
+                break;
+            }
+            byte[] name = in.readNBytes(nameLength);
+            if (name.length < nameLength) {
+                break;
+            }
+            int valueLength = readShort(in);
+            if (valueLength < 0 || offset + 4 + nameLength + valueLength > maxHeaderBytes) {
+                break;
+            }
+            byte[] value = in.readNBytes(valueLength);
+            if (value.length < valueLength) {
+                break;
+            }
+            offset += 4 + nameLength + valueLength;
+
+            // Nombre vacío = valor adicional del atributo anterior
+            if (nameLength > 0) {
+                String attributeName = new String(name, StandardCharsets.UTF_8);
+                lastValues = attributes.containsKey(attributeName) ? null : new ArrayList<>(1);
+                if (lastValues != null) {
+                    attributes.put(attributeName, lastValues);
+                }
+            }
+            String attributeValue = decodeValue(tag, value);
+            if (lastValues != null && attributeValue != null) {
+                lastValues.add(attributeValue);
+            }
+        }
+
+        return new IppMessage(versionMajor, versionMinor, operationId, requestId,
+            Collections.unmodifiableMap(attributes), complete, offset, source, sourceLength);
+    }
+
+    private static int readShort(InputStream in) throws IOException {
+        int hi = in.read();
+        int lo = in.read();
+        if (hi == -1 || lo == -1) {
+            return -1;
+        }
+        return (hi << 8) | lo;
+    }
+
+    /**
+     * Convierte el valor a texto según su value-tag (null si no es representable)
+     */
+    private static String decodeValue(int tag, byte[] value) {
+        // integer (0x21) y enum (0x23)
+        if ((tag == 0x21 || tag == 0x23) && value.length == 4) {
+            return String.valueOf(((value[0] & 0xFF) << 24) | ((value[1] & 0xFF) << 16)
+                | ((value[2] & 0xFF) << 8) | (value[3] & 0xFF));
+        }
+        // rangeOfInteger (0x33): "inferior-superior"
+        if (tag == 0x33 && value.length == 8) {
+            int lower = ((value[0] & 0xFF) << 24) | ((value[1] & 0xFF) << 16)
+                | ((value[2] & 0xFF) << 8) | (value[3] & 0xFF);
+            int upper = ((value[4] & 0xFF) << 24) | ((value[5] & 0xFF) << 16)
+                | ((value[6] & 0xFF) << 8) | (value[7] & 0xFF);
+            return lower + "-" + upper;
+        }
+        // boolean (0x22)
+        if (tag == 0x22 && value.length == 1) {
+            return value[0] != 0 ? "true" : "false";
+        }
+        // text, name, keyword, uri, charset, naturalLanguage, mimeMediaType (0x41-0x49)
+        if (tag >= 0x41 && tag <= 0x49) {
+            return new String(value, StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    public int getVersionMajor() {
+        return versionMajor;
+    }
+
+    public int getVersionMinor() {
+        return versionMinor;
+    }
+
+    public int getOperationId() {
+        return operationId;
+    }
+
+    /**
+     * Código de estado (solo en respuestas: ocupa el lugar de operation-id)
+     */
+    public int getStatusCode() {
+        return operationId;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * true si se llegó a end-of-attributes-tag
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Posición del primer byte del documento (solo válida si isComplete())
+     */
+    public int getDocumentOffset() {
+        return documentOffset;
+    }
+
+    /**
+     * Primer valor del atributo, o null si no está
+     */
+    public String getAttribute(String name) {
+        List<String> values = attributes.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Todos los valores del atributo (vacío si no está)
+     */
+    public List<String> getAttributeValues(String name) {
+        List<String> values = attributes.get(name);
+        return values == null ? Collections.emptyList() : Collections.unmodifiableList(values);
+    }
+
+    public Map<String, List<String>> getAttributes() {
+        return attributes;
+    }
+
+    public String getJobName() {
+        return getAttribute("job-name");
+    }
+
+    public String getRequestingUserName() {
+        return getAttribute("requesting-user-name");
+    }
+
+    public String getDocumentFormat() {
+        return getAttribute("document-format");
+    }
+
+    public String getPrinterUri() {
+        return getAttribute("printer-uri");
+    }
+
+    /**
+     * Vista de solo lectura del documento sobre los datos analizados (sin copiar)
+     *
+     * @return la vista, o null si el mensaje no vino de un byte[] o está incompleto
+     */
+    public ByteBuffer documentView() {
+        if (source == null || !complete) {
+            return null;
+        }
+        return ByteBuffer.wrap(source, documentOffset, sourceLength - documentOffset)
+            .slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Flujo sobre el documento contenido en los datos analizados (sin copiar)
+     */
+    public InputStream documentStream() {
+        if (source == null || !complete) {
+            return null;
+        }
+        return new ByteArrayInputStream(source, documentOffset, sourceLength - documentOffset);
+    }
+}
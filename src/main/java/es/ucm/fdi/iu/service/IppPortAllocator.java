@@ -0,0 +1,206 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.repository.PrinterRepository;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.FlushModeType;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Asignación de puertos IPP dedicados (impresoras y pools) desde 8631
+ *
+ * Sustituye a MAX(ippPort)+1, que con dos altas simultáneas daba el mismo
+ * puerto a ambas. Los puertos se reparten con un contador y una lista de
+ * libres (los huecos y los de impresoras eliminadas), de menor a mayor, bajo
+ * un mismo cerrojo. El estado inicial se lee de la base de datos en el
+ * primer uso.
+ *
+ * Con printer.cluster.enabled=true ese estado en memoria no vale (cada nodo
+ * tendría el suyo): los puertos salen de la secuencia ipp_port_seq de la
+ * base de datos, común a todos los nodos, saltando los que ya estén
+ * asignados a mano. Los liberados no se reutilizan. Printer.ippPort y
+ * PGroup.ippPort son únicos, así que un choque con una asignación manual
+ * hace fallar el alta en lugar de duplicar el puerto.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class IppPortAllocator {
+
+    private static final int BASE_PORT = 8631;
+
+    private static final String SEQUENCE = "ipp_port_seq";
+
+    // Valores de la secuencia ya ocupados que se saltan como mucho en un alta
+    private static final int MAX_SKIPPED = 1000;
+
+    private final PrinterRepository printerRepository;
+
+    private final TransactionTemplate sequenceTransaction;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${printer.cluster.enabled:false}")
+    private boolean cluster;
+
+    private final TreeSet<Integer> free = new TreeSet<>();
+    private final Set<Integer> used = new HashSet<>();
+    private int next = BASE_PORT;
+    private boolean loaded;
+    private boolean sequenceReady;
+
+    public IppPortAllocator(PrinterRepository printerRepository, PlatformTransactionManager transactionManager) {
+        this.printerRepository = printerRepository;
+        this.sequenceTransaction = new TransactionTemplate(transactionManager);
+        this.sequenceTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Reserva el puerto libre más bajo (en clúster, el siguiente de la secuencia)
+     */
+    public synchronized int allocate() {
+        if (cluster) {
+            return allocateShared();
+        }
+        load();
+        Integer port = free.pollFirst();
+        if (port == null) {
+            port = next++;
+        }
+        used.add(port);
+        return port;
+    }
+
+    /**
+     * Devuelve un puerto a la lista de libres
+     */
+    public synchronized void release(Integer port) {
+        if (port == null || port < BASE_PORT) {
+            return;
+        }
+        load();
+        if (used.remove(port)) {
+            free.add(port);
+            log.debug("🔌 Puerto IPP {} liberado", port);
+        }
+    }
+
+    /**
+     * Anota un puerto asignado por otra vía (edición manual del ippPort)
+     */
+    public synchronized void reserve(Integer port) {
+        if (port == null || port < BASE_PORT) {
+            return;
+        }
+        load();
+        used.add(port);
+        free.remove(port);
+        for (int gap = next; gap < port; gap++) {
+            free.add(gap);
+        }
+        next = Math.max(next, port + 1);
+    }
+
+    public synchronized Map<String, Object> getStatistics() {
+        load();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("used", used.size());
+        stats.put("free", free.size());
+        stats.put("next", next);
+        stats.put("shared", cluster);
+        return stats;
+    }
+
+    /**
+     * Siguiente valor de ipp_port_seq que no esté ya asignado a una impresora
+     * o pool. Se llama dentro de la transacción del alta (desde @PrePersist),
+     * así que las consultas no vacían el contexto de persistencia.
+     */
+    private int allocateShared() {
+        ensureSequence();
+        String nextValue = entityManager.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class)
+            .getJdbcServices().getDialect().getSequenceSupport().getSequenceNextValString(SEQUENCE);
+        for (int skipped = 0; skipped < MAX_SKIPPED; skipped++) {
+            int port = ((Number) entityManager.createNativeQuery(nextValue)
+                .setFlushMode(FlushModeType.COMMIT)
+                .getSingleResult()).intValue();
+            if (!isAssigned(port)) {
+                return port;
+            }
+            log.debug("🔌 Puerto IPP {} de la secuencia ya asignado; se salta", port);
+        }
+        throw new IllegalStateException("No hay puertos IPP libres en la secuencia " + SEQUENCE);
+    }
+
+    private boolean isAssigned(int port) {
+        return entityManager.createQuery("SELECT COUNT(p) FROM Printer p WHERE p.ippPort = :port", Long.class)
+                .setParameter("port", port)
+                .setFlushMode(FlushModeType.COMMIT)
+                .getSingleResult() > 0
+            || entityManager.createQuery("SELECT COUNT(g) FROM PGroup g WHERE g.ippPort = :port", Long.class)
+                .setParameter("port", port)
+                .setFlushMode(FlushModeType.COMMIT)
+                .getSingleResult() > 0;
+    }
+
+    /**
+     * Crea la secuencia (una vez por nodo) a partir del mayor puerto asignado,
+     * en su propia transacción para no abortar la del alta si otro nodo la
+     * crea a la vez
+     */
+    private void ensureSequence() {
+        if (sequenceReady) {
+            return;
+        }
+        try {
+            sequenceTransaction.executeWithoutResult(status -> {
+                int max = BASE_PORT - 1;
+                for (Integer port : printerRepository.findAllIppPorts()) {
+                    max = Math.max(max, port);
+                }
+                for (Integer port : printerRepository.findAllPoolIppPorts()) {
+                    max = Math.max(max, port);
+                }
+                entityManager.createNativeQuery(
+                        "CREATE SEQUENCE IF NOT EXISTS " + SEQUENCE + " START WITH " + (max + 1))
+                    .executeUpdate();
+            });
+        } catch (Exception e) {
+            log.debug("Secuencia {} creada por otro nodo: {}", SEQUENCE, e.getMessage());
+        }
+        sequenceReady = true;
+        log.info("🔌 Puertos IPP compartidos en clúster (secuencia {})", SEQUENCE);
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        used.addAll(printerRepository.findAllIppPorts());
+        used.addAll(printerRepository.findAllPoolIppPorts());
+        used.removeIf(port -> port < BASE_PORT);
+        int max = used.stream().mapToInt(Integer::intValue).max().orElse(BASE_PORT - 1);
+        for (int port = BASE_PORT; port < max; port++) {
+            if (!used.contains(port)) {
+                free.add(port);
+            }
+        }
+        next = max + 1;
+        loaded = true;
+        log.info("🔌 Puertos IPP: {} en uso, {} libres para reutilizar, siguiente {}", used.size(), free.size(), next);
+    }
+}
@@ -8,9 +8,15 @@ import org.springframework.stereotype.Service;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
@@ -38,6 +44,13 @@ public class IppPrintService {
     
     @Value("${printer.connection.retries:3}")
     private int maxRetries;
+    
+    // Universal Exit Language (PJL): separa documentos en un mismo flujo RAW
+    private static final byte[] UNIVERSAL_EXIT_LANGUAGE = "\u001B%-12345X".getBytes(StandardCharsets.US_ASCII);
+
+    // Conexión RAW en curso de cada hilo de envío, para poder cortarla al cancelar
+    private final Map<Thread, Socket> activeDeliveries = new ConcurrentHashMap<>();
+    private final Set<Thread> abortedDeliveries = ConcurrentHashMap.newKeySet();
 
     /**
      * Información de una impresora IPP
@@ -593,6 +606,10 @@ public class IppPrintService {
         
         // Paso 2: Intentar envío con reintentos
         for (int attempt = 1; attempt <= maxRetries; attempt++) {
+            if (isDeliveryAborted()) {
+                log.info("🛑 Envío a {}:{} cancelado", ip, port);
+                return false;
+            }
             try {
                 log.info("   📤 Intento {}/{}: Enviando archivo ({} bytes)", 
                     attempt, maxRetries, Files.size(file));
@@ -603,6 +620,10 @@ public class IppPrintService {
                 }
                 
             } catch (IOException e) {
+                if (isDeliveryAborted()) {
+                    log.info("🛑 Envío a {}:{} cancelado durante la transferencia", ip, port);
+                    return false;
+                }
                 log.warn("⚠️ Intento {}/{} falló: {}", attempt, maxRetries, e.getMessage());
                 
                 if (attempt < maxRetries) {
@@ -629,6 +650,177 @@ public class IppPrintService {
         return false;
     }
     
+    /**
+     * Envía varios documentos seguidos por una sola conexión RAW
+     * (un único diagnóstico y una única conexión para toda la ráfaga)
+     *
+     * Entre documentos se inserta UEL (ESC%-12345X) para que la impresora
+     * reinicie el intérprete y trate cada uno como un trabajo independiente.
+     *
+     * El último documento solo cuenta como entregado cuando el cierre de la
+     * conexión (shutdownOutput) tiene éxito.
+     *
+     * @return documentos entregados por completo (desde el primero) y si el
+     *         siguiente quedó a medias o sin confirmar
+     */
+    public BatchResult sendBatchToRawPort(String ip, List<Path> files, int port) {
+        log.info("📡 Envío agrupado de {} documentos a {}:{}", files.size(), ip, port);
+        
+        NetworkDiagnostics diagnostics = performNetworkDiagnostics(ip, port);
+        if (!diagnostics.isReachable || !diagnostics.isPortOpen) {
+            log.error("❌ {}:{} no disponible para envío agrupado", ip, port);
+            return new BatchResult(0, false);
+        }
+        
+        int delivered = 0;
+        // Documentos de los que se empezó a escribir algo
+        int started = 0;
+        long totalBytes = 0;
+        long startTime = System.currentTimeMillis();
+        
+        try (Socket socket = new Socket()) {
+            trackDelivery(socket);
+            socket.connect(new InetSocketAddress(ip, port), connectionTimeout);
+            socket.setSoTimeout(dataTransferTimeout);
+            socket.setSendBufferSize(65536);
+            socket.setKeepAlive(true);
+            
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+            for (Path file : files) {
+                started++;
+                out.write(UNIVERSAL_EXIT_LANGUAGE);
+                totalBytes += Files.copy(file, out);
+                out.flush();
+                if (started < files.size()) {
+                    delivered++;
+                }
+            }
+            out.write(UNIVERSAL_EXIT_LANGUAGE);
+            out.flush();
+            socket.shutdownOutput();
+            delivered = files.size();
+            
+            log.info("   📊 Envío agrupado completo: {} documentos, {} KB en {} ms",
+                delivered, totalBytes / 1024, System.currentTimeMillis() - startTime);
+            
+        } catch (IOException e) {
+            log.warn("⚠️ Envío agrupado interrumpido tras {} de {} documentos: {}",
+                delivered, files.size(), e.getMessage());
+        } finally {
+            untrackDelivery();
+        }
+        
+        return new BatchResult(delivered, started > delivered);
+    }
+    
+    /**
+     * Resultado de un envío agrupado
+     */
+    public static class BatchResult {
+        private final int delivered;
+        private final boolean uncertain;
+
+        public BatchResult(int delivered, boolean uncertain) {
+            this.delivered = delivered;
+            this.uncertain = uncertain;
+        }
+
+        /** Documentos entregados por completo, desde el primero */
+        public int getDelivered() { return delivered; }
+
+        /** El documento siguiente a los entregados se envió en parte o entero sin confirmar */
+        public boolean isUncertain() { return uncertain; }
+    }
+    
+    /**
+     * Envía al puerto RAW solo ciertas regiones de un archivo, en orden y por
+     * una única conexión (un tramo de páginas de un documento grande)
+     *
+     * @param regions pares {inicio, fin} de bytes del archivo
+     * @return true si todas las regiones se escribieron por completo
+     */
+    public boolean sendRegionsToRawPort(String ip, Path file, int port, List<long[]> regions) {
+        long startTime = System.currentTimeMillis();
+        long totalBytes = 0;
+        
+        try (Socket socket = new Socket();
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            trackDelivery(socket);
+            socket.connect(new InetSocketAddress(ip, port), connectionTimeout);
+            socket.setSoTimeout(dataTransferTimeout);
+            socket.setSendBufferSize(65536);
+            socket.setKeepAlive(true);
+            
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+            WritableByteChannel target = Channels.newChannel(out);
+            for (long[] region : regions) {
+                long position = region[0];
+                while (position < region[1]) {
+                    long sent = channel.transferTo(position, region[1] - position, target);
+                    if (sent <= 0) {
+                        throw new EOFException("Fin de archivo inesperado en " + position);
+                    }
+                    position += sent;
+                }
+                totalBytes += region[1] - region[0];
+            }
+            out.flush();
+            socket.shutdownOutput();
+            
+            log.debug("   📊 Tramo enviado a {}:{}: {} KB en {} ms",
+                ip, port, totalBytes / 1024, System.currentTimeMillis() - startTime);
+            return true;
+            
+        } catch (IOException e) {
+            log.warn("⚠️ Envío de tramo a {}:{} interrumpido: {}", ip, port, e.getMessage());
+            return false;
+        } finally {
+            untrackDelivery();
+        }
+    }
+    
+    /**
+     * Corta el envío RAW que esté haciendo un hilo (trabajo cancelado)
+     *
+     * El hilo queda marcado hasta clearAbort(): no inicia más intentos ni
+     * conexiones aunque la cancelación llegue entre dos de ellos.
+     */
+    public void abortDelivery(Thread worker) {
+        abortedDeliveries.add(worker);
+        Socket socket = activeDeliveries.get(worker);
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.trace("Error cerrando socket cancelado: {}", e.getMessage());
+            }
+        }
+    }
+    
+    public boolean isDeliveryAborted() {
+        return abortedDeliveries.contains(Thread.currentThread());
+    }
+    
+    public void clearAbort() {
+        abortedDeliveries.remove(Thread.currentThread());
+    }
+    
+    /**
+     * Registra la conexión del hilo actual; se comprueba la marca después de
+     * registrarla para no perder una cancelación que llegue a la vez
+     */
+    private void trackDelivery(Socket socket) throws IOException {
+        activeDeliveries.put(Thread.currentThread(), socket);
+        if (isDeliveryAborted()) {
+            socket.close();
+            throw new InterruptedIOException("Envío cancelado");
+        }
+    }
+    
+    private void untrackDelivery() {
+        activeDeliveries.remove(Thread.currentThread());
+    }
+    
     /**
      * Realiza el envío real de datos al puerto
      */
@@ -636,6 +828,7 @@ public class IppPrintService {
         Socket socket = null;
         try {
             socket = new Socket();
+            trackDelivery(socket);
             
             // Configurar timeouts
             socket.connect(new InetSocketAddress(ip, port), connectionTimeout);
@@ -710,6 +903,7 @@ public class IppPrintService {
             }
             
         } finally {
+            untrackDelivery();
             if (socket != null && !socket.isClosed()) {
                 try {
                     // Shutdown ordenado: cerrar salida pero dejar entrada abierta
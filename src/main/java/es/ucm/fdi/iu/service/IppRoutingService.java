@@ -0,0 +1,141 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Printer;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.util.Locale;
+
+/**
+ * Cómo se publican las impresoras por IPP
+ *
+ * - ports: un puerto por impresora desde 8631 (Printer.ippPort), como siempre
+ * - path:  un único puerto; la impresora se elige por la ruta
+ *          /printers/{alias} del atributo printer-uri
+ * - both:  puerto único y, además, los puertos ya asignados, para que los
+ *          clientes configurados con ellos sigan funcionando; a las
+ *          impresoras nuevas no se les asigna puerto
+ *
+ * Con path o both no hace falta un socket, un hilo y una regla de firewall
+ * por impresora. Los ippPort guardados no se borran: volver a ports los
+ * reutiliza.
+ *
+ * Todas las altas (panel, API, descubrimiento) guardan la impresora sin
+ * ippPort; PrinterChangeListener solo le pide puerto a IppPortAllocator si
+ * assignsPorts(). Los pools siempre tienen puerto: es lo que los define.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class IppRoutingService {
+
+    public enum Mode {
+        PORTS,
+        PATH,
+        BOTH
+    }
+
+    // Puerto por defecto de una impresora sin ippPort (modo ports)
+    private static final int BASE_PORT = 8631;
+
+    @Value("${printer.ipp.routing:ports}")
+    private String routing;
+
+    @Value("${printer.ipp.single-port:8630}")
+    private int singlePort;
+
+    private Mode mode = Mode.PORTS;
+
+    @PostConstruct
+    public void init() {
+        try {
+            mode = Mode.valueOf(routing.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            log.warn("⚠️ printer.ipp.routing='{}' no válido, se usa 'ports'", routing);
+            mode = Mode.PORTS;
+        }
+        if (mode != Mode.PORTS) {
+            log.info("🧭 IPP enrutado por ruta en el puerto {} (modo {})", singlePort, mode.name().toLowerCase());
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getSinglePort() {
+        return singlePort;
+    }
+
+    /**
+     * true si se abre el puerto único enrutado por ruta
+     */
+    public boolean usesSinglePort() {
+        return mode != Mode.PORTS;
+    }
+
+    /**
+     * true si las impresoras nuevas reciben un puerto propio
+     */
+    public boolean assignsPorts() {
+        return mode == Mode.PORTS;
+    }
+
+    /**
+     * true si la impresora escucha en su propio puerto
+     */
+    public boolean listensOnOwnPort(Printer printer) {
+        return mode == Mode.PORTS || (mode == Mode.BOTH && printer.getIppPort() != null);
+    }
+
+    /**
+     * Puerto por el que los clientes deben conectar con la impresora
+     */
+    public int portOf(Printer printer) {
+        if (listensOnOwnPort(printer)) {
+            return printer.getIppPort() != null ? printer.getIppPort() : BASE_PORT;
+        }
+        return singlePort;
+    }
+
+    /**
+     * URI IPP publicada para la impresora (ipp://servidor:puerto/printers/alias)
+     */
+    public String printerUri(Printer printer) {
+        String alias = printer.getAlias() != null ? printer.getAlias().replace(" ", "_") : String.valueOf(printer.getId());
+        return String.format("ipp://%s:%d/printers/%s",
+            es.ucm.fdi.iu.util.NetworkUtils.getServerIpAddress(), portOf(printer), alias);
+    }
+
+    /**
+     * Alias de la ruta /printers/{alias} de una URI IPP, o null si no la tiene
+     */
+    public static String aliasFromUri(String uri) {
+        if (uri == null || uri.isEmpty()) {
+            return null;
+        }
+        String path;
+        try {
+            path = new URI(uri).getPath();
+        } catch (Exception e) {
+            return null;
+        }
+        if (path == null) {
+            return null;
+        }
+        int start = path.indexOf("/printers/");
+        if (start < 0) {
+            return null;
+        }
+        String alias = path.substring(start + "/printers/".length());
+        int end = alias.indexOf('/');
+        if (end >= 0) {
+            alias = alias.substring(0, end);
+        }
+        return alias.isEmpty() ? null : alias;
+    }
+}
@@ -37,12 +37,17 @@ public class IppServerService {
     
     private final IppPrintService ippPrintService;
     private final PrinterRepository printerRepository;
+    private final PrinterAttributeCache attributeCache;
+    private final IppJobService ippJobService;
     
     private static final int IPP_PORT = 8631; // Puerto alternativo para evitar conflicto con CUPS
     
-    public IppServerService(IppPrintService ippPrintService, PrinterRepository printerRepository) {
+    public IppServerService(IppPrintService ippPrintService, PrinterRepository printerRepository,
+                            PrinterAttributeCache attributeCache, IppJobService ippJobService) {
         this.ippPrintService = ippPrintService;
         this.printerRepository = printerRepository;
+        this.attributeCache = attributeCache;
+        this.ippJobService = ippJobService;
     }
 
     @PostConstruct
@@ -120,7 +125,16 @@ public class IppServerService {
             log.debug("Parseando request IPP...");
             IppRequest request = parseIppRequest(in);
             
-            if (request != null) {
+            if (request != null && answerFromCache(out, request)) {
+                log.debug("✓ {} respondido desde caché", request.operation);
+            } else if (request != null && IppJobService.handles(request.operationId)) {
+                // Operaciones sobre trabajos: desde el índice en memoria
+                Long printerId = attributeCache.idForName(extractPrinterName(request.printerUri));
+                out.write(ippJobService.handle(request.operationId, request.requestId, printerId,
+                    request.printerUri, name -> (String) request.options.get(name)));
+                out.flush();
+                log.debug("✓ {} respondido desde el índice de trabajos", request.operation);
+            } else if (request != null) {
                 log.info("✓ IPP Request recibido:");
                 log.info("  Operación: {}", request.operation);
                 log.info("  URI: {}", request.printerUri);
@@ -161,42 +175,35 @@ public class IppServerService {
                 return getPrinterAttributes(request);
             case "Print-Job":
                 return printJob(request);
-            case "Get-Jobs":
-                return getJobs(request);
-            case "Cancel-Job":
-                return cancelJob(request);
-            case "CUPS-Get-Printers":
-            case "Get-Printers":
-                return getAllPrinters();
             default:
                 return createErrorResponse("operation-not-supported");
         }
     }
 
-    private IppResponse getPrinterAttributes(IppRequest request) {
-        // Extraer nombre de impresora del URI
-        String printerName = extractPrinterName(request.printerUri);
-        
-        Optional<Printer> printerOpt = printerRepository.findByAlias(printerName);
-        
-        if (printerOpt.isEmpty()) {
-            return createErrorResponse("client-error-not-found");
+    /**
+     * Consultas de atributos: respuesta precodificada de PrinterAttributeCache
+     * con el request-id de la petición, sin BD ni mapas intermedios
+     *
+     * @return false si no hay respuesta en caché (impresora inexistente u
+     *         otra operación) y hay que seguir el camino normal
+     */
+    private boolean answerFromCache(OutputStream out, IppRequest request) throws IOException {
+        PrinterAttributeCache.Encoded encoded = switch (request.operation) {
+            case "Get-Printer-Attributes" -> attributeCache.forName(extractPrinterName(request.printerUri));
+            case "CUPS-Get-Printers", "Get-Printers" -> attributeCache.forAllPrinters();
+            default -> null;
+        };
+        if (encoded == null) {
+            return false;
         }
-        
-        Printer printer = printerOpt.get();
-        
-        IppResponse response = new IppResponse();
-        response.statusCode = "successful-ok";
-        response.attributes = new HashMap<>();
-        response.attributes.put("printer-name", printer.getAlias());
-        response.attributes.put("printer-uri-supported", buildPrinterUri(printer));
-        response.attributes.put("printer-state", "3"); // idle
-        response.attributes.put("printer-state-reasons", "none");
-        response.attributes.put("printer-is-accepting-jobs", "true");
-        response.attributes.put("printer-make-and-model", printer.getModel());
-        response.attributes.put("printer-location", printer.getLocation());
-        
-        return response;
+        encoded.writeTo(out, request.requestId);
+        out.flush();
+        return true;
+    }
+
+    private IppResponse getPrinterAttributes(IppRequest request) {
+        // Las impresoras existentes se responden desde caché (answerFromCache)
+        return createErrorResponse("client-error-not-found");
     }
 
     private IppResponse printJob(IppRequest request) {
@@ -274,43 +281,6 @@ public class IppServerService {
         return createErrorResponse("server-error-internal-error");
     }
 
-    private IppResponse getAllPrinters() {
-        List<Printer> printers = printerRepository.findAll();
-        
-        IppResponse response = new IppResponse();
-        response.statusCode = "successful-ok";
-        response.printerList = new ArrayList<>();
-        
-        for (Printer printer : printers) {
-            Map<String, String> attrs = new HashMap<>();
-            attrs.put("printer-name", printer.getAlias());
-            attrs.put("printer-uri-supported", buildPrinterUri(printer));
-            attrs.put("printer-state", "3");
-            attrs.put("printer-make-and-model", printer.getModel());
-            attrs.put("printer-location", printer.getLocation());
-            
-            response.printerList.add(attrs);
-        }
-        
-        log.info("Listando {} impresoras disponibles", printers.size());
-        return response;
-    }
-
-    private IppResponse getJobs(IppRequest request) {
-        // Implementación simplificada
-        IppResponse response = new IppResponse();
-        response.statusCode = "successful-ok";
-        response.attributes = new HashMap<>();
-        return response;
-    }
-
-    private IppResponse cancelJob(IppRequest request) {
-        // Implementación simplificada
-        IppResponse response = new IppResponse();
-        response.statusCode = "successful-ok";
-        return response;
-    }
-
     private IppResponse createErrorResponse(String statusCode) {
         IppResponse response = new IppResponse();
         response.statusCode = statusCode;
@@ -427,6 +397,7 @@ public class IppServerService {
             int operationLo = bufferedIn.read();
             int operationId = (operationHi << 8) | operationLo;
             request.operation = getOperationName(operationId);
+            request.operationId = operationId;
             log.debug("  Operation ID: 0x{} ({})", Integer.toHexString(operationId), request.operation);
             
             // Leer request-id (4 bytes)
@@ -437,6 +408,7 @@ public class IppServerService {
                            ((requestIdBytes[2] & 0xFF) << 8) |
                            (requestIdBytes[3] & 0xFF);
             log.debug("  Request ID: {}", requestId);
+            request.requestId = requestId;
             
             // Leer atributos IPP
             parseIppAttributes(bufferedIn, request);
@@ -553,7 +525,7 @@ public class IppServerService {
                 if (valueRead != valueLength) {
                     log.warn("  ⚠️  Valor de atributo incompleto: esperado {} bytes, leído {}", valueLength, valueRead);
                 }
-                value = new String(valueBytes, "UTF-8");
+                value = decodeValue(tag, valueBytes);
             }
             
             if (!name.isEmpty()) {
@@ -576,6 +548,20 @@ public class IppServerService {
         log.debug("  ✅ Parsing de atributos completo: {} atributos", attributeCount);
     }
 
+    /**
+     * integer/enum y boolean como número y true/false; el resto como texto
+     */
+    private String decodeValue(int tag, byte[] valueBytes) throws UnsupportedEncodingException {
+        if ((tag == 0x21 || tag == 0x23) && valueBytes.length == 4) {
+            return String.valueOf(((valueBytes[0] & 0xFF) << 24) | ((valueBytes[1] & 0xFF) << 16)
+                | ((valueBytes[2] & 0xFF) << 8) | (valueBytes[3] & 0xFF));
+        }
+        if (tag == 0x22 && valueBytes.length == 1) {
+            return valueBytes[0] != 0 ? "true" : "false";
+        }
+        return new String(valueBytes, "UTF-8");
+    }
+
     private void sendResponse(OutputStream out, IppResponse response) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         
@@ -649,6 +635,7 @@ public class IppServerService {
             case 0x000B -> "Get-Printer-Attributes";
             case 0x000A -> "Get-Jobs";
             case 0x0008 -> "Cancel-Job";
+            case 0x0009 -> "Get-Job-Attributes";
             case 0x4002 -> "CUPS-Get-Printers";
             default -> "Unknown";
         };
@@ -668,6 +655,8 @@ public class IppServerService {
     
     private static class IppRequest {
         String operation;
+        int operationId;
+        int requestId;
         String printerUri;
         String requestingUserName;
         String jobName;
@@ -678,7 +667,6 @@ public class IppServerService {
     private static class IppResponse {
         String statusCode;
         Map<String, String> attributes;
-        List<Map<String, String>> printerList;
     }
     
     /**
@@ -0,0 +1,328 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Job;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Índice en memoria de los trabajos de impresión, por id y por impresora
+ *
+ * Refleja lo que hace PrintQueueService (alta, envío, fin, cancelación,
+ * cambio de impresora en un pool) para responder Get-Jobs,
+ * Get-Job-Attributes y Cancel-Job sin tocar la base de datos.
+ *
+ * Los trabajos terminados se conservan completed-retention ms: un cliente
+ * Windows que pregunta por su trabajo justo después de imprimirse recibe
+ * "completed" en lugar de "no existe" (y no lo vuelve a enviar).
+ *
+ * Cada reconcile-interval ms se compara con la tabla Job para recoger los
+ * cambios hechos fuera del servicio de colas (borrados desde la API o el
+ * panel de administración).
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class JobIndex {
+
+    /**
+     * Estado IPP del trabajo (job-state) y su job-state-reasons
+     */
+    public enum State {
+        PENDING(3, "job-queued"),
+        PROCESSING(5, "job-printing"),
+        CANCELED(7, "job-canceled-by-user"),
+        ABORTED(8, "aborted-by-system"),
+        COMPLETED(9, "job-completed-successfully");
+
+        private final int ippValue;
+        private final String reason;
+
+        State(int ippValue, String reason) {
+            this.ippValue = ippValue;
+            this.reason = reason;
+        }
+
+        public int getIppValue() {
+            return ippValue;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public boolean isFinished() {
+            return ippValue >= 7;
+        }
+    }
+
+    /**
+     * Trabajo indexado: datos fijos y estado actual
+     */
+    public static final class IndexedJob {
+        private final long id;
+        private final String name;
+        private final String owner;
+        private final long size;
+        private final long createdAt;
+        // Pool por cuyo puerto llegó (null si llegó a la impresora)
+        private final Long pool;
+        private volatile long printerId;
+        private volatile State state = State.PENDING;
+        private volatile long finishedAt;
+
+        private IndexedJob(long id, long printerId, Long pool, String name, String owner, long size) {
+            this.id = id;
+            this.printerId = printerId;
+            this.pool = pool;
+            this.name = name != null ? name : "";
+            this.owner = owner != null ? owner : "";
+            this.size = size;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getPrinterId() {
+            return printerId;
+        }
+
+        public Long getPool() {
+            return pool;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public long getFinishedAt() {
+            return finishedAt;
+        }
+    }
+
+    @Value("${printer.ipp.job-index.completed-retention:300000}")
+    private long completedRetention;
+
+    @Value("${printer.ipp.job-index.reconcile-interval:60000}")
+    private long reconcileInterval;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final Map<Long, IndexedJob> byId = new ConcurrentHashMap<>();
+    private final Map<Long, ConcurrentSkipListMap<Long, IndexedJob>> byPrinter = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "JobIndex");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // La primera pasada carga los trabajos que ya estaban en cola
+        scheduler.scheduleWithFixedDelay(this::maintain, 5000, reconcileInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Trabajo nuevo en cola; si hay transacción, se indexa tras el commit
+     */
+    public void added(Job job) {
+        long id = job.getId();
+        long printerId = job.getPrinter().getId();
+        Long pool = job.getPool();
+        String name = job.getFileName();
+        String owner = job.getOwner();
+        long size = job.getSize() != null ? job.getSize() : 0;
+        afterCommit(() -> put(new IndexedJob(id, printerId, pool, name, owner, size)));
+    }
+
+    public void processing(long jobId) {
+        IndexedJob job = byId.get(jobId);
+        if (job != null && !job.state.isFinished()) {
+            job.state = State.PROCESSING;
+        }
+    }
+
+    /**
+     * El trabajo vuelve a esperar en cola sin haberse terminado
+     */
+    public void pending(long jobId) {
+        IndexedJob job = byId.get(jobId);
+        if (job != null && !job.state.isFinished()) {
+            job.state = State.PENDING;
+        }
+    }
+
+    /**
+     * Fin del trabajo: COMPLETED, ABORTED o CANCELED
+     */
+    public void finished(long jobId, State state) {
+        IndexedJob job = byId.get(jobId);
+        if (job != null && !job.state.isFinished()) {
+            job.finishedAt = System.currentTimeMillis();
+            job.state = state;
+        }
+    }
+
+    /**
+     * El trabajo pasa a otra impresora (conmutación dentro de un pool)
+     */
+    public void moved(long jobId, long printerId) {
+        IndexedJob job = byId.get(jobId);
+        if (job == null || job.printerId == printerId) {
+            return;
+        }
+        ConcurrentSkipListMap<Long, IndexedJob> previous = byPrinter.get(job.printerId);
+        if (previous != null) {
+            previous.remove(jobId);
+        }
+        job.printerId = printerId;
+        job.state = State.PENDING;
+        byPrinter.computeIfAbsent(printerId, id -> new ConcurrentSkipListMap<>()).put(jobId, job);
+    }
+
+    public IndexedJob get(long jobId) {
+        return byId.get(jobId);
+    }
+
+    /**
+     * Trabajos de una impresora en orden de llegada
+     *
+     * @param completed true: solo terminados; false: solo pendientes o en curso
+     * @param owner     si no es null, solo los de ese usuario
+     * @param limit     máximo de trabajos (0 = sin límite)
+     */
+    public List<IndexedJob> jobsOf(long printerId, boolean completed, String owner, int limit) {
+        ConcurrentSkipListMap<Long, IndexedJob> jobs = byPrinter.get(printerId);
+        if (jobs == null) {
+            return Collections.emptyList();
+        }
+        List<IndexedJob> result = new ArrayList<>();
+        for (IndexedJob job : jobs.values()) {
+            if (job.state.isFinished() != completed) {
+                continue;
+            }
+            if (owner != null && !owner.equalsIgnoreCase(job.owner)) {
+                continue;
+            }
+            result.add(job);
+            if (limit > 0 && result.size() >= limit) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        long active = byId.values().stream().filter(j -> !j.state.isFinished()).count();
+        stats.put("indexedJobs", byId.size());
+        stats.put("activeJobs", active);
+        stats.put("printers", byPrinter.size());
+        return stats;
+    }
+
+    private void put(IndexedJob job) {
+        if (byId.putIfAbsent(job.id, job) == null) {
+            byPrinter.computeIfAbsent(job.printerId, id -> new ConcurrentSkipListMap<>()).put(job.id, job);
+        }
+    }
+
+    private void remove(IndexedJob job) {
+        byId.remove(job.id);
+        ConcurrentSkipListMap<Long, IndexedJob> jobs = byPrinter.get(job.printerId);
+        if (jobs != null) {
+            jobs.remove(job.id);
+            if (jobs.isEmpty()) {
+                byPrinter.remove(job.printerId, jobs);
+            }
+        }
+    }
+
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Olvida los terminados antiguos y se sincroniza con la tabla Job
+     */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        byId.values().stream()
+            .filter(job -> job.state.isFinished() && now - job.finishedAt > completedRetention)
+            .toList()
+            .forEach(this::remove);
+
+        try {
+            Set<Long> stored = new HashSet<>();
+            // Trabajos que existían antes de este recorrido: solo esos pueden darse por cancelados
+            Set<Long> known = new HashSet<>(byId.keySet());
+            entityManager.createQuery(
+                    "SELECT j.id, j.printer.id, j.pool, j.fileName, j.owner, j.size FROM Job j", Object[].class)
+                .getResultList()
+                .forEach(row -> {
+                    long id = (Long) row[0];
+                    stored.add(id);
+                    if (!byId.containsKey(id) && row[1] != null) {
+                        put(new IndexedJob(id, (Long) row[1], (Long) row[2], (String) row[3], (String) row[4],
+                            row[5] != null ? (Long) row[5] : 0));
+                    }
+                });
+            for (Long id : known) {
+                IndexedJob job = byId.get(id);
+                if (job != null && !job.state.isFinished() && !stored.contains(id)) {
+                    // Borrado fuera del servicio de colas (API, panel)
+                    finished(id, State.CANCELED);
+                }
+            }
+        } catch (Exception e) {
+            log.debug("Error sincronizando el índice de trabajos: {}", e.getMessage());
+        }
+    }
+}
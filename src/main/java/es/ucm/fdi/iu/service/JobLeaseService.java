@@ -0,0 +1,284 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Job;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Reparto de trabajos entre varios servidores sobre la misma base de datos
+ *
+ * Antes de enviar un trabajo, el nodo toma una concesión (lease) sobre él:
+ * Job.leaseOwner, Job.leaseExpiresAt y Job.leaseToken. La toma se hace con
+ * la fila de la impresora bloqueada con FOR UPDATE SKIP LOCKED: si otro
+ * nodo está repartiendo esa impresora, esta pasada la salta. Una impresora
+ * con una concesión vigente de otro nodo tampoco se toca (un envío a la
+ * vez por impresora, como en un solo nodo).
+ *
+ * - Mientras se envía, la concesión se renueva cada tercio de lease-duration
+ * - Si un nodo cae, su concesión caduca y cualquier otro retoma el trabajo
+ *   (los envíos por tramos siguen desde el último tramo confirmado)
+ * - leaseToken crece con cada toma: borrar el trabajo o guardar un punto de
+ *   control exige que siga siendo el de este nodo, así que un nodo que perdió
+ *   la concesión (pausa larga, red) no pisa al que la tomó después
+ *
+ * Con printer.cluster.enabled=false todo queda en memoria, como siempre. En
+ * modo clúster el spool (printer.spool.dir) debe ser compartido y los
+ * relojes de los nodos estar sincronizados.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class JobLeaseService {
+
+    @Value("${printer.cluster.enabled:false}")
+    private boolean enabled;
+
+    // Vacío = nombre del equipo y pid
+    @Value("${printer.cluster.node-id:}")
+    private String configuredNodeId;
+
+    // Duración de una concesión sin renovar (ms)
+    @Value("${printer.cluster.lease-duration:60000}")
+    private long leaseDuration;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final TransactionTemplate transactionTemplate;
+
+    // Concesiones de este nodo: trabajo → ficha
+    private final Map<Long, Long> held = new ConcurrentHashMap<>();
+
+    private String nodeId;
+    private ScheduledExecutorService renewer;
+    private volatile LongConsumer lostListener = jobId -> { };
+
+    private final AtomicLong claims = new AtomicLong();
+    private final AtomicLong takeovers = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    public JobLeaseService(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @PostConstruct
+    public void init() {
+        nodeId = configuredNodeId != null && !configuredNodeId.isBlank()
+            ? configuredNodeId.trim() : defaultNodeId();
+        if (!enabled) {
+            return;
+        }
+        renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "JobLeaseRenewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, leaseDuration / 3);
+        renewer.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+        log.info("🌐 Reparto de trabajos en clúster: nodo {} (concesiones de {} ms)", nodeId, leaseDuration);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (renewer != null) {
+            renewer.shutdownNow();
+        }
+        // Lo que quede sin enviar lo retoma otro nodo sin esperar a que caduque
+        new ArrayList<>(held.keySet()).forEach(this::release);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Acción al perder una concesión que se estaba usando (otro nodo ya
+     * puede haber tomado el trabajo)
+     */
+    public void onLeaseLost(LongConsumer listener) {
+        this.lostListener = listener;
+    }
+
+    /**
+     * Toma los trabajos indicados de una impresora, en orden
+     *
+     * @return prefijo de jobIds que este nodo puede enviar; vacío si otro
+     *         nodo está repartiendo o enviando a la impresora
+     */
+    public List<Long> claim(long printerId, List<Long> jobIds) {
+        if (!enabled) {
+            return jobIds;
+        }
+        try {
+            Map<Long, Long> claimed = transactionTemplate.execute(status -> claimLocked(printerId, jobIds));
+            if (claimed == null || claimed.isEmpty()) {
+                return Collections.emptyList();
+            }
+            // Solo tras el commit: hasta entonces la concesión no es de este nodo
+            held.putAll(claimed);
+            claims.addAndGet(claimed.size());
+            return new ArrayList<>(claimed.keySet());
+        } catch (Exception e) {
+            log.warn("⚠️ No se pudo tomar trabajos de la impresora {}: {}", printerId, e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private Map<Long, Long> claimLocked(long printerId, List<Long> jobIds) {
+        List<?> locked = entityManager.createNativeQuery(
+                "SELECT id FROM printer WHERE id = :id FOR UPDATE SKIP LOCKED")
+            .setParameter("id", printerId)
+            .getResultList();
+        if (locked.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        long now = System.currentTimeMillis();
+        Long busyElsewhere = entityManager.createQuery(
+                "SELECT COUNT(j) FROM Job j WHERE j.printer.id = :printerId AND j.leaseOwner <> :node " +
+                "AND j.leaseExpiresAt > :now", Long.class)
+            .setParameter("printerId", printerId)
+            .setParameter("node", nodeId)
+            .setParameter("now", now)
+            .getSingleResult();
+        if (busyElsewhere > 0) {
+            return Collections.emptyMap();
+        }
+
+        Map<Long, Long> claimed = new LinkedHashMap<>();
+        for (Long jobId : jobIds) {
+            Object[] lease = entityManager.createQuery(
+                    "SELECT j.leaseOwner, j.leaseToken FROM Job j WHERE j.id = :id", Object[].class)
+                .setParameter("id", jobId)
+                .getResultStream().findFirst().orElse(null);
+            if (lease == null) {
+                break;
+            }
+            long token = (lease[1] != null ? (Long) lease[1] : 0) + 1;
+            entityManager.createQuery(
+                    "UPDATE Job j SET j.leaseOwner = :node, j.leaseExpiresAt = :expires, j.leaseToken = :token " +
+                    "WHERE j.id = :id")
+                .setParameter("node", nodeId)
+                .setParameter("expires", now + leaseDuration)
+                .setParameter("token", token)
+                .setParameter("id", jobId)
+                .executeUpdate();
+            if (lease[0] != null && !nodeId.equals(lease[0])) {
+                // Concesión caducada de otro nodo
+                takeovers.incrementAndGet();
+                log.warn("🔄 Trabajo {} retomado de {} (concesión caducada)", jobId, lease[0]);
+            }
+            claimed.put(jobId, token);
+        }
+        return claimed;
+    }
+
+    /**
+     * Suelta la concesión (el trabajo sigue en cola, p. ej. movido a otro
+     * miembro del pool); no hace nada si ya no es de este nodo
+     */
+    public void release(long jobId) {
+        Long token = held.remove(jobId);
+        if (!enabled || token == null) {
+            return;
+        }
+        try {
+            transactionTemplate.execute(status -> entityManager.createQuery(
+                    "UPDATE Job j SET j.leaseOwner = NULL, j.leaseExpiresAt = NULL " +
+                    "WHERE j.id = :id AND j.leaseOwner = :node AND j.leaseToken = :token")
+                .setParameter("id", jobId)
+                .setParameter("node", nodeId)
+                .setParameter("token", token)
+                .executeUpdate());
+        } catch (Exception e) {
+            log.debug("No se pudo soltar la concesión del trabajo {}: {}", jobId, e.getMessage());
+        }
+    }
+
+    /**
+     * true si este nodo sigue teniendo la concesión del trabajo (fila ya
+     * leída dentro de la transacción que va a modificarlo)
+     */
+    public boolean holds(Job job) {
+        if (!enabled) {
+            return true;
+        }
+        Long token = held.get(job.getId());
+        return token != null && nodeId.equals(job.getLeaseOwner()) && token.equals(job.getLeaseToken());
+    }
+
+    /**
+     * Ficha de la concesión de un trabajo, o null si no es de este nodo
+     */
+    public Long tokenOf(long jobId) {
+        return enabled ? held.get(jobId) : null;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("nodeId", nodeId);
+        stats.put("held", held.size());
+        stats.put("claims", claims.get());
+        stats.put("takeovers", takeovers.get());
+        stats.put("lost", lost.get());
+        return stats;
+    }
+
+    /**
+     * Alarga las concesiones de este nodo; las que ya no son suyas se avisan
+     */
+    private void renew() {
+        long expires = System.currentTimeMillis() + leaseDuration;
+        for (Map.Entry<Long, Long> entry : new ArrayList<>(held.entrySet())) {
+            long jobId = entry.getKey();
+            try {
+                Integer updated = transactionTemplate.execute(status -> entityManager.createQuery(
+                        "UPDATE Job j SET j.leaseExpiresAt = :expires " +
+                        "WHERE j.id = :id AND j.leaseOwner = :node AND j.leaseToken = :token")
+                    .setParameter("expires", expires)
+                    .setParameter("id", jobId)
+                    .setParameter("node", nodeId)
+                    .setParameter("token", entry.getValue())
+                    .executeUpdate());
+                if (updated != null && updated == 0 && held.remove(jobId, entry.getValue())) {
+                    // Borrado (cancelado) o retomado por otro nodo
+                    lost.incrementAndGet();
+                    log.warn("⚠️ Concesión del trabajo {} perdida", jobId);
+                    lostListener.accept(jobId);
+                }
+            } catch (Exception e) {
+                // Sin base de datos no se renueva; si dura más que la concesión, otro nodo la retomará
+                log.warn("⚠️ No se pudo renovar la concesión del trabajo {}: {}", jobId, e.getMessage());
+            }
+        }
+    }
+
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "node";
+        }
+        return host + "-" + ManagementFactory.getRuntimeMXBean().getPid();
+    }
+}
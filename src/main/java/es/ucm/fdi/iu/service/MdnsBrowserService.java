@@ -0,0 +1,465 @@
+package es.ucm.fdi.iu.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Navegador DNS-SD/mDNS pasivo (224.0.0.251:5353)
+ *
+ * Escucha los anuncios de _ipp._tcp, _pdl-datastream._tcp y _printer._tcp
+ * y mantiene una caché de impresoras anunciadas: IP, puerto, nombre de la
+ * instancia y los TXT ty, pdl, UUID, adminurl, rp y note. Solo pregunta
+ * (una consulta PTR por tipo) al arrancar y cada query-interval ms; el
+ * resto llega solo cuando las impresoras se encienden o cambian de IP.
+ *
+ * - PrinterDiscoveryService añade estas impresoras y no sondea sus IPs: el
+ *   barrido activo queda para equipos que no se anuncian
+ * - PrintQueueService, al re-descubrir una impresora que no responde,
+ *   busca primero si su identidad (UUID o nombre de instancia) se anuncia
+ *   ahora desde otra IP
+ *
+ * mDNS no cruza routers: solo ve la VLAN del servidor (el resto, con los
+ * agentes de descubrimiento).
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class MdnsBrowserService {
+
+    public static final String IPP = "_ipp._tcp.local";
+    public static final String PDL_DATASTREAM = "_pdl-datastream._tcp.local";
+    public static final String LPD = "_printer._tcp.local";
+
+    private static final List<String> SERVICES = List.of(IPP, PDL_DATASTREAM, LPD);
+
+    private static final String MDNS_GROUP = "224.0.0.251";
+    private static final int MDNS_PORT = 5353;
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_PTR = 12;
+    private static final int TYPE_TXT = 16;
+    private static final int TYPE_SRV = 33;
+
+    // Máximo de instancias e IPs recordadas (una red con anuncios anómalos no agota memoria)
+    private static final int MAX_ENTRIES = 4096;
+
+    // Cada cuánto se olvidan direcciones y anuncios caducados (ms)
+    private static final long PRUNE_INTERVAL = 60000;
+
+    /**
+     * Servicio de impresión anunciado
+     */
+    public record Announcement(String instance, String service, String host, String ip, int port,
+                               Map<String, String> txt, long seenAt, long expiresAt) {
+
+        /**
+         * Identidad estable: UUID del TXT o, si no lo hay, nombre de la instancia
+         */
+        public String identity() {
+            String uuid = txt.get("uuid");
+            return uuid != null && !uuid.isBlank() ? uuid.toLowerCase(Locale.ROOT) : instance.toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * Nombre legible: primera etiqueta de la instancia
+         */
+        public String name() {
+            int end = instance.indexOf("._");
+            return end > 0 ? instance.substring(0, end) : instance;
+        }
+    }
+
+    /**
+     * Dirección de un host (registro A) y hasta cuándo vale
+     */
+    private record HostAddress(String ip, long expiresAt) {
+    }
+
+    /**
+     * Datos de una instancia que llegan en registros (y paquetes) distintos
+     */
+    private static final class Pending {
+        private String instance;
+        private String service;
+        private long ttl;
+        private String host;
+        private int port;
+        private Map<String, String> txt = Map.of();
+    }
+
+    @Value("${printer.discovery.mdns.enabled:true}")
+    private boolean enabled;
+
+    @Value("${printer.discovery.mdns.query-interval:900000}")
+    private long queryInterval;
+
+    // Tiempo mínimo que se conserva un anuncio (los registros de host suelen durar 120 s)
+    @Value("${printer.discovery.mdns.min-age:3600000}")
+    private long minAge;
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<String, HostAddress> hostAddresses = new ConcurrentHashMap<>();
+
+    // Anuncios vigentes por identidad; identidad vista en cada IP
+    private final Map<String, Announcement> announced = new ConcurrentHashMap<>();
+    private final Map<String, String> identityByIp = new ConcurrentHashMap<>();
+
+    private MulticastSocket socket;
+    private InetAddress group;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            group = InetAddress.getByName(MDNS_GROUP);
+            socket = new MulticastSocket(null);
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(MDNS_PORT));
+            int joined = 0;
+            for (NetworkInterface nic : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (nic.isUp() && !nic.isLoopback() && nic.supportsMulticast()
+                        && nic.inetAddresses().anyMatch(a -> a instanceof Inet4Address)) {
+                    try {
+                        socket.joinGroup(new InetSocketAddress(group, MDNS_PORT), nic);
+                        joined++;
+                    } catch (IOException e) {
+                        log.debug("No se pudo unir {} al grupo mDNS: {}", nic.getName(), e.getMessage());
+                    }
+                }
+            }
+            running = true;
+            Thread listener = new Thread(this::listen, "MdnsBrowser");
+            listener.setDaemon(true);
+            listener.start();
+            log.info("📡 Navegador mDNS escuchando en {} interfaces ({})", joined, String.join(", ", SERVICES));
+        } catch (IOException e) {
+            log.warn("⚠️ Navegador mDNS no disponible (puerto {}): {}", MDNS_PORT, e.getMessage());
+            closeSocket();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        closeSocket();
+    }
+
+    /**
+     * Impresoras anunciadas y vigentes, una por IP (se prefiere el anuncio RAW)
+     */
+    public List<Announcement> printers() {
+        long now = System.currentTimeMillis();
+        Map<String, Announcement> byIp = new LinkedHashMap<>();
+        for (Announcement a : announced.values()) {
+            if (a.expiresAt() < now) {
+                continue;
+            }
+            Announcement current = byIp.get(a.ip());
+            if (current == null || PDL_DATASTREAM.equals(a.service())) {
+                byIp.put(a.ip(), a);
+            }
+        }
+        return new ArrayList<>(byIp.values());
+    }
+
+    /**
+     * Nueva IP de la impresora que se anunciaba desde oldIp, o null si
+     * no se ha movido (o nunca se anunció)
+     */
+    public String relocated(String oldIp) {
+        String identity = oldIp != null ? identityByIp.get(oldIp) : null;
+        if (identity == null) {
+            return null;
+        }
+        for (Announcement a : announced.values()) {
+            if (a.identity().equals(identity) && !a.ip().equals(oldIp)
+                    && a.expiresAt() >= System.currentTimeMillis()) {
+                return a.ip();
+            }
+        }
+        return null;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled && running);
+        stats.put("announced", printers().size());
+        stats.put("knownIps", identityByIp.size());
+        stats.put("knownHosts", hostAddresses.size());
+        return stats;
+    }
+
+    private void listen() {
+        byte[] buffer = new byte[9000];
+        long lastQuery = 0;
+        long lastPrune = System.currentTimeMillis();
+        while (running) {
+            try {
+                if (System.currentTimeMillis() - lastQuery >= queryInterval) {
+                    lastQuery = System.currentTimeMillis();
+                    sendQuery();
+                }
+                if (System.currentTimeMillis() - lastPrune >= PRUNE_INTERVAL) {
+                    lastPrune = System.currentTimeMillis();
+                    prune();
+                }
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.setSoTimeout(30000);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                handle(Arrays.copyOf(packet.getData(), packet.getLength()));
+            } catch (Exception e) {
+                if (running) {
+                    log.debug("Error procesando paquete mDNS: {}", e.getMessage());
+                }
+            }
+        }
+        log.info("🛑 Navegador mDNS detenido");
+    }
+
+    /**
+     * Una consulta PTR por tipo de servicio (las respuestas llegan por el grupo)
+     */
+    private void sendQuery() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // id 0, flags 0, una pregunta por servicio
+        out.write(new byte[]{0, 0, 0, 0, 0, (byte) SERVICES.size(), 0, 0, 0, 0, 0, 0});
+        for (String service : SERVICES) {
+            for (String label : service.split("\\.")) {
+                byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+                out.write(bytes.length);
+                out.write(bytes);
+            }
+            out.write(new byte[]{0, 0, TYPE_PTR, 0, 1});
+        }
+        byte[] query = out.toByteArray();
+        socket.send(new DatagramPacket(query, query.length, group, MDNS_PORT));
+    }
+
+    /**
+     * Procesa las respuestas de un paquete (las preguntas se ignoran)
+     */
+    private void handle(byte[] data) {
+        if (data.length < 12 || (data[2] & 0x80) == 0) {
+            return;
+        }
+        int questions = u16(data, 4);
+        int records = u16(data, 6) + u16(data, 8) + u16(data, 10);
+        int[] pos = {12};
+        for (int i = 0; i < questions; i++) {
+            readName(data, pos);
+            pos[0] += 4;
+        }
+        Set<String> touched = new HashSet<>();
+        for (int i = 0; i < records && pos[0] + 10 <= data.length; i++) {
+            String name = readName(data, pos);
+            int type = u16(data, pos[0]);
+            long ttl = u32(data, pos[0] + 4);
+            int length = u16(data, pos[0] + 8);
+            int start = pos[0] + 10;
+            if (start + length > data.length) {
+                return;
+            }
+            switch (type) {
+                case TYPE_PTR -> {
+                    String service = lower(name);
+                    if (SERVICES.contains(service)) {
+                        String instance = readName(data, new int[]{start});
+                        if (ttl == 0) {
+                            goodbye(instance);
+                        } else {
+                            Pending p = pendingOf(instance);
+                            p.service = service;
+                            p.ttl = ttl;
+                            touched.add(lower(instance));
+                        }
+                    }
+                }
+                case TYPE_SRV -> {
+                    if (length >= 7) {
+                        Pending p = pendingOf(name);
+                        p.port = u16(data, start + 4);
+                        p.host = lower(readName(data, new int[]{start + 6}));
+                        touched.add(lower(name));
+                    }
+                }
+                case TYPE_TXT -> {
+                    pendingOf(name).txt = readTxt(data, start, length);
+                    touched.add(lower(name));
+                }
+                case TYPE_A -> {
+                    String host = lower(name);
+                    if (length == 4 && ttl == 0) {
+                        hostAddresses.remove(host);
+                    } else if (length == 4 && (hostAddresses.size() < MAX_ENTRIES || hostAddresses.containsKey(host))) {
+                        // Un host ya conocido se actualiza siempre, aunque la tabla esté llena
+                        String ip = (data[start] & 0xFF) + "." + (data[start + 1] & 0xFF)
+                            + "." + (data[start + 2] & 0xFF) + "." + (data[start + 3] & 0xFF);
+                        hostAddresses.put(host, new HostAddress(ip,
+                            System.currentTimeMillis() + Math.max(ttl * 1000, minAge)));
+                        // La dirección puede completar instancias de paquetes anteriores
+                        pending.forEach((instance, p) -> {
+                            if (host.equals(p.host)) {
+                                touched.add(instance);
+                            }
+                        });
+                    }
+                }
+                default -> {
+                }
+            }
+            pos[0] = start + length;
+        }
+        touched.forEach(this::complete);
+    }
+
+    /**
+     * Publica la instancia cuando ya se conocen servicio, puerto e IP
+     */
+    private void complete(String instance) {
+        Pending p = pending.get(instance);
+        HostAddress address = p != null && p.host != null ? hostAddresses.get(p.host) : null;
+        long now = System.currentTimeMillis();
+        if (p == null || p.service == null || p.port == 0 || address == null || address.expiresAt() < now) {
+            return;
+        }
+        String ip = address.ip();
+        Announcement a = new Announcement(p.instance, p.service, p.host, ip, p.port, p.txt, now,
+            now + Math.max(p.ttl * 1000, minAge));
+        Announcement previous = announced.put(a.identity() + "|" + a.service(), a);
+        if (identityByIp.size() < MAX_ENTRIES || identityByIp.containsKey(ip)) {
+            identityByIp.put(ip, a.identity());
+        }
+        if (previous == null || !previous.ip().equals(ip)) {
+            log.info("📡 mDNS: {} ({}) en {}:{}{}", a.name(), a.txt().getOrDefault("ty", "?"), ip, a.port(),
+                previous != null ? " (antes " + previous.ip() + ")" : "");
+        }
+    }
+
+    /**
+     * Olvida direcciones y anuncios caducados, y las IPs cuya identidad ya
+     * no se anuncia desde ningún sitio
+     */
+    private void prune() {
+        long now = System.currentTimeMillis();
+        hostAddresses.values().removeIf(address -> address.expiresAt() < now);
+        announced.values().removeIf(a -> a.expiresAt() < now);
+        Set<String> identities = new HashSet<>();
+        announced.values().forEach(a -> identities.add(a.identity()));
+        identityByIp.values().removeIf(identity -> !identities.contains(identity));
+    }
+
+    private void goodbye(String instance) {
+        String key = lower(instance);
+        pending.remove(key);
+        announced.values().removeIf(a -> lower(a.instance()).equals(key));
+        log.debug("📡 mDNS: {} deja de anunciarse", instance);
+    }
+
+    private Pending pendingOf(String instance) {
+        String key = lower(instance);
+        Pending p = pending.get(key);
+        if (p == null) {
+            if (pending.size() >= MAX_ENTRIES) {
+                pending.clear();
+            }
+            p = new Pending();
+            p.instance = instance;
+            pending.put(key, p);
+        }
+        return p;
+    }
+
+    /**
+     * Pares clave=valor del TXT (claves en minúsculas)
+     */
+    private static Map<String, String> readTxt(byte[] data, int start, int length) {
+        Map<String, String> txt = new HashMap<>();
+        int pos = start;
+        while (pos < start + length) {
+            int size = data[pos] & 0xFF;
+            if (pos + 1 + size > start + length) {
+                break;
+            }
+            String entry = new String(data, pos + 1, size, StandardCharsets.UTF_8);
+            int eq = entry.indexOf('=');
+            if (eq > 0) {
+                txt.put(entry.substring(0, eq).toLowerCase(Locale.ROOT), entry.substring(eq + 1));
+            }
+            pos += 1 + size;
+        }
+        return txt;
+    }
+
+    /**
+     * Nombre DNS con compresión; avanza pos[0] hasta después del nombre
+     */
+    private static String readName(byte[] data, int[] pos) {
+        StringBuilder name = new StringBuilder();
+        int p = pos[0];
+        int end = -1;
+        for (int jumps = 0; p < data.length && jumps < 32; ) {
+            int len = data[p] & 0xFF;
+            if (len == 0) {
+                p++;
+                break;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                if (p + 1 >= data.length) {
+                    break;
+                }
+                if (end < 0) {
+                    end = p + 2;
+                }
+                p = ((len & 0x3F) << 8) | (data[p + 1] & 0xFF);
+                jumps++;
+                continue;
+            }
+            if (p + 1 + len > data.length) {
+                break;
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(data, p + 1, len, StandardCharsets.UTF_8));
+            p += 1 + len;
+        }
+        pos[0] = end >= 0 ? end : p;
+        return name.toString();
+    }
+
+    private static int u16(byte[] data, int pos) {
+        return pos + 1 < data.length ? ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF) : 0;
+    }
+
+    private static long u32(byte[] data, int pos) {
+        return ((long) u16(data, pos) << 16) | u16(data, pos + 2);
+    }
+
+    private static String lower(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private void closeSocket() {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
@@ -1,15 +1,23 @@
 package es.ucm.fdi.iu.service;
 
+import es.ucm.fdi.iu.model.Job;
+import es.ucm.fdi.iu.model.PGroup;
 import es.ucm.fdi.iu.model.Printer;
 import es.ucm.fdi.iu.repository.PrinterRepository;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.Optional;
@@ -29,6 +37,11 @@ import java.util.Optional;
  * 3. NO REQUIERE REINICIAR EL SERVIDOR al compartir impresoras USB
  * 4. Los puertos se activan dinámicamente en tiempo real
  * 
+ * POOLS:
+ * Un grupo (PGroup) con puerto IPP propio es una impresora virtual: cada
+ * trabajo recibido en su puerto se asigna al miembro con menos carga
+ * (ver PrinterPoolService)
+ * 
  * SOLUCIÓN AL PROBLEMA:
  * Antes: Al compartir una impresora USB, había que reiniciar el servidor
  * Ahora: El servidor detecta y activa el puerto automáticamente en 10 segundos
@@ -42,36 +55,89 @@ public class MultiPortIppServerService {
 
     private final Map<Long, ServerSocket> serverSockets = new ConcurrentHashMap<>();
     private final Map<Long, Printer> printerByPort = new ConcurrentHashMap<>();
+    // Puertos de los pools, por id de grupo
+    private final Map<Long, ServerSocket> poolSockets = new ConcurrentHashMap<>();
     private ExecutorService executorService;
     private volatile boolean running = false;
     
+    // Altas, cambios y bajas de puertos en orden, fuera del hilo que hizo el commit
+    private ExecutorService portLifecycle;
+    
+    // Repaso completo de puertos por si una fila cambió sin pasar por JPA (ms)
+    @Value("${printer.ipp.port-reconcile-interval:300000}")
+    private long portReconcileInterval;
+    
     private final IppPrintService ippPrintService;
     private final PrinterRepository printerRepository;
     private final PrintQueueService printQueueService;
     private final PrintDocumentConverter documentConverter;
+    private final UsbPrintRelay usbPrintRelay;
+    private final PrinterCapabilityService capabilityService;
+    private final PrinterPoolService poolService;
+    private final IngestAdmissionService admissionService;
+    private final PrinterAttributeCache attributeCache;
+    private final IppJobService ippJobService;
+    private final DuplicateSubmissionFilter duplicateFilter;
+    private final IppRoutingService routingService;
+    private final IppPortAllocator portAllocator;
+    
+    // Puerto único enrutado por /printers/{alias} (modos path y both)
+    private ServerSocket routedSocket;
     
     private static final int BASE_PORT = 8631;
     
+    private static final byte[] IPP_OK = {0x01, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x03};
+    private static final byte[] IPP_ERROR = {0x01, 0x01, 0x05, 0x00, 0x00, 0x00, 0x00, 0x01, 0x03};
+    
     public MultiPortIppServerService(IppPrintService ippPrintService, 
                                       PrinterRepository printerRepository,
                                       PrintQueueService printQueueService,
-                                      PrintDocumentConverter documentConverter) {
+                                      PrintDocumentConverter documentConverter,
+                                      UsbPrintRelay usbPrintRelay,
+                                      PrinterCapabilityService capabilityService,
+                                      PrinterPoolService poolService,
+                                      IngestAdmissionService admissionService,
+                                      PrinterAttributeCache attributeCache,
+                                      IppJobService ippJobService,
+                                      DuplicateSubmissionFilter duplicateFilter,
+                                      IppRoutingService routingService,
+                                      IppPortAllocator portAllocator) {
         this.ippPrintService = ippPrintService;
         this.printerRepository = printerRepository;
         this.printQueueService = printQueueService;
         this.documentConverter = documentConverter;
+        this.usbPrintRelay = usbPrintRelay;
+        this.capabilityService = capabilityService;
+        this.poolService = poolService;
+        this.admissionService = admissionService;
+        this.attributeCache = attributeCache;
+        this.ippJobService = ippJobService;
+        this.duplicateFilter = duplicateFilter;
+        this.routingService = routingService;
+        this.portAllocator = portAllocator;
     }
 
     @PostConstruct
     public void startServer() {
         executorService = Executors.newCachedThreadPool();
+        portLifecycle = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "IppPortLifecycle");
+            thread.setDaemon(true);
+            return thread;
+        });
         running = true;
         
         // Asignar puertos a impresoras que no tengan uno asignado
-        assignIppPortsIfNeeded();
+        if (routingService.assignsPorts()) {
+            assignIppPortsIfNeeded();
+        }
         
         // Iniciar todos los puertos existentes
-        startAllPrinterPorts();
+        if (routingService.getMode() != IppRoutingService.Mode.PATH) {
+            startAllPrinterPorts();
+        }
+        startRoutedPort();
+        syncPoolPorts();
         
         // Iniciar monitor de nuevas impresoras
         startPrinterMonitor();
@@ -94,7 +160,9 @@ public class MultiPortIppServerService {
         log.info("════════════════════════════════════════════════════════════");
         
         for (Printer printer : printers) {
-            startPrinterPort(printer);
+            if (routingService.listensOnOwnPort(printer)) {
+                startPrinterPort(printer);
+            }
         }
         
         log.info("════════════════════════════════════════════════════════════");
@@ -135,12 +203,104 @@ public class MultiPortIppServerService {
     }
     
     /**
-     * Inicia un monitor que detecta nuevas impresoras cada 10 segundos
-     * y les asigna puertos automáticamente sin reiniciar el servidor
+     * Altas, cambios y bajas de impresoras (PrinterChangeListener, tras el
+     * commit): el puerto se abre, se mueve o se cierra al momento
+     */
+    @EventListener
+    public void onPrinterChanged(PrinterChangedEvent event) {
+        if (running && portLifecycle != null) {
+            portLifecycle.submit(() -> applyPrinterChange(event));
+        }
+    }
+    
+    private void applyPrinterChange(PrinterChangedEvent event) {
+        try {
+            if (event.type() == PrinterChangedEvent.Type.REMOVED) {
+                closePrinterPort(event.printerId());
+                portAllocator.release(event.ippPort());
+                return;
+            }
+            Optional<Printer> printer = printerRepository.findById(event.printerId());
+            if (printer.isPresent()) {
+                bindPrinterPort(printer.get());
+            } else {
+                closePrinterPort(event.printerId());
+            }
+        } catch (Exception e) {
+            log.error("Error actualizando el puerto de la impresora {}: {}", event.printerId(), e.getMessage());
+        }
+    }
+    
+    /**
+     * Deja el puerto de la impresora como indica su fila: abierto en su
+     * ippPort, movido si ha cambiado o cerrado si ya no tiene puerto propio
+     */
+    private synchronized void bindPrinterPort(Printer printer) {
+        ServerSocket current = serverSockets.get(printer.getId());
+        if (!routingService.listensOnOwnPort(printer)) {
+            if (current != null) {
+                closePrinterPort(printer.getId());
+            }
+            return;
+        }
+        if (printer.getIppPort() == null) {
+            // Fila creada sin pasar por el listener (importación, SQL)
+            printer.setIppPort(portAllocator.allocate());
+            printerRepository.save(printer);
+            log.info("   ✓ Puerto {} asignado a {}", printer.getIppPort(), printer.getAlias());
+        }
+        portAllocator.reserve(printer.getIppPort());
+        
+        if (current != null && current.getLocalPort() == printer.getIppPort()) {
+            printerByPort.put(printer.getId(), printer);
+            return;
+        }
+        if (current != null) {
+            int previous = current.getLocalPort();
+            closePrinterPort(printer.getId());
+            portAllocator.release(previous);
+            log.info("🔁 {}: puerto {} → {}", printer.getAlias(), previous, printer.getIppPort());
+        }
+        if (startPrinterPort(printer)) {
+            log.info("   📍 URI: ipp://{}:{}/printers/{}", 
+                getServerIp(), printer.getIppPort(), printer.getAlias());
+        }
+    }
+    
+    /**
+     * Repaso completo: abre los puertos que falten y cierra los de
+     * impresoras que ya no existen (cambios hechos fuera de JPA)
+     */
+    private void reconcilePrinterPorts() {
+        try {
+            List<Printer> printers = routingService.getMode() != IppRoutingService.Mode.PATH
+                ? printerRepository.findAllByOrderByIdAsc() : Collections.emptyList();
+            Set<Long> existing = new HashSet<>();
+            for (Printer printer : printers) {
+                existing.add(printer.getId());
+                bindPrinterPort(printer);
+            }
+            for (Long printerId : new ArrayList<>(serverSockets.keySet())) {
+                ServerSocket socket = serverSockets.get(printerId);
+                if (!existing.contains(printerId) && socket != null) {
+                    closePrinterPort(printerId);
+                    portAllocator.release(socket.getLocalPort());
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error repasando los puertos de impresoras: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Los puertos de impresoras siguen los eventos PrinterChangedEvent; este
+     * hilo solo sincroniza los pools cada 10 segundos y repasa las impresoras
+     * cada port-reconcile-interval ms
      */
     private void startPrinterMonitor() {
         Thread monitorThread = new Thread(() -> {
-            log.info("🔍 Monitor de nuevas impresoras iniciado (verifica cada 10s)");
+            log.info("🔍 Monitor de pools iniciado (verifica cada 10s; impresoras por eventos)");
+            long lastReconcile = System.currentTimeMillis();
             
             while (running) {
                 try {
@@ -148,33 +308,12 @@ public class MultiPortIppServerService {
                     
                     if (!running) break;
                     
-                    // Obtener todas las impresoras
-                    List<Printer> allPrinters = printerRepository.findAllByOrderByIdAsc();
+                    // Pools creados, modificados o eliminados
+                    syncPoolPorts();
                     
-                    // Detectar impresoras nuevas sin puerto asignado
-                    for (Printer printer : allPrinters) {
-                        // Si no tiene puerto activo, iniciarlo
-                        if (!serverSockets.containsKey(printer.getId())) {
-                            log.info("🆕 Nueva impresora detectada: {} (ID: {})", 
-                                printer.getAlias(), printer.getId());
-                            
-                            // Asignar puerto si no tiene
-                            if (printer.getIppPort() == null) {
-                                Integer maxPort = printerRepository.findMaxIppPort();
-                                int nextPort = (maxPort != null) ? maxPort + 1 : BASE_PORT;
-                                printer.setIppPort(nextPort);
-                                printerRepository.save(printer);
-                                log.info("   ✓ Puerto {} asignado automáticamente", nextPort);
-                            }
-                            
-                            // Iniciar puerto dinámicamente
-                            if (startPrinterPort(printer)) {
-                                log.info("   ✅ Puerto {} ahora escuchando para {}", 
-                                    printer.getIppPort(), printer.getAlias());
-                                log.info("   📍 URI: ipp://{}:{}/printers/{}", 
-                                    getServerIp(), printer.getIppPort(), printer.getAlias());
-                            }
-                        }
+                    if (System.currentTimeMillis() - lastReconcile >= portReconcileInterval) {
+                        lastReconcile = System.currentTimeMillis();
+                        portLifecycle.submit(this::reconcilePrinterPorts);
                     }
                     
                 } catch (InterruptedException e) {
@@ -223,6 +362,17 @@ public class MultiPortIppServerService {
         
         serverSockets.clear();
         printerByPort.clear();
+        if (routedSocket != null) {
+            try {
+                routedSocket.close();
+            } catch (IOException e) {
+                log.error("Error cerrando puerto enrutado", e);
+            }
+        }
+        poolSockets.keySet().forEach(this::closePoolPort);
+        if (portLifecycle != null) {
+            portLifecycle.shutdownNow();
+        }
         
         if (executorService != null) {
             executorService.shutdown();
@@ -236,6 +386,107 @@ public class MultiPortIppServerService {
         log.info("Servidor IPP Multi-Puerto detenido");
     }
 
+    /**
+     * Abre los puertos de los pools nuevos y cierra los de pools eliminados
+     * o cuyo puerto ha cambiado
+     */
+    private void syncPoolPorts() {
+        List<PGroup> pools = poolService.findPools();
+        Map<Long, Integer> configured = new HashMap<>();
+        for (PGroup pool : pools) {
+            configured.put(pool.getId(), pool.getIppPort());
+        }
+        
+        for (Long poolId : new ArrayList<>(poolSockets.keySet())) {
+            ServerSocket socket = poolSockets.get(poolId);
+            Integer port = configured.get(poolId);
+            if (socket != null && (port == null || port != socket.getLocalPort())) {
+                closePoolPort(poolId);
+                portAllocator.release(socket.getLocalPort());
+            }
+        }
+        
+        for (PGroup pool : pools) {
+            if (!poolSockets.containsKey(pool.getId())) {
+                startPoolPort(pool);
+            }
+        }
+    }
+    
+    /**
+     * Inicia el puerto de un pool
+     */
+    public synchronized boolean startPoolPort(PGroup pool) {
+        if (poolSockets.containsKey(pool.getId()) || pool.getIppPort() == null) {
+            return poolSockets.containsKey(pool.getId());
+        }
+        int port = pool.getIppPort();
+        long poolId = pool.getId();
+        try {
+            ServerSocket socket = new ServerSocket(port);
+            poolSockets.put(poolId, socket);
+            executorService.submit(() -> acceptPoolConnections(poolId, socket, port));
+            log.info("  ✓ Pool {} → Puerto {}", pool.getName(), port);
+            log.info("   📍 URI: ipp://{}:{}/printers/{}", getServerIp(), port, pool.getName());
+            return true;
+        } catch (IOException e) {
+            log.error("  ✗ Error iniciando puerto {} para pool {}: {}", port, pool.getName(), e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Cierra el puerto de un pool
+     */
+    public void closePoolPort(long poolId) {
+        ServerSocket socket = poolSockets.remove(poolId);
+        if (socket != null) {
+            try {
+                socket.close();
+                log.info("✅ Puerto cerrado para pool ID {}", poolId);
+            } catch (IOException e) {
+                log.error("Error cerrando puerto para pool {}", poolId, e);
+            }
+        }
+    }
+    
+    /**
+     * Cada conexión al puerto del pool se atiende como si fuera al miembro
+     * con menos carga en ese momento
+     */
+    private void acceptPoolConnections(long poolId, ServerSocket socket, int port) {
+        while (running && !socket.isClosed()) {
+            try {
+                Socket clientSocket = socket.accept();
+                executorService.submit(() -> {
+                    Printer member = poolService.selectMember(poolId);
+                    if (member == null) {
+                        log.warn("⚠️ Pool {} sin impresoras: trabajo rechazado", poolId);
+                        try (clientSocket) {
+                            clientSocket.getOutputStream().write(IPP_ERROR);
+                        } catch (IOException e) {
+                            // Ignorar
+                        }
+                        return;
+                    }
+                    log.info("🔀 Pool {} → {}", poolId, member.getAlias());
+                    handleClient(clientSocket, member, port, poolId, null);
+                });
+            } catch (IOException e) {
+                if (running) {
+                    log.error("Error aceptando conexión en puerto {}: {}", port, e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Siguiente puerto IPP libre (impresoras y pools comparten el rango)
+     */
+    public int nextIppPort() {
+        return portAllocator.allocate();
+    }
+
     private void acceptConnections(Printer printer, ServerSocket socket, int port) {
         log.debug("Esperando conexiones en puerto {} para {}", port, printer.getAlias());
         
@@ -244,7 +495,9 @@ public class MultiPortIppServerService {
                 Socket clientSocket = socket.accept();
                 log.debug("Conexión en puerto {} desde {}", port, clientSocket.getInetAddress());
                 
-                executorService.submit(() -> handleClient(clientSocket, printer, port));
+                // Datos actualizados por el último evento de la impresora
+                Printer current = printerByPort.getOrDefault(printer.getId(), printer);
+                executorService.submit(() -> handleClient(clientSocket, current, port, null, null));
                 
             } catch (IOException e) {
                 if (running) {
@@ -253,83 +506,287 @@ public class MultiPortIppServerService {
             }
         }
     }
+    
+    /**
+     * Abre el puerto único enrutado por ruta (modos path y both)
+     */
+    private void startRoutedPort() {
+        if (!routingService.usesSinglePort()) {
+            return;
+        }
+        int port = routingService.getSinglePort();
+        try {
+            routedSocket = new ServerSocket(port);
+            executorService.submit(() -> acceptRoutedConnections(routedSocket, port));
+            log.info("✓ Puerto IPP único {}: ipp://{}:{}/printers/<impresora>", port, getServerIp(), port);
+        } catch (IOException e) {
+            log.error("✗ Error iniciando el puerto IPP único {}: {}", port, e.getMessage());
+        }
+    }
+    
+    private void acceptRoutedConnections(ServerSocket socket, int port) {
+        while (running && !socket.isClosed()) {
+            try {
+                Socket clientSocket = socket.accept();
+                executorService.submit(() -> routeClient(clientSocket, port));
+            } catch (IOException e) {
+                if (running) {
+                    log.error("Error aceptando conexión en puerto {}: {}", port, e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Lee la cabecera IPP hasta tener printer-uri, busca la impresora de la
+     * ruta /printers/{alias} y atiende la conexión como si hubiera llegado a
+     * su puerto dedicado
+     */
+    private void routeClient(Socket clientSocket, int port) {
+        byte[] head;
+        try {
+            clientSocket.setSoTimeout(2000);
+            head = readRoutingHead(clientSocket.getInputStream());
+        } catch (IOException e) {
+            log.debug("Conexión en puerto {} sin cabecera IPP: {}", port, e.getMessage());
+            closeQuietly(clientSocket);
+            return;
+        }
+        
+        IppMessage message = IppMessage.parse(head, head.length);
+        String alias = message != null ? IppRoutingService.aliasFromUri(message.getAttribute("printer-uri")) : null;
+        Long printerId = attributeCache.idForName(alias);
+        Printer printer = printerId != null ? printerRepository.findById(printerId).orElse(null) : null;
+        if (printer == null) {
+            log.warn("⚠️ Puerto {}: sin impresora para printer-uri {}", port,
+                message != null ? message.getAttribute("printer-uri") : "(no IPP)");
+            try (clientSocket) {
+                clientSocket.getOutputStream().write(message != null
+                    ? IppEncoder.status(IppEncoder.STATUS_NOT_FOUND, message.getRequestId())
+                    : IPP_ERROR);
+                clientSocket.getOutputStream().flush();
+            } catch (IOException e) {
+                // El cliente ya cerró
+            }
+            return;
+        }
+        handleClient(clientSocket, printer, port, null, head);
+    }
+    
+    /**
+     * Primeros bytes de la petición, hasta end-of-attributes o printer-uri
+     * (máximo 8 KB, como la primera lectura de un puerto dedicado)
+     */
+    private byte[] readRoutingHead(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        while (length < buffer.length) {
+            int n;
+            try {
+                n = in.read(buffer, length, buffer.length - length);
+            } catch (SocketTimeoutException e) {
+                break;
+            }
+            if (n == -1) {
+                break;
+            }
+            length += n;
+            IppMessage message = IppMessage.parse(buffer, length);
+            if (message == null || message.isComplete() || message.getAttribute("printer-uri") != null) {
+                break;
+            }
+        }
+        if (length == 0) {
+            throw new EOFException("Conexión vacía");
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+    
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignorar
+        }
+    }
 
-    private void handleClient(Socket clientSocket, Printer printer, int port) {
+    /**
+     * Lee la cabecera, y si la petición trae un documento (Print-Job,
+     * Send-Document o datos RAW) la somete al control de admisión: si no la
+     * acepta, responde con server-error-busy o server-error-service-unavailable
+     * para que el cliente reintente más tarde, sin leer ni guardar el documento.
+     * Las consultas (Get-Printer-Attributes, Get-Jobs, Cancel-Job...) no
+     * ocupan plaza y se atienden siempre; el resto de operaciones sin
+     * documento se responden sin encolar nada (answerWithoutDocument).
+     *
+     * @param pool id del pool si la conexión llegó por su puerto (null si no)
+     * @param head primeros bytes ya leídos (puerto único enrutado), o null
+     */
+    private void handleClient(Socket clientSocket, Printer printer, int port, Long pool, byte[] head) {
+        byte[] initial = head != null ? head : readInitial(clientSocket);
+        if (initial == null) {
+            closeQuietly(clientSocket);
+            return;
+        }
+        IppMessage message = IppMessage.parse(initial, initial.length);
+        if (!carriesDocument(initial, message)) {
+            handleAdmittedClient(clientSocket, printer, port, pool, initial, message);
+            return;
+        }
+        
+        IngestAdmissionService.Decision decision = admissionService.admit(printer.getId());
+        if (decision != IngestAdmissionService.Decision.ACCEPT) {
+            log.warn("🚦 Trabajo para {} rechazado ({}): servidor saturado", printer.getAlias(), decision);
+            try (clientSocket) {
+                OutputStream out = clientSocket.getOutputStream();
+                out.write(IngestAdmissionService.ippResponse(decision, requestIdOf(message)));
+                out.flush();
+                clientSocket.shutdownOutput();
+            } catch (IOException e) {
+                // El cliente ya cerró
+            }
+            return;
+        }
+        try {
+            handleAdmittedClient(clientSocket, printer, port, pool, initial, message);
+        } finally {
+            admissionService.release();
+        }
+    }
+
+    /**
+     * Primera lectura de un puerto dedicado (timeout corto de 2 segundos)
+     *
+     * @return los bytes leídos; vacío si el cliente no envió nada (probe),
+     *         null si la conexión falló
+     */
+    private byte[] readInitial(Socket clientSocket) {
+        byte[] buffer = new byte[8192];
+        try {
+            clientSocket.setSoTimeout(2000);
+            log.debug("  ⏳ Esperando datos del cliente (timeout 2s)...");
+            int bytesRead = clientSocket.getInputStream().read(buffer);
+            return bytesRead > 0 ? Arrays.copyOf(buffer, bytesRead) : new byte[0];
+        } catch (SocketTimeoutException e) {
+            // Si no hay datos en 2 segundos, es un probe
+            log.debug("  🔍 Conexión de probe (sin datos en 2s)");
+            return new byte[0];
+        } catch (IOException e) {
+            log.debug("Error leyendo de {}: {}", clientSocket.getInetAddress(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * true si la petición trae un documento que hay que recibir: Print-Job,
+     * Send-Document o datos RAW (los probes vacíos no)
+     */
+    private boolean carriesDocument(byte[] initial, IppMessage message) {
+        if (message == null) {
+            return initial.length > 0;
+        }
+        int operationId = message.getOperationId();
+        return operationId == 0x0002 || operationId == 0x0006;
+    }
+
+    private void handleAdmittedClient(Socket clientSocket, Printer printer, int port, Long pool,
+                                      byte[] initial, IppMessage message) {
         log.info("══════════════════════════════════════════════════════════");
         log.info("📥 Conexión desde: {} → Puerto {} ({})", 
             clientSocket.getInetAddress(), port, printer.getAlias());
         
         try {
-            // Configurar timeout CORTO inicialmente (2 segundos)
-            clientSocket.setSoTimeout(2000);
-            
             InputStream in = clientSocket.getInputStream();
             OutputStream out = clientSocket.getOutputStream();
             
-            // Leer datos con timeout corto primero
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             byte[] buffer = new byte[8192];
             int bytesRead;
             int totalBytes = 0;
             boolean headerReceived = false;
             
-            log.debug("  ⏳ Esperando datos del cliente (timeout 2s)...");
-            
-            // Intentar leer con timeout de 2 segundos
-            try {
-                bytesRead = in.read(buffer);
-                if (bytesRead > 0) {
-                    baos.write(buffer, 0, bytesRead);
-                    totalBytes = bytesRead;
-                    log.debug("  📦 Recibidos {} bytes iniciales", bytesRead);
-                    
-                    // Si recibimos datos, aumentar timeout para el resto
-                    clientSocket.setSoTimeout(5000); // 5 segundos entre paquetes
-                    
-                    // IMPORTANTE: Leer hasta EOF o timeout, NO usar available()
-                    // available() solo muestra bytes en buffer local, no garantiza que llegaron todos
-                    try {
-                        while ((bytesRead = in.read(buffer)) != -1) {
-                            baos.write(buffer, 0, bytesRead);
-                            totalBytes += bytesRead;
-                            
-                            // Log progreso cada 100KB
-                            if (totalBytes % 102400 == 0) {
-                                log.debug("    ... {} KB recibidos", totalBytes / 1024);
-                            }
+            // Primera lectura hecha en handleClient (vacía si es un probe)
+            System.arraycopy(initial, 0, buffer, 0, initial.length);
+            bytesRead = initial.length;
+            if (bytesRead > 0) {
+                baos.write(buffer, 0, bytesRead);
+                totalBytes = bytesRead;
+                log.debug("  📦 Recibidos {} bytes iniciales", bytesRead);
+                byte[] head = Arrays.copyOf(buffer, bytesRead);
+                
+                // Consulta de atributos: respuesta precodificada, sin BD
+                if (answerAttributes(out, message, printer, pool)) {
+                    return;
+                }
+                
+                // Get-Jobs, Get-Job-Attributes y Cancel-Job: desde el índice de trabajos
+                if (answerJobOperation(out, message, printer, port, pool)) {
+                    return;
+                }
+                
+                // Solo Print-Job, Send-Document y RAW (los que pasan la admisión) crean trabajos
+                if (answerWithoutDocument(out, initial, message)) {
+                    return;
+                }
+                
+                // Si recibimos datos, aumentar timeout para el resto
+                clientSocket.setSoTimeout(5000); // 5 segundos entre paquetes
+                
+                Printer target = printerRepository.findById(printer.getId()).orElse(null);
+                
+                // USB compartida: reenviar mientras se recibe, sin esperar al final
+                if (target != null && isSharedUsb(target) && usbPrintRelay.isEnabled()) {
+                    usbPrintRelay.relay(clientSocket, head, target,
+                        extractFileName(message), extractOwner(message, clientSocket));
+                    return;
+                }
+                
+                // Impresora de red: convertir mientras se recibe, directo al spool
+                if (target != null && !isSharedUsb(target)) {
+                    Long jobId = receiveIntoQueue(clientSocket, head, message, target, pool);
+                    out.write(jobId != null
+                        ? ippJobService.printJobResponse(jobId, requestIdOf(message), printerUri(message, printer, port))
+                        : IPP_ERROR);
+                    out.flush();
+                    return;
+                }
+                
+                // IMPORTANTE: Leer hasta EOF o timeout, NO usar available()
+                // available() solo muestra bytes en buffer local, no garantiza que llegaron todos
+                try {
+                    while ((bytesRead = in.read(buffer)) != -1) {
+                        baos.write(buffer, 0, bytesRead);
+                        totalBytes += bytesRead;
+                        
+                        // Log progreso cada 100KB
+                        if (totalBytes % 102400 == 0) {
+                            log.debug("    ... {} KB recibidos", totalBytes / 1024);
                         }
-                    } catch (SocketTimeoutException ste) {
-                        // Timeout después de recibir datos = cliente terminó de enviar
-                        log.debug("  📌 Timeout después de {} bytes - Fin de transmisión", totalBytes);
                     }
-                    
-                    log.info("  ✅ Recepción completa: {} bytes ({} KB)", totalBytes, totalBytes / 1024);
-                    
-                    // Analizar cabecera para detectar tipo de datos
-                    if (totalBytes >= 8) {
-                        byte[] currentData = baos.toByteArray();
-                        // Verificar si es IPP (versión 1.x o 2.x)
-                        if (currentData[0] == 0x01 || currentData[0] == 0x02) {
-                            if (currentData[1] >= 0x00 && currentData[1] <= 0x09) {
-                                headerReceived = true;
-                                int operationId = ((currentData[2] & 0xFF) << 8) | (currentData[3] & 0xFF);
-                                log.info("  📋 Petición IPP v{}.{} - Operation: 0x{}", 
-                                    currentData[0], currentData[1], String.format("%04X", operationId));
-                            }
-                        } else {
-                            // No es IPP, probablemente es RAW (PCL, PostScript, PDF, etc.)
-                            log.info("  📄 Datos RAW detectados (no es protocolo IPP)");
-                            log.info("  ℹ️  Windows está enviando datos directamente sin protocolo IPP");
+                } catch (SocketTimeoutException ste) {
+                    // Timeout después de recibir datos = cliente terminó de enviar
+                    log.debug("  📌 Timeout después de {} bytes - Fin de transmisión", totalBytes);
+                }
+                
+                log.info("  ✅ Recepción completa: {} bytes ({} KB)", totalBytes, totalBytes / 1024);
+                
+                // Analizar cabecera para detectar tipo de datos
+                if (totalBytes >= 8) {
+                    byte[] currentData = baos.toByteArray();
+                    // Verificar si es IPP (versión 1.x o 2.x)
+                    if (currentData[0] == 0x01 || currentData[0] == 0x02) {
+                        if (currentData[1] >= 0x00 && currentData[1] <= 0x09) {
+                            headerReceived = true;
+                            int operationId = ((currentData[2] & 0xFF) << 8) | (currentData[3] & 0xFF);
+                            log.info("  📋 Petición IPP v{}.{} - Operation: 0x{}", 
+                                currentData[0], currentData[1], String.format("%04X", operationId));
                         }
+                    } else {
+                        // No es IPP, probablemente es RAW (PCL, PostScript, PDF, etc.)
+                        log.info("  📄 Datos RAW detectados (no es protocolo IPP)");
+                        log.info("  ℹ️  Windows está enviando datos directamente sin protocolo IPP");
                     }
                 }
-            } catch (SocketTimeoutException e) {
-                // Si no hay datos en 2 segundos, es un probe
-                log.debug("  🔍 Conexión de probe (sin datos en 2s)");
-                // Responder con OK para mantener la conexión abierta
-                out.write(new byte[]{0x01, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x03});
-                out.flush();
-                return;
             }
             
             byte[] data = baos.toByteArray();
@@ -371,8 +828,8 @@ public class MultiPortIppServerService {
             log.info("  🖨️  Impresora destino: {}", printer.getAlias());
             
             // Determinar nombre de archivo y usuario
-            String fileName = extractFileName(data, clientSocket);
-            String ownerName = extractOwner(data, clientSocket);
+            String fileName = extractFileName(message);
+            String ownerName = extractOwner(message, clientSocket);
             
             log.info("  👤 Usuario: {}", ownerName);
             log.info("  📄 Archivo: {}", fileName);
@@ -381,9 +838,7 @@ public class MultiPortIppServerService {
             Optional<Printer> currentPrinter = printerRepository.findById(printer.getId());
             if (!currentPrinter.isPresent()) {
                 log.error("  ❌ Impresora ID {} ya no existe en la base de datos", printer.getId());
-                log.error("  ℹ️  Esta impresora fue eliminada pero su puerto {} sigue escuchando", port);
-                log.error("  ℹ️  Se requiere reiniciar el servicio para liberar el puerto");
-                log.error("  💡 Recomendación: Ejecuta 'systemctl restart nombre-servicio'");
+                log.error("  ℹ️  Esta impresora fue eliminada; su puerto {} se cierra con el evento de baja", port);
                 out.write(new byte[]{0x01, 0x01, 0x05, 0x00, 0x00, 0x00, 0x00, 0x01, 0x03});
                 out.flush();
                 return;
@@ -391,12 +846,9 @@ public class MultiPortIppServerService {
             
             boolean success = false;
             
-            // DETECCIÓN DE IMPRESORA USB COMPARTIDA
-            // Si es una impresora USB compartida, SIEMPRE reenviar al cliente USB directamente
-            boolean isSharedUSB = currentPrinter.get().getLocation() != null && 
-                                 currentPrinter.get().getLocation().contains("Compartida-USB");
-            
-            if (isSharedUSB) {
+            // Aquí solo llegan impresoras USB compartidas con el reenvío directo desactivado
+            // (printer.usb.relay.enabled=false); las de red pasan siempre por receiveIntoQueue
+            if (isSharedUsb(currentPrinter.get())) {
                 // REENVIAR DIRECTAMENTE AL CLIENTE USB (sin cola)
                 log.info("  🖨️  Impresora USB compartida detectada");
                 log.info("  📤 Reenviando directo a cliente USB: {}:631", currentPrinter.get().getIp());
@@ -470,44 +922,6 @@ public class MultiPortIppServerService {
                         }
                     }
                 }
-            } else {
-                // IMPRESORA DE RED NORMAL - usar cola de impresión
-                log.info("  🌐 Impresora de red - registrando en cola");
-                
-                // IMPORTANTE: Procesar documento antes de guardar en cola
-                log.info("  🔄 Procesando documento para impresión...");
-                
-                try {
-                    byte[] processedData = documentConverter.processForPrinting(data, currentPrinter.get().getModel());
-                    
-                    if (processedData.length != data.length) {
-                        log.info("  ✅ Documento convertido: {} bytes → {} bytes", data.length, processedData.length);
-                        log.info("  📊 Factor de compresión/expansión: {:.2f}x", 
-                            (double)processedData.length / data.length);
-                    } else {
-                        log.info("  ℹ️  Documento sin cambios (formato compatible)");
-                    }
-                    
-                    // Registrar en cola de impresión
-                    printQueueService.addJob(currentPrinter.get(), fileName, ownerName, 
-                                            currentPrinter.get().getInstance(), processedData);
-                    log.info("  ✅ Trabajo registrado en cola de impresión");
-                    log.info("  ℹ️  El procesador de cola lo enviará a la impresora");
-                    success = true;
-                    
-                } catch (Exception e) {
-                    log.error("  ❌ Error procesando o registrando trabajo: {}", e.getMessage());
-                    log.error("  🐛 Tipo de error: {}", e.getClass().getSimpleName());
-                    
-                    // Proporcionar ayuda específica según el tipo de error
-                    if (e instanceof IllegalArgumentException) {
-                        log.error("  💡 Verifica los parámetros de la impresora");
-                    } else if (e instanceof IOException) {
-                        log.error("  💡 Puede haber un problema con el archivo temporal o espacio en disco");
-                    }
-                    
-                    log.debug("  Stack trace:", e);
-                }
             }
             
             // Responder al cliente
@@ -551,6 +965,231 @@ public class MultiPortIppServerService {
         log.info("══════════════════════════════════════════════════════════");
     }
 
+    /**
+     * Responde Get-Printer-Attributes (0x000B) desde PrinterAttributeCache:
+     * la respuesta de la impresora o, en el puerto de un pool, la del pool.
+     * Si no la hay (eliminados, error de BD) responde con un estado de
+     * error; una consulta nunca llega a la cola como trabajo.
+     *
+     * @return false si no es una consulta de atributos
+     */
+    private boolean answerAttributes(OutputStream out, IppMessage message, Printer printer, Long pool)
+            throws IOException {
+        if (message == null || message.getOperationId() != 0x000B) {
+            return false;
+        }
+        PrinterAttributeCache.Encoded encoded;
+        try {
+            encoded = pool != null ? attributeCache.forPool(pool) : attributeCache.forPrinter(printer.getId());
+        } catch (RuntimeException e) {
+            log.warn("⚠️ No se pudieron obtener los atributos de {}: {}",
+                pool != null ? "pool " + pool : printer.getAlias(), e.getMessage());
+            out.write(IppEncoder.status(IppEncoder.STATUS_INTERNAL_ERROR, message.getRequestId()));
+            out.flush();
+            return true;
+        }
+        if (encoded == null) {
+            out.write(IppEncoder.status(IppEncoder.STATUS_NOT_FOUND, message.getRequestId()));
+            out.flush();
+            log.debug("  🧾 Get-Printer-Attributes sin impresora ni pool: client-error-not-found");
+            return true;
+        }
+        encoded.writeTo(out, message.getRequestId());
+        out.flush();
+        log.debug("  🧾 Get-Printer-Attributes respondido desde caché (versión {})", encoded.getVersion());
+        return true;
+    }
+
+    /**
+     * Responde las operaciones IPP que no traen documento y no se atienden
+     * antes: Validate-Job con successful-ok (sin documento no hay nada más
+     * que validar) y el resto (Create-Job, desconocidas...) con
+     * server-error-operation-not-supported, sin llegar a la cola
+     *
+     * @return false si la petición trae un documento que hay que recibir
+     */
+    private boolean answerWithoutDocument(OutputStream out, byte[] initial, IppMessage message) throws IOException {
+        if (message == null || carriesDocument(initial, message)) {
+            return false;
+        }
+        int operationId = message.getOperationId();
+        out.write(IppEncoder.status(operationId == 0x0004
+            ? IppEncoder.STATUS_OK : IppEncoder.STATUS_OPERATION_NOT_SUPPORTED, message.getRequestId()));
+        out.flush();
+        log.debug("  📋 Operación 0x{} respondida sin encolar", Integer.toHexString(operationId));
+        return true;
+    }
+
+    /**
+     * Responde las operaciones sobre trabajos (0x0008-0x000A) con IppJobService
+     *
+     * @return false si es otra operación
+     */
+    private boolean answerJobOperation(OutputStream out, IppMessage message,
+                                       Printer printer, int port, Long pool) throws IOException {
+        if (message == null || !IppJobService.handles(message.getOperationId())) {
+            return false;
+        }
+        int operationId = message.getOperationId();
+        out.write(ippJobService.handle(operationId, message.getRequestId(), printer.getId(), pool,
+            printerUri(message, printer, port), message::getAttribute));
+        out.flush();
+        log.debug("  📋 Operación 0x{} respondida desde el índice de trabajos", Integer.toHexString(operationId));
+        return true;
+    }
+
+    /**
+     * Primer byte del documento dentro de la cabecera recibida; si los
+     * atributos no caben en ella, al menos se salta versión, operación y request-id
+     */
+    private int documentOffsetOf(byte[] head, IppMessage message) {
+        if (message != null && message.isComplete()) {
+            return message.getDocumentOffset();
+        }
+        return Math.min(8, head.length);
+    }
+
+    private int requestIdOf(IppMessage message) {
+        return message != null ? message.getRequestId() : 1;
+    }
+
+    /**
+     * printer-uri de la petición, o la URI del puerto de la impresora
+     */
+    private String printerUri(IppMessage message, Printer printer, int port) {
+        String uri = message != null ? message.getPrinterUri() : null;
+        return uri != null ? uri : defaultPrinterUri(printer, port);
+    }
+
+    private String defaultPrinterUri(Printer printer, int port) {
+        return String.format("ipp://%s:%d/printers/%s", getServerIp(), port,
+            printer.getAlias() != null ? printer.getAlias().replace(" ", "_") : String.valueOf(printer.getId()));
+    }
+
+    /**
+     * true si la impresora es una USB compartida por un cliente (sus trabajos no pasan por la cola)
+     */
+    private boolean isSharedUsb(Printer printer) {
+        return printer.getLocation() != null && printer.getLocation().contains("Compartida-USB");
+    }
+
+    /**
+     * Recibe el resto del trabajo pasándolo por el conversor en streaming
+     * y lo registra en la cola sin cargar el documento en memoria
+     *
+     * Un reenvío del mismo documento por el mismo usuario dentro de la
+     * ventana de DuplicateSubmissionFilter no se encola: se devuelve el
+     * trabajo original.
+     *
+     * @return id del trabajo (nuevo u original), o null si falló
+     */
+    private Long receiveIntoQueue(Socket clientSocket, byte[] head, IppMessage message, Printer target, Long pool) {
+        String fileName = extractFileName(message);
+        String ownerName = extractOwner(message, clientSocket);
+        log.info("  🌐 Impresora de red {} - convirtiendo en streaming hacia la cola", target.getAlias());
+        log.info("  👤 Usuario: {}", ownerName);
+        log.info("  📄 Archivo: {}", fileName);
+        
+        Path tempFile = null;
+        String submission = null;
+        try {
+            tempFile = Files.createTempFile("ipp-job-", ".dat");
+            long startTime = System.currentTimeMillis();
+            
+            // Hash del documento mientras llega (sin la cabecera IPP)
+            MessageDigest digest = ConversionCache.newDigest();
+            int documentOffset = documentOffsetOf(head, message);
+            digest.update(head, documentOffset, head.length - documentOffset);
+            
+            IdleEndInputStream rest = new IdleEndInputStream(clientSocket.getInputStream());
+            InputStream data = new SequenceInputStream(new ByteArrayInputStream(head),
+                new DigestInputStream(rest, digest));
+            documentConverter.processForPrinting(data, tempFile, capabilityService.resolve(target));
+            
+            long received = head.length + rest.getCount();
+            log.info("  ✅ Recepción y conversión: {} bytes → {} bytes en {} ms", 
+                received, Files.size(tempFile), System.currentTimeMillis() - startTime);
+            
+            // Comprobar y reservar en un paso: un reenvío simultáneo espera a este job-id
+            String key = DuplicateSubmissionFilter.key(
+                pool != null ? "pool:" + pool : "printer:" + target.getId(), ownerName, digest.digest());
+            Long original = duplicateFilter.reserve(key);
+            if (original != null) {
+                log.info("  ♻️ Reenvío duplicado de {} ({} bytes): se confirma el trabajo {}",
+                    ownerName, received, original);
+                return original;
+            }
+            
+            submission = key;
+            Job job = printQueueService.addJob(target, fileName, ownerName, target.getInstance(), tempFile,
+                extractPriority(message), pool);
+            tempFile = null;
+            duplicateFilter.record(submission, job.getId());
+            submission = null;
+            log.info("  ✅ Trabajo {} registrado en cola de impresión", job.getId());
+            return job.getId();
+            
+        } catch (Exception e) {
+            log.error("  ❌ Error procesando o registrando trabajo: {}", e.getMessage());
+            log.error("  🐛 Tipo de error: {}", e.getClass().getSimpleName());
+            log.debug("  Stack trace:", e);
+            return null;
+        } finally {
+            if (submission != null) {
+                duplicateFilter.release(submission);
+            }
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException e) {
+                    log.warn("  ⚠️ No se pudo eliminar archivo temporal: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Flujo del cliente donde un timeout de lectura significa fin de datos
+     * (los clientes Windows no cierran la conexión: esperan la respuesta)
+     */
+    private static class IdleEndInputStream extends FilterInputStream {
+        private long count;
+        private boolean ended;
+
+        IdleEndInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            try {
+                int n = in.read(b, off, len);
+                if (n == -1) {
+                    ended = true;
+                } else {
+                    count += n;
+                }
+                return n;
+            } catch (SocketTimeoutException e) {
+                ended = true;
+                return -1;
+            }
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
     private boolean sendToPrinter(Printer printer, File dataFile) {
         String protocol = printer.getProtocol() != null ? printer.getProtocol() : "RAW";
         int printPort = determinePrintPort(printer);
@@ -619,15 +1258,11 @@ public class MultiPortIppServerService {
         
         log.info("Asignando puertos IPP a {} impresoras...", printersWithoutPort.size());
         
-        // Obtener el puerto máximo actual
-        Integer maxPort = printerRepository.findMaxIppPort();
-        int nextPort = (maxPort != null) ? maxPort + 1 : BASE_PORT;
-        
         for (Printer printer : printersWithoutPort) {
-            printer.setIppPort(nextPort);
+            int port = portAllocator.allocate();
+            printer.setIppPort(port);
             printerRepository.save(printer);
-            log.info("  ✓ {} → Puerto {} asignado", printer.getAlias(), nextPort);
-            nextPort++;
+            log.info("  ✓ {} → Puerto {} asignado", printer.getAlias(), port);
         }
     }
     
@@ -639,8 +1274,8 @@ public class MultiPortIppServerService {
             return BASE_PORT;
         }
         
-        // Usar el puerto fijo almacenado en la BD
-        return printer.getIppPort() != null ? printer.getIppPort() : BASE_PORT;
+        // Puerto fijo almacenado en la BD, o el puerto único si se enruta por ruta
+        return routingService.portOf(printer);
     }
 
     /**
@@ -648,8 +1283,7 @@ public class MultiPortIppServerService {
      */
     public int getPortForPrinterId(long printerId) {
         Optional<Printer> printer = printerRepository.findById(printerId);
-        return printer.map(p -> p.getIppPort() != null ? p.getIppPort() : BASE_PORT)
-                      .orElse(BASE_PORT);
+        return printer.map(routingService::portOf).orElse(BASE_PORT);
     }
     
     /**
@@ -727,37 +1361,14 @@ public class MultiPortIppServerService {
     }
     
     /**
-     * Extrae el nombre del archivo desde los datos IPP
+     * Extrae el nombre del archivo (job-name) desde los atributos IPP
      */
-    private String extractFileName(byte[] data, Socket clientSocket) {
-        try {
-            String dataStr = new String(data, "UTF-8");
-            
-            // Buscar "job-name" en los datos IPP
-            int jobNameIndex = dataStr.indexOf("job-name");
-            if (jobNameIndex > 0) {
-                int start = jobNameIndex + 8;
-                int end = Math.min(start + 100, dataStr.length());
-                String substr = dataStr.substring(start, end);
-                
-                // Buscar primer string imprimible
-                StringBuilder fileName = new StringBuilder();
-                boolean collecting = false;
-                for (char c : substr.toCharArray()) {
-                    if (Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_' || c == ' ') {
-                        fileName.append(c);
-                        collecting = true;
-                    } else if (collecting) {
-                        break;
-                    }
-                }
-                
-                if (fileName.length() > 0) {
-                    return fileName.toString().trim();
-                }
+    private String extractFileName(IppMessage message) {
+        if (message != null) {
+            String jobName = sanitizeName(message.getJobName());
+            if (jobName != null) {
+                return jobName;
             }
-        } catch (Exception e) {
-            log.trace("No se pudo extraer nombre de archivo: {}", e.getMessage());
         }
         
         // Nombre por defecto
@@ -765,41 +1376,33 @@ public class MultiPortIppServerService {
     }
     
     /**
-     * Extrae el nombre del usuario desde los datos IPP
+     * Clase de prioridad a partir del atributo IPP job-priority (NORMAL si no viene)
      */
-    private String extractOwner(byte[] data, Socket clientSocket) {
-        try {
-            String dataStr = new String(data, "UTF-8");
-            
-            // Buscar "requesting-user-name" o "job-originating-user-name"
-            String[] patterns = {"requesting-user-name", "job-originating-user-name", "originating-user-name"};
-            
-            for (String pattern : patterns) {
-                int index = dataStr.indexOf(pattern);
-                if (index > 0) {
-                    int start = index + pattern.length();
-                    int end = Math.min(start + 100, dataStr.length());
-                    String substr = dataStr.substring(start, end);
-                    
-                    // Buscar primer string imprimible
-                    StringBuilder userName = new StringBuilder();
-                    boolean collecting = false;
-                    for (char c : substr.toCharArray()) {
-                        if (Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_' || c == '@') {
-                            userName.append(c);
-                            collecting = true;
-                        } else if (collecting && userName.length() > 2) {
-                            break;
-                        }
-                    }
-                    
-                    if (userName.length() > 2) {
-                        return userName.toString().trim();
-                    }
-                }
+    private Job.Priority extractPriority(IppMessage message) {
+        String value = message != null ? message.getAttribute("job-priority") : null;
+        if (value != null) {
+            try {
+                return Job.Priority.fromIpp(Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                // Valor no numérico: prioridad por defecto
+            }
+        }
+        return Job.Priority.NORMAL;
+    }
+    
+    /**
+     * Extrae el nombre del usuario (requesting-user-name) desde los atributos IPP
+     */
+    private String extractOwner(IppMessage message, Socket clientSocket) {
+        if (message != null) {
+            String userName = message.getRequestingUserName();
+            if (userName == null) {
+                userName = message.getAttribute("job-originating-user-name");
+            }
+            userName = sanitizeName(userName);
+            if (userName != null) {
+                return userName;
             }
-        } catch (Exception e) {
-            log.trace("No se pudo extraer nombre de usuario: {}", e.getMessage());
         }
         
         // Usuario por defecto (usar IP del cliente)
@@ -809,4 +1412,19 @@ public class MultiPortIppServerService {
             return "Usuario_Desconocido";
         }
     }
+    
+    /**
+     * Deja solo caracteres seguros para usar el valor en nombres de archivo de spool
+     * @return null si no queda nada utilizable
+     */
+    private String sanitizeName(String value) {
+        if (value == null) {
+            return null;
+        }
+        String clean = value.replaceAll("[^\\p{L}\\p{N}.@_\\- ]", "_").trim();
+        if (clean.length() > 100) {
+            clean = clean.substring(0, 100);
+        }
+        return clean.isEmpty() ? null : clean;
+    }
 }
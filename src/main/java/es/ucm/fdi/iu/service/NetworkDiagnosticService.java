@@ -1,5 +1,6 @@
 package es.ucm.fdi.iu.service;
 
+import es.ucm.fdi.iu.util.Ipv4RangeSet;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
@@ -156,16 +157,8 @@ public class NetworkDiagnosticService {
      */
     private boolean isInSameNetwork(String ip, String cidr) {
         try {
-            String[] cidrParts = cidr.split("/");
-            String networkIP = cidrParts[0];
-            int prefix = Integer.parseInt(cidrParts[1]);
-            
-            long ipValue = ipToLong(ip);
-            long networkValue = ipToLong(networkIP);
-            long mask = (-1L << (32 - prefix)) & 0xFFFFFFFFL;
-            
-            return (ipValue & mask) == (networkValue & mask);
-        } catch (Exception e) {
+            return Ipv4RangeSet.block(cidr).contains(ip);
+        } catch (IllegalArgumentException e) {
             return false;
         }
     }
@@ -196,50 +189,13 @@ public class NetworkDiagnosticService {
      * Obtiene algunas IPs de muestra de un rango CIDR
      */
     private List<String> getSampleIPs(String cidr, int count) {
-        List<String> samples = new ArrayList<>();
         try {
-            String[] parts = cidr.split("/");
-            String baseIP = parts[0];
-            int prefix = Integer.parseInt(parts[1]);
-            
-            String[] octets = baseIP.split("\\.");
-            int baseAddress = (Integer.parseInt(octets[0]) << 24) |
-                             (Integer.parseInt(octets[1]) << 16) |
-                             (Integer.parseInt(octets[2]) << 8) |
-                             Integer.parseInt(octets[3]);
-            
-            int mask = 0xFFFFFFFF << (32 - prefix);
-            int network = baseAddress & mask;
-            int broadcast = network | ~mask;
-            int totalHosts = broadcast - network - 1;
-            
             // Muestrear IPs distribuidas uniformemente
-            int step = Math.max(1, totalHosts / count);
-            
-            for (int i = 0; i < count && (network + 1 + (i * step)) < broadcast; i++) {
-                int ipInt = network + 1 + (i * step);
-                String ip = String.format("%d.%d.%d.%d",
-                    (ipInt >> 24) & 0xFF,
-                    (ipInt >> 16) & 0xFF,
-                    (ipInt >> 8) & 0xFF,
-                    ipInt & 0xFF);
-                samples.add(ip);
-            }
-        } catch (Exception e) {
+            return Ipv4RangeSet.hosts(cidr).sample(count);
+        } catch (IllegalArgumentException e) {
             log.error("Error generando IPs de muestra: {}", e.getMessage());
+            return new ArrayList<>();
         }
-        return samples;
-    }
-    
-    /**
-     * Convierte IP a long
-     */
-    private long ipToLong(String ip) {
-        String[] octets = ip.split("\\.");
-        return (Long.parseLong(octets[0]) << 24) +
-               (Long.parseLong(octets[1]) << 16) +
-               (Long.parseLong(octets[2]) << 8) +
-               Long.parseLong(octets[3]);
     }
     
     /**
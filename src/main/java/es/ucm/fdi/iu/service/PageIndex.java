@@ -0,0 +1,145 @@
+package es.ucm.fdi.iu.service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Límites de página de un documento ya convertido (PCL o PWG raster)
+ *
+ *   [prólogo] [página 1] [página 2] ... [página N] [epílogo]
+ *
+ * Se anota durante la conversión y se guarda junto al archivo de spool
+ * (mismo nombre + SUFFIX). Con él, un documento grande se envía en tramos
+ * de páginas que son trabajos completos por sí mismos:
+ *
+ *   prólogo + páginas [a, b) + epílogo
+ *
+ * de modo que un reintento puede empezar en el primer tramo no confirmado.
+ */
+public final class PageIndex {
+
+    public static final String SUFFIX = ".pages";
+
+    private long prologueEnd = -1;
+    private long epilogueStart = -1;
+    private long length = -1;
+    private final List<Long> pageStarts = new ArrayList<>();
+
+    /**
+     * Anota el final del prólogo (inicio de la primera página)
+     */
+    public void prologueEnd(long offset) {
+        prologueEnd = offset;
+    }
+
+    public void pageStart(long offset) {
+        pageStarts.add(offset);
+    }
+
+    public void epilogueStart(long offset) {
+        epilogueStart = offset;
+    }
+
+    public void end(long offset) {
+        length = offset;
+        if (epilogueStart < 0) {
+            epilogueStart = offset;
+        }
+    }
+
+    /**
+     * true si se anotaron todos los límites (el documento se convirtió entero)
+     */
+    public boolean isComplete() {
+        return prologueEnd >= 0 && length >= epilogueStart && !pageStarts.isEmpty();
+    }
+
+    public int getPageCount() {
+        return pageStarts.size();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Número de tramos de pagesPerChunk páginas
+     */
+    public int chunkCount(int pagesPerChunk) {
+        return (pageStarts.size() + pagesPerChunk - 1) / pagesPerChunk;
+    }
+
+    /**
+     * Regiones del archivo (pares {inicio, fin}) que forman el tramo chunk:
+     * prólogo, sus páginas y epílogo
+     */
+    public List<long[]> chunkRegions(int chunk, int pagesPerChunk) {
+        int first = chunk * pagesPerChunk;
+        int last = Math.min(first + pagesPerChunk, pageStarts.size());
+        if (first < 0 || first >= last) {
+            throw new IllegalArgumentException("Tramo fuera de rango: " + chunk);
+        }
+        long bodyStart = pageStarts.get(first);
+        long bodyEnd = last < pageStarts.size() ? pageStarts.get(last) : epilogueStart;
+
+        List<long[]> regions = new ArrayList<>(3);
+        if (prologueEnd > 0) {
+            regions.add(new long[]{0, prologueEnd});
+        }
+        regions.add(new long[]{bodyStart, bodyEnd});
+        if (length > epilogueStart) {
+            regions.add(new long[]{epilogueStart, length});
+        }
+        return regions;
+    }
+
+    /**
+     * Archivo del índice correspondiente a un documento
+     */
+    public static Path sidecarOf(Path document) {
+        return document.resolveSibling(document.getFileName() + SUFFIX);
+    }
+
+    public void write(Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            writer.write("prologue=" + prologueEnd + "\n");
+            writer.write("epilogue=" + epilogueStart + "\n");
+            writer.write("length=" + length + "\n");
+            for (long start : pageStarts) {
+                writer.write(start + "\n");
+            }
+        }
+    }
+
+    /**
+     * Lee un índice; null si no existe, está dañado o no corresponde al
+     * tamaño actual del documento
+     */
+    public static PageIndex read(Path file, long documentLength) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+            PageIndex index = new PageIndex();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("prologue=")) {
+                    index.prologueEnd = Long.parseLong(line.substring(9));
+                } else if (line.startsWith("epilogue=")) {
+                    index.epilogueStart = Long.parseLong(line.substring(9));
+                } else if (line.startsWith("length=")) {
+                    index.length = Long.parseLong(line.substring(7));
+                } else if (!line.isEmpty()) {
+                    index.pageStarts.add(Long.parseLong(line));
+                }
+            }
+            return index.isComplete() && index.length == documentLength ? index : null;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.PrinterCapabilities;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Rasterizado de PDF en el servidor para impresoras sin soporte PDF directo
+ *
+ *   PDF (archivo) → [hilo de render, pool CPU] → cola de páginas acotada → [codificador] → salida
+ *
+ * - Las páginas se renderizan de una en una con PDFBox (PDFRenderer no es
+ *   thread-safe, así que cada documento usa un único hilo del pool)
+ * - Como mucho pageCache páginas renderizadas esperan en memoria: si la salida
+ *   va más lenta, el render se detiene
+ * - Cada página se escribe en cuanto está lista, mientras se renderizan las siguientes
+ *
+ * Formatos de salida:
+ *   PCL: raster monocromo 1 bit (tramado ordenado) con compresión PackBits (modo 2)
+ *   PWG: PWG Raster (PWG 5102.4) en escala de grises de 8 bits
+ */
+@Service
+@Slf4j
+public class PdfRasterRenderer {
+
+    public enum Target {
+        NONE,
+        PCL,
+        PWG
+    }
+
+    private static final int BUFFER_SIZE = 65536;
+
+    // Tamaño de la cabecera de página PWG Raster
+    private static final int PWG_HEADER_SIZE = 1796;
+
+    // Espacio de color sGray en PWG Raster
+    private static final int PWG_COLORSPACE_SGRAY = 18;
+
+    // Matriz de Bayer 4x4 para el tramado a 1 bit
+    private static final int[][] BAYER = {
+        {0, 8, 2, 10},
+        {12, 4, 14, 6},
+        {3, 11, 1, 9},
+        {15, 7, 13, 5}
+    };
+
+    @Value("${printer.pdf.render.enabled:true}")
+    private boolean enabled;
+
+    @Value("${printer.pdf.render.dpi:300}")
+    private int dpi;
+
+    // Páginas renderizadas que pueden esperar en memoria por documento
+    @Value("${printer.pdf.render.page-cache:2}")
+    private int pageCache;
+
+    // Hilos de render (0 = número de CPUs)
+    @Value("${printer.pdf.render.threads:0}")
+    private int threads;
+
+    private ExecutorService renderExecutor;
+
+    // Marca de fin de documento para el codificador
+    private static final RenderedPage END_OF_DOCUMENT = new RenderedPage(null, 0, 0);
+
+    private static class RenderedPage {
+        final BufferedImage image;
+        final float widthPoints;
+        final float heightPoints;
+
+        RenderedPage(BufferedImage image, float widthPoints, float heightPoints) {
+            this.image = image;
+            this.widthPoints = widthPoints;
+            this.heightPoints = heightPoints;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        renderExecutor = Executors.newFixedThreadPool(poolSize);
+        log.info("🖼️ Render PDF: {} (dpi={}, páginas en memoria={}, hilos={})",
+            enabled ? "activado" : "desactivado", dpi, pageCache, poolSize);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (renderExecutor != null) {
+            renderExecutor.shutdownNow();
+        }
+    }
+
+    public int getDpi() {
+        return dpi;
+    }
+
+    /**
+     * Formato al que hay que rasterizar los PDF según el perfil de la impresora
+     */
+    public Target targetFor(PrinterCapabilities profile) {
+        if (!enabled || profile.acceptsPdf()) {
+            return Target.NONE;
+        }
+        if (profile.acceptsPwgRaster() || profile.getPdl() == PrinterCapabilities.Pdl.PWG) {
+            return Target.PWG;
+        }
+        return Target.PCL;
+    }
+
+    /**
+     * Rasteriza un PDF escribiendo cada página en cuanto se termina de renderizar
+     *
+     * @return número de páginas escritas
+     * @throws IOException si el PDF no se puede abrir (antes de escribir nada)
+     *                     o si falla el render o la escritura
+     */
+    public int render(Path pdfFile, OutputStream out, Target target) throws IOException {
+        return render(pdfFile, out, target, null);
+    }
+
+    /**
+     * Igual que {@link #render(Path, OutputStream, Target)} anotando en index
+     * dónde empieza cada página (posiciones relativas al inicio de out)
+     */
+    public int render(Path pdfFile, OutputStream out, Target target, PageIndex index) throws IOException {
+        long startTime = System.currentTimeMillis();
+
+        try (PDDocument document = PDDocument.load(pdfFile.toFile(), MemoryUsageSetting.setupTempFileOnly())) {
+            int pageCount = document.getNumberOfPages();
+            log.info("🖼️ Rasterizando PDF a {}: {} páginas a {} dpi", target, pageCount, dpi);
+
+            BlockingQueue<RenderedPage> pages = new ArrayBlockingQueue<>(Math.max(1, pageCache));
+            Future<?> renderer = renderExecutor.submit(() -> renderPages(document, pages));
+
+            UsbTransportProtocol.CountingOutputStream buffered =
+                new UsbTransportProtocol.CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            try {
+                if (target == Target.PCL) {
+                    startPcl(buffered);
+                } else {
+                    buffered.write("RaS2".getBytes(StandardCharsets.US_ASCII));
+                }
+                if (index != null) {
+                    index.prologueEnd(buffered.getCount());
+                }
+
+                int written = 0;
+                RenderedPage page;
+                while ((page = nextPage(pages, renderer)) != END_OF_DOCUMENT) {
+                    if (index != null) {
+                        index.pageStart(buffered.getCount());
+                    }
+                    if (target == Target.PCL) {
+                        writePclPage(page, buffered);
+                    } else {
+                        writePwgPage(page, pageCount, buffered);
+                    }
+                    written++;
+                    log.debug("  Página {}/{} enviada", written, pageCount);
+                }
+
+                if (index != null) {
+                    index.epilogueStart(buffered.getCount());
+                }
+                if (target == Target.PCL) {
+                    endPcl(buffered);
+                }
+                buffered.flush();
+                if (index != null) {
+                    index.end(buffered.getCount());
+                }
+
+                log.info("✅ PDF rasterizado: {} páginas en {} ms", written, System.currentTimeMillis() - startTime);
+                return written;
+            } finally {
+                if (!renderer.isDone()) {
+                    renderer.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hilo de render: deja las páginas en la cola, bloqueando si está llena
+     */
+    private Void renderPages(PDDocument document, BlockingQueue<RenderedPage> pages) throws Exception {
+        PDFRenderer pdfRenderer = new PDFRenderer(document);
+        for (int i = 0; i < document.getNumberOfPages(); i++) {
+            PDRectangle box = document.getPage(i).getMediaBox();
+            int rotation = document.getPage(i).getRotation();
+            boolean rotated = rotation == 90 || rotation == 270;
+            BufferedImage image = pdfRenderer.renderImageWithDPI(i, dpi, ImageType.GRAY);
+            pages.put(new RenderedPage(image,
+                rotated ? box.getHeight() : box.getWidth(),
+                rotated ? box.getWidth() : box.getHeight()));
+        }
+        pages.put(END_OF_DOCUMENT);
+        return null;
+    }
+
+    /**
+     * Espera la siguiente página; propaga el error si el render falló
+     */
+    private RenderedPage nextPage(BlockingQueue<RenderedPage> pages, Future<?> renderer) throws IOException {
+        try {
+            while (true) {
+                RenderedPage page = pages.poll(200, TimeUnit.MILLISECONDS);
+                if (page != null) {
+                    return page;
+                }
+                if (renderer.isDone() && pages.isEmpty()) {
+                    // Terminó sin dejar la marca de fin: get() lanza la causa
+                    renderer.get();
+                    throw new IOException("El render terminó sin completar el documento");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Render interrumpido");
+        } catch (ExecutionException e) {
+            throw new IOException("Error renderizando PDF: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // ─── PCL raster ─────────────────────────────────────────────
+
+    private void startPcl(OutputStream out) throws IOException {
+        escape(out, "E");
+    }
+
+    private void endPcl(OutputStream out) throws IOException {
+        escape(out, "E");
+    }
+
+    private void writePclPage(RenderedPage page, OutputStream out) throws IOException {
+        BufferedImage image = page.image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int bytesPerRow = (width + 7) / 8;
+
+        // Tamaño de papel: Letter (2) o A4 (26) según el ancho de la página
+        escape(out, Math.abs(page.widthPoints - 612) < 10 ? "&l2A" : "&l26A");
+        escape(out, "&l0O");
+        escape(out, "*p0x0Y");
+        escape(out, "*t" + dpi + "R");
+        escape(out, "*r" + width + "S");
+        escape(out, "*r" + height + "T");
+        escape(out, "*b2M");
+        escape(out, "*r1A");
+
+        Raster raster = image.getRaster();
+        int[] gray = new int[width];
+        byte[] bits = new byte[bytesPerRow];
+        byte[] packed = new byte[bytesPerRow + bytesPerRow / 128 + 1];
+
+        for (int y = 0; y < height; y++) {
+            raster.getSamples(0, y, width, 1, 0, gray);
+            if (!ditherRow(gray, y, bits)) {
+                // Fila en blanco
+                escape(out, "*b0W");
+                continue;
+            }
+            int length = packBits(bits, packed);
+            escape(out, "*b" + length + "W");
+            out.write(packed, 0, length);
+        }
+
+        escape(out, "*rC");
+        out.write(0x0C);
+    }
+
+    /**
+     * Tramado ordenado a 1 bit (1 = negro)
+     * @return false si la fila queda en blanco
+     */
+    private boolean ditherRow(int[] gray, int y, byte[] bits) {
+        Arrays.fill(bits, (byte) 0);
+        int[] thresholds = BAYER[y & 3];
+        boolean ink = false;
+        for (int x = 0; x < gray.length; x++) {
+            if (gray[x] < thresholds[x & 3] * 16 + 8) {
+                bits[x >> 3] |= (byte) (0x80 >> (x & 7));
+                ink = true;
+            }
+        }
+        return ink;
+    }
+
+    /**
+     * Compresión PackBits (TIFF), modo 2 de PCL
+     * @return bytes escritos en packed
+     */
+    private int packBits(byte[] data, byte[] packed) {
+        int in = 0;
+        int out = 0;
+        while (in < data.length) {
+            int run = 1;
+            while (in + run < data.length && run < 128 && data[in + run] == data[in]) {
+                run++;
+            }
+            if (run > 1) {
+                packed[out++] = (byte) (1 - run);
+                packed[out++] = data[in];
+                in += run;
+                continue;
+            }
+            int start = in;
+            int literal = 0;
+            while (in < data.length && literal < 128
+                    && (in + 1 >= data.length || data[in] != data[in + 1])) {
+                in++;
+                literal++;
+            }
+            packed[out++] = (byte) (literal - 1);
+            System.arraycopy(data, start, packed, out, literal);
+            out += literal;
+        }
+        return out;
+    }
+
+    private void escape(OutputStream out, String command) throws IOException {
+        out.write(0x1B);
+        out.write(command.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // ─── PWG raster ─────────────────────────────────────────────
+
+    private void writePwgPage(RenderedPage page, int pageCount, OutputStream out) throws IOException {
+        BufferedImage image = page.image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        byte[] header = new byte[PWG_HEADER_SIZE];
+        byte[] name = "PwgRaster".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(name, 0, header, 0, name.length);
+        putInt(header, 276, dpi);                                   // HWResolution
+        putInt(header, 280, dpi);
+        putInt(header, 340, 1);                                     // NumCopies
+        putInt(header, 352, Math.round(page.widthPoints));          // PageSize
+        putInt(header, 356, Math.round(page.heightPoints));
+        putInt(header, 372, width);                                 // Width
+        putInt(header, 376, height);                                // Height
+        putInt(header, 384, 8);                                     // BitsPerColor
+        putInt(header, 388, 8);                                     // BitsPerPixel
+        putInt(header, 392, width);                                 // BytesPerLine
+        putInt(header, 396, 0);                                     // ColorOrder: chunky
+        putInt(header, 400, PWG_COLORSPACE_SGRAY);                  // ColorSpace
+        putInt(header, 420, 1);                                     // NumColors
+        putInt(header, 452, pageCount);                             // TotalPageCount
+        putInt(header, 456, 1);                                     // CrossFeedTransform
+        putInt(header, 460, 1);                                     // FeedTransform
+        out.write(header);
+
+        Raster raster = image.getRaster();
+        int[] samples = new int[width];
+        byte[] line = new byte[width];
+        byte[] previous = new byte[width];
+        byte[] encoded = new byte[width * 2 + 2];
+
+        raster.getSamples(0, 0, width, 1, 0, samples);
+        toBytes(samples, previous);
+        int repeat = 0;
+
+        for (int y = 1; y <= height; y++) {
+            boolean last = y == height;
+            if (!last) {
+                raster.getSamples(0, y, width, 1, 0, samples);
+                toBytes(samples, line);
+            }
+            // Las líneas idénticas consecutivas se agrupan (hasta 256)
+            if (!last && repeat < 255 && Arrays.equals(line, previous)) {
+                repeat++;
+                continue;
+            }
+            out.write(repeat);
+            int length = encodePwgLine(previous, encoded);
+            out.write(encoded, 0, length);
+
+            byte[] swap = previous;
+            previous = line;
+            line = swap;
+            repeat = 0;
+        }
+    }
+
+    /**
+     * Codifica una línea PWG: 0-127 = (n+1) repeticiones de un píxel,
+     * 129-255 = (257-n) píxeles literales
+     */
+    private int encodePwgLine(byte[] line, byte[] encoded) {
+        int in = 0;
+        int out = 0;
+        while (in < line.length) {
+            int run = 1;
+            while (in + run < line.length && run < 128 && line[in + run] == line[in]) {
+                run++;
+            }
+            if (run > 1 || in + 1 >= line.length) {
+                encoded[out++] = (byte) (run - 1);
+                encoded[out++] = line[in];
+                in += run;
+                continue;
+            }
+            int start = in;
+            int literal = 0;
+            while (in < line.length && literal < 128
+                    && (in + 1 >= line.length || line[in] != line[in + 1])) {
+                in++;
+                literal++;
+            }
+            if (literal == 1) {
+                encoded[out++] = 0;
+            } else {
+                encoded[out++] = (byte) (257 - literal);
+            }
+            System.arraycopy(line, start, encoded, out, literal);
+            out += literal;
+        }
+        return out;
+    }
+
+    private void toBytes(int[] samples, byte[] bytes) {
+        for (int i = 0; i < samples.length; i++) {
+            bytes[i] = (byte) samples[i];
+        }
+    }
+
+    private void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
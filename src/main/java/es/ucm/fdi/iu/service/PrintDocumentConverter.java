@@ -1,74 +1,117 @@
 package es.ucm.fdi.iu.service;
 
+import es.ucm.fdi.iu.model.PrinterCapabilities;
+import es.ucm.fdi.iu.model.PrinterCapabilities.Pdl;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.ByteArrayOutputStream;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Servicio para convertir documentos a formatos compatibles con impresoras
- * 
+ *
  * Convierte texto plano UTF-8 a formatos que las impresoras pueden procesar:
  * - PCL (Printer Command Language) para impresoras HP y compatibles
  * - PostScript para impresoras que lo soporten
  * - ESC/P para impresoras Epson
+ * - PDF → PCL raster / PWG Raster para impresoras sin soporte PDF (PdfRasterRenderer)
+ *
+ * PIPELINE EN STREAMING:
+ *   sniff → extract → transcode → wrap   (texto)
+ *   sniff → extract → render             (PDF sin soporte directo)
+ *
+ * Cada etapa trabaja sobre InputStream/OutputStream con buffers acotados,
+ * así que la memoria usada no depende del tamaño del documento y la
+ * conversión avanza a la vez que llegan los datos por la red.
+ * Los métodos con byte[] se mantienen como adaptadores sobre el pipeline.
  */
 @Service
 @Slf4j
 public class PrintDocumentConverter {
 
+    // Bytes necesarios para detectar el tipo de documento
+    private static final int SNIFF_SIZE = 200;
+
+    // Tamaño máximo de la cabecera y atributos de una petición IPP
+    private static final int MAX_IPP_HEADER = 65536;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // Texto de hasta este tamaño se recibe entero en memoria para buscarlo en la caché
+    @Value("${printer.conversion.cache.text-max-bytes:1048576}")
+    private int textCacheMaxBytes;
+
+    private final PdfRasterRenderer pdfRasterRenderer;
+    private final ConversionCache conversionCache;
+
+    public PrintDocumentConverter(PdfRasterRenderer pdfRasterRenderer, ConversionCache conversionCache) {
+        this.pdfRasterRenderer = pdfRasterRenderer;
+        this.conversionCache = conversionCache;
+    }
+
     /**
      * Detecta el tipo de documento por sus magic numbers
      */
     public String detectDocumentType(byte[] data) {
-        if (data == null || data.length < 4) {
+        return detectDocumentType(data, data == null ? 0 : data.length);
+    }
+
+    /**
+     * Detecta el tipo de documento mirando los primeros length bytes
+     */
+    public String detectDocumentType(byte[] data, int length) {
+        if (data == null || length < 4) {
             return "UNKNOWN";
         }
-        
+
         // PDF: %PDF
         if (data[0] == 0x25 && data[1] == 0x50 && data[2] == 0x44 && data[3] == 0x46) {
             return "PDF";
         }
-        
+
         // PostScript: %!
         if (data[0] == 0x25 && data[1] == 0x21) {
             return "PostScript";
         }
-        
+
         // PCL: ESC E (reset) o ESC &
         if (data[0] == 0x1B && (data[1] == 0x45 || data[1] == 0x26)) {
             return "PCL";
         }
-        
+
         // PNG
         if (data[0] == (byte)0x89 && data[1] == 0x50 && data[2] == 0x4E && data[3] == 0x47) {
             return "PNG";
         }
-        
+
         // JPEG
         if (data[0] == (byte)0xFF && data[1] == (byte)0xD8 && data[2] == (byte)0xFF) {
             return "JPEG";
         }
-        
+
         // IPP request
-        if (data.length >= 8 && data[0] >= 0x01 && data[0] <= 0x02) {
+        if (length >= 8 && data[0] >= 0x01 && data[0] <= 0x02) {
             return "IPP";
         }
-        
+
         // Si es principalmente texto
         int printable = 0;
-        for (int i = 0; i < Math.min(200, data.length); i++) {
+        for (int i = 0; i < Math.min(200, length); i++) {
             byte b = data[i];
             if ((b >= 32 && b < 127) || b == 9 || b == 10 || b == 13 || (b & 0x80) != 0) {
                 printable++;
             }
         }
-        
-        if (printable > Math.min(180, data.length * 0.9)) {
+
+        if (printable > Math.min(180, length * 0.9)) {
             return "TEXT";
         }
-        
+
         return "BINARY";
     }
 
@@ -77,68 +120,89 @@ public class PrintDocumentConverter {
      */
     public boolean isPrinterReady(byte[] data) {
         String type = detectDocumentType(data);
-        return type.equals("PDF") || type.equals("PostScript") || 
+        return type.equals("PDF") || type.equals("PostScript") ||
                type.equals("PCL") || type.equals("BINARY");
     }
 
     /**
      * Convierte texto plano UTF-8 a formato PCL con soporte para caracteres especiales
-     * 
+     *
      * PCL (Printer Command Language) es ampliamente compatible con impresoras HP y otras
      */
     public byte[] convertTextToPCL(byte[] textData, String printerModel) throws Exception {
+        return convertTextToPCL(textData, PrinterCapabilities.fromModel(printerModel));
+    }
+
+    /**
+     * Versión de {@link #convertTextToPCL(byte[], String)} con el perfil ya resuelto
+     */
+    public byte[] convertTextToPCL(byte[] textData, PrinterCapabilities profile) throws Exception {
         ByteArrayOutputStream pcl = new ByteArrayOutputStream();
-        
-        // Detectar si es EPSON y usar ESC/P en su lugar
-        if (printerModel != null && printerModel.toUpperCase().contains("EPSON")) {
-            log.info("Impresora Epson detectada, usando formato ESC/P");
-            return convertTextToESCP(textData);
+        convertTextToPCL(new ByteArrayInputStream(textData), pcl, profile);
+        log.info("Conversión PCL completada: {} bytes → {} bytes", textData.length, pcl.size());
+        return pcl.toByteArray();
+    }
+
+    /**
+     * Versión en streaming de {@link #convertTextToPCL(byte[], String)}
+     */
+    public void convertTextToPCL(InputStream text, OutputStream pcl, String printerModel) throws IOException {
+        convertTextToPCL(text, pcl, PrinterCapabilities.fromModel(printerModel));
+    }
+
+    /**
+     * Versión en streaming con el perfil ya resuelto
+     */
+    public void convertTextToPCL(InputStream text, OutputStream pcl, PrinterCapabilities profile) throws IOException {
+        // Impresoras ESC/P (Epson): usar ESC/P en su lugar
+        if (profile.getPdl() == Pdl.ESCP) {
+            log.info("Perfil ESC/P ({}), usando formato ESC/P", profile.getProfileSource());
+            convertTextToESCP(text, pcl);
+            return;
         }
-        
-        log.info("Convirtiendo {} bytes de texto a PCL", textData.length);
-        
+        writeTextAsPcl(text, pcl);
+    }
+
+    /**
+     * Texto → PCL (A4, Courier 12, Latin-1)
+     */
+    private void writeTextAsPcl(InputStream text, OutputStream pcl) throws IOException {
+        log.info("Convirtiendo texto a PCL (streaming)");
+
         // Reset de impresora
         pcl.write(0x1B);
         pcl.write('E');
-        
+
         // Configurar para ISO Latin-1 (mejor soporte para español)
         // Symbol Set: 8859-1 Latin 1 (9U)
         pcl.write(0x1B);
         pcl.write("(9U".getBytes());
-        
+
         // Configurar orientación vertical
         pcl.write(0x1B);
         pcl.write("&l0O".getBytes());
-        
+
         // Tamaño de papel: A4
         pcl.write(0x1B);
         pcl.write("&l26A".getBytes());
-        
+
         // Márgenes (medio pulgada)
         pcl.write(0x1B);
         pcl.write("&l5E".getBytes()); // Margen superior
-        
+
         // Fuente: Courier 12pt
         pcl.write(0x1B);
         pcl.write("(s0p12h10v0s0b3T".getBytes());
-        
+
         // Convertir texto UTF-8 a Latin-1
-        String text = new String(textData, StandardCharsets.UTF_8);
-        byte[] latin1 = text.getBytes("ISO-8859-1");
-        
-        // Escribir contenido
-        pcl.write(latin1);
-        
+        transcodeToLatin1(text, pcl);
+
         // Form feed (expulsar página)
         pcl.write(0x0C);
-        
+
         // Reset final
         pcl.write(0x1B);
         pcl.write('E');
-        
-        log.info("Conversión PCL completada: {} bytes", pcl.size());
-        
-        return pcl.toByteArray();
     }
 
     /**
@@ -146,19 +210,27 @@ public class PrintDocumentConverter {
      */
     public byte[] convertTextToESCP(byte[] textData) throws Exception {
         ByteArrayOutputStream escp = new ByteArrayOutputStream();
-        
-        log.info("Convirtiendo {} bytes de texto a ESC/P (Epson)", textData.length);
-        
+        convertTextToESCP(new ByteArrayInputStream(textData), escp);
+        log.info("Conversión ESC/P completada: {} bytes → {} bytes", textData.length, escp.size());
+        return escp.toByteArray();
+    }
+
+    /**
+     * Versión en streaming de {@link #convertTextToESCP(byte[])}
+     */
+    public void convertTextToESCP(InputStream text, OutputStream escp) throws IOException {
+        log.info("Convirtiendo texto a ESC/P (Epson, streaming)");
+
         // Reset de impresora ESC @
         escp.write(0x1B);
         escp.write('@');
-        
+
         // Establecer conjunto de caracteres Latin-1
         // ESC R n (n=3 para Latin-1)
         escp.write(0x1B);
         escp.write('R');
         escp.write(3);
-        
+
         // Configurar modo de caracteres internacionales (España)
         // ESC ( t 3 0 0 n (n=13 para España)
         escp.write(0x1B);
@@ -168,78 +240,81 @@ public class PrintDocumentConverter {
         escp.write(0);
         escp.write(0);
         escp.write(13);
-        
+
         // Espaciado de línea 1/6 pulgada (estándar)
         escp.write(0x1B);
         escp.write('2');
-        
+
         // Convertir texto UTF-8 a Latin-1
-        String text = new String(textData, StandardCharsets.UTF_8);
-        byte[] latin1 = text.getBytes("ISO-8859-1");
-        
-        // Escribir contenido
-        escp.write(latin1);
-        
+        transcodeToLatin1(text, escp);
+
         // Form feed (expulsar página)
         escp.write(0x0C);
-        
+
         // Reset final
         escp.write(0x1B);
         escp.write('@');
-        
-        log.info("Conversión ESC/P completada: {} bytes", escp.size());
-        
-        return escp.toByteArray();
     }
 
     /**
      * Convierte texto plano a formato PostScript
      */
     public byte[] convertTextToPostScript(byte[] textData) throws Exception {
-        StringBuilder ps = new StringBuilder();
-        
-        log.info("Convirtiendo {} bytes de texto a PostScript", textData.length);
-        
+        ByteArrayOutputStream ps = new ByteArrayOutputStream();
+        convertTextToPostScript(new ByteArrayInputStream(textData), ps);
+        log.info("Conversión PostScript completada: {} bytes → {} bytes", textData.length, ps.size());
+        return ps.toByteArray();
+    }
+
+    /**
+     * Versión en streaming de {@link #convertTextToPostScript(byte[])}
+     * Procesa el texto línea a línea
+     */
+    public void convertTextToPostScript(InputStream text, OutputStream out) throws IOException {
+        log.info("Convirtiendo texto a PostScript (streaming)");
+
+        Writer ps = new BufferedWriter(new OutputStreamWriter(nonClosing(out), StandardCharsets.ISO_8859_1));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(text, StandardCharsets.UTF_8));
+
         // Encabezado PostScript
-        ps.append("%!PS-Adobe-3.0\n");
-        ps.append("%%Title: Print Job\n");
-        ps.append("%%Creator: Print Queue Service\n");
-        ps.append("%%Pages: 1\n");
-        ps.append("%%EndComments\n\n");
-        
-        ps.append("%%Page: 1 1\n");
-        ps.append("/Courier findfont 12 scalefont setfont\n");
-        ps.append("72 720 moveto\n"); // Margen superior izquierdo
-        
-        // Convertir texto
-        String text = new String(textData, StandardCharsets.UTF_8);
-        String[] lines = text.split("\n");
-        
+        ps.write("%!PS-Adobe-3.0\n");
+        ps.write("%%Title: Print Job\n");
+        ps.write("%%Creator: Print Queue Service\n");
+        ps.write("%%Pages: (atend)\n");
+        ps.write("%%EndComments\n\n");
+
+        ps.write("%%Page: 1 1\n");
+        ps.write("/Courier findfont 12 scalefont setfont\n");
+        ps.write("72 720 moveto\n"); // Margen superior izquierdo
+
         int y = 720;
-        for (String line : lines) {
+        int page = 1;
+        String line;
+        while ((line = reader.readLine()) != null) {
             // Escapar caracteres especiales para PostScript
             String escaped = line.replace("\\", "\\\\")
                                 .replace("(", "\\(")
                                 .replace(")", "\\)")
                                 .replace("\r", "");
-            
-            ps.append("72 ").append(y).append(" moveto\n");
-            ps.append("(").append(escaped).append(") show\n");
+
+            ps.write("72 " + y + " moveto\n");
+            ps.write("(" + escaped + ") show\n");
             y -= 14; // Espaciado de línea
-            
+
             if (y < 72) { // Nueva página si se acaba el espacio
-                ps.append("showpage\n");
-                ps.append("%%Page: 2 2\n");
+                page++;
+                ps.write("showpage\n");
+                ps.write("%%Page: " + page + " " + page + "\n");
+                ps.write("/Courier findfont 12 scalefont setfont\n");
                 y = 720;
             }
         }
-        
-        ps.append("showpage\n");
-        ps.append("%%EOF\n");
-        
-        log.info("Conversión PostScript completada: {} bytes", ps.length());
-        
-        return ps.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        ps.write("showpage\n");
+        ps.write("%%Trailer\n");
+        ps.write("%%Pages: " + page + "\n");
+        ps.write("%%EOF\n");
+        ps.close();
     }
 
     /**
@@ -248,122 +323,377 @@ public class PrintDocumentConverter {
      * Si ya está en formato de impresora, lo deja pasar
      */
     public byte[] processForPrinting(byte[] data, String printerModel) {
+        return processForPrinting(data, PrinterCapabilities.fromModel(printerModel));
+    }
+
+    /**
+     * Versión de {@link #processForPrinting(byte[], String)} con el perfil ya resuelto
+     */
+    public byte[] processForPrinting(byte[] data, PrinterCapabilities profile) {
         try {
-            String type = detectDocumentType(data);
-            log.info("════════════════════════════════════════════════════════════");
-            log.info("🔍 ANÁLISIS DE DOCUMENTO");
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 256);
+            processForPrinting(new ByteArrayInputStream(data), out, profile);
+            return out.toByteArray();
+        } catch (Exception e) {
+            log.error("❌ Error procesando documento: {}", e.getMessage(), e);
+            log.error("   Enviando datos originales como fallback");
             log.info("════════════════════════════════════════════════════════════");
-            log.info("   Tipo detectado: {}", type);
-            log.info("   Tamaño: {} bytes", data.length);
-            log.info("   Impresora: {}", printerModel);
-            
-            // Mostrar primeros bytes para debugging
-            if (data.length >= 10) {
-                StringBuilder hex = new StringBuilder();
-                for (int i = 0; i < Math.min(20, data.length); i++) {
-                    hex.append(String.format("%02X ", data[i]));
-                }
-                log.info("   Primeros bytes: {}", hex.toString());
+            return data;
+        }
+    }
+
+    /**
+     * Procesa un documento para impresión en streaming
+     *
+     * Lee de in y escribe el resultado en out a medida que llegan los datos,
+     * con memoria acotada (no se carga el documento entero).
+     *
+     * Sin perfil de capacidades se deduce uno provisional del modelo.
+     *
+     * @return tipo de documento detectado
+     */
+    public String processForPrinting(InputStream in, OutputStream out, String printerModel) throws IOException {
+        return processForPrinting(in, out, PrinterCapabilities.fromModel(printerModel));
+    }
+
+    /**
+     * Procesa un documento eligiendo el pipeline según el perfil de la impresora
+     *
+     * @return tipo de documento detectado
+     */
+    public String processForPrinting(InputStream in, OutputStream out, PrinterCapabilities profile) throws IOException {
+        return processForPrinting(in, out, profile, null);
+    }
+
+    /**
+     * Procesa un documento anotando en index los límites de página del resultado
+     * (solo cuando se rasteriza un PDF; en otro caso el índice queda incompleto)
+     */
+    private String processForPrinting(InputStream in, OutputStream out, PrinterCapabilities profile,
+                                      PageIndex index) throws IOException {
+        BufferedInputStream source = in instanceof BufferedInputStream
+            ? (BufferedInputStream) in : new BufferedInputStream(in, BUFFER_SIZE);
+
+        // ETAPA 1: sniff
+        byte[] head = sniff(source, SNIFF_SIZE);
+        String type = detectDocumentType(head, head.length);
+        log.info("════════════════════════════════════════════════════════════");
+        log.info("🔍 ANÁLISIS DE DOCUMENTO");
+        log.info("════════════════════════════════════════════════════════════");
+        log.info("   Tipo detectado: {}", type);
+        log.info("   Perfil impresora: {} ({})", profile.getPdl(), profile.getProfileSource());
+
+        // Mostrar primeros bytes para debugging
+        if (head.length >= 10) {
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < Math.min(20, head.length); i++) {
+                hex.append(String.format("%02X ", head[i]));
             }
-            
-            if (type.equals("PDF")) {
+            log.info("   Primeros bytes: {}", hex.toString());
+        }
+
+        if (type.equals("PDF")) {
+            PdfRasterRenderer.Target target = pdfRasterRenderer.targetFor(profile);
+            if (target == PdfRasterRenderer.Target.NONE) {
                 log.info("✅ PDF detectado - Enviando directamente");
                 log.info("   La impresora debe soportar impresión directa de PDF");
                 log.info("════════════════════════════════════════════════════════════");
-                return data;
-                
-            } else if (type.equals("PostScript")) {
-                log.info("✅ PostScript detectado - Enviando directamente");
-                log.info("════════════════════════════════════════════════════════════");
-                return data;
-                
-            } else if (type.equals("PCL")) {
-                log.info("✅ PCL detectado - Enviando directamente");
+                passThrough(source, out);
+            } else {
+                log.info("🔄 PDF detectado - Rasterizando a {} en el servidor", target);
                 log.info("════════════════════════════════════════════════════════════");
-                return data;
-                
-            } else if (type.equals("TEXT")) {
-                log.info("🔄 Texto plano detectado - Convirtiendo a formato de impresora");
-                log.info("   Impresora destino: {}", printerModel);
-                
-                byte[] converted;
-                // Usar formato apropiado según la impresora
-                if (printerModel != null && printerModel.toUpperCase().contains("EPSON")) {
-                    log.info("   Formato: ESC/P (Epson)");
-                    converted = convertTextToESCP(data);
-                } else if (printerModel != null && printerModel.toUpperCase().contains("HP")) {
-                    log.info("   Formato: PCL (HP)");
-                    converted = convertTextToPCL(data, printerModel);
-                } else {
-                    log.info("   Formato: PCL (Universal)");
-                    converted = convertTextToPCL(data, printerModel);
-                }
-                
-                log.info("✅ Conversión completada: {} bytes → {} bytes", data.length, converted.length);
+                renderPdf(source, out, target, index);
+            }
+
+        } else if (type.equals("PostScript")) {
+            log.info("✅ PostScript detectado - Enviando directamente");
+            log.info("════════════════════════════════════════════════════════════");
+            passThrough(source, out);
+
+        } else if (type.equals("PCL")) {
+            log.info("✅ PCL detectado - Enviando directamente");
+            log.info("════════════════════════════════════════════════════════════");
+            passThrough(source, out);
+
+        } else if (type.equals("TEXT")) {
+            log.info("🔄 Texto plano detectado - Convirtiendo a formato de impresora");
+
+            // ETAPAS 3 y 4: transcode + wrap según el PDL de la impresora
+            if (profile.getPdl() == Pdl.ESCP) {
+                log.info("   Formato: ESC/P (Epson)");
+                convertTextToESCP(source, out);
+            } else if (profile.getPdl() == Pdl.POSTSCRIPT) {
+                log.info("   Formato: PostScript");
+                convertTextToPostScript(source, out);
+            } else {
+                log.info("   Formato: PCL");
+                writeTextAsPcl(source, out);
+            }
+
+            log.info("✅ Conversión completada");
+            log.info("════════════════════════════════════════════════════════════");
+
+        } else if (type.equals("IPP")) {
+            log.warn("⚠️  Datos IPP/RAW recibidos - Intentando extraer contenido");
+            // ETAPA 2: extract
+            if (extractDocumentFromIPP(source)) {
+                log.info("✅ Documento localizado dentro de la petición IPP");
                 log.info("════════════════════════════════════════════════════════════");
-                return converted;
-                
-            } else if (type.equals("IPP")) {
-                log.warn("⚠️  Datos IPP/RAW recibidos - Intentando extraer contenido");
-                // Buscar inicio de PDF dentro de los datos IPP
-                byte[] extracted = extractDocumentFromIPP(data);
-                if (extracted != null && extracted.length > 0) {
-                    log.info("✅ Documento extraído de IPP: {} bytes", extracted.length);
-                    log.info("════════════════════════════════════════════════════════════");
-                    // Procesar recursivamente el documento extraído
-                    return processForPrinting(extracted, printerModel);
-                } else {
-                    log.warn("⚠️  No se pudo extraer documento, enviando datos originales");
-                    log.info("════════════════════════════════════════════════════════════");
-                    return data;
-                }
-                
+                // Procesar recursivamente el documento extraído
+                return processForPrinting(source, out, profile, index);
             } else {
-                log.info("ℹ️  Tipo desconocido - Enviando directamente");
-                log.info("   La impresora intentará interpretar el formato");
+                log.warn("⚠️  No se pudo extraer documento, enviando datos originales");
                 log.info("════════════════════════════════════════════════════════════");
-                return data;
+                passThrough(source, out);
             }
-        } catch (Exception e) {
-            log.error("❌ Error procesando documento: {}", e.getMessage(), e);
-            log.error("   Enviando datos originales como fallback");
+
+        } else {
+            log.info("ℹ️  Tipo desconocido - Enviando directamente");
+            log.info("   La impresora intentará interpretar el formato");
             log.info("════════════════════════════════════════════════════════════");
-            return data;
+            passThrough(source, out);
+        }
+
+        out.flush();
+        return type;
+    }
+
+    /**
+     * Procesa un documento dejando el resultado en output
+     *
+     * El texto de hasta text-max-bytes se recibe entero en memoria (llega
+     * enseguida) y se busca en la caché de conversión por su hash; si no está,
+     * se convierte y se guarda. El texto mayor se convierte a la vez que llega,
+     * sin caché: habría que esperar al documento entero para saber su hash.
+     * Los PDF que hay que rasterizar se dejan sin convertir: el render es lento
+     * y no debe retrasar la respuesta al cliente, así que se hace al enviarlos
+     * ({@link #rasterizeSpooled}), donde el documento ya está en disco y
+     * también se usa la caché.
+     *
+     * @return tipo de documento detectado
+     */
+    public String processForPrinting(InputStream in, Path output, PrinterCapabilities profile) throws IOException {
+        BufferedInputStream source = in instanceof BufferedInputStream
+            ? (BufferedInputStream) in : new BufferedInputStream(in, BUFFER_SIZE);
+
+        byte[] head = sniff(source, SNIFF_SIZE);
+        String type = detectDocumentType(head, head.length);
+        if (type.equals("IPP") && extractDocumentFromIPP(source)) {
+            head = sniff(source, SNIFF_SIZE);
+            type = detectDocumentType(head, head.length);
+        }
+
+        if (type.equals("TEXT") && conversionCache.isEnabled()) {
+            byte[] document = source.readNBytes(textCacheMaxBytes + 1);
+            if (document.length <= textCacheMaxBytes) {
+                return convertTextCached(document, output, profile);
+            }
+            // Demasiado grande para esperarlo entero: lo leído va delante del resto
+            source = new BufferedInputStream(
+                new SequenceInputStream(new ByteArrayInputStream(document), source), BUFFER_SIZE);
+        }
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+            if (type.equals("PDF") && pdfRasterRenderer.targetFor(profile) != PdfRasterRenderer.Target.NONE) {
+                log.info("📥 PDF encolado sin convertir: se rasterizará al enviarse");
+                passThrough(source, out);
+                return type;
+            }
+            return processForPrinting(source, out, profile, null);
+        }
+    }
+
+    /**
+     * Conversión de un texto completo a través de la caché de conversión
+     */
+    private String convertTextCached(byte[] document, Path output, PrinterCapabilities profile) throws IOException {
+        String format = profile.getPdl() == Pdl.ESCP || profile.getPdl() == Pdl.POSTSCRIPT
+            ? profile.getPdl().name() : "PCL";
+        String key = ConversionCache.key(ConversionCache.toHex(ConversionCache.newDigest().digest(document)),
+            format, profile.pipelineKey());
+        if (conversionCache.copyTo(key, output)) {
+            log.info("🗃️ Conversión a {} servida desde caché ({} bytes)", format, Files.size(output));
+            return "TEXT";
         }
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+            processForPrinting(new ByteArrayInputStream(document), out, profile, null);
+        }
+        conversionCache.store(key, output);
+        return "TEXT";
     }
-    
+
     /**
-     * Intenta extraer un documento (PDF, PostScript, etc.) de datos IPP
+     * Rasteriza antes del envío un PDF que se encoló sin convertir
+     *
+     * El resultado sustituye al archivo de spool, con su índice de páginas al
+     * lado ({@link PageIndex#sidecarOf}) para el envío por tramos, así que un
+     * reintento o un reinicio no vuelve a rasterizar. Usa la caché de conversión.
+     *
+     * @return false si no es un PDF, la impresora lo acepta tal cual o no se
+     *         pudo abrir (se envía el original)
      */
-    private byte[] extractDocumentFromIPP(byte[] data) {
+    public boolean rasterizeSpooled(Path spoolFile, PrinterCapabilities profile) throws IOException {
+        PdfRasterRenderer.Target target = pdfRasterRenderer.targetFor(profile);
+        if (target == PdfRasterRenderer.Target.NONE) {
+            return false;
+        }
+        byte[] head;
+        try (InputStream in = Files.newInputStream(spoolFile)) {
+            head = in.readNBytes(SNIFF_SIZE);
+        }
+        if (!detectDocumentType(head, head.length).equals("PDF")) {
+            return false;
+        }
+
+        Path rendered = Files.createTempFile(spoolFile.getParent(), "render-", ".tmp");
+        Path renderedIndex = PageIndex.sidecarOf(rendered);
         try {
-            // Buscar magic number de PDF: %PDF
-            for (int i = 0; i < data.length - 4; i++) {
-                if (data[i] == 0x25 && data[i+1] == 0x50 && 
-                    data[i+2] == 0x44 && data[i+3] == 0x46) {
-                    log.info("🔍 PDF encontrado en posición {}", i);
-                    byte[] pdf = new byte[data.length - i];
-                    System.arraycopy(data, i, pdf, 0, pdf.length);
-                    return pdf;
+            String key = conversionCache.isEnabled()
+                ? ConversionCache.key(ConversionCache.hashOf(spoolFile), target.name() + "-RASTER",
+                    profile.pipelineKey() + "|" + pdfRasterRenderer.getDpi())
+                : null;
+            if (key != null && conversionCache.copyTo(key, rendered)) {
+                log.info("🗃️ Rasterizado a {} servido desde caché ({} bytes)", target, Files.size(rendered));
+                conversionCache.copyTo(key + PageIndex.SUFFIX, renderedIndex);
+            } else {
+                PageIndex index = new PageIndex();
+                try (UsbTransportProtocol.CountingOutputStream out = new UsbTransportProtocol.CountingOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(rendered)))) {
+                    try {
+                        pdfRasterRenderer.render(spoolFile, out, target, index);
+                    } catch (IOException e) {
+                        if (out.getCount() > 0) {
+                            throw e;
+                        }
+                        log.warn("⚠️  No se pudo rasterizar el PDF ({}), enviando original", e.getMessage());
+                        return false;
+                    }
+                }
+                if (index.isComplete()) {
+                    index.write(renderedIndex);
+                }
+                if (key != null) {
+                    conversionCache.store(key, rendered);
+                    if (index.isComplete()) {
+                        conversionCache.store(key + PageIndex.SUFFIX, renderedIndex);
+                    }
                 }
             }
-            
-            // Buscar PostScript: %!
-            for (int i = 0; i < data.length - 2; i++) {
-                if (data[i] == 0x25 && data[i+1] == 0x21) {
-                    log.info("🔍 PostScript encontrado en posición {}", i);
-                    byte[] ps = new byte[data.length - i];
-                    System.arraycopy(data, i, ps, 0, ps.length);
-                    return ps;
+
+            // Primero el índice: si se corta aquí, el PDF sigue en spool y se vuelve a rasterizar
+            Path sidecar = PageIndex.sidecarOf(spoolFile);
+            if (Files.exists(renderedIndex)) {
+                Files.move(renderedIndex, sidecar, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(sidecar);
+            }
+            Files.move(rendered, spoolFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(rendered);
+            Files.deleteIfExists(renderedIndex);
+        }
+    }
+
+    /**
+     * Etapa render: el PDF se guarda en un archivo temporal (PDFBox necesita
+     * acceso aleatorio) y se rasteriza página a página hacia la salida
+     *
+     * Si el PDF no se puede abrir se envía sin cambios.
+     */
+    private void renderPdf(InputStream source, OutputStream out, PdfRasterRenderer.Target target,
+                           PageIndex index) throws IOException {
+        Path pdfFile = Files.createTempFile("render-", ".pdf");
+        try {
+            Files.copy(source, pdfFile, StandardCopyOption.REPLACE_EXISTING);
+            UsbTransportProtocol.CountingOutputStream counted = new UsbTransportProtocol.CountingOutputStream(out);
+            try {
+                pdfRasterRenderer.render(pdfFile, counted, target, index);
+            } catch (IOException e) {
+                if (counted.getCount() > 0) {
+                    throw e;
                 }
+                log.warn("⚠️  No se pudo rasterizar el PDF ({}), enviando original", e.getMessage());
+                Files.copy(pdfFile, out);
             }
-            
-            log.debug("No se encontró documento embebido en datos IPP");
-            return null;
-            
-        } catch (Exception e) {
-            log.error("Error extrayendo documento de IPP: {}", e.getMessage());
-            return null;
+        } finally {
+            Files.deleteIfExists(pdfFile);
+        }
+    }
+
+    /**
+     * Etapa sniff: lee los primeros bytes sin consumirlos
+     */
+    private byte[] sniff(BufferedInputStream in, int size) throws IOException {
+        in.mark(size);
+        byte[] head = in.readNBytes(size);
+        in.reset();
+        return head;
+    }
+
+    /**
+     * Copia el resto del flujo sin cambios con un buffer fijo
+     */
+    private void passThrough(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Etapa transcode: UTF-8 → ISO-8859-1 por bloques de caracteres
+     * (los caracteres no representables se sustituyen por '?')
+     */
+    private void transcodeToLatin1(InputStream in, OutputStream out) throws IOException {
+        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        Writer writer = new OutputStreamWriter(nonClosing(out), StandardCharsets.ISO_8859_1);
+        char[] chars = new char[BUFFER_SIZE];
+        int n;
+        while ((n = reader.read(chars)) != -1) {
+            writer.write(chars, 0, n);
         }
+        writer.flush();
+    }
+
+    /**
+     * Evita que cerrar un Writer intermedio cierre el flujo de salida real
+     */
+    private OutputStream nonClosing(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Etapa extract: posiciona el flujo al inicio del documento embebido en una
+     * petición IPP, recorriendo los grupos de atributos hasta end-of-attributes
+     *
+     * Solo se leen como máximo MAX_IPP_HEADER bytes de atributos; si la petición
+     * no es válida, el flujo queda en su posición original.
+     *
+     * @return true si se encontró el documento
+     */
+    private boolean extractDocumentFromIPP(BufferedInputStream in) throws IOException {
+        in.mark(MAX_IPP_HEADER);
+        IppMessage message = IppMessage.parse(in, MAX_IPP_HEADER);
+        if (message == null || !message.isComplete()) {
+            log.debug("No se encontró end-of-attributes en los primeros {} bytes", MAX_IPP_HEADER);
+            in.reset();
+            return false;
+        }
+
+        log.info("🔍 Documento en posición {} (document-format: {}, job-name: {})",
+            message.getDocumentOffset(), message.getDocumentFormat(), message.getJobName());
+        return true;
     }
 }
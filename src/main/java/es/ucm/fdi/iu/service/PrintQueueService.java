@@ -3,24 +3,30 @@ package es.ucm.fdi.iu.service;
 import es.ucm.fdi.iu.model.Job;
 import es.ucm.fdi.iu.model.Printer;
 import es.ucm.fdi.iu.model.User;
+import es.ucm.fdi.iu.util.Ipv4RangeSet;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
 import jakarta.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -54,6 +60,36 @@ public class PrintQueueService {
     @Autowired
     private NetworkIdentificationService networkIdService;
     
+    @Autowired
+    private UsbTransportService usbTransportService;
+    
+    @Autowired
+    private ConversionCache conversionCache;
+    
+    @Autowired
+    private PrinterCapabilityService capabilityService;
+    
+    @Autowired
+    private PrintDocumentConverter documentConverter;
+    
+    @Autowired
+    private FairShareScheduler fairShareScheduler;
+    
+    @Autowired
+    private PrinterPoolService poolService;
+    
+    @Autowired
+    private JobIndex jobIndex;
+    
+    @Autowired
+    private DuplicateSubmissionFilter duplicateFilter;
+    
+    @Autowired
+    private JobLeaseService leaseService;
+    
+    @Autowired
+    private MdnsBrowserService mdnsBrowser;
+    
     @Autowired
     private PlatformTransactionManager transactionManager;
     
@@ -68,15 +104,53 @@ public class PrintQueueService {
     // Trabajos en proceso
     private final Set<Long> processingJobs = ConcurrentHashMap.newKeySet();
     
+    // Hilo que está enviando cada trabajo y trabajos cancelados antes de terminar
+    private final Map<Long, Thread> deliveryThreads = new ConcurrentHashMap<>();
+    private final Set<Long> cancelledJobs = ConcurrentHashMap.newKeySet();
+    
+    // Archivo de spool de cada trabajo y su lenguaje para envíos agrupados,
+    // para no listar el directorio ni abrir el archivo en cada pasada
+    private record BatchTraits(long printerId, String family) {
+    }
+    private final Map<Long, Path> spoolFiles = new ConcurrentHashMap<>();
+    private final Map<Long, BatchTraits> batchTraits = new ConcurrentHashMap<>();
+    
     // Directorio temporal para archivos de impresión
     private Path printSpoolDir;
     
+    // Vacío = print-spool en el directorio temporal; en clúster, un directorio compartido
+    @Value("${printer.spool.dir:}")
+    private String spoolDirSetting;
+    
     // Máximo de trabajos simultáneos
     private static final int MAX_CONCURRENT_JOBS = 3;
     
     // Máximo de reintentos por trabajo
     private static final int MAX_RETRIES = 3;
     
+    // Agrupar trabajos consecutivos de la misma impresora en un solo envío
+    @Value("${printer.queue.batch.enabled:true}")
+    private boolean batchEnabled;
+    
+    // Máximo de trabajos por envío agrupado
+    @Value("${printer.queue.batch.max-jobs:50}")
+    private int batchMaxJobs;
+    
+    // Envío por tramos de páginas de documentos grandes (con reanudación)
+    @Value("${printer.queue.chunk.enabled:true}")
+    private boolean chunkEnabled;
+    
+    @Value("${printer.queue.chunk.pages:50}")
+    private int pagesPerChunk;
+    
+    // Tamaño a partir del cual un documento se envía por tramos (bytes)
+    @Value("${printer.queue.chunk.min-bytes:33554432}")
+    private long chunkMinBytes;
+    
+    // Trabajos pendientes que el planificador considera en cada ciclo por impresora
+    @Value("${printer.queue.scheduler.window:200}")
+    private int schedulerWindow;
+    
     // Estado del servicio
     private volatile boolean running = false;
     
@@ -94,7 +168,7 @@ public class PrintQueueService {
         
         // Crear directorio de spool
         try {
-            printSpoolDir = Paths.get(System.getProperty("java.io.tmpdir"), "print-spool");
+            printSpoolDir = resolveSpoolDir(spoolDirSetting);
             if (!Files.exists(printSpoolDir)) {
                 Files.createDirectories(printSpoolDir);
                 log.info("📁 Directorio de spool creado: {}", printSpoolDir);
@@ -107,6 +181,9 @@ public class PrintQueueService {
         // Crear executor con pool de threads
         executorService = Executors.newFixedThreadPool(MAX_CONCURRENT_JOBS);
         
+        // Un trabajo cuya concesión retoma otro nodo deja de enviarse aquí
+        leaseService.onLeaseLost(this::leaseLost);
+        
         // Iniciar procesador de colas
         running = true;
         startQueueProcessor();
@@ -114,9 +191,22 @@ public class PrintQueueService {
         log.info("✅ Servicio de colas iniciado correctamente");
         log.info("   - Trabajos simultáneos máximos: {}", MAX_CONCURRENT_JOBS);
         log.info("   - Directorio de spool: {}", printSpoolDir);
+        if (leaseService.isEnabled()) {
+            log.info("   - Nodo del clúster: {}", leaseService.getNodeId());
+        }
         log.info("========================================");
     }
     
+    /**
+     * Directorio de spool: el configurado o print-spool en el directorio temporal
+     */
+    public static Path resolveSpoolDir(String configured) {
+        if (configured != null && !configured.isBlank()) {
+            return Paths.get(configured.trim());
+        }
+        return Paths.get(System.getProperty("java.io.tmpdir"), "print-spool");
+    }
+    
     @PreDestroy
     public void shutdown() {
         log.info("🛑 Deteniendo servicio de colas de impresión...");
@@ -141,26 +231,36 @@ public class PrintQueueService {
      */
     @Transactional
     public Job addJob(Printer printer, String fileName, String owner, User instance, byte[] fileData) {
+        return addJob(printer, fileName, owner, instance, fileData, Job.Priority.NORMAL, null);
+    }
+    
+    /**
+     * Agrega un trabajo a la cola de impresión con una clase de prioridad
+     * @param pool id del pool por el que llegó el trabajo (null si fue directo a la impresora)
+     */
+    @Transactional
+    public Job addJob(Printer printer, String fileName, String owner, User instance, byte[] fileData,
+                      Job.Priority priority, Long pool) {
         try {
             log.info("📝 Agregando trabajo a cola: {} -> {}", fileName, printer.getAlias());
             
             // Crear el trabajo en la base de datos
-            Job job = new Job();
-            job.setPrinter(printer);
-            job.setFileName(fileName);
-            job.setOwner(owner);
-            job.setInstance(instance);
+            Job job = newJob(printer, fileName, owner, instance, priority,
+                fileData != null ? fileData.length : 0, pool);
             
             entityManager.persist(job);
+            job.setSequence(job.getId());
             entityManager.flush();
             
             // Guardar archivo en spool si hay datos
             if (fileData != null && fileData.length > 0) {
                 Path spoolFile = printSpoolDir.resolve("job-" + job.getId() + "-" + fileName);
                 Files.write(spoolFile, fileData);
+                spoolFiles.put(job.getId(), spoolFile);
                 log.debug("💾 Archivo guardado en spool: {}", spoolFile);
             }
             
+            jobIndex.added(job);
             log.info("✅ Trabajo {} agregado a la cola de {}", job.getId(), printer.getAlias());
             return job;
             
@@ -169,33 +269,139 @@ public class PrintQueueService {
             throw new RuntimeException("Error al agregar trabajo: " + e.getMessage());
         }
     }
-    
+
+    /**
+     * Agrega un trabajo cuyo contenido ya está en disco
+     * El archivo se mueve al spool sin cargarlo en memoria
+     */
+    @Transactional
+    public Job addJob(Printer printer, String fileName, String owner, User instance, Path dataFile) {
+        return addJob(printer, fileName, owner, instance, dataFile, Job.Priority.NORMAL, null);
+    }
+
+    /**
+     * Agrega un trabajo cuyo contenido ya está en disco, con una clase de prioridad
+     * @param pool id del pool por el que llegó el trabajo (null si fue directo a la impresora)
+     */
+    @Transactional
+    public Job addJob(Printer printer, String fileName, String owner, User instance, Path dataFile,
+                      Job.Priority priority, Long pool) {
+        try {
+            log.info("📝 Agregando trabajo a cola (desde archivo): {} -> {}", fileName, printer.getAlias());
+
+            Job job = newJob(printer, fileName, owner, instance, priority, Files.size(dataFile), pool);
+
+            entityManager.persist(job);
+            job.setSequence(job.getId());
+            entityManager.flush();
+
+            Path spoolFile = printSpoolDir.resolve("job-" + job.getId() + "-" + fileName);
+            Files.move(dataFile, spoolFile, StandardCopyOption.REPLACE_EXISTING);
+            spoolFiles.put(job.getId(), spoolFile);
+            log.debug("💾 Archivo movido a spool: {}", spoolFile);
+
+            // Índice de páginas anotado durante la conversión (envío por tramos)
+            Path pageIndex = PageIndex.sidecarOf(dataFile);
+            if (Files.exists(pageIndex)) {
+                Files.move(pageIndex, PageIndex.sidecarOf(spoolFile), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            jobIndex.added(job);
+            log.info("✅ Trabajo {} agregado a la cola de {}", job.getId(), printer.getAlias());
+            return job;
+
+        } catch (Exception e) {
+            log.error("❌ Error agregando trabajo a cola", e);
+            throw new RuntimeException("Error al agregar trabajo: " + e.getMessage());
+        }
+    }
+
+    private Job newJob(Printer printer, String fileName, String owner, User instance,
+                       Job.Priority priority, long size, Long pool) {
+        Job job = new Job();
+        job.setPrinter(printer);
+        job.setFileName(fileName);
+        job.setOwner(owner);
+        job.setInstance(instance);
+        job.setPriority(priority != null ? priority : Job.Priority.NORMAL);
+        job.setSize(size);
+        job.setShareGroup(fairShareScheduler.resolveShareGroup(owner));
+        job.setPool(pool);
+        return job;
+    }
+
+    /**
+     * Fija un trabajo al inicio de su cola
+     * La secuencia queda por debajo de todas las de la impresora, así que el
+     * planificador lo envía antes que cualquier prioridad o reparto
+     */
+    @Transactional
+    public boolean moveJobToTop(Long jobId) {
+        Job job = entityManager.find(Job.class, jobId);
+        if (job == null || job.getPrinter() == null) {
+            return false;
+        }
+        Long first = entityManager.createQuery(
+                "SELECT MIN(COALESCE(j.sequence, j.id)) FROM Job j WHERE j.printer.id = :printerId", Long.class)
+            .setParameter("printerId", job.getPrinter().getId())
+            .getSingleResult();
+        job.setSequence(Math.min(first != null ? first : 0, 0) - 1);
+        log.info("⏫ Trabajo {} fijado al inicio de la cola de {} (secuencia {})",
+            jobId, job.getPrinter().getAlias(), job.getSequence());
+        return true;
+    }
+
     /**
      * Procesa la cola de una impresora específica
      */
     private void processQueue(Printer printer) {
         try {
-            // Obtener trabajos pendientes de esta impresora
+            // Obtener trabajos pendientes de esta impresora en su orden persistido
             @SuppressWarnings("unchecked")
-            List<Job> jobs = entityManager.createQuery(
-                "SELECT j FROM Job j WHERE j.printer.id = :printerId ORDER BY j.id ASC")
+            List<Job> pending = entityManager.createQuery(
+                "SELECT j FROM Job j WHERE j.printer.id = :printerId " +
+                "ORDER BY COALESCE(j.sequence, j.id) ASC")
                 .setParameter("printerId", printer.getId())
-                .setMaxResults(1)
+                .setMaxResults(Math.max(1, schedulerWindow))
                 .getResultList();
             
-            if (jobs.isEmpty()) {
+            if (pending.isEmpty()) {
+                fairShareScheduler.reset(printer.getId());
+                return;
+            }
+            
+            // Un envío a la vez por impresora
+            if (pending.stream().anyMatch(j -> processingJobs.contains(j.getId()))) {
                 return;
             }
             
+            // Prioridad, trabajos fijados y reparto justo entre grupos
+            List<Job> jobs = fairShareScheduler.order(printer, pending);
             Job job = jobs.get(0);
             
-            // Verificar si ya está en proceso
-            if (processingJobs.contains(job.getId())) {
+            List<Job> batch = batchEnabled
+                ? collectBatch(printer, jobs.subList(0, Math.min(jobs.size(), Math.max(1, batchMaxJobs))))
+                : Collections.emptyList();
+            
+            // En clúster solo se envía lo que este nodo consiga tomar
+            List<Job> selected = batch.size() > 1 ? batch : List.of(job);
+            List<Long> claimed = leaseService.claim(printer.getId(), selected.stream().map(Job::getId).toList());
+            if (claimed.isEmpty()) {
+                return;
+            }
+            List<Job> toSend = selected.subList(0, claimed.size());
+            if (toSend.size() > 1) {
+                toSend.forEach(j -> {
+                    processingJobs.add(j.getId());
+                    fairShareScheduler.charge(printer, j);
+                });
+                executorService.submit(() -> processBatch(printer, toSend));
                 return;
             }
             
             // Marcar como en proceso
             processingJobs.add(job.getId());
+            fairShareScheduler.charge(printer, job);
             
             // Procesar trabajo en thread separado
             executorService.submit(() -> processJob(job));
@@ -205,14 +411,155 @@ public class PrintQueueService {
         }
     }
     
+    /**
+     * Trabajos consecutivos (desde el primero) que pueden ir en un mismo envío:
+     * impresora de red RAW y todos en el mismo lenguaje concatenable (PCL o PostScript)
+     */
+    private List<Job> collectBatch(Printer printer, List<Job> jobs) {
+        List<Job> batch = new ArrayList<>();
+        boolean isSharedUSB = printer.getLocation() != null && printer.getLocation().contains("Compartida-USB");
+        boolean isRaw = printer.getProtocol() == null || "RAW".equalsIgnoreCase(printer.getProtocol());
+        if (jobs.size() < 2 || isSharedUSB || !isRaw) {
+            return batch;
+        }
+        
+        String family = null;
+        for (Job candidate : jobs) {
+            if (processingJobs.contains(candidate.getId())) {
+                break;
+            }
+            BatchTraits traits = batchTraits.get(candidate.getId());
+            if (traits == null || traits.printerId() != printer.getId()) {
+                traits = new BatchTraits(printer.getId(), batchFamily(printer, candidate));
+                batchTraits.put(candidate.getId(), traits);
+            }
+            String candidateFamily = traits.family();
+            if (candidateFamily == null || (family != null && !family.equals(candidateFamily))) {
+                break;
+            }
+            family = candidateFamily;
+            batch.add(candidate);
+        }
+        return batch;
+    }
+    
+    /**
+     * Lenguaje del trabajo para envíos agrupados, o null si va solo
+     */
+    private String batchFamily(Printer printer, Job job) {
+        Path spoolFile = findSpoolFile(job);
+        // Los documentos grandes van por tramos, fuera de los envíos agrupados
+        if (spoolFile == null || loadChunkIndex(printer, spoolFile) != null) {
+            return null;
+        }
+        return concatenableFamily(spoolFile);
+    }
+    
+    /**
+     * Lenguaje del archivo de spool si admite concatenación, o null
+     */
+    private String concatenableFamily(Path spoolFile) {
+        try (InputStream in = Files.newInputStream(spoolFile)) {
+            byte[] head = in.readNBytes(2);
+            if (head.length < 2) {
+                return null;
+            }
+            // PCL (ESC E, ESC &) o PJL/UEL (ESC %)
+            if (head[0] == 0x1B && (head[1] == 'E' || head[1] == '&' || head[1] == '%')) {
+                return "PCL";
+            }
+            if (head[0] == '%' && head[1] == '!') {
+                return "PostScript";
+            }
+        } catch (IOException e) {
+            log.debug("No se pudo leer {}: {}", spoolFile, e.getMessage());
+        }
+        return null;
+    }
+    
+    /**
+     * Envía una ráfaga de trabajos por una sola conexión
+     *
+     * Cada trabajo se sigue contabilizando y eliminando por separado. Si el
+     * envío se corta, los trabajos no entregados pasan por el camino normal
+     * (reintentos y redescubrimiento). Si el corte deja un trabajo a medias o
+     * sin confirmar, ese y los siguientes siguen en cola sin eliminarse y sin
+     * reenviarse ahora; los retoma la siguiente pasada, en su orden.
+     */
+    private void processBatch(Printer printer, List<Job> batch) {
+        Thread worker = Thread.currentThread();
+        try {
+            batch.forEach(j -> deliveryThreads.put(j.getId(), worker));
+            ippPrintService.clearAbort();
+            log.info("📦 Envío agrupado: {} trabajos para {}", batch.size(), printer.getAlias());
+            
+            List<Path> files = new ArrayList<>();
+            for (Job job : batch) {
+                files.add(cancelledJobs.contains(job.getId()) ? null : findSpoolFile(job));
+                jobIndex.processing(job.getId());
+            }
+            
+            int port = printer.getPort() != null ? printer.getPort() : 9100;
+            long startTime = System.currentTimeMillis();
+            IppPrintService.BatchResult result = files.contains(null) ? new IppPrintService.BatchResult(0, false)
+                : ippPrintService.sendBatchToRawPort(printer.getIp(), files, port);
+            int delivered = result.getDelivered();
+            if (delivered > 0) {
+                long deliveredBytes = batch.subList(0, delivered).stream()
+                    .mapToLong(j -> j.getSize() != null ? j.getSize() : 0).sum();
+                poolService.recordDelivery(printer.getId(), deliveredBytes, System.currentTimeMillis() - startTime);
+            }
+            // Una cancelación que cortó la ráfaga no afecta al resto de trabajos
+            ippPrintService.clearAbort();
+            
+            for (int i = 0; i < batch.size(); i++) {
+                Job job = batch.get(i);
+                if (i < delivered) {
+                    log.info("✅ Trabajo {} ({}) entregado en envío agrupado", job.getId(), job.getFileName());
+                    jobIndex.finished(job.getId(), JobIndex.State.COMPLETED);
+                    removeJob(job);
+                    processingJobs.remove(job.getId());
+                } else if (result.isUncertain()) {
+                    if (i == delivered) {
+                        log.warn("⚠️ Trabajo {} ({}) sin confirmar en envío agrupado: sigue en cola",
+                            job.getId(), job.getFileName());
+                    }
+                    jobIndex.pending(job.getId());
+                } else {
+                    processJob(job);
+                }
+            }
+        } catch (Exception e) {
+            log.error("❌ Error en envío agrupado para {}", printer.getAlias(), e);
+        } finally {
+            batch.forEach(j -> {
+                processingJobs.remove(j.getId());
+                deliveryThreads.remove(j.getId(), worker);
+                cancelledJobs.remove(j.getId());
+                leaseService.release(j.getId());
+            });
+            ippPrintService.clearAbort();
+        }
+    }
+    
     /**
      * Procesa un trabajo individual
      */
     private void processJob(Job job) {
         int retries = 0;
         boolean success = false;
+        Thread worker = Thread.currentThread();
         
         try {
+            // Registrar el hilo antes de mirar la marca: una cancelación
+            // posterior cortará este envío
+            deliveryThreads.put(job.getId(), worker);
+            ippPrintService.clearAbort();
+            if (cancelledJobs.contains(job.getId())) {
+                log.info("🛑 Trabajo {} cancelado antes de enviarse", job.getId());
+                return;
+            }
+            jobIndex.processing(job.getId());
             log.info("🖨️ Procesando trabajo {}: {}", job.getId(), job.getFileName());
             
             Printer printer = job.getPrinter();
@@ -222,14 +569,23 @@ public class PrintQueueService {
                                  printer.getLocation().contains("Compartida-USB");
             
             // Para USB compartidas, solo 1 intento (el cliente debe estar corriendo)
-            int maxRetries = isSharedUSB ? 1 : MAX_RETRIES;
+            // Los trabajos de un pool tampoco esperan: pasan a otro miembro
+            int maxRetries = isSharedUSB || job.getPool() != null ? 1 : MAX_RETRIES;
+            long startTime = System.currentTimeMillis();
+            
+            // PDF encolado sin convertir: se rasteriza aquí, no en la recepción IPP
+            rasterizePending(job, printer);
             
-            while (!success && retries < maxRetries) {
+            while (!success && retries < maxRetries && !cancelledJobs.contains(job.getId())) {
                 try {
                     // Buscar archivo en spool
                     Path spoolFile = findSpoolFile(job);
                     
-                    if (spoolFile != null && Files.exists(spoolFile)) {
+                    PageIndex pageIndex = spoolFile != null ? loadChunkIndex(printer, spoolFile) : null;
+                    if (pageIndex != null) {
+                        // Documento grande: por tramos, retomando desde el último confirmado
+                        success = sendInChunks(job, printer, spoolFile, pageIndex);
+                    } else if (spoolFile != null && Files.exists(spoolFile)) {
                         // Enviar archivo a la impresora
                         success = sendToPrinter(printer, spoolFile);
                     } else {
@@ -239,7 +595,7 @@ public class PrintQueueService {
                         success = sendToPrinter(printer, spoolFile);
                     }
                     
-                    if (!success) {
+                    if (!success && !cancelledJobs.contains(job.getId())) {
                         retries++;
                         if (retries < maxRetries) {
                             if (isSharedUSB) {
@@ -263,7 +619,15 @@ public class PrintQueueService {
                 }
             }
             
-            if (success) {
+            if (cancelledJobs.contains(job.getId())) {
+                // cancelJob ya lo eliminó de la cola
+                log.info("🛑 Envío del trabajo {} cancelado", job.getId());
+                
+            } else if (success) {
+                jobIndex.finished(job.getId(), JobIndex.State.COMPLETED);
+                poolService.recordDelivery(printer.getId(), job.getSize() != null ? job.getSize() : 0,
+                    System.currentTimeMillis() - startTime);
+                
                 log.info("════════════════════════════════");
                 log.info("✅ TRABAJO {} COMPLETADO EXITOSAMENTE", job.getId());
                 log.info("════════════════════════════════");
@@ -277,6 +641,11 @@ public class PrintQueueService {
                 log.info("   Procediendo a eliminar el trabajo de la cola...");
                 removeJob(job);
                 
+            } else if (job.getPool() != null && poolService.failover(job, processingJobs) != null) {
+                // Trabajo de pool: sigue en cola en otro miembro, no se elimina
+                log.warn("🔀 Trabajo {} reasignado dentro del pool tras fallar en {}",
+                    job.getId(), printer.getAlias());
+                
             } else {
                 log.error("════════════════════════════════");
                 log.error("❌ TRABAJO {} FALLÓ DESPUÉS DE {} INTENTOS", job.getId(), maxRetries);
@@ -287,6 +656,7 @@ public class PrintQueueService {
                 log.error("════════════════════════════════");
                 
                 // CRÍTICO: Eliminar trabajo fallido para evitar bucle infinito
+                jobIndex.finished(job.getId(), JobIndex.State.ABORTED);
                 removeJob(job);
             }
             
@@ -294,6 +664,114 @@ public class PrintQueueService {
             log.error("❌ Error crítico procesando trabajo {}", job.getId(), e);
         } finally {
             processingJobs.remove(job.getId());
+            deliveryThreads.remove(job.getId(), worker);
+            cancelledJobs.remove(job.getId());
+            leaseService.release(job.getId());
+        }
+    }
+    
+    /**
+     * Rasteriza el PDF de un trabajo si la impresora no lo acepta tal cual
+     * y actualiza su tamaño (coste para el reparto y estadísticas del pool)
+     */
+    private void rasterizePending(Job job, Printer printer) {
+        Path spoolFile = findSpoolFile(job);
+        if (spoolFile == null) {
+            return;
+        }
+        try {
+            if (!documentConverter.rasterizeSpooled(spoolFile, capabilityService.resolve(printer))) {
+                return;
+            }
+            // El contenido ya no es el PDF: su lenguaje y sus tramos cambian
+            batchTraits.remove(job.getId());
+            long size = Files.size(spoolFile);
+            job.setSize(size);
+            transactionTemplate.execute(status -> entityManager.createQuery(
+                    "UPDATE Job j SET j.size = :size WHERE j.id = :id")
+                .setParameter("size", size)
+                .setParameter("id", job.getId())
+                .executeUpdate());
+            log.info("🖼️ Trabajo {} rasterizado antes del envío ({} KB)", job.getId(), size / 1024);
+        } catch (Exception e) {
+            log.warn("⚠️ No se pudo rasterizar el trabajo {}: {}", job.getId(), e.getMessage());
+        }
+    }
+    
+    /**
+     * Índice de páginas si el documento debe enviarse por tramos: impresora de
+     * red RAW, documento rasterizado con índice y por encima de chunkMinBytes
+     */
+    private PageIndex loadChunkIndex(Printer printer, Path spoolFile) {
+        if (!chunkEnabled) {
+            return null;
+        }
+        boolean isSharedUSB = printer.getLocation() != null && printer.getLocation().contains("Compartida-USB");
+        boolean isRaw = printer.getProtocol() == null || "RAW".equalsIgnoreCase(printer.getProtocol());
+        if (isSharedUSB || !isRaw) {
+            return null;
+        }
+        try {
+            long size = Files.size(spoolFile);
+            if (size < chunkMinBytes) {
+                return null;
+            }
+            PageIndex index = PageIndex.read(PageIndex.sidecarOf(spoolFile), size);
+            return index != null && index.chunkCount(Math.max(1, pagesPerChunk)) > 1 ? index : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Envía un documento por tramos de páginas, cada uno por su propia conexión
+     *
+     * Tras cada tramo escrito se guarda el punto de control en el trabajo, de
+     * modo que un reintento (o un reinicio del servidor) continúa por el
+     * siguiente tramo en lugar de reenviar el documento completo.
+     */
+    private boolean sendInChunks(Job job, Printer printer, Path spoolFile, PageIndex index) {
+        int perChunk = Math.max(1, pagesPerChunk);
+        int chunks = index.chunkCount(perChunk);
+        int confirmed = job.getConfirmedChunks() != null ? job.getConfirmedChunks() : 0;
+        int port = printer.getPort() != null ? printer.getPort() : 9100;
+        
+        log.info("📑 Envío por tramos: {} páginas en {} tramos de {} (desde el tramo {})",
+            index.getPageCount(), chunks, perChunk, confirmed + 1);
+        
+        for (int chunk = confirmed; chunk < chunks; chunk++) {
+            if (!ippPrintService.sendRegionsToRawPort(printer.getIp(), spoolFile, port,
+                    index.chunkRegions(chunk, perChunk))) {
+                log.warn("⚠️ Tramo {}/{} no entregado; el reintento continuará desde aquí", chunk + 1, chunks);
+                return false;
+            }
+            saveCheckpoint(job, chunk + 1);
+            log.info("   ✅ Tramo {}/{} entregado", chunk + 1, chunks);
+        }
+        return true;
+    }
+    
+    /**
+     * Persiste el número de tramos entregados de un trabajo
+     */
+    private void saveCheckpoint(Job job, int confirmedChunks) {
+        job.setConfirmedChunks(confirmedChunks);
+        // En clúster, solo mientras la concesión siga siendo de este nodo
+        Long token = leaseService.tokenOf(job.getId());
+        try {
+            transactionTemplate.execute(status -> {
+                var update = entityManager.createQuery(
+                        "UPDATE Job j SET j.confirmedChunks = :chunks WHERE j.id = :id" +
+                        (token != null ? " AND j.leaseToken = :token" : ""))
+                    .setParameter("chunks", confirmedChunks)
+                    .setParameter("id", job.getId());
+                if (token != null) {
+                    update.setParameter("token", token);
+                }
+                return update.executeUpdate();
+            });
+        } catch (Exception e) {
+            log.warn("⚠️ No se pudo guardar el punto de control del trabajo {}: {}", job.getId(), e.getMessage());
         }
     }
     
@@ -332,7 +810,7 @@ public class PrintQueueService {
                 log.info("════════════════════════════════");
                 
                 log.info("📡 Enviando trabajo al cliente USB {}:631...", ip);
-                success = ippPrintService.sendToRawPort(ip, file, 631);
+                success = sendToUsbClient(ip, file);
                 
                 if (success) {
                     log.info("════════════════════════════════");
@@ -353,6 +831,14 @@ public class PrintQueueService {
                 }
             }
             
+            // Límite de tamaño anunciado por la impresora (perfil ya resuelto, sin red)
+            Long maxJobSize = capabilityService.resolve(printer).getMaxJobSize();
+            if (maxJobSize != null && Files.size(file) > maxJobSize) {
+                log.error("❌ Trabajo de {} bytes supera el máximo de la impresora {} ({} bytes)",
+                    Files.size(file), printer.getAlias(), maxJobSize);
+                return false;
+            }
+            
             // Impresoras de red normales (incluso si tienen ippPort asignado)
             // Método 1: Puerto RAW (9100)
             if (printer.getProtocol() == null || "RAW".equalsIgnoreCase(printer.getProtocol())) {
@@ -394,6 +880,11 @@ public class PrintQueueService {
             // AUTO-REDESCUBRIMIENTO: Si todos los métodos fallaron,
             // la impresora puede haber cambiado de IP
             // ═══════════════════════════════════════════════════════════
+            // Un envío cancelado no indica que la impresora haya cambiado de IP
+            if (ippPrintService.isDeliveryAborted()) {
+                return false;
+            }
+            
             if (!success && !isSharedUSB) {
                 log.warn("════════════════════════════════════════════════════════════");
                 log.warn("⚠️ IMPRESORA NO RESPONDE EN IP ACTUAL: {}", ip);
@@ -469,17 +960,53 @@ public class PrintQueueService {
     }
     
     /**
-     * Busca el archivo de spool de un trabajo
+     * Envía al cliente USB, comprimido si el cliente lo admite y compensa
+     *
+     * Solo se repite en RAW si el intento comprimido no llegó a enviar nada;
+     * con datos ya enviados el cliente puede estar imprimiendo y un segundo
+     * envío sacaría el trabajo dos veces, así que se da por fallido.
+     */
+    private boolean sendToUsbClient(String ip, Path file) {
+        String jobLabel = file.getFileName().toString();
+        try {
+            if (usbTransportService.trySendCompressed(ip, file, jobLabel)) {
+                return true;
+            }
+        } catch (UsbTransportService.NotSentException e) {
+            log.warn("⚠️ Envío comprimido a {} falló sin enviar datos ({}), reintentando en RAW", ip, e.getMessage());
+        } catch (Exception e) {
+            log.error("❌ Envío comprimido a {} interrumpido con datos ya enviados ({}): no se repite en RAW",
+                ip, e.getMessage());
+            return false;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        boolean success = ippPrintService.sendToRawPort(ip, file, 631);
+        long size = file.toFile().length();
+        usbTransportService.record(jobLabel, ip, UsbTransportProtocol.Mode.RAW, size,
+            success ? size : 0, System.currentTimeMillis() - startTime, success);
+        return success;
+    }
+    
+    /**
+     * Busca el archivo de spool de un trabajo (el directorio solo se lista
+     * la primera vez; después se recuerda la ruta)
      */
     private Path findSpoolFile(Job job) {
+        Path known = spoolFiles.get(job.getId());
+        if (known != null) {
+            return known;
+        }
         try {
             String pattern = "job-" + job.getId() + "-";
             File[] files = printSpoolDir.toFile().listFiles(
-                (dir, name) -> name.startsWith(pattern)
+                (dir, name) -> name.startsWith(pattern) && !name.endsWith(PageIndex.SUFFIX)
             );
             
             if (files != null && files.length > 0) {
-                return files[0].toPath();
+                Path spoolFile = files[0].toPath();
+                spoolFiles.put(job.getId(), spoolFile);
+                return spoolFile;
             }
         } catch (Exception e) {
             log.error("Error buscando archivo de spool", e);
@@ -487,6 +1014,14 @@ public class PrintQueueService {
         return null;
     }
     
+    /**
+     * Olvida la ruta y las características de spool de un trabajo eliminado
+     */
+    private void forgetSpool(long jobId) {
+        spoolFiles.remove(jobId);
+        batchTraits.remove(jobId);
+    }
+    
     /**
      * Intenta re-descubrir una impresora que no responde
      * MEJORADO: Usa MAC Address para identificación única
@@ -495,6 +1030,17 @@ public class PrintQueueService {
         try {
             log.info("🔍 Estrategia de re-descubrimiento:");
             
+            // Sin coste: la misma impresora (UUID o nombre) se anuncia por mDNS desde otra IP
+            String ipByMdns = mdnsBrowser.relocated(printer.getIp());
+            if (ipByMdns != null) {
+                log.info("   ✓ Anunciada por mDNS en {}", ipByMdns);
+                int port = printer.getPort() != null ? printer.getPort() : 9100;
+                if (isPortOpenQuick(ipByMdns, port)) {
+                    log.info("   ✓ Puerto {} confirmado - Impresora verificada!", port);
+                    return ipByMdns;
+                }
+            }
+            
             // PASO 0: Si tiene MAC Address, buscar por MAC (MÁS CONFIABLE)
             if (printer.getMacAddress() != null && !printer.getMacAddress().isEmpty()) {
                 log.info("   0. [PRIORITARIO] Buscar por MAC Address: {}", printer.getMacAddress());
@@ -775,28 +1321,12 @@ public class PrintQueueService {
      * Genera lista de IPs desde subred
      */
     private List<String> generateIpsFromSubnet(String cidr, int maxIps) {
-        List<String> ips = new ArrayList<>();
         try {
-            String[] parts = cidr.split("/");
-            String baseIP = parts[0];
-            String[] octets = baseIP.split("\\.");
-            
-            int base = Integer.parseInt(octets[0]) << 24 |
-                      Integer.parseInt(octets[1]) << 16 |
-                      Integer.parseInt(octets[2]) << 8;
-            
-            for (int i = 1; i <= Math.min(254, maxIps); i++) {
-                int ip = base | i;
-                ips.add(String.format("%d.%d.%d.%d",
-                    (ip >> 24) & 0xFF,
-                    (ip >> 16) & 0xFF,
-                    (ip >> 8) & 0xFF,
-                    ip & 0xFF));
-            }
-        } catch (Exception e) {
+            return Ipv4RangeSet.hosts(cidr).first(maxIps);
+        } catch (IllegalArgumentException e) {
             log.error("Error generando IPs: {}", e.getMessage());
+            return new ArrayList<>();
         }
-        return ips;
     }
     
     /**
@@ -862,22 +1392,19 @@ public class PrintQueueService {
         try {
             log.info("🗑️ Eliminando trabajo {} de la cola...", job.getId());
             
-            // Eliminar archivo de spool primero (no requiere transacción)
-            Path spoolFile = findSpoolFile(job);
-            if (spoolFile != null) {
-                Files.deleteIfExists(spoolFile);
-                log.debug("   Archivo de spool eliminado");
-            }
-            
             // Ejecutar eliminación en una nueva transacción
-            transactionTemplate.execute(status -> {
+            Boolean removed = transactionTemplate.execute(status -> {
                 try {
-                    Job managedJob = entityManager.find(Job.class, job.getId());
-                    if (managedJob != null) {
+                    // Fila bloqueada: en clúster nadie puede retomarlo entre la comprobación y el borrado
+                    Job managedJob = entityManager.find(Job.class, job.getId(),
+                        leaseService.isEnabled() ? LockModeType.PESSIMISTIC_WRITE : LockModeType.NONE);
+                    if (managedJob != null && !leaseService.holds(managedJob)) {
+                        log.warn("   Trabajo {} retomado por otro nodo; no se elimina", job.getId());
+                        return false;
+                    } else if (managedJob != null) {
                         entityManager.remove(managedJob);
                         entityManager.flush();
                         log.debug("   Trabajo {} eliminado de la base de datos", job.getId());
-                        log.info("✅ Trabajo {} eliminado completamente de la cola", job.getId());
                     } else {
                         log.warn("   Trabajo {} ya no existe en la BD", job.getId());
                     }
@@ -886,9 +1413,21 @@ public class PrintQueueService {
                     status.setRollbackOnly();
                     throw e;
                 }
-                return null;
+                return true;
             });
             
+            // El spool puede ser compartido: solo se borra si el trabajo era de este nodo
+            if (Boolean.TRUE.equals(removed)) {
+                Path spoolFile = findSpoolFile(job);
+                if (spoolFile != null) {
+                    Files.deleteIfExists(spoolFile);
+                    Files.deleteIfExists(PageIndex.sidecarOf(spoolFile));
+                    log.debug("   Archivo de spool eliminado");
+                }
+                log.info("✅ Trabajo {} eliminado completamente de la cola", job.getId());
+            }
+            forgetSpool(job.getId());
+            
         } catch (Exception e) {
             log.error("❌ Error eliminando trabajo completado: {}", e.getMessage(), e);
         }
@@ -917,6 +1456,15 @@ public class PrintQueueService {
                         }
                         lastJobCount = jobCount;
                         
+                        // Trabajos eliminados por otro nodo (clúster): olvidar sus rutas
+                        if (spoolFiles.size() > jobCount) {
+                            @SuppressWarnings("unchecked")
+                            Set<Long> live = new HashSet<>(entityManager.createQuery("SELECT j.id FROM Job j")
+                                .getResultList());
+                            spoolFiles.keySet().retainAll(live);
+                            batchTraits.keySet().retainAll(live);
+                        }
+                        
                         // Obtener solo los IDs de impresoras con trabajos (más eficiente)
                         @SuppressWarnings("unchecked")
                         List<Long> printerIds = entityManager.createQuery(
@@ -939,6 +1487,8 @@ public class PrintQueueService {
                             log.info("✅ Cola vacía, esperando nuevos trabajos...");
                         }
                         lastJobCount = 0;
+                        spoolFiles.clear();
+                        batchTraits.clear();
                     }
                     
                     // Esperar antes del siguiente ciclo
@@ -987,6 +1537,13 @@ public class PrintQueueService {
             stats.put("processingJobs", processingJobs.size());
             stats.put("maxConcurrent", MAX_CONCURRENT_JOBS);
             stats.put("running", running);
+            stats.put("usbTransfers", usbTransportService.getRecentTransfers());
+            stats.put("conversionCache", conversionCache.getStatistics());
+            stats.put("fairShare", fairShareScheduler.getStatistics());
+            stats.put("pools", poolService.getStatistics());
+            stats.put("jobIndex", jobIndex.getStatistics());
+            stats.put("duplicates", duplicateFilter.getStatistics());
+            stats.put("cluster", leaseService.getStatistics());
             
         } catch (Exception e) {
             log.error("Error obteniendo estadísticas", e);
@@ -1007,12 +1564,15 @@ public class PrintQueueService {
                 Path spoolFile = findSpoolFile(job);
                 if (spoolFile != null) {
                     Files.deleteIfExists(spoolFile);
+                    Files.deleteIfExists(PageIndex.sidecarOf(spoolFile));
                 }
+                forgetSpool(jobId);
                 
                 // Eliminar de base de datos
                 entityManager.remove(job);
                 entityManager.flush();
                 
+                stopDelivery(jobId);
                 log.info("✅ Trabajo {} cancelado", jobId);
                 return true;
             }
@@ -1022,6 +1582,38 @@ public class PrintQueueService {
         return false;
     }
     
+    /**
+     * Concesión perdida (otro nodo retomó el trabajo): se corta el envío
+     * local sin eliminar el trabajo ni darlo por terminado
+     */
+    private void leaseLost(long jobId) {
+        Thread worker = deliveryThreads.get(jobId);
+        if (worker != null || processingJobs.contains(jobId)) {
+            log.warn("🛑 Trabajo {} retomado por otro nodo: se corta el envío local", jobId);
+            cancelledJobs.add(jobId);
+            if (worker != null) {
+                ippPrintService.abortDelivery(worker);
+            }
+        }
+    }
+    
+    /**
+     * Marca un trabajo como cancelado y corta su envío si está en curso
+     * (la conexión RAW se cierra y no se hacen más reintentos)
+     */
+    private void stopDelivery(Long jobId) {
+        cancelledJobs.add(jobId);
+        jobIndex.finished(jobId, JobIndex.State.CANCELED);
+        Thread worker = deliveryThreads.get(jobId);
+        if (worker != null) {
+            log.info("🛑 Cortando el envío en curso del trabajo {}", jobId);
+            ippPrintService.abortDelivery(worker);
+        } else if (!processingJobs.contains(jobId)) {
+            // Ni en curso ni a punto de empezar: no hace falta recordar la marca
+            cancelledJobs.remove(jobId);
+        }
+    }
+    
     /**
      * Limpia la cola de una impresora
      */
@@ -1037,12 +1629,15 @@ public class PrintQueueService {
                     Path spoolFile = findSpoolFile(job);
                     if (spoolFile != null) {
                         Files.deleteIfExists(spoolFile);
+                        Files.deleteIfExists(PageIndex.sidecarOf(spoolFile));
                     }
+                    forgetSpool(job.getId());
                 }
                 
                 int count = jobs.size();
                 printer.getQueue().clear();
                 entityManager.flush();
+                jobs.forEach(job -> stopDelivery(job.getId()));
                 
                 log.info("✅ Cola de {} limpiada: {} trabajos eliminados", 
                     printer.getAlias(), count);
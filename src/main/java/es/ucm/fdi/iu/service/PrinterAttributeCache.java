@@ -0,0 +1,416 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.PGroup;
+import es.ucm.fdi.iu.model.Printer;
+import es.ucm.fdi.iu.model.PrinterCapabilities;
+import es.ucm.fdi.iu.repository.PrinterRepository;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Respuestas Get-Printer-Attributes precodificadas
+ *
+ * Los clientes Windows y CUPS consultan los atributos de la impresora
+ * continuamente. Cada respuesta se codifica una vez por impresora y se
+ * reutiliza; al responder solo se sustituye el request-id de la cabecera,
+ * sin acceso a la base de datos ni objetos intermedios.
+ *
+ * Una respuesta se reconstruye cuando:
+ * - Cambia la fila Printer (PrinterChangeListener)
+ * - Cambia su salud: fuera del reparto de un pool o cola llena en la admisión
+ * - Supera max-age (red de seguridad para UPDATE masivos o cambios externos)
+ *
+ * Cada reconstrucción recibe un número de versión nuevo.
+ *
+ * Los pools (grupos con puerto propio) tienen su propia respuesta: nombre y
+ * URI del pool, parado solo si lo están todos sus miembros y con lo que
+ * admiten todos ellos. Como la composición de un grupo cambia sin pasar
+ * por Printer, caduca a los pool-max-age ms (el ritmo del monitor de pools).
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class PrinterAttributeCache {
+
+    private static final int PRINTER_STATE_IDLE = 3;
+    private static final int PRINTER_STATE_STOPPED = 5;
+
+    // Print-Job, Validate-Job, Cancel-Job, Get-Job-Attributes, Get-Jobs, Get-Printer-Attributes
+    private static final int[] OPERATIONS_SUPPORTED = {0x0002, 0x0004, 0x0008, 0x0009, 0x000A, 0x000B};
+
+    // El servidor convierte el documento, así que acepta lo mismo para todas
+    private static final String[] DOCUMENT_FORMATS = {
+        "application/octet-stream", "application/pdf", "application/postscript", "application/vnd.hp-pcl"
+    };
+
+    // Cabecera de 8 bytes por hilo para parchear el request-id sin reservar memoria
+    private static final ThreadLocal<byte[]> HEADER = ThreadLocal.withInitial(() -> new byte[8]);
+
+    @Value("${printer.ipp.attributes-cache.max-age:300000}")
+    private long maxAge;
+
+    @Value("${printer.ipp.attributes-cache.pool-max-age:10000}")
+    private long poolMaxAge;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final PrinterRepository printerRepository;
+    private final PrinterCapabilityService capabilityService;
+    private final IppRoutingService routingService;
+
+    private final Map<Long, Encoded> byPrinter = new ConcurrentHashMap<>();
+    private final Map<Long, Encoded> byPool = new ConcurrentHashMap<>();
+    private volatile Encoded allPrinters;
+    private volatile Map<String, Long> idByName;
+
+    // Cualquier cambio lo incrementa; una reconstrucción solo se guarda si
+    // no hubo cambios mientras se leía la impresora
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong versions = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    // Salud comunicada por otros servicios
+    private final Set<Long> unreachable = ConcurrentHashMap.newKeySet();
+    private volatile Set<Long> notAccepting = Collections.emptySet();
+
+    /**
+     * Respuesta codificada completa (cabecera incluida, con request-id 0)
+     */
+    public static final class Encoded {
+        private final byte[] bytes;
+        private final long version;
+        private final long builtAt;
+
+        private Encoded(byte[] bytes, long version) {
+            this.bytes = bytes;
+            this.version = version;
+            this.builtAt = System.currentTimeMillis();
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Escribe la respuesta con el request-id de la petición
+         */
+        public void writeTo(OutputStream out, int requestId) throws IOException {
+            byte[] header = HEADER.get();
+            System.arraycopy(bytes, 0, header, 0, 4);
+            header[4] = (byte) (requestId >> 24);
+            header[5] = (byte) (requestId >> 16);
+            header[6] = (byte) (requestId >> 8);
+            header[7] = (byte) requestId;
+            out.write(header);
+            out.write(bytes, 8, bytes.length - 8);
+        }
+    }
+
+    public PrinterAttributeCache(PrinterRepository printerRepository,
+                                 PrinterCapabilityService capabilityService,
+                                 IppRoutingService routingService) {
+        this.printerRepository = printerRepository;
+        this.capabilityService = capabilityService;
+        this.routingService = routingService;
+    }
+
+    /**
+     * Respuesta para la impresora, o null si no existe
+     */
+    public Encoded forPrinter(long printerId) {
+        Encoded encoded = byPrinter.get(printerId);
+        if (encoded != null && System.currentTimeMillis() - encoded.builtAt < maxAge) {
+            hits.incrementAndGet();
+            return encoded;
+        }
+        long seen = changes.get();
+        Optional<Printer> printer = printerRepository.findById(printerId);
+        if (printer.isEmpty()) {
+            byPrinter.remove(printerId);
+            return null;
+        }
+        encoded = new Encoded(encodePrinter(printer.get()), versions.incrementAndGet());
+        rebuilds.incrementAndGet();
+        log.debug("🧾 Atributos IPP de {} codificados: versión {}, {} bytes",
+            printer.get().getAlias(), encoded.version, encoded.bytes.length);
+        if (changes.get() == seen) {
+            byPrinter.put(printerId, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Respuesta para el pool, o null si el grupo ya no existe o no es un pool
+     */
+    public Encoded forPool(long poolId) {
+        Encoded encoded = byPool.get(poolId);
+        if (encoded != null && System.currentTimeMillis() - encoded.builtAt < Math.min(maxAge, poolMaxAge)) {
+            hits.incrementAndGet();
+            return encoded;
+        }
+        long seen = changes.get();
+        List<PGroup> pools = entityManager.createQuery(
+                "SELECT DISTINCT g FROM PGroup g LEFT JOIN FETCH g.printers " +
+                "WHERE g.id = :id AND g.ippPort IS NOT NULL", PGroup.class)
+            .setParameter("id", poolId)
+            .getResultList();
+        if (pools.isEmpty()) {
+            byPool.remove(poolId);
+            return null;
+        }
+        encoded = new Encoded(encodePool(pools.get(0)), versions.incrementAndGet());
+        rebuilds.incrementAndGet();
+        if (changes.get() == seen) {
+            byPool.put(poolId, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Respuesta para la impresora nombrada en la URI (alias, con espacios o
+     * guiones bajos, sin distinguir mayúsculas), o null si no existe
+     */
+    public Encoded forName(String name) {
+        Long id = idForName(name);
+        return id != null ? forPrinter(id) : null;
+    }
+
+    /**
+     * Id de la impresora nombrada en la URI, o null si no existe
+     */
+    public Long idForName(String name) {
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        Map<String, Long> names = idByName;
+        if (names == null) {
+            names = loadNames();
+        }
+        return names.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Respuesta de CUPS-Get-Printers: un grupo de atributos por impresora
+     */
+    public Encoded forAllPrinters() {
+        Encoded encoded = allPrinters;
+        if (encoded != null && System.currentTimeMillis() - encoded.builtAt < maxAge) {
+            hits.incrementAndGet();
+            return encoded;
+        }
+        long seen = changes.get();
+        List<Printer> printers = printerRepository.findAll();
+        encoded = new Encoded(encodeAll(printers), versions.incrementAndGet());
+        rebuilds.incrementAndGet();
+        if (changes.get() == seen) {
+            allPrinters = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * La fila de la impresora cambió (o se creó o eliminó)
+     */
+    public void invalidate(long printerId) {
+        changes.incrementAndGet();
+        byPrinter.remove(printerId);
+        byPool.clear();
+        allPrinters = null;
+        idByName = null;
+    }
+
+    /**
+     * Impresora fuera del reparto de un pool (no responde) o de vuelta
+     */
+    public void setReachable(long printerId, boolean reachable) {
+        boolean changed = reachable ? unreachable.remove(printerId) : unreachable.add(printerId);
+        if (changed) {
+            healthChanged(printerId);
+        }
+    }
+
+    /**
+     * Impresoras cuya cola está llena y no admiten trabajos nuevos
+     */
+    public void setNotAccepting(Set<Long> printerIds) {
+        Set<Long> previous = notAccepting;
+        notAccepting = Set.copyOf(printerIds);
+        Set<Long> changed = new HashSet<>(previous);
+        changed.addAll(printerIds);
+        changed.removeIf(id -> previous.contains(id) && printerIds.contains(id));
+        changed.forEach(this::healthChanged);
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("cachedPrinters", byPrinter.size());
+        stats.put("cachedPools", byPool.size());
+        stats.put("hits", hits.get());
+        stats.put("rebuilds", rebuilds.get());
+        stats.put("version", versions.get());
+        stats.put("unreachable", new ArrayList<>(unreachable));
+        stats.put("notAccepting", notAccepting);
+        return stats;
+    }
+
+    private void healthChanged(long printerId) {
+        changes.incrementAndGet();
+        byPrinter.remove(printerId);
+        byPool.clear();
+        allPrinters = null;
+    }
+
+    private Map<String, Long> loadNames() {
+        long seen = changes.get();
+        Map<String, Long> names = new HashMap<>();
+        for (Printer printer : printerRepository.findAll()) {
+            String alias = printer.getAlias();
+            if (alias == null) {
+                continue;
+            }
+            String lower = alias.toLowerCase(Locale.ROOT);
+            names.putIfAbsent(lower, printer.getId());
+            names.putIfAbsent(lower.replace(' ', '_'), printer.getId());
+            names.putIfAbsent(lower.replace('_', ' '), printer.getId());
+        }
+        if (changes.get() == seen) {
+            idByName = names;
+        }
+        return names;
+    }
+
+    private byte[] encodePrinter(Printer printer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        // request-id 0: se parchea al enviar
+        IppEncoder.writeHeader(out, IppEncoder.STATUS_OK, 0);
+        out.write(IppEncoder.TAG_PRINTER);
+        writePrinterAttributes(out, printer);
+        out.write(IppEncoder.TAG_END);
+        return out.toByteArray();
+    }
+
+    private byte[] encodePool(PGroup pool) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        // request-id 0: se parchea al enviar
+        IppEncoder.writeHeader(out, IppEncoder.STATUS_OK, 0);
+        out.write(IppEncoder.TAG_PRINTER);
+        writePoolAttributes(out, pool);
+        out.write(IppEncoder.TAG_END);
+        return out.toByteArray();
+    }
+
+    private byte[] encodeAll(List<Printer> printers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512 + printers.size() * 1024);
+        // request-id 0: se parchea al enviar
+        IppEncoder.writeHeader(out, IppEncoder.STATUS_OK, 0);
+        for (Printer printer : printers) {
+            out.write(IppEncoder.TAG_PRINTER);
+            writePrinterAttributes(out, printer);
+        }
+        out.write(IppEncoder.TAG_END);
+        return out.toByteArray();
+    }
+
+    private void writePrinterAttributes(ByteArrayOutputStream out, Printer printer) {
+        List<String> reasons = reasonsOf(printer);
+        PrinterCapabilities capabilities = capabilityService.resolve(printer);
+        writeAttributes(out, routingService.printerUri(printer), nonNull(printer.getAlias()),
+            nonNull(printer.getLocation()), nonNull(printer.getModel()),
+            !reasons.isEmpty(), !notAccepting.contains(printer.getId()), reasons,
+            Boolean.TRUE.equals(capabilities.getColor()), Boolean.TRUE.equals(capabilities.getDuplex()));
+    }
+
+    /**
+     * Atributos del pool: parado solo si lo están todos los miembros, admite
+     * trabajos si los admite alguno, y color o dúplex si los tienen todos
+     * (el trabajo puede acabar en cualquiera)
+     */
+    private void writePoolAttributes(ByteArrayOutputStream out, PGroup pool) {
+        List<Printer> members = pool.getPrinters();
+        boolean stopped = true;
+        boolean accepting = false;
+        boolean color = !members.isEmpty();
+        boolean duplex = !members.isEmpty();
+        Set<String> reasons = new LinkedHashSet<>();
+        for (Printer member : members) {
+            List<String> memberReasons = reasonsOf(member);
+            stopped &= !memberReasons.isEmpty();
+            reasons.addAll(memberReasons);
+            accepting |= !notAccepting.contains(member.getId());
+            PrinterCapabilities capabilities = capabilityService.resolve(member);
+            color &= Boolean.TRUE.equals(capabilities.getColor());
+            duplex &= Boolean.TRUE.equals(capabilities.getDuplex());
+        }
+        if (members.isEmpty()) {
+            reasons.add("other-error");
+        }
+        String name = nonNull(pool.getName());
+        String uri = String.format("ipp://%s:%d/printers/%s",
+            es.ucm.fdi.iu.util.NetworkUtils.getServerIpAddress(), pool.getIppPort(), name.replace(" ", "_"));
+        writeAttributes(out, uri, name, "", "Pool de " + members.size() + " impresoras",
+            stopped, accepting, stopped ? new ArrayList<>(reasons) : List.of(), color, duplex);
+    }
+
+    /**
+     * Motivos por los que la impresora está parada (vacío si no lo está)
+     */
+    private List<String> reasonsOf(Printer printer) {
+        List<String> reasons = new ArrayList<>();
+        if (printer.getPaper() == 0) {
+            reasons.add("media-empty-error");
+        }
+        if (printer.getInk() == 0) {
+            reasons.add("marker-supply-empty-error");
+        }
+        if (unreachable.contains(printer.getId())) {
+            reasons.add("connecting-to-device");
+        }
+        return reasons;
+    }
+
+    private void writeAttributes(ByteArrayOutputStream out, String uri, String name, String location, String model,
+                                 boolean stopped, boolean accepting, List<String> reasons,
+                                 boolean color, boolean duplex) {
+        IppEncoder.writeString(out, IppEncoder.TAG_URI, "printer-uri-supported", uri);
+        IppEncoder.writeString(out, IppEncoder.TAG_KEYWORD, "uri-security-supported", "none");
+        IppEncoder.writeString(out, IppEncoder.TAG_KEYWORD, "uri-authentication-supported", "none");
+        IppEncoder.writeString(out, IppEncoder.TAG_NAME, "printer-name", name);
+        IppEncoder.writeString(out, IppEncoder.TAG_TEXT, "printer-location", location);
+        IppEncoder.writeString(out, IppEncoder.TAG_TEXT, "printer-make-and-model", model);
+        IppEncoder.writeInt(out, IppEncoder.TAG_ENUM, "printer-state", stopped ? PRINTER_STATE_STOPPED : PRINTER_STATE_IDLE);
+        IppEncoder.writeStrings(out, IppEncoder.TAG_KEYWORD, "printer-state-reasons",
+            reasons.isEmpty() ? List.of("none") : reasons);
+        IppEncoder.writeBoolean(out, "printer-is-accepting-jobs", accepting);
+        IppEncoder.writeStrings(out, IppEncoder.TAG_KEYWORD, "ipp-versions-supported", List.of("1.0", "1.1"));
+        IppEncoder.writeInts(out, IppEncoder.TAG_ENUM, "operations-supported", OPERATIONS_SUPPORTED);
+        IppEncoder.writeString(out, IppEncoder.TAG_CHARSET, "charset-configured", "utf-8");
+        IppEncoder.writeString(out, IppEncoder.TAG_CHARSET, "charset-supported", "utf-8");
+        IppEncoder.writeString(out, IppEncoder.TAG_LANGUAGE, "natural-language-configured", "en-us");
+        IppEncoder.writeString(out, IppEncoder.TAG_LANGUAGE, "generated-natural-language-supported", "en-us");
+        IppEncoder.writeString(out, IppEncoder.TAG_MIME, "document-format-default", DOCUMENT_FORMATS[0]);
+        IppEncoder.writeStrings(out, IppEncoder.TAG_MIME, "document-format-supported", Arrays.asList(DOCUMENT_FORMATS));
+        IppEncoder.writeString(out, IppEncoder.TAG_KEYWORD, "pdl-override-supported", "not-attempted");
+        IppEncoder.writeString(out, IppEncoder.TAG_KEYWORD, "compression-supported", "none");
+        IppEncoder.writeBoolean(out, "color-supported", color);
+        IppEncoder.writeStrings(out, IppEncoder.TAG_KEYWORD, "sides-supported", duplex
+            ? List.of("one-sided", "two-sided-long-edge", "two-sided-short-edge")
+            : List.of("one-sided"));
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+}
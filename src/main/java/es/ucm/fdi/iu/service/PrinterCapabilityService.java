@@ -0,0 +1,404 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Printer;
+import es.ucm.fdi.iu.model.PrinterCapabilities;
+import es.ucm.fdi.iu.model.PrinterCapabilities.Pdl;
+import es.ucm.fdi.iu.model.PrinterCapabilities.Source;
+import es.ucm.fdi.iu.repository.PrinterRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.snmp4j.*;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.*;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Perfiles de capacidades de las impresoras
+ *
+ * - Al registrar una impresora (o si su perfil caduca) se consulta en segundo
+ *   plano: primero IPP Get-Printer-Attributes, después SNMP (Printer MIB) y
+ *   por último el nombre del modelo
+ * - El perfil se guarda en la impresora (Printer.capabilities) y se mantiene en
+ *   memoria: resolve() nunca accede a la red
+ * - Mientras no hay perfil guardado se usa uno provisional deducido del modelo
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class PrinterCapabilityService {
+
+    // Printer MIB: prtInterpreterLangFamily
+    private static final String OID_INTERPRETER_LANG = "1.3.6.1.2.1.43.15.1.1.2";
+    private static final int LANG_PCL = 3;
+    private static final int LANG_POSTSCRIPT = 6;
+    private static final int LANG_ESCAPE_P = 9;
+    private static final int LANG_EPSON = 10;
+    private static final int LANG_PCLXL = 47;
+    private static final int LANG_PDF = 54;
+
+    private static final String[] REQUESTED_ATTRIBUTES = {
+        "document-format-supported", "sides-supported", "color-supported",
+        "job-k-octets-supported", "printer-make-and-model"
+    };
+
+    // Perfiles caducan tras este tiempo y se vuelven a consultar (ms)
+    @Value("${printer.capabilities.refresh-interval:21600000}")
+    private long refreshIntervalMs;
+
+    // Cada cuánto se buscan impresoras sin perfil o con perfil caducado (ms)
+    @Value("${printer.capabilities.check-interval:30000}")
+    private long checkIntervalMs;
+
+    @Value("${printer.connection.timeout:5000}")
+    private int connectionTimeout;
+
+    private final PrinterRepository printerRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final Map<Long, PrinterCapabilities> profiles = new ConcurrentHashMap<>();
+    private final Set<Long> refreshing = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService scheduler;
+
+    public PrinterCapabilityService(PrinterRepository printerRepository,
+                                    PlatformTransactionManager transactionManager) {
+        this.printerRepository = printerRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this::refreshStaleProfiles, 20000, checkIntervalMs, TimeUnit.MILLISECONDS);
+        log.info("🧾 Perfiles de capacidades: revisión cada {} s, caducidad {} h",
+            checkIntervalMs / 1000, refreshIntervalMs / 3600000);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Perfil de la impresora, sin acceso a red
+     */
+    public PrinterCapabilities resolve(Printer printer) {
+        PrinterCapabilities cached = profiles.get(printer.getId());
+        if (cached != null) {
+            return cached;
+        }
+        PrinterCapabilities stored = printer.getCapabilities();
+        if (stored != null && stored.getPdl() != null) {
+            profiles.put(printer.getId(), stored);
+            return stored;
+        }
+        // Aún sin perfil: provisional hasta que termine la consulta en segundo plano
+        PrinterCapabilities provisional = PrinterCapabilities.fromModel(printer.getModel());
+        profiles.put(printer.getId(), provisional);
+        refreshAsync(printer.getId());
+        return provisional;
+    }
+
+    /**
+     * Programa una consulta de capacidades (p. ej. tras registrar o editar la impresora)
+     */
+    public void refreshAsync(long printerId) {
+        if (scheduler != null && refreshing.add(printerId)) {
+            scheduler.execute(() -> {
+                try {
+                    refresh(printerId);
+                } finally {
+                    refreshing.remove(printerId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Consulta las capacidades de la impresora y guarda el perfil
+     */
+    public PrinterCapabilities refresh(long printerId) {
+        Optional<Printer> printerOpt = printerRepository.findById(printerId);
+        if (printerOpt.isEmpty()) {
+            profiles.remove(printerId);
+            return null;
+        }
+        Printer printer = printerOpt.get();
+
+        PrinterCapabilities capabilities = null;
+        boolean usbShared = printer.getLocation() != null && printer.getLocation().contains("Compartida-USB");
+        if (!usbShared && printer.getIp() != null) {
+            capabilities = probeIpp(printer.getIp());
+            if (capabilities == null) {
+                capabilities = probeSnmp(printer.getIp());
+            }
+        }
+        if (capabilities == null) {
+            capabilities = PrinterCapabilities.fromModel(printer.getModel());
+        }
+        capabilities.setProfiledAt(System.currentTimeMillis());
+
+        PrinterCapabilities profile = capabilities;
+        transactionTemplate.executeWithoutResult(status -> {
+            Printer managed = entityManager.find(Printer.class, printerId);
+            if (managed != null) {
+                managed.setCapabilities(profile);
+            }
+        });
+        profiles.put(printerId, profile);
+
+        log.info("🧾 Perfil de {} ({}): PDL={} pdf={} ps={} pwg={} dúplex={} color={}",
+            printer.getAlias(), profile.getProfileSource(), profile.getPdl(), profile.acceptsPdf(),
+            profile.acceptsPostScript(), profile.acceptsPwgRaster(), profile.getDuplex(), profile.getColor());
+        return profile;
+    }
+
+    /**
+     * Olvida el perfil en memoria (impresora eliminada o modificada)
+     */
+    public void invalidate(long printerId) {
+        profiles.remove(printerId);
+    }
+
+    /**
+     * Revisa periódicamente impresoras sin perfil o con perfil caducado
+     */
+    private void refreshStaleProfiles() {
+        try {
+            long staleBefore = System.currentTimeMillis() - refreshIntervalMs;
+            for (Printer printer : printerRepository.findAll()) {
+                PrinterCapabilities stored = printer.getCapabilities();
+                if (stored == null || stored.getProfiledAt() == null || stored.getProfiledAt() < staleBefore) {
+                    refreshing.add(printer.getId());
+                    try {
+                        refresh(printer.getId());
+                    } catch (Exception e) {
+                        // Una impresora con respuestas raras no corta la revisión de las demás
+                        log.warn("⚠️ Error revisando el perfil de {}: {}", printer.getAlias(), e.getMessage());
+                    } finally {
+                        refreshing.remove(printer.getId());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.warn("⚠️ Error revisando perfiles de impresoras: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * IPP Get-Printer-Attributes directo (sin ipptool)
+     */
+    private PrinterCapabilities probeIpp(String ip) {
+        for (String path : new String[]{"/ipp/print", "/ipp"}) {
+            try {
+                byte[] response = postIpp("http://" + ip + ":631" + path,
+                    buildGetPrinterAttributes("ipp://" + ip + ":631" + path));
+                IppMessage message = response != null ? IppMessage.parse(response, response.length) : null;
+                if (message == null || message.getStatusCode() > 0x00FF) {
+                    continue;
+                }
+                List<String> formats = message.getAttributeValues("document-format-supported");
+                if (formats.isEmpty()) {
+                    continue;
+                }
+                return fromIpp(message, formats);
+            } catch (IOException e) {
+                log.debug("  IPP {}{} no responde: {}", ip, path, e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private PrinterCapabilities fromIpp(IppMessage message, List<String> formats) {
+        PrinterCapabilities capabilities = new PrinterCapabilities();
+        boolean pcl = false;
+        boolean escp = false;
+        for (String format : formats) {
+            String f = format.toLowerCase();
+            if (f.equals("application/pdf")) {
+                capabilities.setSupportsPdf(true);
+            } else if (f.equals("application/postscript")) {
+                capabilities.setSupportsPostScript(true);
+            } else if (f.equals("image/pwg-raster")) {
+                capabilities.setSupportsPwgRaster(true);
+            } else if (f.contains("pcl")) {
+                pcl = true;
+            } else if (f.contains("escp") || f.contains("epson")) {
+                escp = true;
+            }
+        }
+        capabilities.setDocumentFormats(String.join(",", formats));
+
+        // PDL preferido para lo que el servidor tenga que generar
+        if (pcl) {
+            capabilities.setPdl(Pdl.PCL);
+        } else if (escp) {
+            capabilities.setPdl(Pdl.ESCP);
+        } else if (capabilities.acceptsPwgRaster()) {
+            capabilities.setPdl(Pdl.PWG);
+        } else if (capabilities.acceptsPostScript()) {
+            capabilities.setPdl(Pdl.POSTSCRIPT);
+        } else if (capabilities.acceptsPdf()) {
+            capabilities.setPdl(Pdl.PDF);
+        } else {
+            capabilities.setPdl(Pdl.PCL);
+        }
+
+        List<String> sides = message.getAttributeValues("sides-supported");
+        capabilities.setDuplex(sides.stream().anyMatch(s -> s.startsWith("two-sided")));
+        String color = message.getAttribute("color-supported");
+        if (color != null) {
+            capabilities.setColor(Boolean.parseBoolean(color));
+        }
+        String kOctets = message.getAttribute("job-k-octets-supported");
+        if (kOctets != null && kOctets.lastIndexOf('-') > 0) {
+            try {
+                long upperK = Long.parseLong(kOctets.substring(kOctets.lastIndexOf('-') + 1));
+                capabilities.setMaxJobSize(upperK > 0 ? upperK * 1024 : null);
+            } catch (NumberFormatException e) {
+                log.debug("  job-k-octets-supported no válido: {}", kOctets);
+            }
+        }
+        capabilities.setProfileSource(Source.IPP);
+        return capabilities;
+    }
+
+    private byte[] buildGetPrinterAttributes(String printerUri) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(new byte[]{0x01, 0x01, 0x00, 0x0B, 0x00, 0x00, 0x00, 0x01});
+        request.write(0x01); // operation-attributes-tag
+        writeAttribute(request, 0x47, "attributes-charset", "utf-8");
+        writeAttribute(request, 0x48, "attributes-natural-language", "en");
+        writeAttribute(request, 0x45, "printer-uri", printerUri);
+        for (int i = 0; i < REQUESTED_ATTRIBUTES.length; i++) {
+            writeAttribute(request, 0x44, i == 0 ? "requested-attributes" : "", REQUESTED_ATTRIBUTES[i]);
+        }
+        request.write(0x03); // end-of-attributes-tag
+        return request.toByteArray();
+    }
+
+    private void writeAttribute(ByteArrayOutputStream out, int tag, String name, String value) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        out.write(tag);
+        out.write(nameBytes.length >> 8);
+        out.write(nameBytes.length);
+        out.write(nameBytes);
+        out.write(valueBytes.length >> 8);
+        out.write(valueBytes.length);
+        out.write(valueBytes);
+    }
+
+    private byte[] postIpp(String url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(connectionTimeout);
+            connection.setReadTimeout(connectionTimeout);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/ipp");
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            if (connection.getResponseCode() != 200) {
+                return null;
+            }
+            try (InputStream in = connection.getInputStream()) {
+                return in.readNBytes(262144);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Printer MIB: lenguajes de los intérpretes instalados
+     */
+    private PrinterCapabilities probeSnmp(String ip) {
+        Snmp snmp = null;
+        try {
+            TransportMapping<?> transport = new DefaultUdpTransportMapping();
+            snmp = new Snmp(transport);
+            transport.listen();
+
+            CommunityTarget target = new CommunityTarget();
+            target.setCommunity(new OctetString("public"));
+            target.setAddress(new UdpAddress(ip + "/161"));
+            target.setRetries(1);
+            target.setTimeout(connectionTimeout);
+            target.setVersion(SnmpConstants.version2c);
+
+            OID root = new OID(OID_INTERPRETER_LANG);
+            OID current = root;
+            Set<Integer> languages = new HashSet<>();
+            // Recorrido GETNEXT acotado de la tabla de intérpretes
+            for (int i = 0; i < 16; i++) {
+                PDU pdu = new PDU();
+                pdu.add(new VariableBinding(current));
+                pdu.setType(PDU.GETNEXT);
+                ResponseEvent response = snmp.send(pdu, target);
+                if (response == null || response.getResponse() == null || response.getResponse().size() == 0) {
+                    break;
+                }
+                VariableBinding binding = response.getResponse().get(0);
+                if (!binding.getOid().startsWith(root) || binding.getVariable() instanceof Null) {
+                    break;
+                }
+                languages.add(binding.getVariable().toInt());
+                current = binding.getOid();
+            }
+            if (languages.isEmpty()) {
+                return null;
+            }
+
+            PrinterCapabilities capabilities = new PrinterCapabilities();
+            capabilities.setSupportsPdf(languages.contains(LANG_PDF));
+            capabilities.setSupportsPostScript(languages.contains(LANG_POSTSCRIPT));
+            if (languages.contains(LANG_PCL) || languages.contains(LANG_PCLXL)) {
+                capabilities.setPdl(Pdl.PCL);
+            } else if (languages.contains(LANG_ESCAPE_P) || languages.contains(LANG_EPSON)) {
+                capabilities.setPdl(Pdl.ESCP);
+            } else if (languages.contains(LANG_POSTSCRIPT)) {
+                capabilities.setPdl(Pdl.POSTSCRIPT);
+            } else if (languages.contains(LANG_PDF)) {
+                capabilities.setPdl(Pdl.PDF);
+            } else {
+                capabilities.setPdl(Pdl.PCL);
+            }
+            capabilities.setProfileSource(Source.SNMP);
+            return capabilities;
+        } catch (Exception e) {
+            log.debug("  SNMP {} sin tabla de intérpretes: {}", ip, e.getMessage());
+            return null;
+        } finally {
+            if (snmp != null) {
+                try {
+                    snmp.close();
+                } catch (IOException e) {
+                    // Ignorar
+                }
+            }
+        }
+    }
+}
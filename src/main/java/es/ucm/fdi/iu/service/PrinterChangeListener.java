@@ -0,0 +1,112 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Printer;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import jakarta.persistence.PrePersist;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Listener JPA de Printer
+ *
+ * - Invalida las respuestas IPP precodificadas (PrinterAttributeCache) al
+ *   escribir la fila y otra vez tras el commit, para que una reconstrucción
+ *   concurrente no guarde los datos anteriores al cambio. Igual con el
+ *   perfil de capacidades en memoria (PrinterCapabilityService).
+ * - Asigna el puerto IPP dedicado al dar de alta la impresora, dentro de la
+ *   misma transacción (IppPortAllocator); si se deshace, el puerto se libera.
+ * - Tras el commit publica PrinterChangedEvent, con el que el servidor IPP
+ *   abre, mueve o cierra el puerto de la impresora al momento.
+ *
+ * Hibernate obtiene el listener del contexto de Spring.
+ */
+@Component
+public class PrinterChangeListener {
+
+    // Pueden no existir (modo usb-client)
+    private final ObjectProvider<PrinterAttributeCache> attributeCache;
+    private final ObjectProvider<PrinterCapabilityService> capabilityService;
+    private final ObjectProvider<IppPortAllocator> portAllocator;
+    private final ObjectProvider<IppRoutingService> routingService;
+    private final ApplicationEventPublisher eventPublisher;
+
+    public PrinterChangeListener(ObjectProvider<PrinterAttributeCache> attributeCache,
+                                 ObjectProvider<PrinterCapabilityService> capabilityService,
+                                 ObjectProvider<IppPortAllocator> portAllocator,
+                                 ObjectProvider<IppRoutingService> routingService,
+                                 ApplicationEventPublisher eventPublisher) {
+        this.attributeCache = attributeCache;
+        this.capabilityService = capabilityService;
+        this.portAllocator = portAllocator;
+        this.routingService = routingService;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @PrePersist
+    public void assignPort(Printer printer) {
+        IppPortAllocator allocator = portAllocator.getIfAvailable();
+        IppRoutingService routing = routingService.getIfAvailable();
+        if (printer.getIppPort() != null || allocator == null || routing == null || !routing.assignsPorts()) {
+            return;
+        }
+        int port = allocator.allocate();
+        printer.setIppPort(port);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) {
+                        allocator.release(port);
+                    }
+                }
+            });
+        }
+    }
+
+    @PostPersist
+    @PostUpdate
+    public void printerSaved(Printer printer) {
+        printerChanged(printer, PrinterChangedEvent.Type.SAVED);
+    }
+
+    @PostRemove
+    public void printerRemoved(Printer printer) {
+        printerChanged(printer, PrinterChangedEvent.Type.REMOVED);
+    }
+
+    private void printerChanged(Printer printer, PrinterChangedEvent.Type type) {
+        PrinterAttributeCache cache = attributeCache.getIfAvailable();
+        PrinterCapabilityService capabilities = capabilityService.getIfAvailable();
+        long printerId = printer.getId();
+        PrinterChangedEvent event = new PrinterChangedEvent(printerId, printer.getIppPort(), type);
+        if (cache != null) {
+            cache.invalidate(printerId);
+        }
+        if (capabilities != null) {
+            capabilities.invalidate(printerId);
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (cache != null) {
+                        cache.invalidate(printerId);
+                    }
+                    if (capabilities != null) {
+                        capabilities.invalidate(printerId);
+                    }
+                    if (status == STATUS_COMMITTED) {
+                        eventPublisher.publishEvent(event);
+                    }
+                }
+            });
+        } else {
+            eventPublisher.publishEvent(event);
+        }
+    }
+}
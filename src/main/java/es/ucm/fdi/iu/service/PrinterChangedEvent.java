@@ -0,0 +1,15 @@
+package es.ucm.fdi.iu.service;
+
+/**
+ * Evento de aplicación: una impresora se ha creado, modificado o eliminado
+ *
+ * Lo publica PrinterChangeListener tras el commit. ippPort es el puerto
+ * que tenía la impresora en ese momento (en REMOVED, el que queda libre).
+ */
+public record PrinterChangedEvent(long printerId, Integer ippPort, Type type) {
+
+    public enum Type {
+        SAVED,
+        REMOVED
+    }
+}
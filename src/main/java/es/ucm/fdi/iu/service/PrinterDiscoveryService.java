@@ -1,6 +1,7 @@
 package es.ucm.fdi.iu.service;
 
 import es.ucm.fdi.iu.model.Printer;
+import es.ucm.fdi.iu.util.Ipv4RangeSet;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
 import jakarta.transaction.Transactional;
@@ -42,13 +43,22 @@ public class PrinterDiscoveryService {
         private final IppPrintService ippService;
     private final SmbShareService smbService;
     private final NetworkIdentificationService networkIdService;
+    private final DiscoveryAgentRegistry agentRegistry;
+    private final MdnsBrowserService mdnsBrowser;
+    private final ReverseDnsResolver reverseDns;
     
     public PrinterDiscoveryService(IppPrintService ippService, 
                                      SmbShareService smbService,
-                                     NetworkIdentificationService networkIdService) {
+                                     NetworkIdentificationService networkIdService,
+                                     DiscoveryAgentRegistry agentRegistry,
+                                     MdnsBrowserService mdnsBrowser,
+                                     ReverseDnsResolver reverseDns) {
         this.ippService = ippService;
         this.smbService = smbService;
         this.networkIdService = networkIdService;
+        this.agentRegistry = agentRegistry;
+        this.mdnsBrowser = mdnsBrowser;
+        this.reverseDns = reverseDns;
     }
     
     // Estado del escaneo
@@ -62,6 +72,9 @@ public class PrinterDiscoveryService {
     private ExecutorService currentExecutor = null;
     private Thread scanThread = null; // Referencia al hilo principal de escaneo
 
+    private static final int SCAN_THREADS = 50;
+    private static final int SCAN_SHARD_SIZE = 32;
+
     // Puertos comunes para impresoras de red
     private static final int[] PRINTER_PORTS = {9100, 631, 515}; // RAW, IPP, LPD
     
@@ -144,90 +157,82 @@ public class PrinterDiscoveryService {
         log.info("========================================");
         log.info("Iniciando descubrimiento de impresoras en red...");
         List<DiscoveredPrinter> discovered = new CopyOnWriteArrayList<>();
-        currentExecutor = Executors.newFixedThreadPool(50);
+        currentExecutor = Executors.newFixedThreadPool(SCAN_THREADS);
         ExecutorService executor = currentExecutor;
         
         // Obtener rangos de red configurados
-        List<String> networkRanges = getNetworkRangesToScan();
-        log.info("Total de redes a escanear: {}", networkRanges.size());
+        List<String> networkRanges = new ArrayList<>(getNetworkRangesToScan());
+        
+        // Los rangos que cubre un agente de descubrimiento se toman de su caché
+        Set<String> coveredByAgents = agentRegistry.coveredRanges();
         for (String range : networkRanges) {
-            log.info("  - {}", range);
+            if (coveredByAgents.contains(range)) {
+                List<DiscoveryAgentRegistry.AgentHost> hosts = agentRegistry.hostsIn(range);
+                // Un solo lote de consultas PTR para los que no traen sysName
+                Map<String, String> dnsNames = reverseDns.resolveAll(hosts.stream()
+                    .filter(host -> host.sysName() == null || host.sysName().isBlank())
+                    .map(DiscoveryAgentRegistry.AgentHost::ip)
+                    .toList());
+                List<DiscoveredPrinter> fromAgent = hosts.stream()
+                    .map(host -> fromAgentHost(host, dnsNames.get(host.ip())))
+                    .filter(Objects::nonNull)
+                    .toList();
+                discovered.addAll(fromAgent);
+                foundPrinters += fromAgent.size();
+                log.info("🛰️ Rango {} cubierto por un agente: {} impresoras", range, fromAgent.size());
+            }
+        }
+        networkRanges.removeAll(coveredByAgents);
+        
+        // Rangos activos fundidos: una dirección de rangos solapados se sondea una sola vez
+        Map<String, Ipv4RangeSet> rangeSets = new LinkedHashMap<>();
+        Ipv4RangeSet toScan = Ipv4RangeSet.EMPTY;
+        for (String range : networkRanges) {
+            try {
+                Ipv4RangeSet hosts = Ipv4RangeSet.hosts(range);
+                rangeSets.put(range, hosts);
+                toScan = toScan.union(hosts);
+            } catch (IllegalArgumentException e) {
+                log.error("Error generando rango de IPs: {}", e.getMessage());
+            }
+        }
+        long overlapping = rangeSets.values().stream().mapToLong(Ipv4RangeSet::size).sum() - toScan.size();
+        if (overlapping > 0) {
+            log.info("🧮 {} direcciones repetidas entre rangos solapados (se sondean una vez)", overlapping);
         }
         
-        // Calcular total de hosts a escanear
-        totalHosts = 0;
-        for (String networkRange : networkRanges) {
-            totalHosts += generateIPsFromRange(networkRange).size();
+        // Impresoras que se anuncian por mDNS: no hace falta sondear sus IPs
+        Set<String> announcedIps = new HashSet<>();
+        for (MdnsBrowserService.Announcement announcement : mdnsBrowser.printers()) {
+            if (toScan.contains(announcement.ip())) {
+                discovered.add(fromAnnouncement(announcement));
+                announcedIps.add(announcement.ip());
+                foundPrinters++;
+            }
+        }
+        if (!announcedIps.isEmpty()) {
+            log.info("📡 {} impresoras anunciadas por mDNS (no se sondean)", announcedIps.size());
         }
+        toScan = toScan.exclude(announcedIps);
+        log.info("Total de redes a escanear: {}", rangeSets.size());
+        rangeSets.forEach((range, hosts) -> log.info("  - {} ({} IPs)", range, hosts.size()));
+        
+        totalHosts = (int) toScan.size();
         
         try {
-            // Preparar todas las IPs de todas las redes
-            List<Future<?>> allFutures = new ArrayList<>();
-            
-            // Escanear cada rango de red en paralelo
-            for (String networkRange : networkRanges) {
-                // Verificar interrupción del hilo
+            // Bloques consecutivos de unas SCAN_SHARD_SIZE direcciones; cada hilo libre toma el siguiente
+            List<Ipv4RangeSet> shards = toScan.shards((int) Math.max(SCAN_THREADS, toScan.size() / SCAN_SHARD_SIZE));
+            for (Ipv4RangeSet shard : shards) {
+                // Verificar si se solicitó cancelación o interrupción
                 if (Thread.currentThread().isInterrupted() || cancelRequested) {
-                    log.info("⚠️ Escaneo cancelado (hilo interrumpido o cancelRequested)");
+                    log.info("⚠️ Escaneo cancelado por el usuario");
                     break;
                 }
-                
-                List<String> ips = generateIPsFromRange(networkRange);
-                log.info("Añadiendo rango al escaneo: {} ({} IPs)", networkRange, ips.size());
-                
-                final String currentRange = networkRange;
-                
-                // Agregar todos los hosts de esta red al pool
-                for (String ip : ips) {
-                    // Verificar si se solicitó cancelación o interrupción
-                    if (Thread.currentThread().isInterrupted() || cancelRequested) {
-                        log.info("⚠️ Escaneo cancelado por el usuario");
-                        break;
-                    }
-                    
-                    allFutures.add(executor.submit(() -> {
-                        try {
-                            // Verificar cancelación o interrupción antes de escanear
-                            if (Thread.currentThread().isInterrupted() || cancelRequested) {
-                                scannedHosts++; // Contar como escaneado aunque se canceló
-                                return;
-                            }
-                            
-                            currentNetwork = currentRange; // Actualizar red actual
-                            DiscoveredPrinter printer = scanIPForPrinter(ip);
-                            if (printer != null) {
-                                discovered.add(printer);
-                                foundPrinters++;
-                                log.info("✓ Impresora encontrada en {} ({}): {}", 
-                                    ip, currentRange, printer.getName());
-                            }
-                        } catch (Exception e) {
-                            // Ignorar errores individuales
-                        } finally {
-                            scannedHosts++;
-                        }
-                    }));
-                }
-                
-                // Si se canceló, salir del loop de redes
-                if (cancelRequested) {
-                    break;
-                }
-                    }
-            
-            log.info("Iniciando escaneo paralelo de {} hosts en {} redes...", 
-                    totalHosts, networkRanges.size());
-            
-            // Esperar a que terminen TODOS los scans (con timeout)
-            for (Future<?> future : allFutures) {
-                try {
-                    future.get(1, TimeUnit.SECONDS);
-                } catch (TimeoutException e) {
-                    future.cancel(true);
-                } catch (Exception e) {
-                    // Ignorar errores
-                }
+                executor.submit(() -> scanShard(shard, rangeSets, discovered));
             }
+            
+            log.info("Iniciando escaneo paralelo de {} hosts en {} redes ({} bloques)...", 
+                    totalHosts, rangeSets.size(), shards.size());
         } finally {
             // Si no fue cancelado externamente, hacer shutdown normal
             if (!cancelRequested) {
@@ -386,6 +391,39 @@ public class PrinterDiscoveryService {
         return discovered;
     }
 
+    /**
+     * Sondea en orden las direcciones de un bloque (un hilo del pool)
+     */
+    private void scanShard(Ipv4RangeSet shard, Map<String, Ipv4RangeSet> rangeSets,
+                           List<DiscoveredPrinter> discovered) {
+        PrimitiveIterator.OfInt addresses = shard.iterator();
+        while (addresses.hasNext()) {
+            // Verificar cancelación o interrupción antes de cada IP
+            if (Thread.currentThread().isInterrupted() || cancelRequested) {
+                return;
+            }
+            int address = addresses.nextInt();
+            String ip = Ipv4RangeSet.format(address);
+            String range = rangeSets.entrySet().stream()
+                .filter(entry -> entry.getValue().contains(address))
+                .map(Map.Entry::getKey)
+                .findFirst().orElse("");
+            try {
+                currentNetwork = range; // Actualizar red actual
+                DiscoveredPrinter printer = scanIPForPrinter(ip);
+                if (printer != null) {
+                    discovered.add(printer);
+                    foundPrinters++;
+                    log.info("✓ Impresora encontrada en {} ({}): {}", ip, range, printer.getName());
+                }
+            } catch (Exception e) {
+                // Ignorar errores individuales
+            } finally {
+                scannedHosts++;
+            }
+        }
+    }
+
         /**
      * Escanea una IP específica para ver si hay una impresora
      * MEJORADO: Ahora intenta múltiples protocolos (SNMP, IPP, SMB)
@@ -404,6 +442,8 @@ public class PrinterDiscoveryService {
         for (int port : new int[]{9100, 631, 515, 445}) { // RAW, IPP, LPD, SMB
             if (isPortOpen(ip, port, portTimeout)) {
                 log.info("🔍 Puerto {} abierto en {}", port, ip);
+                // El nombre se resuelve mientras se sondea el protocolo
+                reverseDns.prefetch(ip);
                 
                 // Intentar obtener info por protocolo específico
                                 if (port == 631) {
@@ -754,6 +794,46 @@ public class PrinterDiscoveryService {
         return "Impresora de Red";
     }
 
+    /**
+     * Impresora a partir de un host informado por un agente: puerto RAW o LPD
+     * abierto, o identidad SNMP de impresora (631 solo puede ser una PC con CUPS)
+     *
+     * @param dnsName nombre por DNS reverso o estático, o null
+     */
+    private DiscoveredPrinter fromAgentHost(DiscoveryAgentRegistry.AgentHost host, String dnsName) {
+        List<Integer> ports = host.ports() != null ? host.ports() : List.of();
+        boolean snmpPrinter = host.sysDescr() != null && containsPrinterKeywords(host.sysDescr());
+        if (!ports.contains(9100) && !ports.contains(515) && !snmpPrinter) {
+            return null;
+        }
+        DiscoveredPrinter printer = new DiscoveredPrinter();
+        printer.setIp(host.ip());
+        printer.setName(host.sysName() != null && !host.sysName().isBlank()
+            ? host.sysName() : dnsName != null ? dnsName : "Impresora-" + host.ip().replace(".", "-"));
+        printer.setModel(host.sysDescr() != null ? extractModelFromDescription(host.sysDescr()) : "Impresora de Red");
+        printer.setType("Red - Agente");
+        printer.setStatus("En línea");
+        printer.setConnectionType("RED");
+        printer.setPort(ports.contains(9100) ? 9100 : ports.contains(631) ? 631 : ports.contains(515) ? 515 : SNMP_PORT);
+        return printer;
+    }
+
+    /**
+     * Impresora a partir de un anuncio mDNS (puerto del servicio anunciado)
+     */
+    private DiscoveredPrinter fromAnnouncement(MdnsBrowserService.Announcement announcement) {
+        DiscoveredPrinter printer = new DiscoveredPrinter();
+        printer.setIp(announcement.ip());
+        printer.setName(announcement.name());
+        printer.setModel(announcement.txt().getOrDefault("ty", "Impresora de Red"));
+        printer.setType("Red - mDNS");
+        printer.setStatus("En línea");
+        // Solo IPP cambia el protocolo al registrarla; RAW y LPD conservan el puerto
+        printer.setConnectionType(MdnsBrowserService.IPP.equals(announcement.service()) ? "IPP" : "RED");
+        printer.setPort(announcement.port());
+        return printer;
+    }
+
     /**
      * Verifica si un host es alcanzable
      * NOTA: Este método NO funciona bien cross-VLAN porque usa ICMP
@@ -781,79 +861,18 @@ public class PrinterDiscoveryService {
     }
 
     /**
-     * Genera lista de IPs desde un rango CIDR
-     */
-    private List<String> generateIPsFromRange(String cidr) {
-        List<String> ips = new ArrayList<>();
-        try {
-            String[] parts = cidr.split("/");
-            String baseIP = parts[0];
-            int prefix = Integer.parseInt(parts[1]);
-            
-            String[] octets = baseIP.split("\\.");
-            int baseAddress = (Integer.parseInt(octets[0]) << 24) |
-                             (Integer.parseInt(octets[1]) << 16) |
-                             (Integer.parseInt(octets[2]) << 8) |
-                             Integer.parseInt(octets[3]);
-            
-            int mask = 0xFFFFFFFF << (32 - prefix);
-            int network = baseAddress & mask;
-            int broadcast = network | ~mask;
-            
-            for (int i = network + 1; i < broadcast; i++) {
-                String ip = String.format("%d.%d.%d.%d",
-                    (i >> 24) & 0xFF,
-                    (i >> 16) & 0xFF,
-                    (i >> 8) & 0xFF,
-                    i & 0xFF);
-                ips.add(ip);
-            }
-        } catch (Exception e) {
-            log.error("Error generando rango de IPs: {}", e.getMessage());
-        }
-        return ips;
-    }
-
-            /**
      * Intenta resolver el nombre DNS de una IP mediante DNS reverso
-     * Si encuentra un hostname real (como "epsonsecreptor"), lo usa
-     * Si no, busca en mapeo estático, si no genera nombre basado en la IP
+     * Primero el nombre estático (HostNameOverride), luego el registro PTR
+     * (ej: "epsonsecreptor") y si no, un nombre basado en la IP
      */
     private String resolveDNSName(String ip) {
-        // PASO 1: Mapeo estático para impresoras conocidas sin DNS reverso
-        // TODO: Mover esto a base de datos o archivo de configuración
-        Map<String, String> knownPrinters = new HashMap<>();
-        knownPrinters.put("10.1.1.45", "EPSONSECRETOR");
-        // Agregar más impresoras si es necesario:
-        // knownPrinters.put("10.1.1.50", "HP_OFICINA_2");
-        // knownPrinters.put("10.1.1.60", "CANON_CONTABILIDAD");
-        
-        if (knownPrinters.containsKey(ip)) {
-            String knownName = knownPrinters.get(ip);
-            log.info("📌 Nombre estático configurado para {}: {}", ip, knownName);
-            return knownName;
-        }
-        
-        // PASO 2: Intentar DNS reverso
-        try {
-            log.debug("🔍 Intentando resolver DNS reverso para {}", ip);
-            InetAddress addr = InetAddress.getByName(ip);
-            String hostname = addr.getCanonicalHostName();
-            
-            // Si el hostname es diferente de la IP, significa que se resolvió correctamente
-            if (!hostname.equals(ip)) {
-                // Limpiar el hostname (quitar dominio si existe)
-                String cleanHostname = hostname.split("\\.")[0];
-                log.info("✅ DNS reverso exitoso: {} -> {}", ip, cleanHostname);
-                return cleanHostname;
-            } else {
-                log.debug("⚠️ DNS reverso no disponible para {}, usando nombre genérico", ip);
-                return "Impresora-" + ip.replace(".", "-");
-            }
-        } catch (Exception e) {
-            log.debug("❌ Error en DNS reverso para {}: {}", ip, e.getMessage());
-            return "Impresora-" + ip.replace(".", "-");
+        String name = reverseDns.nameFor(ip);
+        if (name != null) {
+            log.info("📌 Nombre DNS/estático para {}: {}", ip, name);
+            return name;
         }
+        log.debug("⚠️ DNS reverso no disponible para {}, usando nombre genérico", ip);
+        return "Impresora-" + ip.replace(".", "-");
     }
 
     /**
@@ -1010,16 +1029,10 @@ public class PrinterDiscoveryService {
                 }
             }
             
-            // Asignar puerto IPP único y dedicado
-            Integer maxPort = em.createQuery(
-                "SELECT MAX(p.ippPort) FROM Printer p", Integer.class)
-                .getSingleResult();
-            int nextPort = (maxPort != null) ? maxPort + 1 : 8631;
-            printer.setIppPort(nextPort);
-            log.info("Puerto IPP {} asignado a impresora descubierta {}", nextPort, discovered.getName());
-            
-                        em.persist(printer);
+            // El puerto IPP lo asigna IppPortAllocator al persistir (solo en modo ports)
+            em.persist(printer);
             em.flush(); // Asegurar que se persiste inmediatamente
+            log.info("Puerto IPP {} asignado a impresora descubierta {}", printer.getIppPort(), discovered.getName());
             
             // Verificación post-persistencia
             if (!printerIp.equals(printer.getIp())) {
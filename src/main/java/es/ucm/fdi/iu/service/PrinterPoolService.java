@@ -0,0 +1,274 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Job;
+import es.ucm.fdi.iu.model.PGroup;
+import es.ucm.fdi.iu.model.Printer;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pools de impresoras: un PGroup con puerto IPP propio actúa como impresora
+ * virtual respaldada por sus miembros físicos
+ *
+ * - Cada trabajo recibido en el puerto del pool va al miembro sano con menor
+ *   tiempo estimado de vaciado de cola (bytes pendientes / rendimiento reciente)
+ * - Un miembro que falla queda fuera del reparto durante down-cooldown ms y
+ *   sus trabajos del pool pendientes pasan a los demás miembros compatibles
+ *   (mismo pipeline de conversión, porque el spool ya está convertido)
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class PrinterPoolService {
+
+    // Tiempo que un miembro que ha fallado queda fuera del reparto (ms)
+    @Value("${printer.pool.down-cooldown:60000}")
+    private long downCooldown;
+
+    // Rendimiento supuesto de una impresora sin entregas medidas (bytes/s)
+    @Value("${printer.pool.default-throughput:1048576}")
+    private long defaultThroughput;
+
+    // Coste fijo por trabajo en cola (bytes equivalentes): conexión, calentamiento...
+    @Value("${printer.pool.job-overhead:262144}")
+    private long jobOverhead;
+
+    // Peso de la última medida en la media móvil de rendimiento
+    private static final double THROUGHPUT_ALPHA = 0.3;
+
+    private final PrinterCapabilityService capabilityService;
+    private final PrinterAttributeCache attributeCache;
+    private final JobIndex jobIndex;
+    private final TransactionTemplate transactionTemplate;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    // Rendimiento medido por impresora (bytes/s, media móvil exponencial)
+    private final Map<Long, Double> throughput = new ConcurrentHashMap<>();
+
+    // Impresoras fuera del reparto hasta el instante indicado (ms)
+    private final Map<Long, Long> downUntil = new ConcurrentHashMap<>();
+
+    public PrinterPoolService(PrinterCapabilityService capabilityService,
+                              PrinterAttributeCache attributeCache,
+                              JobIndex jobIndex,
+                              PlatformTransactionManager transactionManager) {
+        this.capabilityService = capabilityService;
+        this.attributeCache = attributeCache;
+        this.jobIndex = jobIndex;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Grupos configurados como pool (con puerto IPP)
+     */
+    public List<PGroup> findPools() {
+        return entityManager.createQuery(
+                "SELECT g FROM PGroup g WHERE g.ippPort IS NOT NULL ORDER BY g.id", PGroup.class)
+            .getResultList();
+    }
+
+    /**
+     * Miembro al que enviar un trabajo nuevo del pool
+     *
+     * @return el miembro sano con menos carga; si ninguno está sano, el que
+     *         lleva más tiempo caído; null si el pool no tiene miembros
+     */
+    public Printer selectMember(long poolId) {
+        List<Printer> members = membersOf(poolId);
+        if (members.isEmpty()) {
+            return null;
+        }
+        List<Printer> healthy = members.stream().filter(p -> isHealthy(p.getId())).toList();
+        if (healthy.isEmpty()) {
+            return members.stream()
+                .min(Comparator.comparingLong(p -> downUntil.getOrDefault(p.getId(), 0L)))
+                .orElse(null);
+        }
+        return leastLoaded(healthy);
+    }
+
+    /**
+     * Registra una entrega correcta: actualiza el rendimiento y devuelve la
+     * impresora al reparto si estaba marcada como caída
+     */
+    public void recordDelivery(long printerId, long bytes, long millis) {
+        if (downUntil.remove(printerId) != null) {
+            attributeCache.setReachable(printerId, true);
+            log.info("✅ Impresora {} vuelve al reparto de pools", printerId);
+        }
+        if (bytes <= 0 || millis <= 0) {
+            return;
+        }
+        double measured = bytes * 1000.0 / millis;
+        throughput.merge(printerId, measured,
+            (previous, latest) -> previous * (1 - THROUGHPUT_ALPHA) + latest * THROUGHPUT_ALPHA);
+    }
+
+    public boolean isHealthy(long printerId) {
+        Long until = downUntil.get(printerId);
+        if (until == null) {
+            return true;
+        }
+        if (System.currentTimeMillis() >= until) {
+            if (downUntil.remove(printerId, until)) {
+                attributeCache.setReachable(printerId, true);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Conmutación tras un fallo de entrega de un trabajo del pool
+     *
+     * Marca el miembro como caído, mueve el trabajo a otro miembro compatible
+     * y hace lo mismo con el resto de trabajos del pool en su cola (salvo los
+     * que se están enviando, en busy).
+     *
+     * @return miembro que recibe el trabajo, o null si no hay alternativa
+     *         (o el trabajo ya ha pasado por todos los miembros)
+     */
+    public Printer failover(Job job, Collection<Long> busy) {
+        Printer failed = job.getPrinter();
+        downUntil.put(failed.getId(), System.currentTimeMillis() + downCooldown);
+        attributeCache.setReachable(failed.getId(), false);
+        log.warn("⚠️ Impresora {} fuera del reparto de pools durante {} s", failed.getAlias(), downCooldown / 1000);
+
+        List<Printer> members = membersOf(job.getPool());
+        int failovers = job.getFailovers() != null ? job.getFailovers() : 0;
+        if (failovers >= members.size() - 1) {
+            return null;
+        }
+
+        Printer target = alternativeFor(failed, members);
+        if (target == null) {
+            return null;
+        }
+        moveJob(job.getId(), target, failovers + 1);
+        log.info("🔀 Trabajo {} movido de {} a {} (pool {})",
+            job.getId(), failed.getAlias(), target.getAlias(), job.getPool());
+
+        int moved = migrateFrom(failed, job.getPool(), members, busy, job.getId());
+        if (moved > 0) {
+            log.info("🔀 {} trabajos pendientes del pool movidos desde {}", moved, failed.getAlias());
+        }
+        return target;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        long now = System.currentTimeMillis();
+        List<Long> down = new ArrayList<>();
+        downUntil.forEach((id, until) -> {
+            if (until > now) {
+                down.add(id);
+            }
+        });
+        stats.put("downPrinters", down);
+        Map<Long, Long> rates = new HashMap<>();
+        throughput.forEach((id, rate) -> rates.put(id, Math.round(rate)));
+        stats.put("throughputBytesPerSecond", rates);
+        return stats;
+    }
+
+    private List<Printer> membersOf(long poolId) {
+        return entityManager.createQuery(
+                "SELECT p FROM PGroup g JOIN g.printers p WHERE g.id = :poolId ORDER BY p.id", Printer.class)
+            .setParameter("poolId", poolId)
+            .getResultList();
+    }
+
+    /**
+     * Miembro sano y compatible con el spool ya convertido para failed
+     */
+    private Printer alternativeFor(Printer failed, List<Printer> members) {
+        String pipeline = capabilityService.resolve(failed).pipelineKey();
+        List<Printer> candidates = members.stream()
+            .filter(p -> p.getId() != failed.getId())
+            .filter(p -> isHealthy(p.getId()))
+            .filter(p -> capabilityService.resolve(p).pipelineKey().equals(pipeline))
+            .toList();
+        return candidates.isEmpty() ? null : leastLoaded(candidates);
+    }
+
+    /**
+     * Menor tiempo estimado para vaciar la cola: (bytes pendientes + coste
+     * fijo por trabajo) / rendimiento medido
+     */
+    private Printer leastLoaded(List<Printer> candidates) {
+        Map<Long, long[]> load = new HashMap<>();
+        entityManager.createQuery(
+                "SELECT j.printer.id, COUNT(j), SUM(COALESCE(j.size, 0)) FROM Job j " +
+                "WHERE j.printer IN :printers GROUP BY j.printer.id", Object[].class)
+            .setParameter("printers", candidates)
+            .getResultList()
+            .forEach(row -> load.put((Long) row[0],
+                new long[]{(Long) row[1], row[2] != null ? ((Number) row[2]).longValue() : 0}));
+
+        Printer best = null;
+        double bestSeconds = Double.MAX_VALUE;
+        for (Printer printer : candidates) {
+            long[] pending = load.getOrDefault(printer.getId(), new long[]{0, 0});
+            double rate = throughput.getOrDefault(printer.getId(), (double) defaultThroughput);
+            double seconds = (pending[1] + pending[0] * jobOverhead) / Math.max(rate, 1.0);
+            if (seconds < bestSeconds) {
+                best = printer;
+                bestSeconds = seconds;
+            }
+        }
+        return best;
+    }
+
+    private void moveJob(long jobId, Printer target, int failovers) {
+        transactionTemplate.execute(status -> entityManager.createQuery(
+                "UPDATE Job j SET j.printer = :target, j.failovers = :failovers, " +
+                "j.confirmedChunks = NULL WHERE j.id = :id")
+            .setParameter("target", entityManager.getReference(Printer.class, target.getId()))
+            .setParameter("failovers", failovers)
+            .setParameter("id", jobId)
+            .executeUpdate());
+        jobIndex.moved(jobId, target.getId());
+    }
+
+    /**
+     * Reparte entre los demás miembros los trabajos del pool que esperan en failed
+     */
+    private int migrateFrom(Printer failed, long poolId, List<Printer> members,
+                            Collection<Long> busy, long skipJobId) {
+        List<Job> waiting = entityManager.createQuery(
+                "SELECT j FROM Job j WHERE j.printer.id = :printerId AND j.pool = :poolId", Job.class)
+            .setParameter("printerId", failed.getId())
+            .setParameter("poolId", poolId)
+            .getResultList();
+
+        int moved = 0;
+        long now = System.currentTimeMillis();
+        for (Job job : waiting) {
+            if (job.getId() == skipJobId || busy.contains(job.getId())) {
+                continue;
+            }
+            // En clúster, otro nodo puede estar enviándolo ahora mismo
+            if (job.getLeaseExpiresAt() != null && job.getLeaseExpiresAt() > now) {
+                continue;
+            }
+            Printer target = alternativeFor(failed, members);
+            if (target == null) {
+                break;
+            }
+            moveJob(job.getId(), target, job.getFailovers() != null ? job.getFailovers() : 0);
+            moved++;
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,313 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.HostNameOverride;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DNS reverso (PTR) para dar nombre a las impresoras descubiertas
+ *
+ * - Las consultas van a un pool propio con su propio plazo, no al resolver
+ *   del sistema: un host sin registro PTR ya no retiene un hilo de escaneo
+ *   durante todo el timeout del sistema operativo
+ * - Caché con TTL para respuestas (positive-ttl) y para ausencias (negative-ttl);
+ *   varias peticiones de la misma IP comparten la consulta en curso
+ * - resolveAll lanza un lote de consultas a la vez y espera una sola vez
+ * - Los nombres de HostNameOverride tienen prioridad sobre el DNS y se
+ *   recargan cada override-refresh ms
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class ReverseDnsResolver {
+
+    @Value("${printer.discovery.dns.enabled:true}")
+    private boolean enabled;
+
+    // Plazo de una consulta PTR (ms)
+    @Value("${printer.discovery.dns.timeout:1500}")
+    private int timeout;
+
+    // Servidores DNS separados por comas (vacío = los del sistema)
+    @Value("${printer.discovery.dns.servers:}")
+    private String servers;
+
+    @Value("${printer.discovery.dns.threads:8}")
+    private int threads;
+
+    @Value("${printer.discovery.dns.positive-ttl:3600000}")
+    private long positiveTtl;
+
+    @Value("${printer.discovery.dns.negative-ttl:300000}")
+    private long negativeTtl;
+
+    @Value("${printer.discovery.dns.override-refresh:60000}")
+    private long overrideRefresh;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    // name == null: la IP no tiene registro PTR
+    private record Cached(String name, long expiresAt) {
+    }
+
+    private final Map<String, Cached> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private volatile Map<String, String> overrides = Map.of();
+
+    private ExecutorService lookups;
+    private ScheduledExecutorService maintenance;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        lookups = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "ReverseDns");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ReverseDnsMaintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::refresh, 0, Math.max(1000, overrideRefresh), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+        if (lookups != null) {
+            lookups.shutdownNow();
+        }
+    }
+
+    /**
+     * Nombre de una IP: estático, de la caché o del DNS esperando como
+     * mucho el plazo configurado
+     *
+     * @return nombre corto (sin dominio), o null si no tiene o no llegó a tiempo
+     */
+    public String nameFor(String ip) {
+        String known = overrides.get(ip);
+        if (known != null) {
+            return known;
+        }
+        Cached cached = cache.get(ip);
+        if (cached != null && cached.expiresAt() > System.currentTimeMillis()) {
+            hits.incrementAndGet();
+            return cached.name();
+        }
+        if (!enabled) {
+            return null;
+        }
+        try {
+            return resolve(ip).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            log.debug("⏱️ DNS reverso sin respuesta a tiempo para {}", ip);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lanza la consulta de una IP sin esperar (p. ej. en cuanto se ve un
+     * puerto abierto, para que esté resuelta al ponerle nombre)
+     */
+    public void prefetch(String ip) {
+        if (enabled && !overrides.containsKey(ip)) {
+            Cached cached = cache.get(ip);
+            if (cached == null || cached.expiresAt() <= System.currentTimeMillis()) {
+                resolve(ip);
+            }
+        }
+    }
+
+    /**
+     * Nombres de un lote de IPs: todas las consultas salen a la vez y se
+     * espera una sola vez el plazo configurado
+     *
+     * @return IP → nombre, solo de las que tienen nombre
+     */
+    public Map<String, String> resolveAll(Collection<String> ips) {
+        Map<String, String> names = new HashMap<>();
+        Map<String, CompletableFuture<String>> pending = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (String ip : new LinkedHashSet<>(ips)) {
+            String known = overrides.get(ip);
+            Cached cached = cache.get(ip);
+            if (known != null) {
+                names.put(ip, known);
+            } else if (cached != null && cached.expiresAt() > now) {
+                hits.incrementAndGet();
+                if (cached.name() != null) {
+                    names.put(ip, cached.name());
+                }
+            } else if (enabled) {
+                pending.put(ip, resolve(ip));
+            }
+        }
+        if (pending.isEmpty()) {
+            return names;
+        }
+        try {
+            CompletableFuture.allOf(pending.values().toArray(new CompletableFuture[0]))
+                .get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.debug("⏱️ DNS reverso: lote de {} IPs incompleto al agotar el plazo", pending.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // resolve() no termina con excepción
+        }
+        pending.forEach((ip, future) -> {
+            String name = future.getNow(null);
+            if (name != null) {
+                names.put(ip, name);
+            } else if (!future.isDone()) {
+                timeouts.incrementAndGet();
+            }
+        });
+        return names;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("cached", cache.size());
+        stats.put("overrides", overrides.size());
+        stats.put("queries", queries.get());
+        stats.put("cacheHits", hits.get());
+        stats.put("timeouts", timeouts.get());
+        return stats;
+    }
+
+    /**
+     * Consulta PTR en curso para la IP, o una nueva
+     */
+    private CompletableFuture<String> resolve(String ip) {
+        CompletableFuture<String> created = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(ip, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            lookups.execute(() -> {
+                String name = lookup(ip);
+                long ttl = name != null ? positiveTtl : negativeTtl;
+                cache.put(ip, new Cached(name, System.currentTimeMillis() + ttl));
+                inFlight.remove(ip);
+                created.complete(name);
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(ip);
+            created.complete(null);
+        }
+        return created;
+    }
+
+    /**
+     * Registro PTR de la IP con el proveedor DNS de JNDI, que acepta plazo
+     * y reintentos propios (getCanonicalHostName usa los del sistema)
+     */
+    private String lookup(String ip) {
+        String[] octets = ip.trim().split("\\.");
+        if (octets.length != 4) {
+            return null;
+        }
+        queries.incrementAndGet();
+        Hashtable<String, String> env = new Hashtable<>();
+        env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+        env.put("java.naming.provider.url", providerUrl());
+        env.put("com.sun.jndi.dns.timeout.initial", String.valueOf(Math.max(100, timeout)));
+        env.put("com.sun.jndi.dns.timeout.retries", "1");
+        String query = octets[3] + "." + octets[2] + "." + octets[1] + "." + octets[0] + ".in-addr.arpa";
+        DirContext context = null;
+        try {
+            context = new InitialDirContext(env);
+            Attributes attributes = context.getAttributes(query, new String[]{"PTR"});
+            Attribute ptr = attributes.get("PTR");
+            if (ptr == null || ptr.size() == 0) {
+                return null;
+            }
+            NamingEnumeration<?> values = ptr.getAll();
+            String hostname = values.hasMore() ? String.valueOf(values.next()) : null;
+            if (hostname == null || hostname.isBlank()) {
+                return null;
+            }
+            // Limpiar el hostname (quitar dominio si existe)
+            String name = hostname.split("\\.")[0];
+            log.debug("✅ DNS reverso: {} -> {}", ip, name);
+            return name.isEmpty() ? null : name;
+        } catch (Exception e) {
+            log.debug("DNS reverso sin resultado para {}: {}", ip, e.getMessage());
+            return null;
+        } finally {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    private String providerUrl() {
+        if (servers == null || servers.isBlank()) {
+            return "dns:";
+        }
+        StringJoiner urls = new StringJoiner(" ");
+        for (String server : servers.split(",")) {
+            if (!server.isBlank()) {
+                urls.add("dns://" + server.trim());
+            }
+        }
+        return urls.toString();
+    }
+
+    /**
+     * Recarga los nombres estáticos y purga la caché caducada
+     */
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        cache.values().removeIf(cached -> cached.expiresAt() <= now);
+        try {
+            Map<String, String> loaded = new HashMap<>();
+            for (HostNameOverride override : entityManager.createNamedQuery("HostNameOverride.all", HostNameOverride.class)
+                    .getResultList()) {
+                loaded.put(override.getIp().trim(), override.getName());
+            }
+            if (!loaded.equals(overrides)) {
+                log.info("📌 {} nombres estáticos de host cargados", loaded.size());
+            }
+            overrides = Map.copyOf(loaded);
+        } catch (Exception e) {
+            log.debug("Error leyendo nombres estáticos de host: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package es.ucm.fdi.iu.service;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+/**
+ * Índices de búsqueda de los listados de administración
+ *
+ * Las búsquedas usan LOWER(columna) LIKE '%texto%'. Un índice B-tree no sirve
+ * para un patrón que empieza por comodín, así que en PostgreSQL se crean
+ * índices GIN de trigramas (pg_trgm) sobre LOWER(columna), que el planificador
+ * usa directamente para esos LIKE. En H2 (u otra base) no se crea nada: la
+ * búsqueda funciona igual recorriendo la tabla, y los índices B-tree de las
+ * entidades cubren la ordenación y los recuentos.
+ *
+ * Los índices ordinarios (alias, nombre...) los declara cada entidad con
+ * {@code @Table(indexes = ...)} y los crea Hibernate con ddl-auto.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class SearchIndexService {
+
+    @Value("${admin.search.trigram-indexes:true}")
+    private boolean trigramIndexes;
+
+    @Value("${spring.datasource.url:}")
+    private String datasourceUrl;
+
+    // Columnas buscables: {índice, tabla, columna}
+    private static final List<String[]> TRIGRAM_COLUMNS = List.of(
+        new String[]{"idx_printer_alias_trgm", "printer", "alias"},
+        new String[]{"idx_printer_model_trgm", "printer", "model"},
+        new String[]{"idx_printer_ip_trgm", "printer", "ip"},
+        new String[]{"idx_computer_name_trgm", "computer", "name"},
+        new String[]{"idx_computer_hostname_trgm", "computer", "hostname"}
+    );
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private volatile boolean trigramAvailable;
+
+    public SearchIndexService(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes() {
+        if (!trigramIndexes || !datasourceUrl.startsWith("jdbc:postgresql:")) {
+            log.info("🔍 Búsqueda de administración sin índices de trigramas (LIKE sobre índices ordinarios)");
+            return;
+        }
+        // Cada sentencia en su propia transacción: en PostgreSQL un error
+        // aborta la transacción entera
+        if (!execute("CREATE EXTENSION IF NOT EXISTS pg_trgm")) {
+            log.warn("⚠️ No se pudo activar pg_trgm (¿permisos?): la búsqueda recorrerá las tablas");
+            return;
+        }
+        int created = 0;
+        for (String[] column : TRIGRAM_COLUMNS) {
+            if (execute("CREATE INDEX IF NOT EXISTS " + column[0] + " ON " + column[1] +
+                    " USING gin (LOWER(" + column[2] + ") gin_trgm_ops)")) {
+                created++;
+            }
+        }
+        trigramAvailable = created == TRIGRAM_COLUMNS.size();
+        log.info("🔍 Índices de trigramas para búsqueda: {}/{}", created, TRIGRAM_COLUMNS.size());
+    }
+
+    public boolean isTrigramAvailable() {
+        return trigramAvailable;
+    }
+
+    /**
+     * Patrón LIKE "contiene" en minúsculas para un texto de búsqueda
+     * Los comodines del usuario se escapan con '\' (usar ESCAPE '\' en la consulta)
+     */
+    public static String containsPattern(String query) {
+        String escaped = query.trim().toLowerCase()
+            .replace("\\", "\\\\")
+            .replace("%", "\\%")
+            .replace("_", "\\_");
+        return "%" + escaped + "%";
+    }
+
+    private boolean execute(String sql) {
+        try {
+            transactionTemplate.executeWithoutResult(status ->
+                entityManager.createNativeQuery(sql).executeUpdate());
+            return true;
+        } catch (Exception e) {
+            log.debug("Error ejecutando '{}': {}", sql, e.getMessage());
+            return false;
+        }
+    }
+}
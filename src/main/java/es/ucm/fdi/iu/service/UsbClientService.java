@@ -287,14 +287,20 @@ public class UsbClientService {
             
             if (totalBytes == 0) {
                 log.debug("   Conexión vacía (probe)");
-                // Responder OK para probes
-                out.write(new byte[]{0x01, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x03});
+                // Responder OK para probes, anunciando los modos de transporte admitidos
+                out.write(UsbTransportProtocol.probeResponse());
                 out.flush();
                 return;
             }
             
             log.info("   📦 Recibidos: {} bytes", totalBytes);
             
+            // Transporte comprimido negociado con el servidor
+            if (UsbTransportProtocol.isCompressed(data)) {
+                data = UsbTransportProtocol.decode(data);
+                log.info("   🗜️ Trabajo comprimido: {} bytes en red → {} bytes", totalBytes, data.length);
+            }
+            
                         // Guardar en archivo temporal con extensión correcta según el tipo
             String fileExtension = detectFileExtension(data);
             Path tempFile = Files.createTempFile("print-job-", fileExtension);
@@ -0,0 +1,340 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Printer;
+import es.ucm.fdi.iu.service.UsbTransportProtocol.Mode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reenvío "cut-through" de trabajos hacia impresoras USB compartidas
+ *
+ * En lugar de recibir el documento completo y después abrir la conexión
+ * con el cliente USB, la conexión de salida se abre en cuanto se conoce
+ * la impresora destino y los datos se bombean mientras llegan:
+ *
+ *   Cliente Windows → [lector] → cola acotada → [escritor] → Cliente USB:631
+ *                         ↓
+ *                   archivo de spool (respaldo)
+ *
+ * - La cola tiene un número máximo de bloques: si el cliente USB va más lento,
+ *   el lector se bloquea y TCP frena al emisor (backpressure)
+ * - Todo lo recibido se copia también a un archivo de spool; si el cliente USB
+ *   falla a mitad de la transferencia, la conexión con él se corta con RST
+ *   (UsbClientService lee hasta EOF antes de imprimir, así que descarta lo
+ *   recibido), el trabajo se termina de recibir y se encola en PrintQueueService
+ * - Si el fallo llega con el documento ya entregado entero (esperando la
+ *   respuesta), el cliente USB puede haberlo impreso: no se encola otra vez y
+ *   se devuelve error al cliente original
+ * - La respuesta IPP del cliente USB se devuelve al cliente original
+ * - Si el cliente USB lo admite y los primeros bytes comprimen bien, el flujo
+ *   hacia él va comprimido (ver UsbTransportProtocol)
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class UsbPrintRelay {
+
+    // Puerto donde escucha UsbClientService en la PC remota
+    private static final int USB_CLIENT_PORT = 631;
+
+    private static final int CHUNK_SIZE = 8192;
+
+    // Marca de fin de datos para el hilo escritor
+    private static final byte[] END_OF_DATA = new byte[0];
+
+    private static final byte[] IPP_OK = {0x01, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x03};
+    private static final byte[] IPP_ERROR = {0x01, 0x01, 0x05, 0x00, 0x00, 0x00, 0x00, 0x01, 0x03};
+
+    @Value("${printer.usb.relay.enabled:true}")
+    private boolean enabled;
+
+    // Máximo de bloques de 8KB pendientes entre lector y escritor
+    @Value("${printer.usb.relay.buffers:16}")
+    private int maxPendingChunks;
+
+    @Value("${printer.connection.timeout:5000}")
+    private int connectionTimeout;
+
+    @Value("${printer.data.transfer.timeout:10000}")
+    private int dataTransferTimeout;
+
+    private final PrintQueueService printQueueService;
+    private final UsbTransportService usbTransportService;
+    private ExecutorService upstreamExecutor;
+
+    public UsbPrintRelay(PrintQueueService printQueueService, UsbTransportService usbTransportService) {
+        this.printQueueService = printQueueService;
+        this.usbTransportService = usbTransportService;
+    }
+
+    @PostConstruct
+    public void init() {
+        upstreamExecutor = Executors.newCachedThreadPool();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (upstreamExecutor != null) {
+            upstreamExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Reenvía un trabajo al cliente USB mientras se recibe
+     *
+     * @param clientSocket conexión del cliente que envía el trabajo
+     * @param head primeros bytes ya leídos de la conexión
+     * @param printer impresora USB compartida destino
+     * @return true si el trabajo se entregó o quedó encolado
+     */
+    public boolean relay(Socket clientSocket, byte[] head, Printer printer,
+                         String fileName, String owner) throws IOException {
+        InputStream in = clientSocket.getInputStream();
+        OutputStream out = clientSocket.getOutputStream();
+
+        log.info("  ⚡ Reenvío directo (cut-through) a cliente USB {}:{}", printer.getIp(), USB_CLIENT_PORT);
+        long startTime = System.currentTimeMillis();
+
+        Path spoolFile = Files.createTempFile("ipp-usb-", ".dat");
+        BlockingQueue<byte[]> pending = new ArrayBlockingQueue<>(Math.max(1, maxPendingChunks));
+
+        // Negociar antes de abrir la conexión del trabajo (el probe usa su propia conexión)
+        Mode mode = usbTransportService.chooseMode(printer.getIp(), head, head.length);
+        UsbTransportProtocol.CountingOutputStream[] wire = new UsbTransportProtocol.CountingOutputStream[1];
+        // true en cuanto el documento completo ha salido hacia el cliente USB (ya puede imprimirlo)
+        AtomicBoolean delivered = new AtomicBoolean(false);
+
+        Future<byte[]> writer = null;
+        Socket upstream = openUpstream(printer.getIp());
+        if (upstream != null) {
+            writer = upstreamExecutor.submit(() -> pumpUpstream(upstream, pending, mode, wire, delivered));
+        }
+        boolean upstreamAlive = writer != null;
+        long totalBytes = 0;
+        long firstByteMs = -1;
+
+        try {
+            try (OutputStream spoolOut = new BufferedOutputStream(Files.newOutputStream(spoolFile))) {
+                byte[] chunk = head;
+                while (chunk != null) {
+                    spoolOut.write(chunk);
+                    totalBytes += chunk.length;
+
+                    if (upstreamAlive) {
+                        upstreamAlive = enqueue(pending, chunk, writer);
+                        if (upstreamAlive && firstByteMs < 0) {
+                            firstByteMs = System.currentTimeMillis() - startTime;
+                        }
+                        if (!upstreamAlive) {
+                            log.warn("  ⚠️ Cliente USB dejó de aceptar datos tras {} bytes - continuando en spool", totalBytes);
+                            pending.clear();
+                        }
+                    }
+                    chunk = readChunk(in);
+                }
+            }
+
+            byte[] upstreamResponse = null;
+            if (upstreamAlive) {
+                upstreamResponse = finishUpstream(pending, writer);
+                upstreamAlive = upstreamResponse != null;
+            }
+
+            long duration = System.currentTimeMillis() - startTime;
+            usbTransportService.record(fileName, printer.getIp(), mode, totalBytes,
+                wire[0] != null ? wire[0].getCount() : 0, duration, upstreamAlive);
+            if (!upstreamAlive) {
+                usbTransportService.invalidate(printer.getIp());
+            }
+
+            if (upstreamAlive) {
+                log.info("  ✅ Trabajo reenviado en streaming: {} bytes en {} ms (primer bloque a los {} ms)",
+                    totalBytes, duration, firstByteMs);
+                out.write(upstreamResponse.length >= 8 ? upstreamResponse : IPP_OK);
+                out.flush();
+                return true;
+            }
+
+            // Cortar antes de mirar delivered: con el socket cerrado el escritor ya no puede enviar el EOF
+            abort(upstream);
+            if (delivered.get()) {
+                // El cliente USB tiene el documento entero: reenviarlo podría imprimirlo dos veces
+                log.error("  ❌ Cliente USB sin confirmar tras recibir los {} bytes - el trabajo no se reenvía", totalBytes);
+                out.write(IPP_ERROR);
+                out.flush();
+                return false;
+            }
+
+            // FALLBACK: el cliente USB no llegó a tener el documento completo, encolar el trabajo ya recibido
+            log.warn("  🔁 Reenvío directo falló - encolando {} bytes para reintento", totalBytes);
+            try {
+                printQueueService.addJob(printer, fileName, owner, printer.getInstance(), spoolFile);
+                spoolFile = null;
+                out.write(IPP_OK);
+                out.flush();
+                return true;
+            } catch (Exception e) {
+                log.error("  ❌ No se pudo encolar el trabajo: {}", e.getMessage());
+                out.write(IPP_ERROR);
+                out.flush();
+                return false;
+            }
+
+        } finally {
+            if (writer != null && !writer.isDone()) {
+                writer.cancel(true);
+            }
+            closeQuietly(upstream);
+            if (spoolFile != null) {
+                Files.deleteIfExists(spoolFile);
+            }
+        }
+    }
+
+    /**
+     * Abre la conexión con el cliente USB; null si no está disponible
+     */
+    private Socket openUpstream(String ip) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, USB_CLIENT_PORT), connectionTimeout);
+            socket.setSoTimeout(dataTransferTimeout);
+            socket.setTcpNoDelay(true);
+            socket.setSendBufferSize(65536);
+            return socket;
+        } catch (IOException e) {
+            log.warn("  ⚠️ Cliente USB {}:{} no disponible: {}", ip, USB_CLIENT_PORT, e.getMessage());
+            closeQuietly(socket);
+            return null;
+        }
+    }
+
+    /**
+     * Lee el siguiente bloque del cliente; null en EOF o timeout entre paquetes
+     * (el cliente Windows deja la conexión abierta esperando la respuesta)
+     */
+    private byte[] readChunk(InputStream in) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        try {
+            int bytesRead = in.read(buffer);
+            if (bytesRead == -1) {
+                return null;
+            }
+            return bytesRead == buffer.length ? buffer : Arrays.copyOf(buffer, bytesRead);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Encola un bloque para el escritor, bloqueando mientras la cola esté llena
+     * @return false si el escritor terminó con error
+     */
+    private boolean enqueue(BlockingQueue<byte[]> pending, byte[] chunk, Future<byte[]> writer) {
+        try {
+            while (!pending.offer(chunk, 200, TimeUnit.MILLISECONDS)) {
+                if (writer.isDone()) {
+                    return false;
+                }
+            }
+            return !writer.isDone();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Señala fin de datos y espera la respuesta del cliente USB
+     * @return respuesta recibida (posiblemente vacía) o null si falló
+     */
+    private byte[] finishUpstream(BlockingQueue<byte[]> pending, Future<byte[]> writer) {
+        // Si el escritor ya falló, get() lanzará la excepción correspondiente
+        enqueue(pending, END_OF_DATA, writer);
+        try {
+            return writer.get(dataTransferTimeout * 2L, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            log.warn("  ⚠️ Error en envío al cliente USB: {}", cause.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Hilo escritor: vacía la cola hacia el cliente USB y devuelve su respuesta
+     */
+    private byte[] pumpUpstream(Socket upstream, BlockingQueue<byte[]> pending, Mode mode,
+                                UsbTransportProtocol.CountingOutputStream[] wire,
+                                AtomicBoolean delivered) throws Exception {
+        wire[0] = new UsbTransportProtocol.CountingOutputStream(upstream.getOutputStream());
+        OutputStream upOut = UsbTransportProtocol.openEncoder(wire[0], mode);
+        while (true) {
+            byte[] chunk = pending.take();
+            if (chunk == END_OF_DATA) {
+                break;
+            }
+            upOut.write(chunk);
+        }
+        UsbTransportProtocol.finish(upOut);
+        upstream.shutdownOutput();
+        delivered.set(true);
+
+        // UsbClientService responde con una cabecera IPP al terminar de leer
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        InputStream upIn = upstream.getInputStream();
+        byte[] buffer = new byte[256];
+        try {
+            int n;
+            while ((n = upIn.read(buffer)) != -1 && response.size() < 4096) {
+                response.write(buffer, 0, n);
+            }
+        } catch (SocketTimeoutException e) {
+            log.trace("Sin respuesta completa del cliente USB (normal para RAW)");
+        }
+        return response.toByteArray();
+    }
+
+    /**
+     * Cierra con RST en lugar de FIN: el cliente USB no ve un EOF que le haga
+     * imprimir un documento a medias
+     */
+    private void abort(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.setSoLinger(true, 0);
+            } catch (IOException e) {
+                // Ignorar
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignorar
+            }
+        }
+    }
+}
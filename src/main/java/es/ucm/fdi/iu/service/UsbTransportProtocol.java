@@ -0,0 +1,168 @@
+package es.ucm.fdi.iu.service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Formato de transporte entre el servidor y los clientes USB (puerto 631)
+ *
+ * Compartido por ambos extremos (UsbTransportService y UsbClientService):
+ *
+ * NEGOCIACIÓN:
+ *   El servidor abre una conexión y la cierra sin enviar datos (probe).
+ *   - Cliente antiguo: responde solo la cabecera IPP OK (9 bytes) → RAW
+ *   - Cliente nuevo: responde IPP OK + "PSZ1 DEFLATE\n" → admite compresión
+ *
+ * TRABAJO COMPRIMIDO:
+ *   [00 'P' 'S' 'Z'] [versión=1] [método=1 DEFLATE] [flujo zlib...]
+ *   El primer byte 0x00 no coincide con ningún formato de impresión
+ *   (PDF/PostScript empiezan por '%', PCL/ESC-P por ESC), así que un
+ *   trabajo RAW nunca se confunde con uno comprimido.
+ */
+public final class UsbTransportProtocol {
+
+    public static final byte[] MAGIC = {0x00, 'P', 'S', 'Z'};
+    public static final byte VERSION = 1;
+    public static final byte METHOD_DEFLATE = 1;
+    public static final int HEADER_LENGTH = MAGIC.length + 2;
+
+    // Cabecera IPP successful-ok usada por ambos extremos
+    public static final byte[] IPP_OK = {0x01, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x03};
+
+    // Texto de capacidades que un cliente nuevo añade a la respuesta del probe
+    public static final String CAPABILITY_DEFLATE = "PSZ1 DEFLATE\n";
+
+    public enum Mode {
+        RAW,
+        DEFLATE
+    }
+
+    private UsbTransportProtocol() {
+    }
+
+    /**
+     * Respuesta del cliente USB a una conexión vacía (probe)
+     */
+    public static byte[] probeResponse() {
+        byte[] capability = CAPABILITY_DEFLATE.getBytes(StandardCharsets.US_ASCII);
+        byte[] response = Arrays.copyOf(IPP_OK, IPP_OK.length + capability.length);
+        System.arraycopy(capability, 0, response, IPP_OK.length, capability.length);
+        return response;
+    }
+
+    /**
+     * Interpreta la respuesta de un probe
+     */
+    public static Mode parseProbeResponse(byte[] response, int length) {
+        if (length <= IPP_OK.length) {
+            return Mode.RAW;
+        }
+        String trailer = new String(response, IPP_OK.length, length - IPP_OK.length, StandardCharsets.US_ASCII);
+        return trailer.startsWith("PSZ1") && trailer.contains("DEFLATE") ? Mode.DEFLATE : Mode.RAW;
+    }
+
+    /**
+     * Envuelve la salida hacia el cliente USB según el modo elegido
+     * (escribe la cabecera si es comprimido)
+     */
+    public static OutputStream openEncoder(OutputStream out, Mode mode) throws IOException {
+        if (mode != Mode.DEFLATE) {
+            return out;
+        }
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(METHOD_DEFLATE);
+        // Nivel 1: la red es el cuello de botella, no interesa gastar CPU
+        return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), 8192, true);
+    }
+
+    /**
+     * Termina el flujo codificado sin cerrar el socket subyacente
+     */
+    public static void finish(OutputStream encoded) throws IOException {
+        if (encoded instanceof DeflaterOutputStream deflater) {
+            deflater.finish();
+        }
+        encoded.flush();
+    }
+
+    /**
+     * Indica si los datos recibidos llevan la cabecera de transporte comprimido
+     */
+    public static boolean isCompressed(byte[] data) {
+        if (data == null || data.length < HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return data[MAGIC.length] == VERSION && data[MAGIC.length + 1] == METHOD_DEFLATE;
+    }
+
+    /**
+     * Descomprime un trabajo recibido con cabecera de transporte
+     */
+    public static byte[] decode(byte[] data) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(data.length * 3);
+        try (InputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(data, HEADER_LENGTH, data.length - HEADER_LENGTH))) {
+            in.transferTo(result);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Estima la relación de compresión (comprimido / original) de una muestra
+     */
+    public static double estimateRatio(byte[] sample, int length) {
+        if (length <= 0) {
+            return 1.0;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[8192];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            return (double) compressed / length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * OutputStream que cuenta los bytes que realmente salen a la red
+     */
+    public static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
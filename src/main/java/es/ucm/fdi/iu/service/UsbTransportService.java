@@ -0,0 +1,259 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.service.UsbTransportProtocol.Mode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Negociación de transporte con los clientes USB (lado servidor)
+ *
+ * - Averigua con un probe si el cliente USB admite compresión (cacheado por IP)
+ * - Decide por trabajo si compensa comprimir, a partir de una muestra
+ * - Registra por trabajo los bytes en la red y el tiempo de transferencia
+ *
+ * Los clientes antiguos siguen recibiendo RAW sin cambios.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "app.mode", havingValue = "server", matchIfMissing = true)
+public class UsbTransportService {
+
+    private static final int USB_CLIENT_PORT = 631;
+
+    // Tamaño de la muestra usada para estimar la compresibilidad
+    private static final int SAMPLE_SIZE = 65536;
+
+    // Transferencias recientes expuestas en las estadísticas
+    private static final int MAX_RECENT_TRANSFERS = 100;
+
+    @Value("${printer.usb.compression.enabled:true}")
+    private boolean compressionEnabled;
+
+    // Solo se comprime si la muestra queda por debajo de esta fracción
+    @Value("${printer.usb.compression.max-ratio:0.85}")
+    private double maxRatio;
+
+    // Tiempo que se recuerda la capacidad negociada de cada cliente (ms)
+    @Value("${printer.usb.compression.probe-ttl:600000}")
+    private long probeTtlMs;
+
+    @Value("${printer.connection.timeout:5000}")
+    private int connectionTimeout;
+
+    @Value("${printer.data.transfer.timeout:10000}")
+    private int dataTransferTimeout;
+
+    private final Map<String, NegotiatedMode> negotiated = new ConcurrentHashMap<>();
+    private final Deque<TransferStats> recentTransfers = new ConcurrentLinkedDeque<>();
+
+    private static class NegotiatedMode {
+        final Mode mode;
+        final long expiresAt;
+
+        NegotiatedMode(Mode mode, long expiresAt) {
+            this.mode = mode;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Estadísticas de transferencia de un trabajo
+     */
+    public static class TransferStats {
+        private final String job;
+        private final String clientIp;
+        private final Mode mode;
+        private final long originalBytes;
+        private final long wireBytes;
+        private final long durationMs;
+        private final boolean success;
+        private final Date date = new Date();
+
+        public TransferStats(String job, String clientIp, Mode mode, long originalBytes,
+                             long wireBytes, long durationMs, boolean success) {
+            this.job = job;
+            this.clientIp = clientIp;
+            this.mode = mode;
+            this.originalBytes = originalBytes;
+            this.wireBytes = wireBytes;
+            this.durationMs = durationMs;
+            this.success = success;
+        }
+
+        public String getJob() { return job; }
+        public String getClientIp() { return clientIp; }
+        public Mode getMode() { return mode; }
+        public long getOriginalBytes() { return originalBytes; }
+        public long getWireBytes() { return wireBytes; }
+        public long getDurationMs() { return durationMs; }
+        public boolean isSuccess() { return success; }
+        public Date getDate() { return date; }
+    }
+
+    /**
+     * El envío comprimido falló sin que llegara ningún byte al cliente USB:
+     * se puede repetir en RAW sin riesgo de imprimir dos veces
+     */
+    public static class NotSentException extends IOException {
+        public NotSentException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Modo que admite el cliente USB (probe cacheado)
+     */
+    public Mode negotiatedMode(String ip) {
+        if (!compressionEnabled) {
+            return Mode.RAW;
+        }
+        NegotiatedMode cached = negotiated.get(ip);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            return cached.mode;
+        }
+        Mode mode = probe(ip);
+        if (mode == null) {
+            // Cliente no disponible: no se cachea para volver a negociar cuando aparezca
+            return Mode.RAW;
+        }
+        negotiated.put(ip, new NegotiatedMode(mode, System.currentTimeMillis() + probeTtlMs));
+        return mode;
+    }
+
+    /**
+     * Olvida la capacidad negociada (p. ej. si el cliente fue actualizado o falló)
+     */
+    public void invalidate(String ip) {
+        negotiated.remove(ip);
+    }
+
+    /**
+     * Elige el modo para un trabajo concreto a partir de una muestra de sus datos
+     */
+    public Mode chooseMode(String ip, byte[] sample, int length) {
+        if (negotiatedMode(ip) != Mode.DEFLATE) {
+            return Mode.RAW;
+        }
+        double ratio = UsbTransportProtocol.estimateRatio(sample, Math.min(length, SAMPLE_SIZE));
+        Mode mode = ratio <= maxRatio ? Mode.DEFLATE : Mode.RAW;
+        log.debug("  🗜️ Muestra de {} bytes comprime a {}% → {}",
+            Math.min(length, SAMPLE_SIZE), Math.round(ratio * 100), mode);
+        return mode;
+    }
+
+    /**
+     * Envía un archivo al cliente USB comprimiendo si compensa
+     * @return false si el cliente no admite compresión o la muestra no comprime;
+     *         en ese caso el envío RAW queda a cargo del llamador
+     * @throws NotSentException si falló antes de escribir nada en el socket
+     * @throws IOException si falló con parte de los datos ya enviados (el
+     *         cliente puede haber empezado a imprimir)
+     */
+    public boolean trySendCompressed(String ip, Path file, String jobLabel) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int sampleLength;
+        try (InputStream in = Files.newInputStream(file)) {
+            sampleLength = in.readNBytes(sample, 0, SAMPLE_SIZE);
+        }
+        if (chooseMode(ip, sample, sampleLength) != Mode.DEFLATE) {
+            return false;
+        }
+
+        long originalBytes = Files.size(file);
+        long startTime = System.currentTimeMillis();
+        UsbTransportProtocol.CountingOutputStream wire = null;
+        boolean success = false;
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(ip, USB_CLIENT_PORT), connectionTimeout);
+            socket.setSoTimeout(dataTransferTimeout);
+            socket.setTcpNoDelay(true);
+
+            // Contador bajo el búfer: cuenta solo lo que ya se entregó al socket
+            wire = new UsbTransportProtocol.CountingOutputStream(socket.getOutputStream());
+            OutputStream encoded = UsbTransportProtocol.openEncoder(
+                new BufferedOutputStream(wire, 65536), Mode.DEFLATE);
+            Files.copy(file, encoded);
+            UsbTransportProtocol.finish(encoded);
+            socket.shutdownOutput();
+
+            byte[] response = new byte[64];
+            try {
+                socket.getInputStream().read(response);
+            } catch (SocketTimeoutException e) {
+                log.trace("Sin respuesta del cliente USB");
+            }
+            success = true;
+            return true;
+        } catch (IOException e) {
+            if (wire == null || wire.getCount() == 0) {
+                throw new NotSentException(e);
+            }
+            throw e;
+        } finally {
+            long wireBytes = wire != null ? wire.getCount() : 0;
+            record(jobLabel, ip, Mode.DEFLATE, originalBytes, wireBytes,
+                System.currentTimeMillis() - startTime, success);
+            if (!success) {
+                invalidate(ip);
+            }
+        }
+    }
+
+    /**
+     * Registra una transferencia (también para las que fueron RAW)
+     */
+    public void record(String job, String ip, Mode mode, long originalBytes,
+                       long wireBytes, long durationMs, boolean success) {
+        recentTransfers.addFirst(new TransferStats(job, ip, mode, originalBytes, wireBytes, durationMs, success));
+        while (recentTransfers.size() > MAX_RECENT_TRANSFERS) {
+            recentTransfers.pollLast();
+        }
+        if (mode == Mode.DEFLATE && originalBytes > 0) {
+            log.info("  📊 {} → {}: {} bytes en red de {} originales ({}%) en {} ms",
+                job, ip, wireBytes, originalBytes, Math.round(wireBytes * 100.0 / originalBytes), durationMs);
+        } else {
+            log.info("  📊 {} → {}: {} bytes RAW en {} ms", job, ip, wireBytes, durationMs);
+        }
+    }
+
+    public List<TransferStats> getRecentTransfers() {
+        return new ArrayList<>(recentTransfers);
+    }
+
+    /**
+     * Conexión vacía al cliente USB: los clientes nuevos responden con sus capacidades
+     * @return modo admitido, o null si el cliente no respondió
+     */
+    private Mode probe(String ip) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(ip, USB_CLIENT_PORT), connectionTimeout);
+            socket.setSoTimeout(connectionTimeout);
+            socket.shutdownOutput();
+
+            byte[] response = new byte[128];
+            int length = 0;
+            InputStream in = socket.getInputStream();
+            int n;
+            while (length < response.length && (n = in.read(response, length, response.length - length)) != -1) {
+                length += n;
+            }
+            Mode mode = UsbTransportProtocol.parseProbeResponse(response, length);
+            log.info("  🤝 Cliente USB {} negocia transporte {}", ip, mode);
+            return mode;
+        } catch (IOException e) {
+            log.debug("  Probe de transporte a {} falló: {}", ip, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package es.ucm.fdi.iu.util;
+
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Conjunto inmutable de direcciones IPv4 guardado como intervalos
+ *
+ * Las direcciones son int (sin signo) y el conjunto, intervalos ordenados,
+ * disjuntos y no contiguos: unir 172.18.0.0/22 con 172.18.1.0/24 deja un
+ * solo intervalo y ninguna dirección se recorre dos veces. Recorrer el
+ * conjunto no crea un String por dirección; format() solo se llama con
+ * las que se van a usar.
+ *
+ * Los CIDR no válidos lanzan IllegalArgumentException.
+ */
+public final class Ipv4RangeSet {
+
+    public static final Ipv4RangeSet EMPTY = new Ipv4RangeSet(new int[0]);
+
+    // [inicio0, fin0, inicio1, fin1, ...] (fin incluido)
+    private final int[] bounds;
+
+    private Ipv4RangeSet(int[] bounds) {
+        this.bounds = bounds;
+    }
+
+    /**
+     * Todas las direcciones del bloque, red y difusión incluidas
+     */
+    public static Ipv4RangeSet block(String cidr) {
+        long[] block = parseCidr(cidr);
+        return of(block[0], block[1]);
+    }
+
+    /**
+     * Direcciones de host del bloque: sin red ni difusión salvo en /31 y /32
+     */
+    public static Ipv4RangeSet hosts(String cidr) {
+        long[] block = parseCidr(cidr);
+        if (block[1] - block[0] >= 3) {
+            return of(block[0] + 1, block[1] - 1);
+        }
+        return of(block[0], block[1]);
+    }
+
+    /**
+     * Unión de las direcciones de host de varios CIDR
+     */
+    public static Ipv4RangeSet hosts(Collection<String> cidrs) {
+        long[] intervals = new long[cidrs.size() * 2];
+        int count = 0;
+        for (String cidr : cidrs) {
+            Ipv4RangeSet set = hosts(cidr);
+            if (!set.isEmpty()) {
+                intervals[count * 2] = set.start(0);
+                intervals[count * 2 + 1] = set.end(0);
+                count++;
+            }
+        }
+        return normalize(intervals, count);
+    }
+
+    /**
+     * Direcciones sueltas (las no válidas se ignoran)
+     */
+    public static Ipv4RangeSet addresses(Collection<String> ips) {
+        long[] intervals = new long[ips.size() * 2];
+        int count = 0;
+        for (String ip : ips) {
+            if (isAddress(ip)) {
+                long value = Integer.toUnsignedLong(parse(ip));
+                intervals[count * 2] = value;
+                intervals[count * 2 + 1] = value;
+                count++;
+            }
+        }
+        return normalize(intervals, count);
+    }
+
+    public static boolean isAddress(String ip) {
+        try {
+            parse(ip);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * "10.1.1.45" → int
+     */
+    public static int parse(String ip) {
+        if (ip == null) {
+            throw new IllegalArgumentException("IP nula");
+        }
+        String[] octets = ip.trim().split("\\.");
+        if (octets.length != 4) {
+            throw new IllegalArgumentException("IP no válida: " + ip);
+        }
+        int value = 0;
+        for (String octet : octets) {
+            int part;
+            try {
+                part = Integer.parseInt(octet);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("IP no válida: " + ip);
+            }
+            if (part < 0 || part > 255) {
+                throw new IllegalArgumentException("IP no válida: " + ip);
+            }
+            value = (value << 8) | part;
+        }
+        return value;
+    }
+
+    /**
+     * int → "10.1.1.45"
+     */
+    public static String format(int ip) {
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    public Ipv4RangeSet union(Ipv4RangeSet other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        int count = intervals() + other.intervals();
+        long[] merged = new long[count * 2];
+        for (int i = 0; i < intervals(); i++) {
+            merged[i * 2] = start(i);
+            merged[i * 2 + 1] = end(i);
+        }
+        for (int i = 0; i < other.intervals(); i++) {
+            merged[(intervals() + i) * 2] = other.start(i);
+            merged[(intervals() + i) * 2 + 1] = other.end(i);
+        }
+        return normalize(merged, count);
+    }
+
+    /**
+     * Direcciones de este conjunto que no están en other
+     */
+    public Ipv4RangeSet subtract(Ipv4RangeSet other) {
+        if (isEmpty() || other.isEmpty()) {
+            return this;
+        }
+        long[] result = new long[(intervals() + other.intervals()) * 2];
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < intervals(); i++) {
+            long current = start(i);
+            long end = end(i);
+            while (j < other.intervals() && other.end(j) < current) {
+                j++;
+            }
+            for (int k = j; k < other.intervals() && other.start(k) <= end && current <= end; k++) {
+                if (other.start(k) > current) {
+                    result[count * 2] = current;
+                    result[count * 2 + 1] = other.start(k) - 1;
+                    count++;
+                }
+                current = Math.max(current, other.end(k) + 1);
+            }
+            if (current <= end) {
+                result[count * 2] = current;
+                result[count * 2 + 1] = end;
+                count++;
+            }
+        }
+        return fromSorted(result, count);
+    }
+
+    /**
+     * Este conjunto sin las IPs indicadas
+     */
+    public Ipv4RangeSet exclude(Collection<String> ips) {
+        return ips.isEmpty() ? this : subtract(addresses(ips));
+    }
+
+    public Ipv4RangeSet intersect(Ipv4RangeSet other) {
+        return subtract(subtract(other));
+    }
+
+    public boolean containsAll(Ipv4RangeSet other) {
+        return other.subtract(this).isEmpty();
+    }
+
+    public boolean contains(int ip) {
+        long value = Integer.toUnsignedLong(ip);
+        int low = 0;
+        int high = intervals() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (end(mid) < value) {
+                low = mid + 1;
+            } else if (start(mid) > value) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * false también si la IP no es válida
+     */
+    public boolean contains(String ip) {
+        return isAddress(ip) && contains(parse(ip));
+    }
+
+    public long size() {
+        long size = 0;
+        for (int i = 0; i < intervals(); i++) {
+            size += end(i) - start(i) + 1;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return bounds.length == 0;
+    }
+
+    /**
+     * Reparte el conjunto en como mucho count trozos consecutivos de tamaño
+     * parecido (ninguno vacío)
+     */
+    public List<Ipv4RangeSet> shards(int count) {
+        long size = size();
+        if (size == 0) {
+            return List.of();
+        }
+        long perShard = Math.max(1, (size + Math.max(1, count) - 1) / Math.max(1, count));
+        List<Ipv4RangeSet> shards = new ArrayList<>();
+        long[] current = new long[intervals() * 2];
+        int currentCount = 0;
+        long remaining = perShard;
+        for (int i = 0; i < intervals(); i++) {
+            long start = start(i);
+            long end = end(i);
+            while (start <= end) {
+                long take = Math.min(remaining, end - start + 1);
+                current[currentCount * 2] = start;
+                current[currentCount * 2 + 1] = start + take - 1;
+                currentCount++;
+                start += take;
+                remaining -= take;
+                if (remaining == 0) {
+                    shards.add(fromSorted(current, currentCount));
+                    currentCount = 0;
+                    remaining = perShard;
+                }
+            }
+        }
+        if (currentCount > 0) {
+            shards.add(fromSorted(current, currentCount));
+        }
+        return shards;
+    }
+
+    /**
+     * Recorrido en orden sin crear objetos por dirección
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int interval = 0;
+            private long next = isEmpty() ? 0 : start(0);
+
+            @Override
+            public boolean hasNext() {
+                return interval < intervals();
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int value = (int) next;
+                if (next < end(interval)) {
+                    next++;
+                } else if (++interval < intervals()) {
+                    next = start(interval);
+                }
+                return value;
+            }
+        };
+    }
+
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < intervals(); i++) {
+            for (long ip = start(i); ip <= end(i); ip++) {
+                action.accept((int) ip);
+            }
+        }
+    }
+
+    /**
+     * Las primeras max direcciones, en texto
+     */
+    public List<String> first(int max) {
+        List<String> ips = new ArrayList<>((int) Math.min(max, size()));
+        PrimitiveIterator.OfInt it = iterator();
+        while (it.hasNext() && ips.size() < max) {
+            ips.add(format(it.nextInt()));
+        }
+        return ips;
+    }
+
+    /**
+     * count direcciones repartidas uniformemente, en texto
+     */
+    public List<String> sample(int count) {
+        long size = size();
+        List<String> samples = new ArrayList<>();
+        if (size == 0 || count <= 0) {
+            return samples;
+        }
+        long step = Math.max(1, size / count);
+        for (long index = 0; index < size && samples.size() < count; index += step) {
+            samples.add(format(addressAt(index)));
+        }
+        return samples;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Ipv4RangeSet other && Arrays.equals(bounds, other.bounds);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bounds);
+    }
+
+    /**
+     * "10.0.0.1-10.0.0.254, 10.0.1.7"
+     */
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ");
+        for (int i = 0; i < intervals(); i++) {
+            joiner.add(start(i) == end(i)
+                ? format(bounds[i * 2])
+                : format(bounds[i * 2]) + "-" + format(bounds[i * 2 + 1]));
+        }
+        return joiner.toString();
+    }
+
+    private int intervals() {
+        return bounds.length / 2;
+    }
+
+    private long start(int interval) {
+        return Integer.toUnsignedLong(bounds[interval * 2]);
+    }
+
+    private long end(int interval) {
+        return Integer.toUnsignedLong(bounds[interval * 2 + 1]);
+    }
+
+    private int addressAt(long index) {
+        for (int i = 0; i < intervals(); i++) {
+            long length = end(i) - start(i) + 1;
+            if (index < length) {
+                return (int) (start(i) + index);
+            }
+            index -= length;
+        }
+        throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+
+    private static Ipv4RangeSet of(long first, long last) {
+        return new Ipv4RangeSet(new int[]{(int) first, (int) last});
+    }
+
+    /**
+     * Primera y última dirección del bloque como enteros sin signo
+     */
+    private static long[] parseCidr(String cidr) {
+        if (cidr == null) {
+            throw new IllegalArgumentException("CIDR nulo");
+        }
+        String[] parts = cidr.trim().split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("CIDR no válido: " + cidr);
+        }
+        int prefix;
+        try {
+            prefix = Integer.parseInt(parts[1].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("CIDR no válido: " + cidr);
+        }
+        if (prefix < 0 || prefix > 32) {
+            throw new IllegalArgumentException("CIDR no válido: " + cidr);
+        }
+        long mask = prefix == 0 ? 0 : (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL;
+        long network = Integer.toUnsignedLong(parse(parts[0])) & mask;
+        return new long[]{network, network | (~mask & 0xFFFFFFFFL)};
+    }
+
+    /**
+     * Ordena los intervalos y funde los que se solapan o se tocan
+     */
+    private static Ipv4RangeSet normalize(long[] intervals, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        // Inicio en los 32 bits altos: ordenar los long ordena por inicio
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            packed[i] = (intervals[i * 2] << 32) | intervals[i * 2 + 1];
+        }
+        // Los inicios >= 128.0.0.0 darían negativos; invertir el bit de signo los deja en orden
+        for (int i = 0; i < count; i++) {
+            packed[i] ^= Long.MIN_VALUE;
+        }
+        Arrays.sort(packed);
+        long[] merged = new long[count * 2];
+        int mergedCount = 0;
+        for (long value : packed) {
+            long entry = value ^ Long.MIN_VALUE;
+            long start = entry >>> 32;
+            long end = entry & 0xFFFFFFFFL;
+            if (mergedCount > 0 && start <= merged[mergedCount * 2 - 1] + 1) {
+                merged[mergedCount * 2 - 1] = Math.max(merged[mergedCount * 2 - 1], end);
+            } else {
+                merged[mergedCount * 2] = start;
+                merged[mergedCount * 2 + 1] = end;
+                mergedCount++;
+            }
+        }
+        return fromSorted(merged, mergedCount);
+    }
+
+    private static Ipv4RangeSet fromSorted(long[] intervals, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        int[] bounds = new int[count * 2];
+        for (int i = 0; i < count * 2; i++) {
+            bounds[i] = (int) intervals[i];
+        }
+        return new Ipv4RangeSet(bounds);
+    }
+}
@@ -0,0 +1,160 @@
+package es.ucm.fdi.iu.control;
+
+import es.ucm.fdi.iu.model.*;
+import es.ucm.fdi.iu.service.ApiTokenCache;
+import jakarta.persistence.EntityManager;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Número de sentencias SQL de /ulist y de los endpoints que devuelven un
+ * User.Transfer: fijo, sin importar cuántos trabajos, impresoras y grupos haya
+ */
+@DataJpaTest(properties = {
+	"spring.datasource.url=jdbc:h2:mem:apicount;MODE=PostgreSQL;NON_KEYWORDS=KEY,VALUE",
+	"spring.datasource.driver-class-name=org.h2.Driver",
+	"spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+	"spring.jpa.hibernate.ddl-auto=create-drop",
+	"spring.jpa.properties.hibernate.hbm2ddl.import_files=",
+	"spring.jpa.properties.hibernate.generate_statistics=true",
+	"spring.sql.init.mode=never"
+})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class ApiControllerQueryCountTest {
+
+	// find(User) del token cacheado + las 6 consultas de generateUserTransfer
+	private static final long TRANSFER_STATEMENTS = 7;
+	// find(User) del token cacheado + la consulta de generateUserList
+	private static final long USER_LIST_STATEMENTS = 2;
+
+	@Autowired
+	private EntityManager entityManager;
+
+	private ApiController controller;
+	private Statistics statistics;
+	private int nextPort = 9000;
+
+	@BeforeEach
+	void setUp() {
+		controller = new ApiController();
+		ReflectionTestUtils.setField(controller, "entityManager", entityManager);
+		ReflectionTestUtils.setField(controller, "tokenCache", tokenCache());
+		statistics = entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+	}
+
+	@Test
+	void userTransferTakesTheSameStatementsForAnyAmountOfData() {
+		String small = populate("small", 1);
+		String large = populate("large", 8);
+
+		assertEquals(TRANSFER_STATEMENTS, statementsOf(() -> controller.list(small)));
+		assertEquals(TRANSFER_STATEMENTS, statementsOf(() -> controller.list(large)));
+
+		User.Transfer transfer = controller.list(large);
+		assertEquals(8, transfer.getPrinters().size());
+		assertEquals(8, transfer.getGroups().size());
+		assertEquals(8 * 8, transfer.getJobs().size());
+		assertEquals(8, transfer.getPrinters().get(0).getGroups().size());
+		assertEquals(8, transfer.getPrinters().get(0).getQueue().size());
+		assertEquals(8, transfer.getGroups().get(0).getPrinters().size());
+	}
+
+	@Test
+	void userListTakesTheSameStatementsForAnyAmountOfData() {
+		String admin = populate("admin", 1);
+
+		assertEquals(USER_LIST_STATEMENTS, statementsOf(() -> controller.ulist(admin)));
+		populate("other", 8);
+		populate("another", 8);
+		assertEquals(USER_LIST_STATEMENTS, statementsOf(() -> controller.ulist(admin)));
+
+		List<User.AdminTransfer> users = controller.ulist(admin);
+		assertEquals(3, users.size());
+		User.AdminTransfer other = users.stream().filter(u -> u.getUsername().equals("other")).findFirst().orElseThrow();
+		assertEquals(1, other.getTokens());
+		assertEquals(8 * 8, other.getJobs());
+		assertEquals(8, other.getPrinters());
+		assertEquals(8, other.getGroups());
+	}
+
+	/**
+	 * Sentencias de una llamada con la caché de tokens ya caliente y el
+	 * contexto de persistencia vacío (como en una petición nueva)
+	 */
+	private long statementsOf(Runnable call) {
+		call.run();
+		entityManager.clear();
+		statistics.clear();
+		call.run();
+		return statistics.getPrepareStatementCount();
+	}
+
+	/**
+	 * Usuario (admin) con n impresoras, n grupos con todas ellas y n
+	 * trabajos por impresora
+	 *
+	 * @return clave de su token
+	 */
+	private String populate(String username, int n) {
+		User user = new User();
+		user.setUsername(username);
+		user.setPassword("-");
+		user.setEnabled(true);
+		user.setRoles(User.Role.ADMIN + "," + User.Role.USER);
+		entityManager.persist(user);
+
+		Token token = new Token();
+		token.setUser(user);
+		token.setKey("k-" + username);
+		entityManager.persist(token);
+
+		for (int i = 0; i < n; i++) {
+			Printer printer = new Printer();
+			printer.setInstance(user);
+			printer.setAlias(username + "-p" + i);
+			printer.setIp("10.0." + n + "." + (i + 1));
+			printer.setIppPort(nextPort++);
+			entityManager.persist(printer);
+			for (int k = 0; k < n; k++) {
+				Job job = new Job();
+				job.setInstance(user);
+				job.setPrinter(printer);
+				job.setOwner(username);
+				job.setFileName("doc" + k + ".pdf");
+				job.setSequence((long) k);
+				entityManager.persist(job);
+				printer.getQueue().add(job);
+			}
+		}
+		List<Printer> printers = entityManager.createQuery(
+				"SELECT p FROM Printer p WHERE p.instance = :u", Printer.class)
+			.setParameter("u", user).getResultList();
+		for (int i = 0; i < n; i++) {
+			PGroup group = new PGroup();
+			group.setInstance(user);
+			group.setName(username + "-g" + i);
+			group.getPrinters().addAll(printers);
+			entityManager.persist(group);
+		}
+		entityManager.flush();
+		entityManager.clear();
+		return token.getKey();
+	}
+
+	private static ApiTokenCache tokenCache() {
+		ApiTokenCache cache = new ApiTokenCache();
+		ReflectionTestUtils.setField(cache, "ttl", 300000L);
+		ReflectionTestUtils.setField(cache, "maxEntries", 100);
+		return cache;
+	}
+}
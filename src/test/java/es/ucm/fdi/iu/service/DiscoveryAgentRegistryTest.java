@@ -0,0 +1,58 @@
+package es.ucm.fdi.iu.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Caché de hosts informados por agentes: caducan con el ttl y no crece por
+ * encima de max-hosts
+ */
+class DiscoveryAgentRegistryTest {
+
+	private static final String RANGE = "10.0.0.0/24";
+
+	@Test
+	void aFullCacheKeepsUpdatingKnownHostsAndDropsNewOnes() {
+		DiscoveryAgentRegistry registry = registry(900000, 2);
+
+		registry.ingest(report("10.0.0.1", "10.0.0.2", "10.0.0.3"));
+		assertEquals(2, registry.getStatistics().get("cachedHosts"));
+
+		registry.ingest(new DiscoveryAgentRegistry.AgentReport("agente", RANGE,
+			List.of(new DiscoveryAgentRegistry.AgentHost("10.0.0.2", "aa:bb", List.of(9100), "HP", null)), false));
+		assertEquals("HP", registry.hostsIn(RANGE).stream()
+			.filter(h -> h.ip().equals("10.0.0.2")).findFirst().orElseThrow().sysName());
+		assertTrue(registry.hostsIn(RANGE).stream().noneMatch(h -> h.ip().equals("10.0.0.3")));
+	}
+
+	@Test
+	void expiredHostsAreForgottenToMakeRoom() throws Exception {
+		DiscoveryAgentRegistry registry = registry(100, 2);
+
+		registry.ingest(report("10.0.0.1", "10.0.0.2"));
+		Thread.sleep(200);
+		registry.ingest(report("10.0.0.3"));
+
+		assertEquals(1, registry.getStatistics().get("cachedHosts"));
+		assertEquals("10.0.0.3", registry.hostsIn(RANGE).get(0).ip());
+	}
+
+	private static DiscoveryAgentRegistry registry(long ttl, int maxHosts) {
+		DiscoveryAgentRegistry registry = new DiscoveryAgentRegistry(mock(PlatformTransactionManager.class));
+		ReflectionTestUtils.setField(registry, "agentTtl", ttl);
+		ReflectionTestUtils.setField(registry, "maxHosts", maxHosts);
+		return registry;
+	}
+
+	private static DiscoveryAgentRegistry.AgentReport report(String... ips) {
+		return new DiscoveryAgentRegistry.AgentReport("agente", RANGE, List.of(ips).stream()
+			.map(ip -> new DiscoveryAgentRegistry.AgentHost(ip, null, List.of(9100), null, null))
+			.toList(), false);
+	}
+}
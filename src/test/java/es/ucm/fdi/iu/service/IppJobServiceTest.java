@@ -0,0 +1,89 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Job;
+import es.ucm.fdi.iu.model.Printer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+/**
+ * Get-Job-Attributes y Cancel-Job: solo sobre trabajos de la impresora o
+ * del pool destinatario, y la cancelación solo por su propietario
+ */
+class IppJobServiceTest {
+
+	private static final long PRINTER = 1;
+	private static final long OTHER_PRINTER = 2;
+	private static final long POOL = 10;
+	private static final String URI = "ipp://localhost:8640/printers/Planta1";
+
+	private final PrintQueueService printQueueService = mock(PrintQueueService.class);
+	private IppJobService service;
+
+	@BeforeEach
+	void setUp() {
+		JobIndex jobIndex = new JobIndex();
+		jobIndex.added(job(100, PRINTER, null, "ana"));
+		jobIndex.added(job(101, OTHER_PRINTER, POOL, "luis"));
+		jobIndex.added(job(102, PRINTER, null, ""));
+		when(printQueueService.cancelJob(anyLong())).thenReturn(true);
+		service = new IppJobService(jobIndex, printQueueService);
+	}
+
+	@Test
+	void jobsOfOtherPrintersOrPoolsAreNotFound() {
+		assertEquals(IppEncoder.STATUS_OK, status(IppJobService.OP_GET_JOB_ATTRIBUTES, PRINTER, null, Map.of("job-id", "100")));
+		assertEquals(IppEncoder.STATUS_NOT_FOUND, status(IppJobService.OP_GET_JOB_ATTRIBUTES, PRINTER, null, Map.of("job-id", "101")));
+		assertEquals(IppEncoder.STATUS_NOT_FOUND, status(IppJobService.OP_GET_JOB_ATTRIBUTES, null, null, Map.of("job-id", "100")));
+
+		// Por el puerto del pool solo se ven sus trabajos, estén en el miembro que estén
+		assertEquals(IppEncoder.STATUS_OK, status(IppJobService.OP_GET_JOB_ATTRIBUTES, PRINTER, POOL, Map.of("job-id", "101")));
+		assertEquals(IppEncoder.STATUS_NOT_FOUND, status(IppJobService.OP_GET_JOB_ATTRIBUTES, PRINTER, POOL, Map.of("job-id", "100")));
+
+		assertEquals(IppEncoder.STATUS_NOT_FOUND, status(IppJobService.OP_CANCEL_JOB, PRINTER, null,
+			Map.of("job-id", "101", "requesting-user-name", "luis")));
+		verify(printQueueService, never()).cancelJob(anyLong());
+	}
+
+	@Test
+	void onlyTheOwnerCancelsAnOwnedJob() {
+		assertEquals(IppEncoder.STATUS_FORBIDDEN, status(IppJobService.OP_CANCEL_JOB, PRINTER, null, Map.of("job-id", "100")));
+		assertEquals(IppEncoder.STATUS_FORBIDDEN, status(IppJobService.OP_CANCEL_JOB, PRINTER, null,
+			Map.of("job-id", "100", "requesting-user-name", "")));
+		assertEquals(IppEncoder.STATUS_FORBIDDEN, status(IppJobService.OP_CANCEL_JOB, PRINTER, null,
+			Map.of("job-id", "100", "requesting-user-name", "luis")));
+		verify(printQueueService, never()).cancelJob(anyLong());
+
+		assertEquals(IppEncoder.STATUS_OK, status(IppJobService.OP_CANCEL_JOB, PRINTER, null,
+			Map.of("job-id", "100", "requesting-user-name", "ANA")));
+		verify(printQueueService).cancelJob(100L);
+	}
+
+	@Test
+	void aJobWithoutOwnerCanBeCancelledAnonymously() {
+		assertEquals(IppEncoder.STATUS_OK, status(IppJobService.OP_CANCEL_JOB, PRINTER, null, Map.of("job-id", "102")));
+		verify(printQueueService).cancelJob(102L);
+	}
+
+	private int status(int operationId, Long printerId, Long poolId, Map<String, String> attributes) {
+		byte[] response = service.handle(operationId, 7, printerId, poolId, URI, attributes::get);
+		return ((response[2] & 0xFF) << 8) | (response[3] & 0xFF);
+	}
+
+	private static Job job(long id, long printerId, Long pool, String owner) {
+		Printer printer = new Printer();
+		printer.setId(printerId);
+		Job job = new Job();
+		job.setId(id);
+		job.setPrinter(printer);
+		job.setPool(pool);
+		job.setOwner(owner);
+		job.setFileName("doc.pdf");
+		return job;
+	}
+}
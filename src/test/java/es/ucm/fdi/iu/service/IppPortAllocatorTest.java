@@ -0,0 +1,98 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Printer;
+import es.ucm.fdi.iu.repository.PrinterRepository;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Puertos IPP en clúster: dos nodos reparten de la misma secuencia y la
+ * columna única impide duplicar un puerto
+ */
+@DataJpaTest(properties = {
+	"spring.datasource.url=jdbc:h2:mem:ports;MODE=PostgreSQL;NON_KEYWORDS=KEY,VALUE",
+	"spring.datasource.driver-class-name=org.h2.Driver",
+	"spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+	"spring.jpa.hibernate.ddl-auto=create-drop",
+	"spring.jpa.properties.hibernate.hbm2ddl.import_files=",
+	"spring.sql.init.mode=never"
+})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class IppPortAllocatorTest {
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private PrinterRepository printerRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@AfterEach
+	void cleanUp() {
+		new TransactionTemplate(transactionManager).executeWithoutResult(status ->
+			entityManager.createQuery("DELETE FROM Printer").executeUpdate());
+	}
+
+	@Test
+	void nodesShareTheSequenceAndSkipAssignedPorts() {
+		TransactionTemplate tx = new TransactionTemplate(transactionManager);
+		tx.executeWithoutResult(status -> entityManager.persist(printer("Existente", 8640)));
+		IppPortAllocator nodeA = allocator();
+		IppPortAllocator nodeB = allocator();
+
+		// La secuencia empieza tras el mayor puerto asignado
+		assertEquals(Integer.valueOf(8641), tx.execute(status -> nodeA.allocate()));
+		// Puesto a mano por delante de la secuencia
+		tx.executeWithoutResult(status -> entityManager.persist(printer("Manual", 8643)));
+
+		Set<Integer> ports = new HashSet<>();
+		for (int i = 0; i < 3; i++) {
+			ports.add(tx.execute(status -> nodeB.allocate()));
+			ports.add(tx.execute(status -> nodeA.allocate()));
+		}
+
+		assertEquals(Set.of(8642, 8644, 8645, 8646, 8647, 8648), ports);
+		assertEquals(true, nodeA.getStatistics().get("shared"));
+	}
+
+	@Test
+	void aPortCannotBeAssignedTwice() {
+		TransactionTemplate tx = new TransactionTemplate(transactionManager);
+		tx.executeWithoutResult(status -> entityManager.persist(printer("Primera", 8700)));
+
+		assertThrows(DataIntegrityViolationException.class, () ->
+			tx.executeWithoutResult(status -> entityManager.persist(printer("Segunda", 8700))));
+	}
+
+	private IppPortAllocator allocator() {
+		IppPortAllocator allocator = new IppPortAllocator(printerRepository, transactionManager);
+		ReflectionTestUtils.setField(allocator, "entityManager", entityManager);
+		ReflectionTestUtils.setField(allocator, "cluster", true);
+		return allocator;
+	}
+
+	private static Printer printer(String alias, int ippPort) {
+		Printer printer = new Printer();
+		printer.setAlias(alias);
+		printer.setIppPort(ippPort);
+		return printer;
+	}
+}
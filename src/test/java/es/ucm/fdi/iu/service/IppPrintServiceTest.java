@@ -0,0 +1,97 @@
+package es.ucm.fdi.iu.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Envío agrupado por RAW: un documento solo cuenta como entregado si la
+ * conexión llegó a cerrarse bien, y el que quedó a medias se señala
+ */
+class IppPrintServiceTest {
+
+	private static final int DOCUMENT_SIZE = 8 * 1024 * 1024;
+
+	@TempDir
+	Path spoolDir;
+
+	@Test
+	void aCompleteBatchDeliversEveryDocument() throws Exception {
+		List<Path> files = List.of(document("a"), document("b"));
+		AtomicLong received = new AtomicLong();
+		try (ServerSocket printer = new ServerSocket(0, 2, InetAddress.getLoopbackAddress())) {
+			Thread reader = printer(printer, connection -> received.set(connection.getInputStream().transferTo(OutputStream.nullOutputStream())));
+
+			IppPrintService.BatchResult result = service().sendBatchToRawPort("127.0.0.1", files, printer.getLocalPort());
+			reader.join(10000);
+
+			assertEquals(2, result.getDelivered());
+			assertFalse(result.isUncertain());
+			assertTrue(received.get() > 2L * DOCUMENT_SIZE);
+		}
+	}
+
+	@Test
+	void aBatchCutMidDocumentLeavesItUncertain() throws Exception {
+		List<Path> files = List.of(document("a"), document("b"));
+		try (ServerSocket printer = new ServerSocket(0, 2, InetAddress.getLoopbackAddress())) {
+			// La impresora lee un poco y corta la conexión con RST
+			Thread reader = printer(printer, connection -> {
+				connection.getInputStream().readNBytes(1024);
+				connection.setSoLinger(true, 0);
+			});
+
+			IppPrintService.BatchResult result = service().sendBatchToRawPort("127.0.0.1", files, printer.getLocalPort());
+			reader.join(10000);
+
+			assertEquals(0, result.getDelivered());
+			assertTrue(result.isUncertain());
+		}
+	}
+
+	private interface Connection {
+		void handle(Socket socket) throws IOException;
+	}
+
+	/**
+	 * Atiende el probe del diagnóstico y después la conexión del envío
+	 */
+	private static Thread printer(ServerSocket server, Connection connection) {
+		Thread thread = new Thread(() -> {
+			try {
+				server.accept().close();
+				try (Socket socket = server.accept()) {
+					connection.handle(socket);
+				}
+			} catch (IOException e) {
+				// La prueba comprueba el resultado del lado del envío
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	private static IppPrintService service() {
+		IppPrintService service = new IppPrintService();
+		ReflectionTestUtils.setField(service, "connectionTimeout", 2000);
+		ReflectionTestUtils.setField(service, "dataTransferTimeout", 5000);
+		ReflectionTestUtils.setField(service, "discoveryTimeout", 500);
+		return service;
+	}
+
+	private Path document(String name) throws IOException {
+		return Files.write(spoolDir.resolve(name + ".pcl"), new byte[DOCUMENT_SIZE]);
+	}
+}
@@ -0,0 +1,96 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Job;
+import es.ucm.fdi.iu.model.Printer;
+import jakarta.persistence.EntityManager;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.List;
+
+/**
+ * Nodo del clúster en su propio proceso para JobLeaseServiceMultiProcessTest:
+ * arranca JPA y JobLeaseService contra la base de datos indicada y obedece
+ * órdenes por la entrada estándar
+ *
+ * - seed: crea una impresora con un trabajo → "@@ idImpresora idTrabajo"
+ * - claim p j: JobLeaseService.claim(p, [j]) → "@@ [ids tomados]"
+ * - release j: JobLeaseService.release(j) → "@@ ok"
+ * - token j: ficha de la concesión de este nodo → "@@ ficha"
+ * - owner j: Job.leaseOwner leído de la base de datos → "@@ nodo"
+ *
+ * Argumentos: nodeId y propiedades de Spring (--spring.datasource.url=...)
+ */
+public class JobLeaseNode {
+
+	static final String REPLY = "@@ ";
+
+	@TestConfiguration(proxyBeanMethods = false)
+	@EnableAutoConfiguration
+	@EntityScan("es.ucm.fdi.iu.model")
+	@Import(JobLeaseService.class)
+	static class Node {
+	}
+
+	public static void main(String[] args) throws Exception {
+		String nodeId = args[0];
+		String[] properties = new String[args.length + 1];
+		System.arraycopy(args, 1, properties, 0, args.length - 1);
+		properties[args.length - 1] = "--printer.cluster.node-id=" + nodeId;
+		properties[args.length] = "--printer.cluster.enabled=true";
+
+		ConfigurableApplicationContext context = new SpringApplicationBuilder(Node.class)
+			.web(WebApplicationType.NONE)
+			.run(properties);
+		JobLeaseService leases = context.getBean(JobLeaseService.class);
+		EntityManager entityManager = context.getBean(EntityManager.class);
+		TransactionTemplate tx = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+		reply("ready");
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while ((line = in.readLine()) != null) {
+			String[] command = line.trim().split(" ");
+			switch (command[0]) {
+				case "seed" -> reply(tx.execute(status -> {
+					Printer printer = new Printer();
+					printer.setAlias("Compartida-" + System.nanoTime());
+					printer.setIp("10.0.0.9");
+					entityManager.persist(printer);
+					Job job = new Job();
+					job.setPrinter(printer);
+					job.setOwner("ana");
+					job.setFileName("doc.pdf");
+					entityManager.persist(job);
+					entityManager.flush();
+					return printer.getId() + " " + job.getId();
+				}));
+				case "claim" -> reply(String.valueOf(
+					leases.claim(Long.parseLong(command[1]), List.of(Long.parseLong(command[2])))));
+				case "release" -> {
+					leases.release(Long.parseLong(command[1]));
+					reply("ok");
+				}
+				case "token" -> reply(String.valueOf(leases.tokenOf(Long.parseLong(command[1]))));
+				case "owner" -> reply(tx.execute(status ->
+					String.valueOf(entityManager.find(Job.class, Long.parseLong(command[1])).getLeaseOwner())));
+				default -> reply("?");
+			}
+		}
+		context.close();
+	}
+
+	private static void reply(String text) {
+		System.out.println(REPLY + text);
+		System.out.flush();
+	}
+}
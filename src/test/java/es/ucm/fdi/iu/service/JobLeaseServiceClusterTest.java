@@ -0,0 +1,188 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Job;
+import es.ucm.fdi.iu.model.Printer;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Dos nodos (dos JobLeaseService con su PrintQueueService) sobre la misma
+ * base de datos: exclusión al tomar, retoma tras caducar y guarda de la
+ * ficha al guardar puntos de control y al eliminar
+ */
+@DataJpaTest(properties = {
+	"spring.datasource.url=jdbc:h2:mem:lease;MODE=PostgreSQL;NON_KEYWORDS=KEY,VALUE",
+	"spring.datasource.driver-class-name=org.h2.Driver",
+	"spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+	"spring.jpa.hibernate.ddl-auto=create-drop",
+	"spring.jpa.properties.hibernate.hbm2ddl.import_files=",
+	"spring.sql.init.mode=never"
+})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+// Cada nodo confirma sus propias transacciones, como en producción
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class JobLeaseServiceClusterTest {
+
+	private static final long LEASE = 300;
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@TempDir
+	Path spoolDir;
+
+	private TransactionTemplate tx;
+	private JobLeaseService nodeA;
+	private JobLeaseService nodeB;
+	private long printerId;
+	private long jobId;
+
+	@BeforeEach
+	void setUp() {
+		tx = new TransactionTemplate(transactionManager);
+		nodeA = node("nodo-a");
+		nodeB = node("nodo-b");
+		tx.executeWithoutResult(status -> {
+			Printer printer = new Printer();
+			printer.setAlias("Compartida");
+			printer.setIp("10.0.0.9");
+			entityManager.persist(printer);
+			Job job = new Job();
+			job.setPrinter(printer);
+			job.setOwner("ana");
+			job.setFileName("doc.pdf");
+			entityManager.persist(job);
+			entityManager.flush();
+			printerId = printer.getId();
+			jobId = job.getId();
+		});
+	}
+
+	@AfterEach
+	void cleanUp() {
+		tx.executeWithoutResult(status -> {
+			entityManager.createQuery("DELETE FROM Job").executeUpdate();
+			entityManager.createQuery("DELETE FROM Printer").executeUpdate();
+		});
+	}
+
+	@Test
+	void onlyOneNodeClaimsAPrinterAtATime() throws Exception {
+		assertEquals(List.of(jobId), nodeA.claim(printerId, List.of(jobId)));
+		// Concesión vigente de A
+		assertTrue(nodeB.claim(printerId, List.of(jobId)).isEmpty());
+
+		nodeA.release(jobId);
+		assertNull(job().getLeaseOwner());
+
+		// Otro nodo repartiendo la impresora (fila bloqueada): B la salta sin esperar
+		CountDownLatch locked = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		Thread holder = new Thread(() -> tx.executeWithoutResult(status -> {
+			entityManager.createNativeQuery("SELECT id FROM printer WHERE id = :id FOR UPDATE")
+				.setParameter("id", printerId)
+				.getResultList();
+			locked.countDown();
+			try {
+				done.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+		holder.start();
+		assertTrue(locked.await(10, TimeUnit.SECONDS));
+		long start = System.currentTimeMillis();
+		assertTrue(nodeB.claim(printerId, List.of(jobId)).isEmpty());
+		assertTrue(System.currentTimeMillis() - start < 1000, "SKIP LOCKED no debe esperar al cerrojo");
+		done.countDown();
+		holder.join();
+
+		assertEquals(List.of(jobId), nodeB.claim(printerId, List.of(jobId)));
+		assertEquals("nodo-b", job().getLeaseOwner());
+	}
+
+	@Test
+	void anExpiredLeaseIsTakenOverWithANewToken() throws Exception {
+		nodeA.claim(printerId, List.of(jobId));
+		long tokenA = nodeA.tokenOf(jobId);
+
+		Thread.sleep(LEASE + 100);
+		assertEquals(List.of(jobId), nodeB.claim(printerId, List.of(jobId)));
+
+		assertEquals(tokenA + 1, nodeB.tokenOf(jobId));
+		assertEquals(1L, nodeB.getStatistics().get("takeovers"));
+		Job job = job();
+		assertEquals("nodo-b", job.getLeaseOwner());
+		assertTrue(nodeB.holds(job));
+		assertFalse(nodeA.holds(job));
+	}
+
+	@Test
+	void theNodeThatLostTheLeaseCannotCheckpointOrRemove() throws Exception {
+		PrintQueueService queueA = queue(nodeA);
+		PrintQueueService queueB = queue(nodeB);
+		Path spoolFile = Files.writeString(spoolDir.resolve("job-" + jobId + "-doc.pdf"), "%PDF-1.4");
+
+		nodeA.claim(printerId, List.of(jobId));
+		Thread.sleep(LEASE + 100);
+		nodeB.claim(printerId, List.of(jobId));
+
+		ReflectionTestUtils.invokeMethod(queueA, "saveCheckpoint", job(), 3);
+		assertNull(job().getConfirmedChunks());
+		ReflectionTestUtils.invokeMethod(queueB, "saveCheckpoint", job(), 2);
+		assertEquals(2, job().getConfirmedChunks());
+
+		ReflectionTestUtils.invokeMethod(queueA, "removeJob", job());
+		assertNotNull(job());
+		assertTrue(Files.exists(spoolFile), "el spool compartido sigue siendo del nodo B");
+
+		ReflectionTestUtils.invokeMethod(queueB, "removeJob", job());
+		assertNull(job());
+		assertFalse(Files.exists(spoolFile));
+	}
+
+	private Job job() {
+		return tx.execute(status -> entityManager.find(Job.class, jobId));
+	}
+
+	private JobLeaseService node(String nodeId) {
+		JobLeaseService node = new JobLeaseService(transactionManager);
+		ReflectionTestUtils.setField(node, "entityManager", entityManager);
+		ReflectionTestUtils.setField(node, "enabled", true);
+		ReflectionTestUtils.setField(node, "leaseDuration", LEASE);
+		// Sin init(): sin renovador, la concesión caduca sola
+		ReflectionTestUtils.setField(node, "nodeId", nodeId);
+		return node;
+	}
+
+	private PrintQueueService queue(JobLeaseService node) {
+		PrintQueueService queue = new PrintQueueService();
+		ReflectionTestUtils.setField(queue, "entityManager", entityManager);
+		ReflectionTestUtils.setField(queue, "leaseService", node);
+		ReflectionTestUtils.setField(queue, "transactionTemplate", tx);
+		ReflectionTestUtils.setField(queue, "printSpoolDir", spoolDir);
+		return queue;
+	}
+}
@@ -0,0 +1,204 @@
+package es.ucm.fdi.iu.service;
+
+import org.h2.tools.Server;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Dos nodos en procesos (JVM) distintos sobre un servidor de base de datos
+ * real: exclusión entre procesos y retoma tras matar al que tenía la concesión
+ *
+ * Por defecto usa un servidor H2 por TCP. Para probar contra PostgreSQL:
+ * -Dcluster.test.url=jdbc:postgresql://host/db -Dcluster.test.username=...
+ * -Dcluster.test.password=... (la base de datos debe estar vacía o ser de pruebas)
+ *
+ * Los dos nodos se arrancan una vez para toda la clase (cada arranque cuesta
+ * varios segundos); la prueba que mata al nodo A va la última.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class JobLeaseServiceMultiProcessTest {
+
+	private static final long LEASE = 2000;
+
+	private static Server h2;
+	private static List<String> database;
+	private static NodeProcess nodeA;
+	private static NodeProcess nodeB;
+
+	@BeforeAll
+	static void startNodes() throws Exception {
+		startDatabase();
+		nodeA = start("nodo-a");
+		nodeB = start("nodo-b");
+	}
+
+	private static void startDatabase() throws Exception {
+		String url = System.getProperty("cluster.test.url");
+		if (url != null && !url.isBlank()) {
+			database = List.of(
+				"--spring.datasource.url=" + url,
+				"--spring.datasource.driver-class-name=org.postgresql.Driver",
+				"--spring.datasource.username=" + System.getProperty("cluster.test.username", "postgres"),
+				"--spring.datasource.password=" + System.getProperty("cluster.test.password", ""),
+				"--spring.jpa.database-platform=org.hibernate.dialect.PostgreSQLDialect");
+			return;
+		}
+		int port;
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		h2 = Server.createTcpServer("-tcpPort", String.valueOf(port), "-ifNotExists").start();
+		database = List.of(
+			"--spring.datasource.url=jdbc:h2:tcp://localhost:" + port
+				+ "/mem:lease-processes;MODE=PostgreSQL;NON_KEYWORDS=KEY,VALUE;DB_CLOSE_DELAY=-1",
+			"--spring.datasource.driver-class-name=org.h2.Driver",
+			"--spring.datasource.username=sa",
+			"--spring.datasource.password=",
+			"--spring.jpa.database-platform=org.hibernate.dialect.H2Dialect");
+	}
+
+	@AfterAll
+	static void stopNodes() {
+		for (NodeProcess node : new NodeProcess[]{nodeA, nodeB}) {
+			if (node != null) {
+				node.kill();
+			}
+		}
+		if (h2 != null) {
+			h2.stop();
+		}
+	}
+
+	@Test
+	@Order(1)
+	void onlyOneProcessWinsEachRoundOfConcurrentClaims() throws Exception {
+		String[] seeded = nodeA.ask("seed").split(" ");
+		String claim = "claim " + seeded[0] + " " + seeded[1];
+
+		for (int round = 0; round < 5; round++) {
+			CompletableFuture<String> a = CompletableFuture.supplyAsync(() -> nodeA.askUnchecked(claim));
+			CompletableFuture<String> b = CompletableFuture.supplyAsync(() -> nodeB.askUnchecked(claim));
+			String claimedA = a.get(30, TimeUnit.SECONDS);
+			String claimedB = b.get(30, TimeUnit.SECONDS);
+
+			String expected = "[" + seeded[1] + "]";
+			assertTrue(claimedA.equals(expected) ^ claimedB.equals(expected),
+				"ronda " + round + ": A " + claimedA + ", B " + claimedB);
+			NodeProcess winner = claimedA.equals(expected) ? nodeA : nodeB;
+			assertEquals(winner.nodeId, nodeB.ask("owner " + seeded[1]));
+			winner.ask("release " + seeded[1]);
+		}
+	}
+
+	@Test
+	@Order(2)
+	void aKilledNodesLeaseIsTakenOverByTheOtherProcess() throws Exception {
+		String[] seeded = nodeA.ask("seed").split(" ");
+		String claim = "claim " + seeded[0] + " " + seeded[1];
+
+		assertEquals("[" + seeded[1] + "]", nodeA.ask(claim));
+		long tokenA = Long.parseLong(nodeA.ask("token " + seeded[1]));
+		// A sigue vivo y renueva: B no la toma aunque pase la duración de la concesión
+		Thread.sleep(LEASE + 500);
+		assertEquals("[]", nodeB.ask(claim));
+
+		// Caída sin release: la concesión caduca sola
+		nodeA.kill();
+		Thread.sleep(LEASE + 500);
+
+		assertEquals("[" + seeded[1] + "]", nodeB.ask(claim));
+		assertEquals(tokenA + 1, Long.parseLong(nodeB.ask("token " + seeded[1])));
+		assertEquals("nodo-b", nodeB.ask("owner " + seeded[1]));
+	}
+
+	private static NodeProcess start(String nodeId) throws IOException {
+		List<String> command = new ArrayList<>(List.of(
+			ProcessHandle.current().info().command().orElse("java"),
+			"-cp", System.getProperty("java.class.path"),
+			JobLeaseNode.class.getName(),
+			nodeId));
+		command.addAll(database);
+		command.addAll(List.of(
+			"--spring.jpa.hibernate.ddl-auto=update",
+			"--spring.jpa.properties.hibernate.hbm2ddl.import_files=",
+			"--spring.jpa.show-sql=false",
+			"--spring.sql.init.mode=never",
+			"--spring.main.banner-mode=off",
+			"--logging.level.root=WARN",
+			"--printer.cluster.lease-duration=" + LEASE));
+		NodeProcess node = new NodeProcess(nodeId, new ProcessBuilder(command).redirectErrorStream(true).start());
+		node.read();
+		return node;
+	}
+
+	/**
+	 * Proceso de un JobLeaseNode: una orden por línea, una respuesta "@@ ..."
+	 */
+	private static final class NodeProcess {
+		private final String nodeId;
+		private final Process process;
+		private final PrintWriter commands;
+		private final BufferedReader output;
+
+		NodeProcess(String nodeId, Process process) {
+			this.nodeId = nodeId;
+			this.process = process;
+			this.commands = new PrintWriter(process.getOutputStream(), true, StandardCharsets.UTF_8);
+			this.output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		}
+
+		String ask(String command) throws IOException {
+			commands.println(command);
+			return read();
+		}
+
+		String askUnchecked(String command) {
+			try {
+				return ask(command);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Siguiente respuesta; lo demás es el log del nodo
+		 */
+		String read() throws IOException {
+			StringBuilder log = new StringBuilder();
+			String line;
+			while ((line = output.readLine()) != null) {
+				if (line.startsWith(JobLeaseNode.REPLY)) {
+					return line.substring(JobLeaseNode.REPLY.length());
+				}
+				log.append(line).append('\n');
+			}
+			throw new IOException("El nodo " + nodeId + " terminó sin responder:\n" + log);
+		}
+
+		void kill() {
+			process.destroyForcibly();
+			try {
+				process.waitFor(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package es.ucm.fdi.iu.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Navegador mDNS frente a un respondedor multicast real en 224.0.0.251:5353
+ * (se omite si el entorno no tiene una interfaz con multicast)
+ */
+class MdnsBrowserServiceTest {
+
+	private static final String INSTANCE = "Secretaria._pdl-datastream._tcp.local";
+	private static final String HOST = "secretaria.local";
+
+	private MulticastSocket responder;
+	private InetSocketAddress group;
+	private MdnsBrowserService browser;
+
+	@BeforeEach
+	void joinGroup() throws IOException {
+		group = new InetSocketAddress(InetAddress.getByName("224.0.0.251"), 5353);
+		NetworkInterface nic = Collections.list(NetworkInterface.getNetworkInterfaces()).stream()
+			.filter(n -> {
+				try {
+					return n.isUp() && !n.isLoopback() && n.supportsMulticast()
+						&& n.inetAddresses().anyMatch(a -> a instanceof Inet4Address);
+				} catch (SocketException e) {
+					return false;
+				}
+			})
+			.findFirst().orElse(null);
+		assumeTrue(nic != null, "sin interfaz con multicast");
+
+		responder = new MulticastSocket(null);
+		responder.setReuseAddress(true);
+		responder.bind(new InetSocketAddress(5353));
+		responder.joinGroup(group, nic);
+		responder.setNetworkInterface(nic);
+		responder.setSoTimeout(5000);
+
+		browser = new MdnsBrowserService();
+		ReflectionTestUtils.setField(browser, "enabled", true);
+		ReflectionTestUtils.setField(browser, "queryInterval", 900000L);
+		ReflectionTestUtils.setField(browser, "minAge", 0L);
+	}
+
+	@AfterEach
+	void close() {
+		if (browser != null) {
+			browser.shutdown();
+		}
+		if (responder != null) {
+			responder.close();
+		}
+	}
+
+	@Test
+	void answersToTheStartupQueryAreBrowsedAndFollowed() throws Exception {
+		browser.init();
+		assumeTrue(awaitQuery(), "el grupo mDNS no entrega paquetes en este entorno");
+
+		// Respuesta completa: PTR + SRV + TXT + A
+		send(response(
+			ptr(MdnsBrowserService.PDL_DATASTREAM, INSTANCE, 4500),
+			srv(INSTANCE, 9100, HOST),
+			txt(INSTANCE, "ty=EPSON WF-C5790", "UUID=5B2D2A42-0000-1000-8000-001122334455"),
+			a(HOST, 10, 9, 8, 7, 120)));
+		assertTrue(await(() -> browser.printers().size() == 1), "la impresora no llega a anunciarse");
+		MdnsBrowserService.Announcement printer = browser.printers().get(0);
+		assertEquals("10.9.8.7", printer.ip());
+		assertEquals(9100, printer.port());
+		assertEquals("Secretaria", printer.name());
+		assertEquals("EPSON WF-C5790", printer.txt().get("ty"));
+		assertEquals("5b2d2a42-0000-1000-8000-001122334455", printer.identity());
+
+		// Llenar la tabla de hosts: el ya conocido se sigue actualizando
+		for (int first = 0; first < 4096; first += 250) {
+			Record[] records = new Record[Math.min(250, 4096 - first)];
+			for (int i = 0; i < records.length; i++) {
+				int n = first + i;
+				records[i] = a("h" + n + ".local", 10, 200, n >> 8, n & 0xFF, 120);
+			}
+			send(response(records));
+		}
+		assertTrue(await(() -> ((Number) browser.getStatistics().get("knownHosts")).intValue() == 4096),
+			"la tabla de hosts no se llena");
+
+		// La impresora cambia de IP: mismo host, nueva dirección
+		send(response(
+			srv(INSTANCE, 9100, HOST),
+			a(HOST, 10, 9, 8, 99, 120)));
+		assertTrue(await(() -> !browser.printers().isEmpty() && browser.printers().get(0).ip().equals("10.9.8.99")),
+			"la nueva IP no se registra con la tabla llena");
+		assertEquals("10.9.8.99", browser.relocated("10.9.8.7"));
+		assertNull(browser.relocated("10.9.8.99"));
+
+		// Despedida (TTL 0): deja de anunciarse
+		send(response(ptr(MdnsBrowserService.PDL_DATASTREAM, INSTANCE, 0)));
+		assertTrue(await(() -> browser.printers().isEmpty()), "la despedida no retira la impresora");
+	}
+
+	/**
+	 * Espera la consulta PTR con la que arranca el navegador
+	 */
+	private boolean awaitQuery() throws IOException {
+		byte[] buffer = new byte[9000];
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				responder.receive(packet);
+			} catch (SocketTimeoutException e) {
+				return false;
+			}
+			boolean isQuery = packet.getLength() >= 12 && (buffer[2] & 0x80) == 0;
+			String payload = new String(buffer, 0, packet.getLength(), StandardCharsets.ISO_8859_1);
+			if (isQuery && payload.contains("_pdl-datastream") && payload.contains("_ipp")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline) {
+			if (condition.getAsBoolean()) {
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return condition.getAsBoolean();
+	}
+
+	private void send(byte[] packet) throws IOException {
+		responder.send(new DatagramPacket(packet, packet.length, group));
+	}
+
+	private record Record(String name, int type, long ttl, byte[] data) {
+	}
+
+	private static byte[] response(Record... records) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// id 0, respuesta autoritativa, sin preguntas
+		out.write(new byte[]{0, 0, (byte) 0x84, 0, 0, 0, (byte) (records.length >> 8), (byte) records.length, 0, 0, 0, 0});
+		for (Record record : records) {
+			out.write(name(record.name()));
+			out.write(new byte[]{0, (byte) record.type(), 0, 1});
+			out.write(new byte[]{(byte) (record.ttl() >> 24), (byte) (record.ttl() >> 16),
+				(byte) (record.ttl() >> 8), (byte) record.ttl()});
+			out.write(record.data().length >> 8);
+			out.write(record.data().length);
+			out.write(record.data());
+		}
+		return out.toByteArray();
+	}
+
+	private static Record ptr(String service, String instance, long ttl) throws IOException {
+		return new Record(service, 12, ttl, name(instance));
+	}
+
+	private static Record srv(String instance, int port, String host) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(new byte[]{0, 0, 0, 0, (byte) (port >> 8), (byte) port});
+		data.write(name(host));
+		return new Record(instance, 33, 120, data.toByteArray());
+	}
+
+	private static Record txt(String instance, String... entries) {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (String entry : entries) {
+			byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+			data.write(bytes.length);
+			data.write(bytes, 0, bytes.length);
+		}
+		return new Record(instance, 16, 4500, data.toByteArray());
+	}
+
+	private static Record a(String host, int b0, int b1, int b2, int b3, long ttl) {
+		return new Record(host, 1, ttl, new byte[]{(byte) b0, (byte) b1, (byte) b2, (byte) b3});
+	}
+
+	private static byte[] name(String name) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String label : List.of(name.split("\\."))) {
+			byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+			out.write(bytes.length);
+			out.write(bytes);
+		}
+		out.write(0);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,78 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Printer;
+import es.ucm.fdi.iu.repository.PrinterRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Operaciones IPP sin documento: se responden en la conexión y nunca llegan
+ * a la admisión ni a la cola
+ */
+class MultiPortIppServerServiceTest {
+
+	private static final int VALIDATE_JOB = 0x0004;
+	private static final int CREATE_JOB = 0x0005;
+	private static final int UNKNOWN = 0x4001;
+
+	private final IngestAdmissionService admissionService = mock(IngestAdmissionService.class);
+	private final PrintQueueService printQueueService = mock(PrintQueueService.class);
+	private final PrinterRepository printerRepository = mock(PrinterRepository.class);
+
+	@Test
+	void validateJobIsAcceptedWithoutQueueing() throws Exception {
+		assertEquals(IppEncoder.STATUS_OK, statusOf(request(VALIDATE_JOB, 11)));
+		verifyNoInteractions(admissionService, printQueueService, printerRepository);
+	}
+
+	@Test
+	void createJobAndUnknownOperationsAreNotSupported() throws Exception {
+		assertEquals(IppEncoder.STATUS_OPERATION_NOT_SUPPORTED, statusOf(request(CREATE_JOB, 12)));
+		assertEquals(IppEncoder.STATUS_OPERATION_NOT_SUPPORTED, statusOf(request(UNKNOWN, 13)));
+		verifyNoInteractions(admissionService, printQueueService, printerRepository);
+	}
+
+	private MultiPortIppServerService service() {
+		return new MultiPortIppServerService(null, printerRepository, printQueueService, null, null, null,
+			null, admissionService, null, null, null, null, null);
+	}
+
+	/**
+	 * Pasa la petición por handleClient como si hubiera llegado al puerto de
+	 * la impresora y devuelve el código de estado de la respuesta
+	 */
+	private int statusOf(byte[] request) throws Exception {
+		Printer printer = new Printer();
+		printer.setId(1);
+		printer.setAlias("Planta1");
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			 Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+			Socket accepted = server.accept();
+			ReflectionTestUtils.invokeMethod(service(), "handleClient", accepted, printer, 8640, null, request);
+			client.setSoTimeout(5000);
+			InputStream in = client.getInputStream();
+			byte[] header = in.readNBytes(8);
+			assertEquals(8, header.length);
+			int requestId = ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16) | ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+			assertEquals(((request[4] & 0xFF) << 24) | ((request[5] & 0xFF) << 16) | ((request[6] & 0xFF) << 8) | (request[7] & 0xFF), requestId);
+			return ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+		}
+	}
+
+	private static byte[] request(int operationId, int requestId) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IppEncoder.writeHeader(out, operationId, requestId);
+		IppEncoder.writeString(out, IppEncoder.TAG_URI, "printer-uri", "ipp://localhost:8640/printers/Planta1");
+		out.write(IppEncoder.TAG_END);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,78 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.PrinterCapabilities;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Caché de conversión en la recepción: el texto que cabe en text-max-bytes
+ * se convierte una vez por contenido y perfil; el mayor sigue en streaming
+ */
+class PrintDocumentConverterTest {
+
+	@TempDir
+	Path dir;
+
+	private ConversionCache cache;
+	private PrintDocumentConverter converter;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		cache = new ConversionCache();
+		ReflectionTestUtils.setField(cache, "enabled", true);
+		ReflectionTestUtils.setField(cache, "maxBytes", 1024L * 1024);
+		ReflectionTestUtils.setField(cache, "cacheDir", Files.createDirectory(dir.resolve("cache")));
+		converter = new PrintDocumentConverter(mock(PdfRasterRenderer.class), cache);
+		ReflectionTestUtils.setField(converter, "textCacheMaxBytes", 4096);
+	}
+
+	@Test
+	void theSameTextIsConvertedOnceForEachProfile() throws Exception {
+		byte[] text = "Hola\nmundo\n".getBytes(StandardCharsets.US_ASCII);
+		PrinterCapabilities pcl = PrinterCapabilities.fromModel("HP LaserJet");
+		PrinterCapabilities escp = PrinterCapabilities.fromModel("Epson LX-350");
+
+		Path first = convert(text, pcl, "first");
+		Path second = convert(text, pcl, "second");
+		assertEquals(1L, cache.getStatistics().get("hits"));
+		assertArrayEquals(Files.readAllBytes(first), Files.readAllBytes(second));
+
+		Path other = convert(text, escp, "other");
+		assertEquals(1L, cache.getStatistics().get("hits"));
+		assertEquals(2, cache.getStatistics().get("entries"));
+		assertFalse(Arrays.equals(Files.readAllBytes(first), Files.readAllBytes(other)));
+	}
+
+	@Test
+	void largeTextStreamsWithoutTheCache() throws Exception {
+		byte[] text = "linea de texto\n".repeat(1000).getBytes(StandardCharsets.US_ASCII);
+		PrinterCapabilities pcl = PrinterCapabilities.fromModel("HP LaserJet");
+
+		Path cached = convert("linea de texto\n".getBytes(StandardCharsets.US_ASCII), pcl, "small");
+		Path streamed = convert(text, pcl, "large");
+
+		assertEquals(1, cache.getStatistics().get("entries"));
+		// Solo se buscó el pequeño
+		assertEquals(1L, cache.getStatistics().get("misses"));
+		String output = Files.readString(streamed, StandardCharsets.ISO_8859_1);
+		assertTrue(output.split("linea de texto", -1).length > 1000, "el documento grande llega entero");
+		assertTrue(Files.size(cached) < Files.size(streamed));
+	}
+
+	private Path convert(byte[] text, PrinterCapabilities profile, String name) throws Exception {
+		Path output = dir.resolve(name + ".out");
+		assertEquals("TEXT", converter.processForPrinting(new ByteArrayInputStream(text), output, profile));
+		return output;
+	}
+}
@@ -0,0 +1,72 @@
+package es.ucm.fdi.iu.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Envío a un cliente USB compartido: el reenvío en RAW tras un fallo del
+ * envío comprimido solo ocurre si no llegó nada al cliente
+ */
+class PrintQueueServiceTest {
+
+	private static final String CLIENT = "10.0.0.20";
+
+	@TempDir
+	Path spoolDir;
+
+	private final UsbTransportService usbTransportService = mock(UsbTransportService.class);
+	private final IppPrintService ippPrintService = mock(IppPrintService.class);
+
+	@Test
+	void aCompressedSendThatSentNothingIsRetriedInRaw() throws Exception {
+		Path file = spoolFile();
+		when(usbTransportService.trySendCompressed(eq(CLIENT), eq(file), anyString()))
+			.thenThrow(new UsbTransportService.NotSentException(new ConnectException("Connection refused")));
+		when(ippPrintService.sendToRawPort(CLIENT, file, 631)).thenReturn(true);
+
+		assertTrue(send(file));
+		verify(ippPrintService).sendToRawPort(CLIENT, file, 631);
+	}
+
+	@Test
+	void aCompressedSendInterruptedMidwayIsNotResent() throws Exception {
+		Path file = spoolFile();
+		when(usbTransportService.trySendCompressed(eq(CLIENT), eq(file), anyString()))
+			.thenThrow(new SocketException("Connection reset"));
+
+		assertFalse(send(file));
+		verify(ippPrintService, never()).sendToRawPort(any(), any(), anyInt());
+	}
+
+	@Test
+	void anIncompressibleJobGoesRaw() throws Exception {
+		Path file = spoolFile();
+		when(usbTransportService.trySendCompressed(eq(CLIENT), eq(file), anyString())).thenReturn(false);
+		when(ippPrintService.sendToRawPort(CLIENT, file, 631)).thenReturn(true);
+
+		assertTrue(send(file));
+		verify(ippPrintService).sendToRawPort(CLIENT, file, 631);
+	}
+
+	private boolean send(Path file) {
+		PrintQueueService queue = new PrintQueueService();
+		ReflectionTestUtils.setField(queue, "usbTransportService", usbTransportService);
+		ReflectionTestUtils.setField(queue, "ippPrintService", ippPrintService);
+		return ReflectionTestUtils.invokeMethod(queue, "sendToUsbClient", CLIENT, file);
+	}
+
+	private Path spoolFile() throws IOException {
+		return Files.writeString(spoolDir.resolve("job-1-doc.pcl"), "\u001BE texto");
+	}
+}
@@ -0,0 +1,127 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.PGroup;
+import es.ucm.fdi.iu.model.Printer;
+import es.ucm.fdi.iu.model.PrinterCapabilities;
+import es.ucm.fdi.iu.repository.PrinterRepository;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Respuesta Get-Printer-Attributes de los pools
+ */
+@DataJpaTest(properties = {
+	"spring.datasource.url=jdbc:h2:mem:attributes;MODE=PostgreSQL;NON_KEYWORDS=KEY,VALUE",
+	"spring.datasource.driver-class-name=org.h2.Driver",
+	"spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+	"spring.jpa.hibernate.ddl-auto=create-drop",
+	"spring.jpa.properties.hibernate.hbm2ddl.import_files=",
+	"spring.sql.init.mode=never"
+})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class PrinterAttributeCacheTest {
+
+	private static final int IDLE = 3;
+	private static final int STOPPED = 5;
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private PrinterRepository printerRepository;
+
+	private PrinterAttributeCache cache;
+	private Printer first;
+	private Printer second;
+	private PGroup pool;
+
+	@BeforeEach
+	void setUp() {
+		PrinterCapabilityService capabilities = mock(PrinterCapabilityService.class);
+		PrinterCapabilities color = new PrinterCapabilities();
+		color.setColor(true);
+		when(capabilities.resolve(any())).thenReturn(color);
+		IppRoutingService routing = new IppRoutingService();
+		ReflectionTestUtils.setField(routing, "routing", "ports");
+		routing.init();
+		cache = new PrinterAttributeCache(printerRepository, capabilities, routing);
+		ReflectionTestUtils.setField(cache, "entityManager", entityManager);
+		ReflectionTestUtils.setField(cache, "maxAge", 300000L);
+		ReflectionTestUtils.setField(cache, "poolMaxAge", 10000L);
+
+		first = printer("Planta1", 8640);
+		second = printer("Planta2", 8641);
+		pool = new PGroup();
+		pool.setName("Pool Secretaria");
+		pool.setIppPort(8650);
+		pool.getPrinters().add(first);
+		pool.getPrinters().add(second);
+		entityManager.persist(pool);
+		entityManager.flush();
+		entityManager.clear();
+	}
+
+	@Test
+	void poolIsStoppedOnlyWhenAllMembersAre() throws IOException {
+		String response = text(cache.forPool(pool.getId()));
+		assertTrue(response.contains("Pool Secretaria"));
+		assertTrue(response.contains(":8650/printers/Pool_Secretaria"));
+		assertEquals(IDLE, stateOf(cache.forPool(pool.getId())));
+
+		cache.setReachable(first.getId(), false);
+		assertEquals(IDLE, stateOf(cache.forPool(pool.getId())));
+
+		cache.setReachable(second.getId(), false);
+		PrinterAttributeCache.Encoded stopped = cache.forPool(pool.getId());
+		assertEquals(STOPPED, stateOf(stopped));
+		assertTrue(text(stopped).contains("connecting-to-device"));
+	}
+
+	@Test
+	void unknownPoolHasNoResponse() {
+		assertNull(cache.forPool(pool.getId() + 1000));
+		assertNull(cache.forPool(first.getId()));
+	}
+
+	private Printer printer(String alias, int ippPort) {
+		Printer printer = new Printer();
+		printer.setAlias(alias);
+		printer.setIppPort(ippPort);
+		printer.setInk(100);
+		printer.setPaper(100);
+		entityManager.persist(printer);
+		return printer;
+	}
+
+	private static byte[] bytes(PrinterAttributeCache.Encoded encoded) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encoded.writeTo(out, 7);
+		return out.toByteArray();
+	}
+
+	private static String text(PrinterAttributeCache.Encoded encoded) throws IOException {
+		return new String(bytes(encoded), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Valor de printer-state (nombre, longitud de 2 bytes y entero de 4)
+	 */
+	private static int stateOf(PrinterAttributeCache.Encoded encoded) throws IOException {
+		byte[] data = bytes(encoded);
+		int at = text(encoded).indexOf("printer-state\u0000") + "printer-state".length() + 2;
+		return ((data[at] & 0xFF) << 24) | ((data[at + 1] & 0xFF) << 16) | ((data[at + 2] & 0xFF) << 8) | (data[at + 3] & 0xFF);
+	}
+}
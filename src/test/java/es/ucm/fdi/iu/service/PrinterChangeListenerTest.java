@@ -0,0 +1,69 @@
+package es.ucm.fdi.iu.service;
+
+import es.ucm.fdi.iu.model.Printer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Puerto IPP de las altas según printer.ipp.routing: solo en modo ports se
+ * asigna uno propio
+ */
+class PrinterChangeListenerTest {
+
+	@Test
+	void portsModeAllocatesADedicatedPort() {
+		IppPortAllocator allocator = mock(IppPortAllocator.class);
+		when(allocator.allocate()).thenReturn(8650);
+		Printer printer = new Printer();
+
+		listener(allocator, "ports").assignPort(printer);
+
+		assertEquals(8650, printer.getIppPort());
+	}
+
+	@Test
+	void pathAndBothModesLeaveNewPrintersWithoutPort() {
+		IppPortAllocator allocator = mock(IppPortAllocator.class);
+		for (String mode : new String[]{"path", "both"}) {
+			Printer printer = new Printer();
+
+			listener(allocator, mode).assignPort(printer);
+
+			assertNull(printer.getIppPort(), mode);
+		}
+		verify(allocator, never()).allocate();
+	}
+
+	@Test
+	void aPortSetByHandIsKept() {
+		IppPortAllocator allocator = mock(IppPortAllocator.class);
+		Printer printer = new Printer();
+		printer.setIppPort(8700);
+
+		listener(allocator, "ports").assignPort(printer);
+
+		assertEquals(8700, printer.getIppPort());
+		verify(allocator, never()).allocate();
+	}
+
+	private static PrinterChangeListener listener(IppPortAllocator allocator, String mode) {
+		IppRoutingService routing = new IppRoutingService();
+		ReflectionTestUtils.setField(routing, "routing", mode);
+		routing.init();
+		StaticListableBeanFactory beans = new StaticListableBeanFactory(Map.of(
+			"portAllocator", allocator,
+			"routingService", routing));
+		return new PrinterChangeListener(
+			beans.getBeanProvider(PrinterAttributeCache.class),
+			beans.getBeanProvider(PrinterCapabilityService.class),
+			beans.getBeanProvider(IppPortAllocator.class),
+			beans.getBeanProvider(IppRoutingService.class),
+			event -> { });
+	}
+}
@@ -0,0 +1,117 @@
+package es.ucm.fdi.iu.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Ipv4RangeSetTest {
+
+	@Test
+	void mergesOverlappingAndAdjacentCidrs() {
+		Ipv4RangeSet set = Ipv4RangeSet.block("172.18.0.0/22")
+			.union(Ipv4RangeSet.block("172.18.1.0/24"))
+			.union(Ipv4RangeSet.block("172.18.4.0/24"));
+
+		assertEquals("172.18.0.0-172.18.4.255", set.toString());
+		assertEquals(1280, set.size());
+	}
+
+	@Test
+	void hostsOfSeveralCidrsAreCountedOnce() {
+		Ipv4RangeSet set = Ipv4RangeSet.hosts(List.of("10.0.0.0/24", "10.0.0.128/25", "10.0.0.0/24"));
+
+		assertEquals("10.0.0.1-10.0.0.254", set.toString());
+		assertEquals(254, set.size());
+	}
+
+	@Test
+	void subtractsRangesAndSingleAddresses() {
+		Ipv4RangeSet set = Ipv4RangeSet.hosts("192.168.1.0/24")
+			.subtract(Ipv4RangeSet.block("192.168.1.64/26"))
+			.exclude(List.of("192.168.1.1", "192.168.1.200", "no-es-ip"));
+
+		assertEquals("192.168.1.2-192.168.1.63, 192.168.1.128-192.168.1.199, 192.168.1.201-192.168.1.254",
+			set.toString());
+		assertEquals(62 + 72 + 54, set.size());
+		assertFalse(set.contains("192.168.1.64"));
+		assertFalse(set.contains("192.168.1.127"));
+		assertTrue(set.contains("192.168.1.128"));
+		assertTrue(Ipv4RangeSet.hosts("192.168.1.0/24").containsAll(set));
+	}
+
+	@Test
+	void subtractingEverythingLeavesEmpty() {
+		Ipv4RangeSet set = Ipv4RangeSet.hosts("10.1.1.0/24").subtract(Ipv4RangeSet.block("10.0.0.0/8"));
+
+		assertTrue(set.isEmpty());
+		assertEquals(Ipv4RangeSet.EMPTY, set);
+	}
+
+	@Test
+	void handlesAddressesAbove128AsUnsigned() {
+		Ipv4RangeSet set = Ipv4RangeSet.block("200.1.0.0/24")
+			.union(Ipv4RangeSet.block("10.0.0.0/30"))
+			.union(Ipv4RangeSet.block("255.255.255.254/31"))
+			.union(Ipv4RangeSet.block("128.0.0.0/32"));
+
+		assertEquals("10.0.0.0-10.0.0.3, 128.0.0.0, 200.1.0.0-200.1.0.255, 255.255.255.254-255.255.255.255",
+			set.toString());
+		assertTrue(set.contains("200.1.0.77"));
+		assertTrue(set.contains("255.255.255.255"));
+		assertFalse(set.contains("127.255.255.255"));
+		assertEquals("200.1.0.0", Ipv4RangeSet.format(Ipv4RangeSet.parse("200.1.0.0")));
+		assertEquals(List.of("255.255.255.254", "255.255.255.255"),
+			Ipv4RangeSet.block("255.255.255.254/31").first(10));
+		assertEquals("200.1.0.0-200.1.0.9, 200.1.0.11-200.1.0.255",
+			Ipv4RangeSet.block("200.1.0.0/24").exclude(List.of("200.1.0.10")).toString());
+	}
+
+	@Test
+	void keepsAllAddressesOfSlash31AndSlash32() {
+		assertEquals("10.0.0.4-10.0.0.5", Ipv4RangeSet.hosts("10.0.0.5/31").toString());
+		assertEquals(2, Ipv4RangeSet.hosts("10.0.0.5/31").size());
+		assertEquals("10.0.0.7", Ipv4RangeSet.hosts("10.0.0.7/32").toString());
+		assertEquals(1, Ipv4RangeSet.hosts("10.0.0.7/32").size());
+		// /30 ya pierde red y difusión
+		assertEquals("10.0.0.9-10.0.0.10", Ipv4RangeSet.hosts("10.0.0.8/30").toString());
+	}
+
+	@Test
+	void rejectsInvalidCidrs() {
+		assertThrows(IllegalArgumentException.class, () -> Ipv4RangeSet.block("10.0.0.0/33"));
+		assertThrows(IllegalArgumentException.class, () -> Ipv4RangeSet.block("10.0.0/24"));
+		assertThrows(IllegalArgumentException.class, () -> Ipv4RangeSet.hosts("10.0.0.0"));
+	}
+
+	@Test
+	void shardsCoverTheSetInBalancedConsecutivePieces() {
+		Ipv4RangeSet set = Ipv4RangeSet.hosts(List.of("10.0.0.0/24", "10.0.2.0/24"));
+
+		List<Ipv4RangeSet> shards = set.shards(4);
+
+		assertEquals(4, shards.size());
+		assertEquals(List.of(127L, 127L, 127L, 127L), shards.stream().map(Ipv4RangeSet::size).toList());
+		Ipv4RangeSet rejoined = Ipv4RangeSet.EMPTY;
+		for (Ipv4RangeSet shard : shards) {
+			assertTrue(rejoined.intersect(shard).isEmpty());
+			rejoined = rejoined.union(shard);
+		}
+		assertEquals(set, rejoined);
+
+		// Con 3 trozos el segundo cruza el hueco entre los dos bloques
+		List<Ipv4RangeSet> thirds = set.shards(3);
+		assertEquals(List.of(170L, 170L, 168L), thirds.stream().map(Ipv4RangeSet::size).toList());
+		assertEquals("10.0.0.171-10.0.0.254, 10.0.2.1-10.0.2.86", thirds.get(1).toString());
+	}
+
+	@Test
+	void unevenShardsAreNeverEmpty() {
+		List<Ipv4RangeSet> shards = Ipv4RangeSet.hosts("10.0.0.0/29").shards(4);
+
+		assertEquals(List.of(2L, 2L, 2L), shards.stream().map(Ipv4RangeSet::size).toList());
+		assertEquals(List.of(Ipv4RangeSet.hosts("10.0.0.7/32")), Ipv4RangeSet.hosts("10.0.0.7/32").shards(8));
+		assertTrue(Ipv4RangeSet.EMPTY.shards(3).isEmpty());
+	}
+}